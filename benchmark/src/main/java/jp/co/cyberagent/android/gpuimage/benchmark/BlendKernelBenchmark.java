@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+import jp.co.cyberagent.android.gpuimage.cpu.ChromaKeyKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuProcessor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Every BlendMode and the chroma key blend on two images of random pixels. BlendKernelTest
+ * checks them against the shaders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlendKernelBenchmark {
+    static final String CHROMA_KEY = "CHROMA_KEY";
+    private static final float[] GREEN = {0.0f, 1.0f, 0.0f};
+
+    @Param({"NORMAL", "SOURCE_OVER", "ALPHA", "DISSOLVE", "MULTIPLY", "SCREEN", "ADD", "SUBTRACT",
+            "DARKEN", "LIGHTEN", "DIFFERENCE", "EXCLUSION", "LINEAR_BURN", "COLOR_BURN", "DIVIDE",
+            "OVERLAY", "HARD_LIGHT", "SOFT_LIGHT", "COLOR_DODGE", "HUE", "SATURATION", "COLOR",
+            "LUMINOSITY", CHROMA_KEY})
+    public String mode;
+
+    @Param({"1920x1080"})
+    public String size;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mBase;
+    private int[] mOverlay;
+    private int[] mTarget;
+    private BlendKernel mKernel;
+    private CpuProcessor mProcessor;
+
+    @Setup
+    public void setUp() {
+        String[] parts = size.split("x");
+        mWidth = Integer.parseInt(parts[0]);
+        mHeight = Integer.parseInt(parts[1]);
+        mBase = CpuKernelBenchmark.createImage(mWidth * mHeight);
+        mOverlay = new int[mBase.length];
+        for (int i = 0; i < mOverlay.length; i++) {
+            mOverlay[i] = i * 0x85ebca6b + 0x27d4eb2f;
+        }
+        mTarget = new int[mBase.length];
+        mKernel = createKernel(mode);
+        mProcessor = new CpuProcessor(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mProcessor.shutdown();
+    }
+
+    @Benchmark
+    public int[] blend() {
+        mProcessor.blend(mKernel, mBase, mOverlay, mTarget, mWidth, mHeight);
+        return mTarget;
+    }
+
+    private static BlendKernel createKernel(final String mode) {
+        if (mode.equals(CHROMA_KEY)) {
+            return new ChromaKeyKernel(0.3f, 0.1f, GREEN);
+        }
+        return BlendMode.valueOf(mode).createKernel();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import jp.co.cyberagent.android.gpuimage.cpu.BrightnessKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.ColorMatrixKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.ContrastKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuProcessor;
+import jp.co.cyberagent.android.gpuimage.cpu.LevelsKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.SaturationKernel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-pixel CPU kernels on an image of random pixels. CpuKernelTest checks them against
+ * the shaders.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CpuKernelBenchmark {
+    private static final float[] SEPIA = {
+            0.3588f, 0.7044f, 0.1368f, 0.0f,
+            0.2990f, 0.5870f, 0.1140f, 0.0f,
+            0.2392f, 0.4696f, 0.0912f, 0.0f,
+            0f, 0f, 0f, 1.0f
+    };
+    private static final float[] LEVELS_MIN = {0.1f, 0.05f, 0.0f};
+    private static final float[] LEVELS_MID = {1.2f, 1.0f, 0.8f};
+    private static final float[] LEVELS_MAX = {0.9f, 1.0f, 0.95f};
+    private static final float[] LEVELS_MIN_OUTPUT = {0.0f, 0.1f, 0.0f};
+    private static final float[] LEVELS_MAX_OUTPUT = {1.0f, 0.9f, 1.0f};
+
+    @Param({"brightness", "contrast", "saturation", "sepia", "levels"})
+    public String kernel;
+
+    @Param({"1920x1080", "4032x3024"})
+    public String size;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private int mWidth;
+    private int mHeight;
+    private int[] mSource;
+    private int[] mTarget;
+    private CpuKernel mKernel;
+    private CpuProcessor mProcessor;
+
+    @Setup
+    public void setUp() {
+        String[] parts = size.split("x");
+        mWidth = Integer.parseInt(parts[0]);
+        mHeight = Integer.parseInt(parts[1]);
+        mSource = createImage(mWidth * mHeight);
+        mTarget = new int[mSource.length];
+        mKernel = createKernel(kernel);
+        mProcessor = new CpuProcessor(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mProcessor.shutdown();
+    }
+
+    @Benchmark
+    public int[] apply() {
+        mProcessor.apply(mKernel, mSource, mTarget, mWidth, mHeight);
+        return mTarget;
+    }
+
+    static int[] createImage(final int pixels) {
+        int[] image = new int[pixels];
+        for (int i = 0; i < pixels; i++) {
+            image[i] = i * 0x9e3779b9;
+        }
+        return image;
+    }
+
+    private static CpuKernel createKernel(final String name) {
+        if (name.equals("brightness")) {
+            return new BrightnessKernel(0.2f);
+        } else if (name.equals("contrast")) {
+            return new ContrastKernel(1.5f);
+        } else if (name.equals("saturation")) {
+            return new SaturationKernel(1.6f);
+        } else if (name.equals("sepia")) {
+            return new ColorMatrixKernel(0.8f, SEPIA);
+        } else {
+            return new LevelsKernel(LEVELS_MIN, LEVELS_MID, LEVELS_MAX, LEVELS_MIN_OUTPUT, LEVELS_MAX_OUTPUT);
+        }
+    }
+}
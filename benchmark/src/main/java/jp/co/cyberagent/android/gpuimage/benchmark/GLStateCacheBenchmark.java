@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import jp.co.cyberagent.android.gpuimage.GLStateCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the state calls of a frame of a GPUImageFilterGroup, where every second pass is a
+ * two input filter, against a RecordingBackend directly and through GLStateCache. The setup
+ * fails if the cache leaves the modeled GL state different from the direct calls at any draw.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GLStateCacheBenchmark {
+    private static final int GL_TEXTURE3 = GLStateCache.GL_TEXTURE0 + 3;
+
+    @Param({"1", "4"})
+    public int passes;
+
+    private RecordingBackend mDirect;
+    private RecordingBackend mCachedBackend;
+    private GLStateCache mCache;
+    private GLStateCache.Backend mThroughCache;
+
+    @Setup
+    public void setUp() {
+        mDirect = new RecordingBackend();
+        mCachedBackend = new RecordingBackend();
+        mCache = new GLStateCache(mCachedBackend);
+        mThroughCache = throughCache(mCache);
+
+        // Two frames, the second one starts from the state the first left behind
+        for (int frame = 0; frame < 2; frame++) {
+            mCache.invalidate();
+            for (int pass = 0; pass < passes; pass++) {
+                drawPass(mDirect, pass);
+                drawPass(mThroughCache, pass);
+                if (!mDirect.hasSameState(mCachedBackend)) {
+                    throw new IllegalStateException("Cached state differs in frame " + frame + ", pass " + pass);
+                }
+                endPass(mDirect, pass);
+                endPass(mThroughCache, pass);
+            }
+        }
+    }
+
+    @Benchmark
+    public long direct() {
+        for (int pass = 0; pass < passes; pass++) {
+            drawPass(mDirect, pass);
+            endPass(mDirect, pass);
+        }
+        return mDirect.getCalls();
+    }
+
+    @Benchmark
+    public long cached() {
+        mCache.invalidate();
+        for (int pass = 0; pass < passes; pass++) {
+            drawPass(mThroughCache, pass);
+            endPass(mThroughCache, pass);
+        }
+        return mCachedBackend.getCalls();
+    }
+
+    /**
+     * The calls of GPUImageFilterGroup.onDraw and GPUImageFilter.onDraw up to glDrawArrays.
+     */
+    private void drawPass(final GLStateCache.Backend gl, final int pass) {
+        boolean last = pass == passes - 1;
+        if (!last) {
+            gl.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 10 + pass);
+        }
+        gl.useProgram(1 + pass);
+        gl.enableVertexAttribArray(0);
+        gl.enableVertexAttribArray(1);
+        gl.activeTexture(GLStateCache.GL_TEXTURE0);
+        gl.bindTexture(GLStateCache.GL_TEXTURE_2D, 20 + pass);
+        if (pass % 2 == 1) {
+            // GPUImageTwoInputFilter.onDrawArraysPre
+            gl.enableVertexAttribArray(2);
+            gl.activeTexture(GL_TEXTURE3);
+            gl.bindTexture(GLStateCache.GL_TEXTURE_2D, 30);
+        }
+        // GLState.disableUnusedVertexAttribArrays, the direct calls disable what they know is stale
+        if (gl == mThroughCache) {
+            mCache.disableUnusedVertexAttribArrays();
+        } else if (pass % 2 == 0) {
+            gl.disableVertexAttribArray(2);
+        }
+    }
+
+    /**
+     * Draws leave the attribute arrays they use enabled and textures bound, the group only
+     * restores the framebuffer.
+     */
+    private void endPass(final GLStateCache.Backend gl, final int pass) {
+        if (pass != passes - 1) {
+            gl.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 0);
+        }
+    }
+
+    private static GLStateCache.Backend throughCache(final GLStateCache cache) {
+        return new GLStateCache.Backend() {
+            @Override
+            public void useProgram(final int program) {
+                cache.useProgram(program);
+            }
+
+            @Override
+            public void activeTexture(final int texture) {
+                cache.activeTexture(texture);
+            }
+
+            @Override
+            public void bindTexture(final int target, final int texture) {
+                cache.bindTexture(target, texture);
+            }
+
+            @Override
+            public void enableVertexAttribArray(final int index) {
+                cache.enableVertexAttribArray(index);
+            }
+
+            @Override
+            public void disableVertexAttribArray(final int index) {
+                cache.disableVertexAttribArray(index);
+            }
+
+            @Override
+            public void bindFramebuffer(final int target, final int frameBuffer) {
+                cache.bindFramebuffer(target, frameBuffer);
+            }
+
+            @Override
+            public int getInteger(final int pname) {
+                return pname == GLStateCache.GL_CURRENT_PROGRAM ? cache.getProgram() : cache.getFrameBuffer();
+            }
+        };
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import jp.co.cyberagent.android.gpuimage.GLStateCache;
+
+import java.util.Arrays;
+
+/**
+ * Stands in for the driver: counts the calls it receives and applies them to a model of the
+ * GL state, so a frame replayed with and without GLStateCache can be compared.
+ */
+public class RecordingBackend implements GLStateCache.Backend {
+    private static final int UNITS = 32;
+    private static final int MAX_ATTRIBS = 16;
+
+    private int mProgram;
+    private int mActiveUnit;
+    private int mFrameBuffer;
+    private final int[] mTextures2D = new int[UNITS];
+    private final int[] mTexturesOther = new int[UNITS];
+    private final boolean[] mAttribs = new boolean[MAX_ATTRIBS];
+    private long mCalls;
+
+    @Override
+    public void useProgram(final int program) {
+        mCalls++;
+        mProgram = program;
+    }
+
+    @Override
+    public void activeTexture(final int texture) {
+        mCalls++;
+        mActiveUnit = texture - GLStateCache.GL_TEXTURE0;
+    }
+
+    @Override
+    public void bindTexture(final int target, final int texture) {
+        mCalls++;
+        if (target == GLStateCache.GL_TEXTURE_2D) {
+            mTextures2D[mActiveUnit] = texture;
+        } else {
+            mTexturesOther[mActiveUnit] = texture;
+        }
+    }
+
+    @Override
+    public void enableVertexAttribArray(final int index) {
+        mCalls++;
+        mAttribs[index] = true;
+    }
+
+    @Override
+    public void disableVertexAttribArray(final int index) {
+        mCalls++;
+        mAttribs[index] = false;
+    }
+
+    @Override
+    public void bindFramebuffer(final int target, final int frameBuffer) {
+        mCalls++;
+        mFrameBuffer = frameBuffer;
+    }
+
+    @Override
+    public int getInteger(final int pname) {
+        mCalls++;
+        switch (pname) {
+            case GLStateCache.GL_CURRENT_PROGRAM:
+                return mProgram;
+            case GLStateCache.GL_FRAMEBUFFER_BINDING:
+                return mFrameBuffer;
+            default:
+                throw new IllegalArgumentException("Unsupported pname " + pname);
+        }
+    }
+
+    public long getCalls() {
+        return mCalls;
+    }
+
+    public boolean hasSameState(final RecordingBackend other) {
+        return mProgram == other.mProgram && mActiveUnit == other.mActiveUnit
+                && mFrameBuffer == other.mFrameBuffer
+                && Arrays.equals(mTextures2D, other.mTextures2D)
+                && Arrays.equals(mTexturesOther, other.mTexturesOther)
+                && Arrays.equals(mAttribs, other.mAttribs);
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import jp.co.cyberagent.android.gpuimage.util.SplineCurve;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tone curve construction in GPUImageToneCurveFilter, uncached and from the curve cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SplineCurveBenchmark {
+    @Param({"3", "8", "16"})
+    public int points;
+
+    private float[] mXs;
+    private float[] mYs;
+
+    @Setup
+    public void setUp() {
+        mXs = new float[points];
+        mYs = new float[points];
+        for (int i = 0; i < points; i++) {
+            float x = (float) i / (points - 1);
+            mXs[i] = x;
+            mYs[i] = (float) Math.pow(x, 0.8) * 0.9f + 0.05f;
+        }
+    }
+
+    @Benchmark
+    public float[] createCurve() {
+        return SplineCurve.createCurve(mXs, mYs);
+    }
+
+    @Benchmark
+    public float[] getCachedCurve() {
+        return SplineCurve.getCurve(mXs, mYs);
+    }
+}
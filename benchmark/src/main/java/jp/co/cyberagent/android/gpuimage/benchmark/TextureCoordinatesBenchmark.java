@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.benchmark;
+
+import jp.co.cyberagent.android.gpuimage.Rotation;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TextureRotationUtil.getRotation and the image fitting of GPUImageRenderer.adjustImageScaling,
+ * which run on every rotation, scale type or image size change.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextureCoordinatesBenchmark {
+    @Param({"NORMAL", "ROTATION_90"})
+    public Rotation rotation;
+
+    @Param({"false", "true"})
+    public boolean flip;
+
+    @Param({"false", "true"})
+    public boolean centerCrop;
+
+    private final float[] mCube = new float[8];
+    private final float[] mTextureCoordinates = new float[8];
+
+    @Benchmark
+    public float[] getRotation() {
+        return TextureRotationUtil.getRotation(rotation, flip, flip);
+    }
+
+    @Benchmark
+    public float[] getScaling() {
+        TextureRotationUtil.getScaling(rotation, flip, flip, centerCrop, 1280, 720, 1080, 1920,
+                mCube, mTextureCoordinates);
+        return mTextureCoordinates;
+    }
+}
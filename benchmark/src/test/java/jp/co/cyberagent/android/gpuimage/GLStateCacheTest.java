@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class GLStateCacheTest {
+    private static final int GL_TEXTURE_CUBE_MAP = 0x8513;
+    private static final int GL_READ_FRAMEBUFFER = 0x8CA8;
+    private static final int MAX_ATTRIBS = 16;
+
+    /**
+     * Logs the calls that reach it, answers queries with the values set by the test.
+     */
+    private static final class LogBackend implements GLStateCache.Backend {
+        final List<String> calls = new ArrayList<String>();
+        int program;
+        int frameBuffer;
+
+        @Override
+        public void useProgram(final int program) {
+            calls.add("useProgram " + program);
+        }
+
+        @Override
+        public void activeTexture(final int texture) {
+            calls.add("activeTexture " + (texture - GLStateCache.GL_TEXTURE0));
+        }
+
+        @Override
+        public void bindTexture(final int target, final int texture) {
+            calls.add("bindTexture " + Integer.toHexString(target) + " " + texture);
+        }
+
+        @Override
+        public void enableVertexAttribArray(final int index) {
+            calls.add("enable " + index);
+        }
+
+        @Override
+        public void disableVertexAttribArray(final int index) {
+            calls.add("disable " + index);
+        }
+
+        @Override
+        public void bindFramebuffer(final int target, final int frameBuffer) {
+            calls.add("bindFramebuffer " + Integer.toHexString(target) + " " + frameBuffer);
+        }
+
+        @Override
+        public int getInteger(final int pname) {
+            calls.add("getInteger " + Integer.toHexString(pname));
+            return pname == GLStateCache.GL_CURRENT_PROGRAM ? program : frameBuffer;
+        }
+    }
+
+    private LogBackend mBackend;
+    private GLStateCache mCache;
+
+    @Before
+    public void setUp() {
+        mBackend = new LogBackend();
+        mCache = new GLStateCache(mBackend);
+    }
+
+    @Test
+    public void skipsCallsThatChangeNothing() {
+        for (int i = 0; i < 2; i++) {
+            mCache.useProgram(1);
+            mCache.activeTexture(GLStateCache.GL_TEXTURE0 + 2);
+            mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+            mCache.bindTexture(GLStateCache.GL_TEXTURE_EXTERNAL_OES, 6);
+            mCache.enableVertexAttribArray(0);
+            mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        }
+        assertCalls("useProgram 1", "activeTexture 2", "bindTexture de1 5", "bindTexture 8d65 6",
+                "enable 0", "bindFramebuffer 8d40 7");
+        assertEquals(6, mCache.getIssuedCount());
+        assertEquals(6, mCache.getSkippedCount());
+    }
+
+    @Test
+    public void forwardsChanges() {
+        mCache.useProgram(1);
+        mCache.useProgram(2);
+        mCache.enableVertexAttribArray(3);
+        mCache.disableVertexAttribArray(3);
+        mCache.disableVertexAttribArray(3);
+        assertCalls("useProgram 1", "useProgram 2", "enable 3", "disable 3");
+    }
+
+    @Test
+    public void tracksTexturesPerUnit() {
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0 + 1);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        assertCalls("activeTexture 0", "bindTexture de1 5", "activeTexture 1", "bindTexture de1 5",
+                "activeTexture 0");
+    }
+
+    @Test
+    public void forwardsEverythingAfterInvalidate() {
+        mCache.useProgram(1);
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        mCache.enableVertexAttribArray(0);
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        mBackend.calls.clear();
+
+        mCache.invalidate();
+        mCache.useProgram(1);
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        mCache.enableVertexAttribArray(0);
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        assertCalls("useProgram 1", "activeTexture 0", "bindTexture de1 5", "enable 0",
+                "bindFramebuffer 8d40 7");
+    }
+
+    @Test
+    public void bindsTexturesOnlyOnceTheUnitIsKnown() {
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        assertCalls("bindTexture de1 5", "bindTexture de1 5");
+    }
+
+    @Test
+    public void queriesUnknownBindingsOnce() {
+        mBackend.program = 3;
+        mBackend.frameBuffer = 4;
+        assertEquals(3, mCache.getProgram());
+        assertEquals(3, mCache.getProgram());
+        assertEquals(4, mCache.getFrameBuffer());
+        assertEquals(4, mCache.getFrameBuffer());
+        mCache.useProgram(3);
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 4);
+        assertCalls("getInteger 8b8d", "getInteger 8ca6");
+
+        mCache.useProgram(5);
+        assertEquals(5, mCache.getProgram());
+        assertCalls("getInteger 8b8d", "getInteger 8ca6", "useProgram 5");
+    }
+
+    @Test
+    public void deletedTexturesAreUnboundFromEveryUnit() {
+        for (int unit = 0; unit < 2; unit++) {
+            mCache.activeTexture(GLStateCache.GL_TEXTURE0 + unit);
+            mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        }
+        mCache.onTexturesDeleted(1, new int[] {9, 5}, 1);
+        mBackend.calls.clear();
+
+        // Unbinding is a no-op, binding the reused name is not
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 0);
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0);
+        mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        assertCalls("activeTexture 0", "bindTexture de1 5");
+    }
+
+    @Test
+    public void deletedProgramIsForgotten() {
+        mCache.useProgram(3);
+        mCache.onProgramDeleted(4);
+        mCache.useProgram(3);
+        mCache.onProgramDeleted(3);
+        mCache.useProgram(3);
+        assertCalls("useProgram 3", "useProgram 3");
+    }
+
+    @Test
+    public void deletingTheBoundFramebufferBindsTheDefaultOne() {
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        mCache.onFrameBuffersDeleted(1, new int[] {7}, 0);
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 0);
+        assertEquals(0, mCache.getFrameBuffer());
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        assertCalls("bindFramebuffer 8d40 7", "bindFramebuffer 8d40 7");
+    }
+
+    @Test
+    public void forwardsUntrackedUnitsTargetsAndAttributes() {
+        for (int i = 0; i < 2; i++) {
+            mCache.activeTexture(GLStateCache.GL_TEXTURE0 + 40);
+            mCache.bindTexture(GLStateCache.GL_TEXTURE_2D, 5);
+        }
+        mCache.activeTexture(GLStateCache.GL_TEXTURE0);
+        for (int i = 0; i < 2; i++) {
+            mCache.bindTexture(GL_TEXTURE_CUBE_MAP, 6);
+            mCache.enableVertexAttribArray(20);
+        }
+        assertCalls("activeTexture 40", "bindTexture de1 5", "activeTexture 40", "bindTexture de1 5",
+                "activeTexture 0", "bindTexture 8513 6", "enable 20", "bindTexture 8513 6", "enable 20");
+    }
+
+    @Test
+    public void otherFramebufferTargetsMakeTheBindingUnknown() {
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        mCache.bindFramebuffer(GL_READ_FRAMEBUFFER, 8);
+        mCache.bindFramebuffer(GLStateCache.GL_FRAMEBUFFER, 7);
+        assertCalls("bindFramebuffer 8d40 7", "bindFramebuffer 8ca8 8", "bindFramebuffer 8d40 7");
+    }
+
+    @Test
+    public void disablesArraysNotEnabledSinceUseProgram() {
+        mCache.useProgram(1);
+        mCache.enableVertexAttribArray(0);
+        mCache.enableVertexAttribArray(2);
+        mCache.disableVertexAttribArray(1);
+        for (int index = 3; index < MAX_ATTRIBS; index++) {
+            mCache.disableVertexAttribArray(index);
+        }
+        mCache.disableUnusedVertexAttribArrays();
+        mBackend.calls.clear();
+
+        // The same program again, without the second input
+        mCache.useProgram(1);
+        mCache.enableVertexAttribArray(0);
+        mCache.disableUnusedVertexAttribArrays();
+        mCache.disableUnusedVertexAttribArrays();
+        assertCalls("disable 2");
+    }
+
+    @Test
+    public void disablesUnknownArraysAfterInvalidate() {
+        mCache.invalidate();
+        mCache.useProgram(1);
+        mCache.enableVertexAttribArray(0);
+        mCache.disableUnusedVertexAttribArrays();
+        assertEquals("enable 0", mBackend.calls.get(1));
+        assertEquals(2 + MAX_ATTRIBS - 1, mBackend.calls.size());
+        assertEquals("disable 1", mBackend.calls.get(2));
+    }
+
+    @Test
+    public void keepsArraysAcrossDrawsOfOneProgram() {
+        mCache.useProgram(1);
+        mCache.enableVertexAttribArray(0);
+        mCache.enableVertexAttribArray(1);
+        mCache.disableUnusedVertexAttribArrays();
+        mBackend.calls.clear();
+
+        for (int i = 0; i < 3; i++) {
+            mCache.disableUnusedVertexAttribArrays();
+        }
+        assertCalls();
+    }
+
+    private void assertCalls(final String... calls) {
+        assertEquals(Arrays.asList(calls), mBackend.calls);
+    }
+}
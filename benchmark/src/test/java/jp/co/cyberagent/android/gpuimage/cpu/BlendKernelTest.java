@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks every BlendMode and the chroma key blend against the shaders of their filters,
+ * written out in BlendReference.
+ */
+public class BlendKernelTest {
+    private static final int WIDTH = CpuKernelTest.WIDTH;
+    private static final int HEIGHT = CpuKernelTest.HEIGHT;
+    private static final float[] OPACITIES = {1.0f, 0.6f, 0.0f};
+    private static final float[] GREEN = {0.0f, 1.0f, 0.0f};
+
+    /**
+     * Colors that take the branches of setsat and clipcolor without a random image hitting
+     * them: gray, two equal channels in every order, black, white and saturated primaries.
+     */
+    private static final int[] EDGE_COLORS = {
+            0x000000, 0xffffff, 0x808080, 0x010101,
+            0x8080ff, 0x80ff80, 0xff8080, 0x808000, 0x800080, 0x008080,
+            0xff0000, 0x00ff00, 0x0000ff, 0xffff00, 0xff00ff, 0x00ffff,
+            0xc86432, 0x3264c8, 0x64c832
+    };
+    private static final int[] EDGE_ALPHAS = {0x00, 0x80, 0xff};
+
+    @Test
+    public void modesMatchShader() {
+        int[] base = CpuKernelTest.createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        int[] overlay = createOverlay(base.length);
+        for (BlendMode mode : BlendMode.values()) {
+            for (float opacity : OPACITIES) {
+                assertMatchesShader(mode + " at opacity " + opacity, mode.createKernel(opacity),
+                        BlendReference.mode(mode.name(), opacity), base, overlay, WIDTH, HEIGHT);
+            }
+        }
+    }
+
+    @Test
+    public void modesMatchShaderOnEdgeColors() {
+        int count = EDGE_COLORS.length * EDGE_ALPHAS.length;
+        int[] base = new int[count * count];
+        int[] overlay = new int[count * count];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < count; j++) {
+                base[i * count + j] = getEdgeColor(i);
+                overlay[i * count + j] = getEdgeColor(j);
+            }
+        }
+        for (BlendMode mode : BlendMode.values()) {
+            for (float opacity : OPACITIES) {
+                assertMatchesShader(mode + " at opacity " + opacity + " on edge colors", mode.createKernel(opacity),
+                        BlendReference.mode(mode.name(), opacity), base, overlay, count, count);
+            }
+        }
+    }
+
+    @Test
+    public void dissolveMixesByOpacity() {
+        int[] base = CpuKernelTest.createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        int[] overlay = createOverlay(base.length);
+        assertArrayEquals("opacity 0", base, blend(BlendMode.DISSOLVE.createKernel(0.0f), base, overlay));
+        assertArrayEquals("opacity 1", overlay, blend(BlendMode.DISSOLVE.createKernel(1.0f), base, overlay));
+    }
+
+    @Test
+    public void alphaMixesByOverlayAlphaAndKeepsBaseAlpha() {
+        int[] base = CpuKernelTest.createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        int[] overlay = createOverlay(base.length);
+        int[] transparent = new int[overlay.length];
+        int[] opaque = new int[overlay.length];
+        int[] expected = new int[overlay.length];
+        for (int i = 0; i < overlay.length; i++) {
+            transparent[i] = overlay[i] & 0x00ffffff;
+            opaque[i] = overlay[i] | 0xff000000;
+            expected[i] = base[i] & 0xff000000 | overlay[i] & 0x00ffffff;
+        }
+        BlendKernel kernel = BlendMode.ALPHA.createKernel();
+        assertArrayEquals("transparent overlay", base, blend(kernel, base, transparent));
+        assertArrayEquals("opaque overlay", expected, blend(kernel, base, opaque));
+    }
+
+    @Test
+    public void chromaKeyMatchesShader() {
+        int[] base = CpuKernelTest.createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        int[] overlay = createOverlay(base.length);
+        assertMatchesShader("chroma key", new ChromaKeyKernel(0.3f, 0.1f, GREEN),
+                BlendReference.chromaKey(0.3f, 0.1f, GREEN), base, overlay, WIDTH, HEIGHT);
+    }
+
+    @Test
+    public void resultDoesNotDependOnThreads() {
+        int[] base = CpuKernelTest.createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        int[] overlay = createOverlay(base.length);
+        CpuProcessor processor = new CpuProcessor(4);
+        for (BlendMode mode : BlendMode.values()) {
+            BlendKernel kernel = mode.createKernel(0.6f);
+            int[] parallel = new int[base.length];
+            processor.blend(kernel, base, overlay, parallel, WIDTH, HEIGHT);
+            assertArrayEquals(mode + " on 4 threads", blend(kernel, base, overlay), parallel);
+        }
+        processor.shutdown();
+    }
+
+    private static int getEdgeColor(final int index) {
+        return EDGE_ALPHAS[index % EDGE_ALPHAS.length] << 24 | EDGE_COLORS[index / EDGE_ALPHAS.length];
+    }
+
+    private static int[] createOverlay(final int pixels) {
+        int[] overlay = new int[pixels];
+        for (int i = 0; i < pixels; i++) {
+            overlay[i] = i * 0x85ebca6b + 0x27d4eb2f;
+        }
+        return overlay;
+    }
+
+    private static int[] blend(final BlendKernel kernel, final int[] base, final int[] overlay) {
+        int[] target = new int[base.length];
+        CpuProcessor processor = new CpuProcessor(1);
+        processor.blend(kernel, base, overlay, target, WIDTH, HEIGHT);
+        processor.shutdown();
+        return target;
+    }
+
+    private static void assertMatchesShader(final String name, final BlendKernel kernel,
+                                            final BlendReference reference, final int[] base,
+                                            final int[] overlay, final int width, final int height) {
+        int[] expected = new int[base.length];
+        reference.apply(base, overlay, expected);
+        int[] actual = new int[base.length];
+        CpuProcessor processor = new CpuProcessor(1);
+        processor.blend(kernel, base, overlay, actual, width, height);
+        processor.shutdown();
+        int delta = ShaderReference.maxDelta(expected, actual);
+        assertTrue(name + " differs from the shader by " + delta, delta <= CpuKernelTest.MAX_DELTA);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * The GLSL of GPUImageBlendFilter and GPUImageChromaKeyBlendFilter written out as scalar Java
+ * for one pixel at a time, the reference BlendKernels are checked against. Colors are RGBA
+ * from 0.0 to 1.0 and rounded like ShaderReference.
+ */
+public abstract class BlendReference {
+    /**
+     * gl_FragColor for base and overlay, returned in base.
+     */
+    abstract void main(float[] base, float[] overlay);
+
+    public void apply(final int[] base, final int[] overlay, final int[] target) {
+        float[] color = new float[4];
+        float[] color2 = new float[4];
+        for (int i = 0; i < base.length; i++) {
+            ShaderReference.unpack(base[i], color);
+            ShaderReference.unpack(overlay[i], color2);
+            main(color, color2);
+            target[i] = ShaderReference.pack(color);
+        }
+    }
+
+    /**
+     * The function of GPUImageBlendFilter.Mode with the given name, followed by
+     * gl_FragColor = mix(base, result, opacity).
+     */
+    public static BlendReference mode(final String mode, final float opacity) {
+        return new BlendReference() {
+            private final float[] mResult = new float[4];
+
+            @Override
+            void main(final float[] base, final float[] overlay) {
+                blend(mode, base, overlay, mResult);
+                for (int i = 0; i < 4; i++) {
+                    base[i] = base[i] * (1.0f - opacity) + mResult[i] * opacity;
+                }
+            }
+        };
+    }
+
+    public static BlendReference chromaKey(final float thresholdSensitivity, final float smoothing,
+                                           final float[] colorToReplace) {
+        return new BlendReference() {
+            @Override
+            void main(final float[] base, final float[] overlay) {
+                float maskY = 0.2989f * colorToReplace[0] + 0.5866f * colorToReplace[1] + 0.1145f * colorToReplace[2];
+                float maskCr = 0.7132f * (colorToReplace[0] - maskY);
+                float maskCb = 0.5647f * (colorToReplace[2] - maskY);
+                float y = 0.2989f * base[0] + 0.5866f * base[1] + 0.1145f * base[2];
+                float cr = 0.7132f * (base[0] - y);
+                float cb = 0.5647f * (base[2] - y);
+                float distance = (float) Math.hypot(cr - maskCr, cb - maskCb);
+                float blendValue = 1.0f - smoothstep(thresholdSensitivity, thresholdSensitivity + smoothing, distance);
+                for (int i = 0; i < 4; i++) {
+                    base[i] = mix(base[i], overlay[i], blendValue);
+                }
+            }
+        };
+    }
+
+    private static void blend(final String mode, final float[] b, final float[] o, final float[] result) {
+        float ba = b[3];
+        float oa = o[3];
+        if (mode.equals("HUE") || mode.equals("SATURATION") || mode.equals("COLOR") || mode.equals("LUMINOSITY")) {
+            float[] c;
+            if (mode.equals("HUE")) {
+                c = setlum(setsat(rgb(o), sat(b)), lum(b));
+            } else if (mode.equals("SATURATION")) {
+                c = setlum(setsat(rgb(b), sat(o)), lum(b));
+            } else if (mode.equals("COLOR")) {
+                c = setlum(rgb(o), lum(b));
+            } else {
+                c = setlum(rgb(b), lum(o));
+            }
+            for (int i = 0; i < 3; i++) {
+                result[i] = b[i] * (1.0f - oa) + c[i] * oa;
+            }
+            result[3] = ba;
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            // The alpha entry of the vec4 modes, replaced below by the vec3 modes
+            float bc = b[i];
+            float oc = o[i];
+            float rest = oc * (1.0f - ba) + bc * (1.0f - oa);
+            float value;
+            if (mode.equals("NORMAL")) {
+                value = oc + bc * ba * (1.0f - oa);
+            } else if (mode.equals("SOURCE_OVER") || mode.equals("ALPHA")) {
+                value = mix(bc, oc, oa);
+            } else if (mode.equals("DISSOLVE")) {
+                value = oc;
+            } else if (mode.equals("MULTIPLY")) {
+                value = oc * bc + oc * (1.0f - ba) + bc * (1.0f - oa);
+            } else if (mode.equals("SCREEN")) {
+                value = 1.0f - ((1.0f - oc) * (1.0f - bc));
+            } else if (mode.equals("ADD")) {
+                float clipped = oa * ba + oc * (1.0f - ba) + bc * (1.0f - oa);
+                value = step(oa * ba, oc * ba + bc * oa) == 1.0f ? clipped : oc + bc;
+            } else if (mode.equals("SUBTRACT")) {
+                value = bc - oc;
+            } else if (mode.equals("DARKEN")) {
+                value = Math.min(oc * ba, bc * oa) + oc * (1.0f - ba) + bc * (1.0f - oa);
+            } else if (mode.equals("LIGHTEN")) {
+                value = Math.max(bc, oc);
+            } else if (mode.equals("DIFFERENCE")) {
+                value = Math.abs(oc - bc);
+            } else if (mode.equals("EXCLUSION")) {
+                value = (oc * ba + bc * oa - 2.0f * oc * bc) + oc * (1.0f - ba) + bc * (1.0f - oa);
+            } else if (mode.equals("LINEAR_BURN")) {
+                value = clamp(bc + oc - 1.0f, 0.0f, 1.0f);
+            } else if (mode.equals("COLOR_BURN")) {
+                value = 1.0f - (1.0f - bc) / oc;
+            } else if (mode.equals("DIVIDE")) {
+                // GPUImageDivideBlendFilter
+                if (oa == 0.0f || ((bc / oc) > (ba / oa))) {
+                    value = oa * ba + oc * (1.0f - ba) + bc * (1.0f - oa);
+                } else {
+                    value = (bc * oa * oa) / oc + oc * (1.0f - ba) + bc * (1.0f - oa);
+                }
+            } else if (mode.equals("OVERLAY")) {
+                value = hardLight(bc, ba, oc, oa, 1.0f - step(ba, 2.0f * bc));
+            } else if (mode.equals("HARD_LIGHT")) {
+                value = hardLight(bc, ba, oc, oa, 1.0f - step(oa, 2.0f * oc));
+            } else if (mode.equals("SOFT_LIGHT")) {
+                value = bc * (oa * (bc / ba) + (2.0f * oc * (1.0f - (bc / ba)))) + oc * (1.0f - ba) + bc * (1.0f - oa);
+            } else if (mode.equals("COLOR_DODGE")) {
+                float product = oa * ba;
+                float first = product + rest;
+                float overlayRGB = clamp((oc / clamp(oa, 0.01f, 1.0f)) * step(0.0f, oa), 0.0f, 0.99f);
+                float second = (bc * oa) / (1.0f - overlayRGB) + rest;
+                value = step(oc * ba + bc * oa, product) == 1.0f ? second : first;
+            } else {
+                throw new IllegalArgumentException("Unknown mode " + mode);
+            }
+            result[i] = value;
+        }
+        if (mode.equals("NORMAL")) {
+            result[3] = oa + ba * (1.0f - oa);
+        } else if (mode.equals("ADD") || mode.equals("DIVIDE")) {
+            result[3] = oa + ba - oa * ba;
+        } else if (mode.equals("DARKEN") || mode.equals("OVERLAY") || mode.equals("HARD_LIGHT")
+                || mode.equals("COLOR_DODGE")) {
+            result[3] = 1.0f;
+        } else if (mode.equals("ALPHA") || mode.equals("SUBTRACT") || mode.equals("DIFFERENCE")
+                || mode.equals("EXCLUSION") || mode.equals("LINEAR_BURN")) {
+            result[3] = ba;
+        }
+    }
+
+    private static float hardLight(final float bc, final float ba, final float oc, final float oa,
+                                   final float low) {
+        float dark = 2.0f * oc * bc + oc * (1.0f - ba) + bc * (1.0f - oa);
+        float light = oa * ba - 2.0f * (ba - bc) * (oa - oc) + oc * (1.0f - ba) + bc * (1.0f - oa);
+        return low == 1.0f ? dark : light;
+    }
+
+    private static float mix(final float x, final float y, final float a) {
+        return x * (1.0f - a) + y * a;
+    }
+
+    private static float step(final float edge, final float x) {
+        return x < edge ? 0.0f : 1.0f;
+    }
+
+    private static float clamp(final float x, final float min, final float max) {
+        return Math.min(Math.max(x, min), max);
+    }
+
+    private static float smoothstep(final float edge0, final float edge1, final float x) {
+        float t = clamp((x - edge0) / (edge1 - edge0), 0.0f, 1.0f);
+        return t * t * (3.0f - 2.0f * t);
+    }
+
+    private static float[] rgb(final float[] c) {
+        return new float[] {c[0], c[1], c[2]};
+    }
+
+    private static float lum(final float[] c) {
+        return c[0] * 0.3f + c[1] * 0.59f + c[2] * 0.11f;
+    }
+
+    private static float[] clipcolor(final float[] c) {
+        float l = lum(c);
+        float n = Math.min(Math.min(c[0], c[1]), c[2]);
+        float x = Math.max(Math.max(c[0], c[1]), c[2]);
+        if (n < 0.0f) {
+            for (int i = 0; i < 3; i++) {
+                c[i] = l + ((c[i] - l) * l) / (l - n);
+            }
+        }
+        if (x > 1.0f) {
+            for (int i = 0; i < 3; i++) {
+                c[i] = l + ((c[i] - l) * (1.0f - l)) / (x - l);
+            }
+        }
+        return c;
+    }
+
+    private static float[] setlum(final float[] c, final float l) {
+        float d = l - lum(c);
+        return clipcolor(new float[] {c[0] + d, c[1] + d, c[2] + d});
+    }
+
+    private static float sat(final float[] c) {
+        return Math.max(Math.max(c[0], c[1]), c[2]) - Math.min(Math.min(c[0], c[1]), c[2]);
+    }
+
+    private static float mid(final float cmin, final float cmid, final float cmax, final float s) {
+        return ((cmid - cmin) * s) / (cmax - cmin);
+    }
+
+    private static float[] setsat(final float[] c, final float s) {
+        final int r = 0;
+        final int g = 1;
+        final int b = 2;
+        if (c[r] > c[g]) {
+            if (c[r] > c[b]) {
+                if (c[g] > c[b]) {
+                    c[g] = mid(c[b], c[g], c[r], s);
+                    c[b] = 0.0f;
+                } else {
+                    c[b] = mid(c[g], c[b], c[r], s);
+                    c[g] = 0.0f;
+                }
+                c[r] = s;
+            } else {
+                c[r] = mid(c[g], c[r], c[b], s);
+                c[b] = s;
+                c[r] = 0.0f;
+            }
+        } else if (c[r] > c[b]) {
+            c[r] = mid(c[b], c[r], c[g], s);
+            c[g] = s;
+            c[b] = 0.0f;
+        } else if (c[g] > c[b]) {
+            c[b] = mid(c[r], c[b], c[g], s);
+            c[g] = s;
+            c[r] = 0.0f;
+        } else if (c[b] > c[g]) {
+            c[g] = mid(c[r], c[g], c[b], s);
+            c[b] = s;
+            c[r] = 0.0f;
+        } else {
+            c[r] = 0.0f;
+            c[g] = 0.0f;
+            c[b] = 0.0f;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the ChannelKernels against the fragment shaders of their filters, written out in
+ * ShaderReference.
+ */
+public class CpuKernelTest {
+    /**
+     * Float rounding differences, enough to land on the other side of a .5.
+     */
+    static final int MAX_DELTA = 1;
+    static final int WIDTH = 300;
+    static final int HEIGHT = 200;
+
+    private static final float[] SEPIA = {
+            0.3588f, 0.7044f, 0.1368f, 0.0f,
+            0.2990f, 0.5870f, 0.1140f, 0.0f,
+            0.2392f, 0.4696f, 0.0912f, 0.0f,
+            0f, 0f, 0f, 1.0f
+    };
+    private static final float[] LEVELS_MIN = {0.1f, 0.05f, 0.0f};
+    private static final float[] LEVELS_MID = {1.2f, 1.0f, 0.8f};
+    private static final float[] LEVELS_MAX = {0.9f, 1.0f, 0.95f};
+    private static final float[] LEVELS_MIN_OUTPUT = {0.0f, 0.1f, 0.0f};
+    private static final float[] LEVELS_MAX_OUTPUT = {1.0f, 0.9f, 1.0f};
+
+    @Test
+    public void brightnessMatchesShader() {
+        for (float brightness : new float[] {-1.0f, -0.3f, 0.0f, 0.2f, 1.0f}) {
+            assertMatchesShader("brightness " + brightness, new BrightnessKernel(brightness),
+                    ShaderReference.brightness(brightness));
+        }
+    }
+
+    @Test
+    public void contrastMatchesShader() {
+        for (float contrast : new float[] {0.0f, 0.5f, 1.0f, 1.5f, 4.0f}) {
+            assertMatchesShader("contrast " + contrast, new ContrastKernel(contrast),
+                    ShaderReference.contrast(contrast));
+        }
+    }
+
+    @Test
+    public void saturationMatchesShader() {
+        for (float saturation : new float[] {0.0f, 0.5f, 1.0f, 1.6f, 2.0f}) {
+            assertMatchesShader("saturation " + saturation, new SaturationKernel(saturation),
+                    ShaderReference.saturation(saturation));
+        }
+    }
+
+    @Test
+    public void colorMatrixMatchesShader() {
+        for (float intensity : new float[] {0.0f, 0.8f, 1.0f}) {
+            assertMatchesShader("sepia " + intensity, new ColorMatrixKernel(intensity, SEPIA),
+                    ShaderReference.colorMatrix(intensity, SEPIA));
+        }
+    }
+
+    @Test
+    public void levelsMatchShader() {
+        assertMatchesShader("levels",
+                new LevelsKernel(LEVELS_MIN, LEVELS_MID, LEVELS_MAX, LEVELS_MIN_OUTPUT, LEVELS_MAX_OUTPUT),
+                ShaderReference.levels(LEVELS_MIN, LEVELS_MID, LEVELS_MAX, LEVELS_MIN_OUTPUT, LEVELS_MAX_OUTPUT));
+    }
+
+    @Test
+    public void resultDoesNotDependOnThreadsOrInPlace() {
+        int[] source = createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        CpuKernel kernel = new ColorMatrixKernel(0.8f, SEPIA);
+        int[] single = new int[source.length];
+        CpuProcessor processor = new CpuProcessor(1);
+        processor.apply(kernel, source, single, WIDTH, HEIGHT);
+        processor.shutdown();
+
+        // More pixels than a stripe, so every thread gets some
+        processor = new CpuProcessor(4);
+        int[] parallel = new int[source.length];
+        processor.apply(kernel, source, parallel, WIDTH, HEIGHT);
+        assertArrayEquals("4 threads", single, parallel);
+        processor.apply(kernel, source, source, WIDTH, HEIGHT);
+        assertArrayEquals("in place", single, source);
+        processor.shutdown();
+    }
+
+    /**
+     * Pixels spread over all channel values, every 8 bit value in every channel in the first
+     * rows.
+     */
+    static int[] createImage(final int pixels, final int seed) {
+        int[] image = new int[pixels];
+        for (int i = 0; i < pixels; i++) {
+            image[i] = i < 256 ? i * 0x01010101 : i * seed;
+        }
+        return image;
+    }
+
+    private static void assertMatchesShader(final String name, final CpuKernel kernel,
+                                            final ShaderReference reference) {
+        int[] source = createImage(WIDTH * HEIGHT, 0x9e3779b9);
+        int[] expected = new int[source.length];
+        reference.apply(source, expected);
+        int[] actual = new int[source.length];
+        CpuProcessor processor = new CpuProcessor(1);
+        processor.apply(kernel, source, actual, WIDTH, HEIGHT);
+        processor.shutdown();
+        int delta = ShaderReference.maxDelta(expected, actual);
+        assertTrue(name + " differs from the shader by " + delta, delta <= MAX_DELTA);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * The fragment shaders of the filters written out as scalar Java for one pixel at a time,
+ * the reference the CPU kernels are checked against. Colors are RGBA from 0.0 to 1.0 and
+ * rounded to 8 bits like a write to an RGBA8 framebuffer.
+ */
+public abstract class ShaderReference {
+    /**
+     * gl_FragColor for textureColor, both passed in color.
+     */
+    abstract void main(float[] color);
+
+    public void apply(final int[] source, final int[] target) {
+        float[] color = new float[4];
+        for (int i = 0; i < source.length; i++) {
+            unpack(source[i], color);
+            main(color);
+            target[i] = pack(color);
+        }
+    }
+
+    static void unpack(final int pixel, final float[] color) {
+        color[0] = ((pixel >> 16) & 0xff) / 255.0f;
+        color[1] = ((pixel >> 8) & 0xff) / 255.0f;
+        color[2] = (pixel & 0xff) / 255.0f;
+        color[3] = (pixel >>> 24) / 255.0f;
+    }
+
+    static int pack(final float[] color) {
+        return toByte(color[3]) << 24 | toByte(color[0]) << 16 | toByte(color[1]) << 8 | toByte(color[2]);
+    }
+
+    private static int toByte(final float value) {
+        return Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * 255.0f);
+    }
+
+    /**
+     * @return the largest difference of any channel of any pixel
+     */
+    public static int maxDelta(final int[] expected, final int[] actual) {
+        int max = 0;
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift < 32; shift += 8) {
+                int delta = Math.abs(((expected[i] >>> shift) & 0xff) - ((actual[i] >>> shift) & 0xff));
+                max = Math.max(max, delta);
+            }
+        }
+        return max;
+    }
+
+    public static ShaderReference brightness(final float brightness) {
+        return new ShaderReference() {
+            @Override
+            void main(final float[] color) {
+                for (int i = 0; i < 3; i++) {
+                    color[i] = color[i] + brightness;
+                }
+            }
+        };
+    }
+
+    public static ShaderReference contrast(final float contrast) {
+        return new ShaderReference() {
+            @Override
+            void main(final float[] color) {
+                for (int i = 0; i < 3; i++) {
+                    color[i] = (color[i] - 0.5f) * contrast + 0.5f;
+                }
+            }
+        };
+    }
+
+    public static ShaderReference saturation(final float saturation) {
+        return new ShaderReference() {
+            @Override
+            void main(final float[] color) {
+                float luminance = color[0] * 0.2125f + color[1] * 0.7154f + color[2] * 0.0721f;
+                for (int i = 0; i < 3; i++) {
+                    color[i] = luminance * (1.0f - saturation) + color[i] * saturation;
+                }
+            }
+        };
+    }
+
+    /**
+     * textureColor * colorMatrix with the matrix uploaded column major, mixed with the input
+     * by intensity.
+     */
+    public static ShaderReference colorMatrix(final float intensity, final float[] matrix) {
+        return new ShaderReference() {
+            private final float[] mOutput = new float[4];
+
+            @Override
+            void main(final float[] color) {
+                for (int column = 0; column < 4; column++) {
+                    float sum = 0.0f;
+                    for (int row = 0; row < 4; row++) {
+                        sum += color[row] * matrix[column * 4 + row];
+                    }
+                    mOutput[column] = sum;
+                }
+                for (int i = 0; i < 4; i++) {
+                    color[i] = intensity * mOutput[i] + (1.0f - intensity) * color[i];
+                }
+            }
+        };
+    }
+
+    public static ShaderReference levels(final float[] min, final float[] mid, final float[] max,
+                                         final float[] minOutput, final float[] maxOutput) {
+        return new ShaderReference() {
+            @Override
+            void main(final float[] color) {
+                for (int i = 0; i < 3; i++) {
+                    float level = Math.min(Math.max(color[i] - min[i], 0.0f) / (max[i] - min[i]), 1.0f);
+                    float curved = (float) Math.pow(level, 1.0f / mid[i]);
+                    color[i] = minOutput[i] * (1.0f - curved) + maxOutput[i] * curved;
+                }
+            }
+        };
+    }
+}
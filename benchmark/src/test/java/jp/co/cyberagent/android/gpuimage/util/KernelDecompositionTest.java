@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KernelDecompositionTest {
+    private static final float EXACT = 1e-5f;
+
+    @Test
+    public void gaussianIsSeparable() {
+        float[] kernel = gaussian(7, 1.5f);
+        KernelDecomposition decomposition = KernelDecomposition.decompose(kernel);
+        assertEquals(7, decomposition.getSize());
+        assertEquals(1, decomposition.getRank());
+        assertTrue(decomposition.isSeparable());
+        assertTrue(decomposition.isCheaperThanFullPass());
+        assertEquals(0, reconstructionError(kernel, decomposition), EXACT);
+        assertEquals(0, decomposition.getError(), EXACT);
+    }
+
+    @Test
+    public void separableTermIsSymmetricForASymmetricKernel() {
+        KernelDecomposition decomposition = KernelDecomposition.decompose(gaussian(5, 1.0f));
+        float[] vertical = decomposition.getVertical(0);
+        float[] horizontal = decomposition.getHorizontal(0);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Math.abs(vertical[i]), Math.abs(horizontal[i]), EXACT);
+            assertEquals(vertical[i], vertical[4 - i], EXACT);
+        }
+    }
+
+    @Test
+    public void differenceOfGaussiansHasRankTwo() {
+        float[] narrow = gaussian(9, 1.0f);
+        float[] wide = gaussian(9, 2.5f);
+        float[] kernel = new float[narrow.length];
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = narrow[i] - wide[i];
+        }
+        KernelDecomposition decomposition = KernelDecomposition.decompose(kernel);
+        assertEquals(2, decomposition.getRank());
+        assertFalse(decomposition.isSeparable());
+        assertTrue(decomposition.isCheaperThanFullPass());
+        assertEquals(0, reconstructionError(kernel, decomposition), EXACT);
+    }
+
+    @Test
+    public void randomKernelHasFullRank() {
+        Random random = new Random(42);
+        float[] kernel = new float[5 * 5];
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = random.nextFloat() * 2 - 1;
+        }
+        KernelDecomposition decomposition = KernelDecomposition.decompose(kernel);
+        assertEquals(5, decomposition.getRank());
+        assertFalse(decomposition.isCheaperThanFullPass());
+        assertEquals(0, reconstructionError(kernel, decomposition), EXACT);
+    }
+
+    @Test
+    public void droppedTermsStayWithinTheTolerance() {
+        Random random = new Random(7);
+        float[] kernel = new float[7 * 7];
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] = random.nextFloat();
+        }
+        float tolerance = 0.3f;
+        KernelDecomposition decomposition = KernelDecomposition.decompose(kernel, tolerance);
+        assertTrue(decomposition.getRank() < 7);
+        assertTrue(decomposition.getError() > 0);
+        assertTrue(decomposition.getError() <= tolerance);
+        assertEquals(decomposition.getError(), reconstructionError(kernel, decomposition), EXACT);
+    }
+
+    @Test
+    public void zeroKernelHasNoTerms() {
+        KernelDecomposition decomposition = KernelDecomposition.decompose(new float[3 * 3]);
+        assertEquals(0, decomposition.getRank());
+        assertFalse(decomposition.isSeparable());
+        assertFalse(decomposition.isCheaperThanFullPass());
+        assertEquals(0, decomposition.getError(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEvenSizes() {
+        KernelDecomposition.decompose(new float[4 * 4]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonSquareKernels() {
+        KernelDecomposition.decompose(new float[10]);
+    }
+
+    private static float[] gaussian(final int size, final float sigma) {
+        float[] kernel = new float[size * size];
+        int center = size / 2;
+        float sum = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int dx = x - center;
+                int dy = y - center;
+                kernel[y * size + x] = (float) Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+                sum += kernel[y * size + x];
+            }
+        }
+        for (int i = 0; i < kernel.length; i++) {
+            kernel[i] /= sum;
+        }
+        return kernel;
+    }
+
+    /**
+     * @return the Frobenius norm of the kernel minus the sum of the terms, relative to the
+     * kernel's
+     */
+    private static float reconstructionError(final float[] kernel, final KernelDecomposition decomposition) {
+        int n = decomposition.getSize();
+        double difference = 0;
+        double norm = 0;
+        for (int row = 0; row < n; row++) {
+            for (int column = 0; column < n; column++) {
+                double sum = 0;
+                for (int term = 0; term < decomposition.getRank(); term++) {
+                    sum += decomposition.getVertical(term)[row] * decomposition.getHorizontal(term)[column];
+                }
+                double value = kernel[row * n + column];
+                difference += (value - sum) * (value - sum);
+                norm += value * value;
+            }
+        }
+        return (float) Math.sqrt(difference / norm);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads small RGBA areas from the bound framebuffer. On GLES 3 the pixels are copied into one
+ * of two pixel pack buffers and mapped one call later, so the read does not wait for the GPU;
+ * otherwise glReadPixels is used directly. Must be created and used on the GL thread.
+ */
+class AsyncPixelReader {
+    private final boolean mAsync;
+    private final int[] mPixelBuffers = new int[2];
+    private int mWidth;
+    private int mHeight;
+    private int mReads;
+    private ByteBuffer mPixels;
+
+    AsyncPixelReader() {
+        mAsync = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && OpenGlUtils.getGLESMajorVersion() >= 3;
+    }
+
+    boolean isAsync() {
+        return mAsync;
+    }
+
+    /**
+     * Reads width x height pixels from the lower left of the bound framebuffer.
+     *
+     * @return RGBA bytes, which are from the previous call when reading asynchronously and null
+     * until a previous read of the same size exists. The buffer is reused by the next call.
+     */
+    ByteBuffer read(final int width, final int height) {
+        if (width != mWidth || height != mHeight) {
+            resize(width, height);
+        }
+        mPixels.position(0);
+        GPUImageTracer.begin("readPixels");
+        ByteBuffer result = mPixels;
+        if (mAsync) {
+            result = readAsync();
+        } else {
+            GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+        }
+        GPUImageTracer.end("readPixels");
+        return result;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private ByteBuffer readAsync() {
+        int size = mWidth * mHeight * 4;
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[mReads % 2]);
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+
+        ByteBuffer result = null;
+        if (mReads > 0) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[(mReads + 1) % 2]);
+            ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER,
+                    0, size, GLES30.GL_MAP_READ_BIT);
+            if (mapped != null) {
+                mPixels.put(mapped);
+                mPixels.position(0);
+                GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+                result = mPixels;
+            }
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mReads++;
+        return result;
+    }
+
+    private void resize(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+        mReads = 0;
+        mPixels = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder());
+        if (!mAsync) {
+            return;
+        }
+        if (mPixelBuffers[0] == 0) {
+            GLES20.glGenBuffers(2, mPixelBuffers, 0);
+        }
+        for (int pixelBuffer : mPixelBuffers) {
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pixelBuffer);
+            GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, width * height * 4, null,
+                    GLES30.GL_STREAM_READ);
+            GPUImageResourceRegistry.bufferAllocated(pixelBuffer, (long) width * height * 4);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+    }
+
+    void destroy() {
+        if (mPixelBuffers[0] != 0) {
+            GPUImageResourceRegistry.deleteBuffers(2, mPixelBuffers, 0);
+            mPixelBuffers[0] = 0;
+            mPixelBuffers[1] = 0;
+        }
+        mWidth = 0;
+        mHeight = 0;
+        mPixels = null;
+    }
+}
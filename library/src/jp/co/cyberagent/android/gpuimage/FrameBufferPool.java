@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps released framebuffers, each with an RGBA texture attached, and hands them out again
+ * for the same size instead of creating new ones. The idle framebuffers are evicted when the
+ * GPUImageResourceRegistry budget is exceeded. Must only be used on the GL thread.
+ */
+class FrameBufferPool implements GPUImageResourceRegistry.Evictable {
+    static final class FrameBuffer {
+        final int frameBuffer;
+        final int texture;
+        final int width;
+        final int height;
+
+        private FrameBuffer(final int frameBuffer, final int texture, final int width, final int height) {
+            this.frameBuffer = frameBuffer;
+            this.texture = texture;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final List<FrameBuffer> mIdle = new ArrayList<FrameBuffer>();
+    private final Object mOwner;
+
+    /**
+     * @param owner the filter the framebuffers are accounted to, whichever filter draws when
+     *              they are created
+     */
+    FrameBufferPool(final Object owner) {
+        mOwner = owner;
+    }
+
+    FrameBuffer obtain(final int width, final int height) {
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            FrameBuffer frameBuffer = mIdle.get(i);
+            if (frameBuffer.width == width && frameBuffer.height == height) {
+                return mIdle.remove(i);
+            }
+        }
+        GPUImageResourceRegistry.addEvictable(this);
+        int[] frameBuffers = new int[1];
+        int[] textures = new int[1];
+        Object previousOwner = GPUImageResourceRegistry.setOwner(mOwner);
+        OpenGlUtils.createFrameBuffer(frameBuffers, textures, 0, width, height);
+        GPUImageResourceRegistry.setOwner(previousOwner);
+        return new FrameBuffer(frameBuffers[0], textures[0], width, height);
+    }
+
+    void release(final FrameBuffer frameBuffer) {
+        if (frameBuffer != null) {
+            mIdle.add(frameBuffer);
+        }
+    }
+
+    int getIdleCount() {
+        return mIdle.size();
+    }
+
+    /**
+     * Deletes all framebuffers that are not handed out.
+     */
+    void clear() {
+        for (FrameBuffer frameBuffer : mIdle) {
+            delete(frameBuffer);
+        }
+        mIdle.clear();
+    }
+
+    /**
+     * Deletes idle framebuffers, least recently released first.
+     */
+    @Override
+    public long evict(final long bytes) {
+        long freed = 0;
+        while (freed < bytes && !mIdle.isEmpty()) {
+            FrameBuffer frameBuffer = mIdle.remove(0);
+            delete(frameBuffer);
+            freed += (long) frameBuffer.width * frameBuffer.height * 4;
+        }
+        return freed;
+    }
+
+    private static void delete(final FrameBuffer frameBuffer) {
+        GPUImageResourceRegistry.deleteTextures(1, new int[] {frameBuffer.texture}, 0);
+        GPUImageResourceRegistry.deleteFrameBuffers(1, new int[] {frameBuffer.frameBuffer}, 0);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+/**
+ * The state changing GLES20 calls of the library, going through the GLStateCache of the
+ * current thread so calls that would not change anything are skipped. GPUImageRenderer
+ * invalidates the cache for every new context and at the start of every frame.
+ * <br>
+ * Draws leave their vertex attribute arrays enabled and their textures bound, so the next
+ * draw with the same state issues no calls. Every draw sets the pointers of the attributes
+ * and binds the textures its program reads, and calls disableUnusedVertexAttribArrays()
+ * right before glDrawArrays or glDrawElements, so arrays left enabled by an earlier program,
+ * which may be shorter than the draw, are never read.
+ * <br>
+ * Filters that call GLES20.glUseProgram, glActiveTexture, glBindTexture,
+ * glEnable/DisableVertexAttribArray or glBindFramebuffer directly have to use these methods
+ * instead, or call invalidate() afterwards.
+ */
+public final class GLState {
+    private static final GLStateCache.Backend GLES20_BACKEND = new GLStateCache.Backend() {
+        private final int[] mValue = new int[1];
+
+        @Override
+        public void useProgram(final int program) {
+            GLES20.glUseProgram(program);
+        }
+
+        @Override
+        public void activeTexture(final int texture) {
+            GLES20.glActiveTexture(texture);
+        }
+
+        @Override
+        public void bindTexture(final int target, final int texture) {
+            GLES20.glBindTexture(target, texture);
+        }
+
+        @Override
+        public void enableVertexAttribArray(final int index) {
+            GLES20.glEnableVertexAttribArray(index);
+        }
+
+        @Override
+        public void disableVertexAttribArray(final int index) {
+            GLES20.glDisableVertexAttribArray(index);
+        }
+
+        @Override
+        public void bindFramebuffer(final int target, final int frameBuffer) {
+            GLES20.glBindFramebuffer(target, frameBuffer);
+        }
+
+        @Override
+        public synchronized int getInteger(final int pname) {
+            GLES20.glGetIntegerv(pname, mValue, 0);
+            return mValue[0];
+        }
+    };
+
+    private static final ThreadLocal<GLStateCache> sCache = new ThreadLocal<GLStateCache>() {
+        @Override
+        protected GLStateCache initialValue() {
+            return new GLStateCache(GLES20_BACKEND);
+        }
+    };
+
+    private GLState() {
+    }
+
+    /**
+     * @return the cache of the current thread, e.g. to read its counters
+     */
+    public static GLStateCache get() {
+        return sCache.get();
+    }
+
+    /**
+     * Replaces the cache of the current thread, e.g. by one with a recording or checking
+     * Backend.
+     */
+    public static void set(final GLStateCache cache) {
+        sCache.set(cache);
+    }
+
+    public static void invalidate() {
+        sCache.get().invalidate();
+    }
+
+    public static void useProgram(final int program) {
+        sCache.get().useProgram(program);
+    }
+
+    public static void activeTexture(final int texture) {
+        sCache.get().activeTexture(texture);
+    }
+
+    public static void bindTexture(final int target, final int texture) {
+        sCache.get().bindTexture(target, texture);
+    }
+
+    public static void enableVertexAttribArray(final int index) {
+        sCache.get().enableVertexAttribArray(index);
+    }
+
+    public static void disableVertexAttribArray(final int index) {
+        sCache.get().disableVertexAttribArray(index);
+    }
+
+    /**
+     * Disables the arrays not enabled since the last useProgram(), see GLStateCache.
+     */
+    public static void disableUnusedVertexAttribArrays() {
+        sCache.get().disableUnusedVertexAttribArrays();
+    }
+
+    public static void bindFramebuffer(final int target, final int frameBuffer) {
+        sCache.get().bindFramebuffer(target, frameBuffer);
+    }
+
+    /**
+     * Replaces glGetIntegerv(GL_CURRENT_PROGRAM), which stalls on some drivers.
+     */
+    public static int getProgram() {
+        return sCache.get().getProgram();
+    }
+
+    /**
+     * Replaces glGetIntegerv(GL_FRAMEBUFFER_BINDING), which stalls on some drivers.
+     */
+    public static int getFrameBuffer() {
+        return sCache.get().getFrameBuffer();
+    }
+
+    public static void deleteProgram(final int program) {
+        GLES20.glDeleteProgram(program);
+        sCache.get().onProgramDeleted(program);
+    }
+
+    static void onTexturesDeleted(final int n, final int[] textures, final int offset) {
+        sCache.get().onTexturesDeleted(n, textures, offset);
+    }
+
+    static void onFrameBuffersDeleted(final int n, final int[] frameBuffers, final int offset) {
+        sCache.get().onFrameBuffersDeleted(n, frameBuffers, offset);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the bound program, the active texture unit, the textures bound to every unit, the
+ * enabled vertex attribute arrays and the bound framebuffer of one context, and forwards only
+ * the calls that change them to the Backend. State that is not known, after invalidate() or
+ * for out of range units and attributes, is always forwarded.
+ * <br>
+ * Attribute arrays are enabled per program: disableUnusedVertexAttribArrays() before a draw
+ * disables the arrays that were not enabled since the last useProgram(), so arrays of an
+ * earlier draw are never read by a later one.
+ * <br>
+ * Has no Android dependencies, so it can run against a recording Backend on a desktop JVM.
+ */
+public class GLStateCache {
+    public static final int GL_TEXTURE0 = 0x84C0;
+    public static final int GL_TEXTURE_2D = 0x0DE1;
+    public static final int GL_TEXTURE_3D = 0x806F;
+    public static final int GL_TEXTURE_EXTERNAL_OES = 0x8D65;
+    public static final int GL_FRAMEBUFFER = 0x8D40;
+    public static final int GL_CURRENT_PROGRAM = 0x8B8D;
+    public static final int GL_FRAMEBUFFER_BINDING = 0x8CA6;
+
+    /**
+     * The GL calls the cache issues, GLState forwards them to GLES20.
+     */
+    public interface Backend {
+        void useProgram(int program);
+
+        void activeTexture(int texture);
+
+        void bindTexture(int target, int texture);
+
+        void enableVertexAttribArray(int index);
+
+        void disableVertexAttribArray(int index);
+
+        void bindFramebuffer(int target, int frameBuffer);
+
+        int getInteger(int pname);
+    }
+
+    private static final int UNKNOWN = -1;
+    private static final int MAX_UNITS = 32;
+    private static final int MAX_ATTRIBS = 16;
+    private static final int[] TARGETS = {GL_TEXTURE_2D, GL_TEXTURE_EXTERNAL_OES, GL_TEXTURE_3D};
+
+    private static final byte ATTRIB_UNKNOWN = 0;
+    private static final byte ATTRIB_ENABLED = 1;
+    private static final byte ATTRIB_DISABLED = 2;
+
+    private final Backend mBackend;
+    private int mProgram;
+    private int mFrameBuffer;
+    private int mActiveUnit;
+    private final int[] mTextures = new int[MAX_UNITS * TARGETS.length];
+    private final byte[] mAttribs = new byte[MAX_ATTRIBS];
+    // Bits of the arrays enabled since the last useProgram()
+    private int mUsedAttribs;
+
+    private long mIssued;
+    private long mSkipped;
+
+    public GLStateCache(final Backend backend) {
+        mBackend = backend;
+        invalidate();
+    }
+
+    public Backend getBackend() {
+        return mBackend;
+    }
+
+    /**
+     * Forgets all state, e.g. for a new context or after code that changed it behind the
+     * cache's back.
+     */
+    public void invalidate() {
+        mProgram = UNKNOWN;
+        mFrameBuffer = UNKNOWN;
+        mActiveUnit = UNKNOWN;
+        Arrays.fill(mTextures, UNKNOWN);
+        Arrays.fill(mAttribs, ATTRIB_UNKNOWN);
+    }
+
+    public void useProgram(final int program) {
+        mUsedAttribs = 0;
+        if (program == mProgram) {
+            mSkipped++;
+            return;
+        }
+        mIssued++;
+        mBackend.useProgram(program);
+        mProgram = program;
+    }
+
+    public void activeTexture(final int texture) {
+        int unit = texture - GL_TEXTURE0;
+        if (unit == mActiveUnit) {
+            mSkipped++;
+            return;
+        }
+        mIssued++;
+        mBackend.activeTexture(texture);
+        mActiveUnit = unit >= 0 && unit < MAX_UNITS ? unit : UNKNOWN;
+    }
+
+    public void bindTexture(final int target, final int texture) {
+        int slot = getTextureSlot(target);
+        if (slot != UNKNOWN && mTextures[slot] == texture) {
+            mSkipped++;
+            return;
+        }
+        mIssued++;
+        mBackend.bindTexture(target, texture);
+        if (slot != UNKNOWN) {
+            mTextures[slot] = texture;
+        }
+    }
+
+    public void enableVertexAttribArray(final int index) {
+        if (index >= 0 && index < MAX_ATTRIBS) {
+            mUsedAttribs |= 1 << index;
+        }
+        setAttrib(index, ATTRIB_ENABLED);
+    }
+
+    public void disableVertexAttribArray(final int index) {
+        setAttrib(index, ATTRIB_DISABLED);
+    }
+
+    /**
+     * Disables the arrays that are enabled, or not known to be disabled, but were not enabled
+     * since the last useProgram(). To be called before every draw.
+     */
+    public void disableUnusedVertexAttribArrays() {
+        for (int index = 0; index < MAX_ATTRIBS; index++) {
+            if ((mUsedAttribs & (1 << index)) == 0 && mAttribs[index] != ATTRIB_DISABLED) {
+                setAttrib(index, ATTRIB_DISABLED);
+            }
+        }
+    }
+
+    public void bindFramebuffer(final int target, final int frameBuffer) {
+        boolean tracked = target == GL_FRAMEBUFFER;
+        if (tracked && frameBuffer == mFrameBuffer) {
+            mSkipped++;
+            return;
+        }
+        mIssued++;
+        mBackend.bindFramebuffer(target, frameBuffer);
+        mFrameBuffer = tracked ? frameBuffer : UNKNOWN;
+    }
+
+    /**
+     * @return the bound program, queried only if it is not known
+     */
+    public int getProgram() {
+        if (mProgram == UNKNOWN) {
+            mProgram = mBackend.getInteger(GL_CURRENT_PROGRAM);
+        }
+        return mProgram;
+    }
+
+    /**
+     * @return the bound framebuffer, queried only if it is not known
+     */
+    public int getFrameBuffer() {
+        if (mFrameBuffer == UNKNOWN) {
+            mFrameBuffer = mBackend.getInteger(GL_FRAMEBUFFER_BINDING);
+        }
+        return mFrameBuffer;
+    }
+
+    /**
+     * Deleting a program in use defers its deletion until another one is used, the name
+     * may be reused after that.
+     */
+    public void onProgramDeleted(final int program) {
+        if (program == mProgram) {
+            mProgram = UNKNOWN;
+        }
+    }
+
+    /**
+     * Deleted textures are unbound from every unit, and their names can be reused.
+     */
+    public void onTexturesDeleted(final int n, final int[] textures, final int offset) {
+        for (int i = offset; i < offset + n; i++) {
+            for (int slot = 0; slot < mTextures.length; slot++) {
+                if (mTextures[slot] == textures[i]) {
+                    mTextures[slot] = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Deleting the bound framebuffer binds the default one.
+     */
+    public void onFrameBuffersDeleted(final int n, final int[] frameBuffers, final int offset) {
+        for (int i = offset; i < offset + n; i++) {
+            if (frameBuffers[i] == mFrameBuffer) {
+                mFrameBuffer = 0;
+            }
+        }
+    }
+
+    public long getIssuedCount() {
+        return mIssued;
+    }
+
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    public void resetCounters() {
+        mIssued = 0;
+        mSkipped = 0;
+    }
+
+    private void setAttrib(final int index, final byte state) {
+        boolean tracked = index >= 0 && index < MAX_ATTRIBS;
+        if (tracked && mAttribs[index] == state) {
+            mSkipped++;
+            return;
+        }
+        mIssued++;
+        if (state == ATTRIB_ENABLED) {
+            mBackend.enableVertexAttribArray(index);
+        } else {
+            mBackend.disableVertexAttribArray(index);
+        }
+        if (tracked) {
+            mAttribs[index] = state;
+        }
+    }
+
+    private int getTextureSlot(final int target) {
+        if (mActiveUnit == UNKNOWN) {
+            return UNKNOWN;
+        }
+        for (int i = 0; i < TARGETS.length; i++) {
+            if (TARGETS[i] == target) {
+                return mActiveUnit * TARGETS.length + i;
+            }
+        }
+        return UNKNOWN;
+    }
+}
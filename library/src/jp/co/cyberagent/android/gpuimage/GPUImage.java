@@ -44,6 +44,8 @@ import java.net.URL;
 import java.util.List;
 import java.util.concurrent.Semaphore;
 
+import jp.co.cyberagent.android.gpuimage.cpu.CpuProcessor;
+
 /**
  * The main accessor for GPUImage functionality. This class helps to do common
  * tasks through a simple interface.
@@ -322,6 +324,53 @@ public class GPUImage {
         return result;
     }
 
+    /**
+     * Applies a filter without OpenGL, on all cores. Works where the constructor throws
+     * because OpenGL ES 2.0 is not supported. The filter is applied to the unpremultiplied
+     * pixels, which only matches the OpenGL output for opaque images.
+     *
+     * @param bitmap the bitmap on which the filter should be applied
+     * @param filter e.g. a GPUImageBrightnessFilter
+     * @return a new ARGB_8888 bitmap with the filter applied
+     */
+    public static Bitmap getBitmapWithFilterAppliedOnCpu(final Bitmap bitmap,
+            final GPUImageCpuFilter filter) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        CpuProcessor.getDefault().apply(filter.getCpuKernel(), pixels, pixels, width, height);
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Applies a blend filter without OpenGL, on all cores, like
+     * getBitmapWithFilterAppliedOnCpu. As with OpenGL the overlay is stretched to the size of
+     * the bitmap.
+     *
+     * @param bitmap the first input of the blend
+     * @param overlay the second input of the blend, e.g. the bitmap set on the filter
+     * @param filter e.g. a GPUImageMultiplyBlendFilter
+     * @return a new ARGB_8888 bitmap with the blend applied
+     */
+    public static Bitmap getBitmapWithBlendAppliedOnCpu(final Bitmap bitmap, final Bitmap overlay,
+            final GPUImageCpuBlendFilter filter) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        Bitmap scaledOverlay = overlay.getWidth() == width && overlay.getHeight() == height
+                ? overlay : Bitmap.createScaledBitmap(overlay, width, height, true);
+        int[] pixels = new int[width * height];
+        int[] overlayPixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        scaledOverlay.getPixels(overlayPixels, 0, width, 0, 0, width, height);
+        if (scaledOverlay != overlay) {
+            scaledOverlay.recycle();
+        }
+        CpuProcessor.getDefault().blend(filter.getCpuBlendKernel(), pixels, overlayPixels, pixels,
+                width, height);
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
     /**
      * Gets the images for multiple filters on a image. This can be used to
      * quickly get thumbnail images for filters. <br>
@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageAddBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageAddBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String ADD_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -57,4 +60,9 @@ public class GPUImageAddBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageAddBlendFilter() {
         super(ADD_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.ADD.createKernel();
+    }
 }
@@ -16,10 +16,13 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
 /**
  * Mix ranges from 0.0 (only image 1) to 1.0 (only image 2), with 0.5 (half of either) as the normal level
  */
-public class GPUImageAlphaBlendFilter extends GPUImageMixBlendFilter{
+public class GPUImageAlphaBlendFilter extends GPUImageMixBlendFilter implements GPUImageCpuBlendFilter {
     public static final String ALPHA_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -43,4 +46,9 @@ public class GPUImageAlphaBlendFilter extends GPUImageMixBlendFilter{
     public GPUImageAlphaBlendFilter(float mix) {
         super(ALPHA_BLEND_FRAGMENT_SHADER, mix);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.ALPHA.createKernel(getMix());
+    }
 }
@@ -0,0 +1,407 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jp.co.cyberagent.android.gpuimage.util.LookupTable3D;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Replaces a chain of color-only filters (hue, color balance, levels, tone curve, highlight
+ * shadow, monochrome, ...) by a single lookup pass. An identity lookup table is rendered
+ * through the chain offscreen and read back as a {@link LookupTable3D}.
+ * <br>
+ * The table is baked again only when a filter of the chain has a parameter change that has
+ * not been drawn yet. Baked tables are kept in a process wide cache under a key made of the
+ * filter classes and the uniform values read back from their programs, so presets that switch
+ * back and forth are baked only once. Filters keeping parameters in other textures join the
+ * cache only if they describe them with {@link GPUImageFilter#appendTextureParameters}.
+ * <br>
+ * Filters that sample neighboring pixels or depend on the position in the image can not be
+ * baked.
+ * <br>
+ * size: entries along each axis of the baked table, 17 to 65, with 33 as the default
+ */
+public class GPUImageBakedLookupFilter extends GPUImageLookup3DFilter {
+    private static final int CACHE_SIZE = 16;
+    private static final int GL_SAMPLER_EXTERNAL_OES = 0x8D66;
+    private static final Map<String, LookupTable3D> sCache =
+            new LinkedHashMap<String, LookupTable3D>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, LookupTable3D> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private final List<GPUImageFilter> mFilters;
+    private final int mSize;
+    private final int mAtlasColumns;
+    private final int mAtlasWidth;
+    private final int mAtlasHeight;
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private ByteBuffer mReadBuffer;
+    private final float[] mUniformValue = new float[16];
+    private final int[] mUniformInfo = new int[3];
+    private byte[] mUniformName;
+
+    private int[] mFrameBuffers;
+    private int[] mFrameBufferTextures;
+    private int mIdentityTexture = OpenGlUtils.NO_TEXTURE;
+
+    private String mBakedKey;
+    private boolean mBaked;
+    private boolean mBypassCache;
+
+    public GPUImageBakedLookupFilter(final List<GPUImageFilter> filters) {
+        this(filters, 33);
+    }
+
+    public GPUImageBakedLookupFilter(final List<GPUImageFilter> filters, final int size) {
+        super(null, INTERPOLATION_TRILINEAR, 1.0f);
+        if (size < 17 || size > LookupTable3D.MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported lookup table size " + size);
+        }
+        mFilters = new ArrayList<GPUImageFilter>();
+        for (GPUImageFilter filter : filters) {
+            if (filter instanceof GPUImageFilterGroup) {
+                GPUImageFilterGroup group = (GPUImageFilterGroup) filter;
+                group.updateMergedFilters();
+                mFilters.addAll(group.getMergedFilters());
+            } else {
+                mFilters.add(filter);
+            }
+        }
+        mSize = size;
+        mAtlasColumns = (int) Math.ceil(Math.sqrt(size));
+        mAtlasWidth = mAtlasColumns * size;
+        mAtlasHeight = ((size + mAtlasColumns - 1) / mAtlasColumns) * size;
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (GPUImageFilter filter : mFilters) {
+            filter.init();
+            filter.onOutputSizeChanged(mAtlasWidth, mAtlasHeight);
+        }
+        mFrameBuffers = new int[2];
+        mFrameBufferTextures = new int[2];
+        for (int i = 0; i < 2; i++) {
+            OpenGlUtils.createFrameBuffer(mFrameBuffers, mFrameBufferTextures, i, mAtlasWidth, mAtlasHeight);
+        }
+        mIdentityTexture = createIdentityTexture();
+        mBaked = false;
+        mBakedKey = null;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (GPUImageFilter filter : mFilters) {
+            filter.destroy();
+        }
+        if (mFrameBufferTextures != null) {
+            GPUImageResourceRegistry.deleteTextures(2, mFrameBufferTextures, 0);
+            mFrameBufferTextures = null;
+        }
+        if (mFrameBuffers != null) {
+            GPUImageResourceRegistry.deleteFrameBuffers(2, mFrameBuffers, 0);
+            mFrameBuffers = null;
+        }
+        if (mIdentityTexture != OpenGlUtils.NO_TEXTURE) {
+            GPUImageResourceRegistry.deleteTextures(1, new int[]{mIdentityTexture}, 0);
+            mIdentityTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    /**
+     * @return the baked filters, groups are flattened
+     */
+    public List<GPUImageFilter> getFilters() {
+        return mFilters;
+    }
+
+    /**
+     * Forces a bake on the next draw, bypassing the cache, e.g. after changing a filter in place.
+     */
+    public void invalidate() {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mBaked = false;
+                mBypassCache = true;
+            }
+        });
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (isInitialized()) {
+            GLState.useProgram(getProgram());
+            runPendingOnDrawTasks();
+            updateLookupTable();
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    private void updateLookupTable() {
+        boolean changed = !mBaked;
+        for (int i = 0; !changed && i < mFilters.size(); i++) {
+            changed = mFilters.get(i).hasPendingOnDrawTasks();
+        }
+        if (!changed) {
+            return;
+        }
+
+        flushPendingParameters();
+        String key = createParameterKey();
+        if (mBaked && key != null && key.equals(mBakedKey)) {
+            return;
+        }
+        LookupTable3D table = null;
+        if (!mBypassCache && key != null) {
+            synchronized (sCache) {
+                table = sCache.get(key);
+            }
+        }
+        if (table == null) {
+            table = bake();
+            if (key != null) {
+                synchronized (sCache) {
+                    sCache.put(key, table);
+                }
+            }
+        }
+        mBaked = true;
+        mBypassCache = false;
+        mBakedKey = key;
+        setLookupTable(table);
+    }
+
+    /**
+     * Describes the chain by the filter classes and the current values of their uniforms, or
+     * returns null if a filter keeps parameters in a texture it can not describe.
+     */
+    private String createParameterKey() {
+        StringBuilder key = new StringBuilder().append(mSize);
+        int[] count = new int[1];
+        for (GPUImageFilter filter : mFilters) {
+            int program = filter.getProgram();
+            key.append('|').append(filter.getClass().getName());
+            GLES20.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORM_MAX_LENGTH, count, 0);
+            if (mUniformName == null || mUniformName.length < count[0]) {
+                mUniformName = new byte[count[0]];
+            }
+            GLES20.glGetProgramiv(program, GLES20.GL_ACTIVE_UNIFORMS, count, 0);
+            for (int i = 0; i < count[0]; i++) {
+                GLES20.glGetActiveUniform(program, i, mUniformName.length, mUniformInfo, 0,
+                        mUniformInfo, 1, mUniformInfo, 2, mUniformName, 0);
+                String name = new String(mUniformName, 0, mUniformInfo[0]);
+                int type = mUniformInfo[2];
+                if (type == GLES20.GL_SAMPLER_2D || type == GLES20.GL_SAMPLER_CUBE
+                        || type == GL_SAMPLER_EXTERNAL_OES) {
+                    if (!name.equals("inputImageTexture") && !filter.appendTextureParameters(key)) {
+                        return null;
+                    }
+                    continue;
+                }
+                appendUniform(key, program, name, mUniformInfo[1], getComponents(type));
+            }
+        }
+        return key.toString();
+    }
+
+    private void appendUniform(final StringBuilder key, final int program, final String name,
+                               final int size, final int components) {
+        String baseName = size > 1 ? name.substring(0, name.indexOf('[')) : name;
+        key.append(' ').append(baseName).append('=');
+        for (int element = 0; element < size; element++) {
+            int location = size > 1
+                    ? GLES20.glGetUniformLocation(program, baseName + "[" + element + "]")
+                    : GLES20.glGetUniformLocation(program, name);
+            GLES20.glGetUniformfv(program, location, mUniformValue, 0);
+            for (int i = 0; i < components; i++) {
+                key.append(mUniformValue[i]).append(',');
+            }
+        }
+    }
+
+    private static int getComponents(final int type) {
+        switch (type) {
+            case GLES20.GL_FLOAT_VEC2:
+            case GLES20.GL_INT_VEC2:
+            case GLES20.GL_BOOL_VEC2:
+                return 2;
+            case GLES20.GL_FLOAT_VEC3:
+            case GLES20.GL_INT_VEC3:
+            case GLES20.GL_BOOL_VEC3:
+                return 3;
+            case GLES20.GL_FLOAT_VEC4:
+            case GLES20.GL_INT_VEC4:
+            case GLES20.GL_BOOL_VEC4:
+            case GLES20.GL_FLOAT_MAT2:
+                return 4;
+            case GLES20.GL_FLOAT_MAT3:
+                return 9;
+            case GLES20.GL_FLOAT_MAT4:
+                return 16;
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * Applies parameter changes of the chain without drawing so they do not pile up while
+     * cached tables are used.
+     */
+    private void flushPendingParameters() {
+        for (GPUImageFilter filter : mFilters) {
+            if (filter.hasPendingOnDrawTasks()) {
+                GLState.useProgram(filter.getProgram());
+                filter.runPendingOnDrawTasks();
+            }
+        }
+        GLState.useProgram(getProgram());
+    }
+
+    @SuppressLint("WrongCall")
+    private LookupTable3D bake() {
+        if (mFilters.isEmpty()) {
+            return new LookupTable3D(mSize, createIdentity(3));
+        }
+
+        int previousFrameBuffer = GLState.getFrameBuffer();
+        int[] previousViewport = new int[4];
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, previousViewport, 0);
+        GLES20.glViewport(0, 0, mAtlasWidth, mAtlasHeight);
+
+        int previousTexture = mIdentityTexture;
+        for (int i = 0; i < mFilters.size(); i++) {
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i % 2]);
+            GLES20.glClearColor(0, 0, 0, 0);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            mFilters.get(i).onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
+            previousTexture = mFrameBufferTextures[i % 2];
+        }
+
+        if (mReadBuffer == null) {
+            mReadBuffer = ByteBuffer.allocateDirect(mAtlasWidth * mAtlasHeight * 4)
+                    .order(ByteOrder.nativeOrder());
+        }
+        mReadBuffer.position(0);
+        GLES20.glReadPixels(0, 0, mAtlasWidth, mAtlasHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                mReadBuffer);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer);
+        GLES20.glViewport(previousViewport[0], previousViewport[1], previousViewport[2], previousViewport[3]);
+        GLState.useProgram(getProgram());
+
+        byte[] data = new byte[mSize * mSize * mSize * 3];
+        int index = 0;
+        for (int b = 0; b < mSize; b++) {
+            int x = (b % mAtlasColumns) * mSize;
+            int y = (b / mAtlasColumns) * mSize;
+            for (int g = 0; g < mSize; g++) {
+                int offset = ((y + g) * mAtlasWidth + x) * 4;
+                for (int r = 0; r < mSize; r++, offset += 4) {
+                    data[index++] = mReadBuffer.get(offset);
+                    data[index++] = mReadBuffer.get(offset + 1);
+                    data[index++] = mReadBuffer.get(offset + 2);
+                }
+            }
+        }
+        return new LookupTable3D(mSize, data);
+    }
+
+    private int createIdentityTexture() {
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        byte[] identity = createIdentity(4);
+        byte[] atlas = new byte[mAtlasWidth * mAtlasHeight * 4];
+        int rowBytes = mSize * 4;
+        for (int b = 0; b < mSize; b++) {
+            int x = (b % mAtlasColumns) * mSize;
+            int y = (b / mAtlasColumns) * mSize;
+            for (int g = 0; g < mSize; g++) {
+                System.arraycopy(identity, (b * mSize + g) * rowBytes, atlas, ((y + g) * mAtlasWidth + x) * 4, rowBytes);
+            }
+        }
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mAtlasWidth, mAtlasHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(atlas));
+        GPUImageResourceRegistry.textureAllocated(textures[0], mAtlasWidth, mAtlasHeight, GLES20.GL_RGBA);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return textures[0];
+    }
+
+    /**
+     * Creates the identity table with 3 (RGB) or 4 (RGBA, opaque) bytes per entry.
+     */
+    private byte[] createIdentity(final int channels) {
+        byte[] levels = new byte[mSize];
+        for (int i = 0; i < mSize; i++) {
+            levels[i] = (byte) Math.round(i * 255.0f / (mSize - 1));
+        }
+        byte[] data = new byte[mSize * mSize * mSize * channels];
+        int index = 0;
+        for (int b = 0; b < mSize; b++) {
+            for (int g = 0; g < mSize; g++) {
+                for (int r = 0; r < mSize; r++) {
+                    data[index++] = levels[r];
+                    data[index++] = levels[g];
+                    data[index++] = levels[b];
+                    if (channels == 4) {
+                        data[index++] = (byte) 255;
+                    }
+                }
+            }
+        }
+        return data;
+    }
+}
@@ -121,9 +121,18 @@ public class GPUImageBilateralFilter extends GPUImageFilter {
 	}
 	
 	public GPUImageBilateralFilter(final float distanceNormalizationFactor) {
-		super(BILATERAL_VERTEX_SHADER, BILATERAL_FRAGMENT_SHADER);
+		this(BILATERAL_VERTEX_SHADER, BILATERAL_FRAGMENT_SHADER, distanceNormalizationFactor);
+	}
+
+	protected GPUImageBilateralFilter(final String vertexShader, final String fragmentShader,
+			final float distanceNormalizationFactor) {
+		super(vertexShader, fragmentShader);
 		mDistanceNormalizationFactor = distanceNormalizationFactor;
 	}
+
+	public float getDistanceNormalizationFactor() {
+		return mDistanceNormalizationFactor;
+	}
 	
 	@Override
 	public void onInit() {
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Bilateral filter backed by a bilateral grid.
+ * <br>
+ * The image is splatted into a low resolution 3D grid (x, y, luminance) which is stored as
+ * a 2D atlas of luminance slices, the grid is blurred and the result is sliced back with
+ * trilinear interpolation. The cost depends on the grid size and not on the blur radius.
+ * <br>
+ * distanceNormalizationFactor: same meaning as in {@link GPUImageBilateralFilter}, colors
+ * further apart than 1 / distanceNormalizationFactor do not influence each other. From 0.0 to
+ * MAX_DISTANCE_NORMALIZATION_FACTOR, default 8.0
+ * <br>
+ * spatialSampling: size of a grid cell in pixels, bigger means smoother and faster. Every pixel
+ * of a cell is splatted, so it ranges from 1.0 to MAX_SPATIAL_SAMPLING. Default 16.0
+ */
+public class GPUImageBilateralGridFilter extends GPUImageBilateralFilter {
+    /**
+     * Largest cell size, the splat pass reads up to its square of pixels per grid texel.
+     */
+    public static final int MAX_SPATIAL_SAMPLING = 32;
+    /**
+     * Largest distanceNormalizationFactor, which splits luminance into 16 slices.
+     */
+    public static final float MAX_DISTANCE_NORMALIZATION_FACTOR = 15.0f;
+
+    public static final String SPLAT_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "\n" +
+            "// x, y: cells, z: luminance slices\n" +
+            "uniform vec3 gridSize;\n" +
+            "uniform vec2 imageSize;\n" +
+            "\n" +
+            "const int MAX_CELL_PIXELS = " + MAX_SPATIAL_SAMPLING + ";\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    float atlasX = textureCoordinate.x * gridSize.z;\n" +
+            "    float slice = floor(atlasX);\n" +
+            "    vec2 cell = floor(vec2(fract(atlasX), textureCoordinate.y) * gridSize.xy);\n" +
+            "    vec2 cellSize = imageSize / gridSize.xy;\n" +
+            "    // The pixels whose centers lie in the cell, at most MAX_CELL_PIXELS per side\n" +
+            "    vec2 first = ceil(cell * cellSize - 0.5);\n" +
+            "    vec2 end = ceil((cell + 1.0) * cellSize - 0.5);\n" +
+            "    float rangeScale = gridSize.z - 1.0;\n" +
+            "\n" +
+            "    vec4 sum = vec4(0.0);\n" +
+            "    for (int y = 0; y < MAX_CELL_PIXELS; y++) {\n" +
+            "        float pixelY = first.y + float(y);\n" +
+            "        if (pixelY >= end.y) {\n" +
+            "            break;\n" +
+            "        }\n" +
+            "        for (int x = 0; x < MAX_CELL_PIXELS; x++) {\n" +
+            "            float pixelX = first.x + float(x);\n" +
+            "            if (pixelX >= end.x) {\n" +
+            "                break;\n" +
+            "            }\n" +
+            "            vec3 color = texture2D(inputImageTexture, (vec2(pixelX, pixelY) + 0.5) / imageSize).rgb;\n" +
+            "            float weight = max(1.0 - abs(dot(color, W) * rangeScale - slice), 0.0);\n" +
+            "            sum += vec4(color * weight, weight);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    vec2 pixels = max(end - first, 1.0);\n" +
+            "    gl_FragColor = sum / (pixels.x * pixels.y);\n" +
+            "}";
+
+    public static final String BLUR_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform vec3 gridSize;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec2 atlasSize = vec2(gridSize.x * gridSize.z, gridSize.y);\n" +
+            "    float atlasX = textureCoordinate.x * atlasSize.x;\n" +
+            "    float slice = floor(atlasX / gridSize.x);\n" +
+            "    float cellX = atlasX - slice * gridSize.x;\n" +
+            "\n" +
+            "    // 3x3x3 binomial kernel, x is clamped to the slice so tiles do not bleed\n" +
+            "    vec4 sum = vec4(0.0);\n" +
+            "    for (int z = -1; z <= 1; z++) {\n" +
+            "        float s = clamp(slice + float(z), 0.0, gridSize.z - 1.0);\n" +
+            "        for (int x = -1; x <= 1; x++) {\n" +
+            "            float atlasSampleX = s * gridSize.x + clamp(cellX + float(x), 0.5, gridSize.x - 0.5);\n" +
+            "            for (int y = -1; y <= 1; y++) {\n" +
+            "                float weight = (2.0 - abs(float(x))) * (2.0 - abs(float(y))) * (2.0 - abs(float(z)));\n" +
+            "                vec2 coordinate = vec2(atlasSampleX / atlasSize.x, textureCoordinate.y + float(y) / atlasSize.y);\n" +
+            "                sum += texture2D(inputImageTexture, coordinate) * weight;\n" +
+            "            }\n" +
+            "        }\n" +
+            "    }\n" +
+            "    gl_FragColor = sum / 64.0;\n" +
+            "}";
+
+    public static final String SLICE_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D gridTexture;\n" +
+            "uniform vec3 gridSize;\n" +
+            "\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    float atlasWidth = gridSize.x * gridSize.z;\n" +
+            "    vec2 cell = clamp(textureCoordinate * gridSize.xy, vec2(0.5), gridSize.xy - 0.5);\n" +
+            "\n" +
+            "    float z = dot(textureColor.rgb, W) * (gridSize.z - 1.0);\n" +
+            "    float z0 = floor(z);\n" +
+            "    float z1 = min(z0 + 1.0, gridSize.z - 1.0);\n" +
+            "    vec4 lower = texture2D(gridTexture, vec2((z0 * gridSize.x + cell.x) / atlasWidth, cell.y / gridSize.y));\n" +
+            "    vec4 upper = texture2D(gridTexture, vec2((z1 * gridSize.x + cell.x) / atlasWidth, cell.y / gridSize.y));\n" +
+            "    vec4 grid = mix(lower, upper, z - z0);\n" +
+            "\n" +
+            "    vec3 smoothed = grid.rgb / max(grid.a, 0.001);\n" +
+            "    gl_FragColor = vec4(mix(textureColor.rgb, smoothed, step(0.001, grid.a)), textureColor.a);\n" +
+            "}";
+
+    private final GPUImageFilter mSplatFilter;
+    private final GPUImageFilter mBlurFilter;
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+
+    private int[] mFrameBuffers;
+    private int[] mFrameBufferTextures;
+    private int mGridWidth;
+    private int mGridHeight;
+    private int mGridSlices;
+
+    private float mSpatialSampling;
+    private int mGridTextureLocation;
+    private int mGridSizeLocation;
+
+    public GPUImageBilateralGridFilter() {
+        this(8.0f, 16.0f);
+    }
+
+    public GPUImageBilateralGridFilter(final float distanceNormalizationFactor, final float spatialSampling) {
+        super(NO_FILTER_VERTEX_SHADER, SLICE_FRAGMENT_SHADER, distanceNormalizationFactor);
+        checkDistanceNormalizationFactor(distanceNormalizationFactor);
+        checkSpatialSampling(spatialSampling);
+        mSpatialSampling = spatialSampling;
+        mSplatFilter = new GPUImageFilter(NO_FILTER_VERTEX_SHADER, SPLAT_FRAGMENT_SHADER);
+        mBlurFilter = new GPUImageFilter(NO_FILTER_VERTEX_SHADER, BLUR_FRAGMENT_SHADER);
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+
+        // The grid is addressed in texture space, so the grid passes must not flip
+        float[] gridTexture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(gridTexture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(gridTexture).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mGridTextureLocation = GLES20.glGetUniformLocation(getProgram(), "gridTexture");
+        mGridSizeLocation = GLES20.glGetUniformLocation(getProgram(), "gridSize");
+        mSplatFilter.init();
+        mBlurFilter.init();
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        mSplatFilter.destroy();
+        mBlurFilter.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mSplatFilter.onOutputSizeChanged(width, height);
+        mBlurFilter.onOutputSizeChanged(width, height);
+        updateGrid();
+    }
+
+    @Override
+    public void setDistanceNormalizationFactor(final float newValue) {
+        checkDistanceNormalizationFactor(newValue);
+        super.setDistanceNormalizationFactor(newValue);
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                updateGrid();
+            }
+        });
+    }
+
+    /**
+     * Size of a grid cell in pixels, ranging from 1.0 to MAX_SPATIAL_SAMPLING, with a default of 16.0
+     *
+     * @param spatialSampling from 1.0 to MAX_SPATIAL_SAMPLING, default 16.0
+     */
+    public void setSpatialSampling(final float spatialSampling) {
+        checkSpatialSampling(spatialSampling);
+        mSpatialSampling = spatialSampling;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                updateGrid();
+            }
+        });
+    }
+
+    public float getSpatialSampling() {
+        return mSpatialSampling;
+    }
+
+    private static void checkDistanceNormalizationFactor(final float distanceNormalizationFactor) {
+        if (!(distanceNormalizationFactor >= 0.0f
+                && distanceNormalizationFactor <= MAX_DISTANCE_NORMALIZATION_FACTOR)) {
+            throw new IllegalArgumentException("distanceNormalizationFactor must be from 0.0 to "
+                    + MAX_DISTANCE_NORMALIZATION_FACTOR + ", got " + distanceNormalizationFactor);
+        }
+    }
+
+    private static void checkSpatialSampling(final float spatialSampling) {
+        if (!(spatialSampling >= 1.0f && spatialSampling <= MAX_SPATIAL_SAMPLING)) {
+            throw new IllegalArgumentException("spatialSampling must be from 1.0 to "
+                    + MAX_SPATIAL_SAMPLING + ", got " + spatialSampling);
+        }
+    }
+
+    private void updateGrid() {
+        if (mOutputWidth == 0 || mOutputHeight == 0) {
+            return;
+        }
+        int gridWidth = Math.max((int) Math.ceil(mOutputWidth / mSpatialSampling), 1);
+        int gridHeight = Math.max((int) Math.ceil(mOutputHeight / mSpatialSampling), 1);
+        // A slice spans 1 / distanceNormalizationFactor in luminance, like the range of the
+        // weights in the brute force filter.
+        int gridSlices = (int) Math.ceil(getDistanceNormalizationFactor()) + 1;
+        gridSlices = Math.max(gridSlices, 2);
+
+        if (mFrameBuffers == null || gridWidth != mGridWidth || gridHeight != mGridHeight
+                || gridSlices != mGridSlices) {
+            mGridWidth = gridWidth;
+            mGridHeight = gridHeight;
+            mGridSlices = gridSlices;
+            destroyFramebuffers();
+            mFrameBuffers = new int[2];
+            mFrameBufferTextures = new int[2];
+            for (int i = 0; i < 2; i++) {
+                OpenGlUtils.createFrameBuffer(mFrameBuffers, mFrameBufferTextures, i,
+                        mGridWidth * mGridSlices, mGridHeight);
+            }
+        }
+
+        float[] gridSize = new float[]{mGridWidth, mGridHeight, mGridSlices};
+        mSplatFilter.setFloatVec3(GLES20.glGetUniformLocation(mSplatFilter.getProgram(), "gridSize"), gridSize);
+        mSplatFilter.setFloatVec2(GLES20.glGetUniformLocation(mSplatFilter.getProgram(), "imageSize"),
+                new float[]{mOutputWidth, mOutputHeight});
+        mBlurFilter.setFloatVec3(GLES20.glGetUniformLocation(mBlurFilter.getProgram(), "gridSize"), gridSize);
+        setFloatVec3(mGridSizeLocation, gridSize);
+    }
+
+    private void destroyFramebuffers() {
+        if (mFrameBufferTextures != null) {
+            GPUImageResourceRegistry.deleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
+            mFrameBufferTextures = null;
+        }
+        if (mFrameBuffers != null) {
+            GPUImageResourceRegistry.deleteFrameBuffers(mFrameBuffers.length, mFrameBuffers, 0);
+            mFrameBuffers = null;
+        }
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized() || mFrameBuffers == null || textureId == OpenGlUtils.NO_TEXTURE) {
+            return;
+        }
+
+        int boundFramebuffer = GLState.getFrameBuffer();
+        GLES20.glViewport(0, 0, mGridWidth * mGridSlices, mGridHeight);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[0]);
+        mSplatFilter.onDraw(textureId, mGLCubeBuffer, mGLTextureBuffer);
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[1]);
+        mBlurFilter.onDraw(mFrameBufferTextures[0], mGLCubeBuffer, mGLTextureBuffer);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, boundFramebuffer);
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLState.activeTexture(GLES20.GL_TEXTURE3);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[1]);
+        GLES20.glUniform1i(mGridTextureLocation, 3);
+    }
+}
@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+/**
+ * Blends the second image over the first with a {@link Mode} that can be changed at any time.
+ * The modes match the separate blend filters (GPUImageMultiplyBlendFilter, ...) and the
+ * BlendMode of the same name, which runs them on the CPU.
+ * <br>
+ * The modes are grouped into a few program variants of similar cost, which are all compiled
+ * on init. Changing the mode only switches the program, the uploaded overlay texture is kept.
+ * <br>
+ * opacity: 0.0 (only image 1) to 1.0 (full blend), with 1.0 as the default. It takes the place
+ * of the mix of the dissolve and alpha blend filters.
+ */
+public class GPUImageBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
+    static final int VARIANT_SIMPLE = 0;
+    static final int VARIANT_CONTRAST = 1;
+    static final int VARIANT_COMPONENT = 2;
+    private static final int VARIANT_COUNT = 3;
+
+    public enum Mode {
+        NORMAL(VARIANT_SIMPLE, "blendNormal"),
+        SOURCE_OVER(VARIANT_SIMPLE, "blendSourceOver"),
+        ALPHA(VARIANT_SIMPLE, "blendAlpha"),
+        DISSOLVE(VARIANT_SIMPLE, "blendDissolve"),
+        MULTIPLY(VARIANT_SIMPLE, "blendMultiply"),
+        SCREEN(VARIANT_SIMPLE, "blendScreen"),
+        ADD(VARIANT_SIMPLE, "blendAdd"),
+        SUBTRACT(VARIANT_SIMPLE, "blendSubtract"),
+        DARKEN(VARIANT_SIMPLE, "blendDarken"),
+        LIGHTEN(VARIANT_SIMPLE, "blendLighten"),
+        DIFFERENCE(VARIANT_SIMPLE, "blendDifference"),
+        EXCLUSION(VARIANT_SIMPLE, "blendExclusion"),
+        LINEAR_BURN(VARIANT_SIMPLE, "blendLinearBurn"),
+        COLOR_BURN(VARIANT_SIMPLE, "blendColorBurn"),
+        DIVIDE(VARIANT_SIMPLE, "blendDivide"),
+        OVERLAY(VARIANT_CONTRAST, "blendOverlay"),
+        HARD_LIGHT(VARIANT_CONTRAST, "blendHardLight"),
+        SOFT_LIGHT(VARIANT_CONTRAST, "blendSoftLight"),
+        COLOR_DODGE(VARIANT_CONTRAST, "blendColorDodge"),
+        HUE(VARIANT_COMPONENT, "blendHue"),
+        SATURATION(VARIANT_COMPONENT, "blendSaturation"),
+        COLOR(VARIANT_COMPONENT, "blendColor"),
+        LUMINOSITY(VARIANT_COMPONENT, "blendLuminosity");
+
+        final int variant;
+        final String function;
+
+        Mode(final int variant, final String function) {
+            this.variant = variant;
+            this.function = function;
+        }
+    }
+
+    /**
+     * vec4 blendX(vec4 base, vec4 overlay) for the modes of the simple variant.
+     */
+    static final String SIMPLE_BLEND_FUNCTIONS = "" +
+            "vec4 blendNormal(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(overlay.rgb + base.rgb * base.a * (1.0 - overlay.a), overlay.a + base.a * (1.0 - overlay.a));\n" +
+            "}\n" +
+            "vec4 blendSourceOver(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return mix(base, overlay, overlay.a);\n" +
+            "}\n" +
+            "vec4 blendAlpha(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(mix(base.rgb, overlay.rgb, overlay.a), base.a);\n" +
+            "}\n" +
+            "vec4 blendDissolve(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return overlay;\n" +
+            "}\n" +
+            "vec4 blendMultiply(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return overlay * base + overlay * (1.0 - base.a) + base * (1.0 - overlay.a);\n" +
+            "}\n" +
+            "vec4 blendScreen(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(1.0) - ((vec4(1.0) - overlay) * (vec4(1.0) - base));\n" +
+            "}\n" +
+            "vec4 blendAdd(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    vec3 clipped = overlay.a * base.a + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a);\n" +
+            "    vec3 sum = overlay.rgb + base.rgb;\n" +
+            "    vec3 clip = step(vec3(overlay.a * base.a), overlay.rgb * base.a + base.rgb * overlay.a);\n" +
+            "    return vec4(mix(sum, clipped, clip), overlay.a + base.a - overlay.a * base.a);\n" +
+            "}\n" +
+            "vec4 blendSubtract(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(base.rgb - overlay.rgb, base.a);\n" +
+            "}\n" +
+            "vec4 blendDarken(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(min(overlay.rgb * base.a, base.rgb * overlay.a) + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a), 1.0);\n" +
+            "}\n" +
+            "vec4 blendLighten(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return max(base, overlay);\n" +
+            "}\n" +
+            "vec4 blendDifference(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(abs(overlay.rgb - base.rgb), base.a);\n" +
+            "}\n" +
+            "vec4 blendExclusion(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4((overlay.rgb * base.a + base.rgb * overlay.a - 2.0 * overlay.rgb * base.rgb) + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a), base.a);\n" +
+            "}\n" +
+            "vec4 blendLinearBurn(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(clamp(base.rgb + overlay.rgb - vec3(1.0), vec3(0.0), vec3(1.0)), base.a);\n" +
+            "}\n" +
+            "vec4 blendColorBurn(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(1.0) - (vec4(1.0) - base) / overlay;\n" +
+            "}\n" +
+            "vec4 blendDivide(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    vec3 clipped = overlay.a * base.a + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a);\n" +
+            "    vec3 divided = (base.rgb * overlay.a * overlay.a) / overlay.rgb + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a);\n" +
+            "    vec3 clip = overlay.a == 0.0 ? vec3(1.0) : vec3(greaterThan(base.rgb / overlay.rgb, vec3(base.a / overlay.a)));\n" +
+            "    return vec4(mix(divided, clipped, clip), overlay.a + base.a - overlay.a * base.a);\n" +
+            "}\n";
+
+    /**
+     * vec4 blendX(vec4 base, vec4 overlay) for the modes of the contrast variant.
+     */
+    static final String CONTRAST_BLEND_FUNCTIONS = "" +
+            "vec3 hardLight(vec4 base, vec4 overlay, vec3 low)\n" +
+            "{\n" +
+            "    vec3 dark = 2.0 * overlay.rgb * base.rgb + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a);\n" +
+            "    vec3 light = overlay.a * base.a - 2.0 * (base.a - base.rgb) * (overlay.a - overlay.rgb) + overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a);\n" +
+            "    return mix(light, dark, low);\n" +
+            "}\n" +
+            "vec4 blendOverlay(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(hardLight(base, overlay, vec3(1.0) - step(vec3(base.a), 2.0 * base.rgb)), 1.0);\n" +
+            "}\n" +
+            "vec4 blendHardLight(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(hardLight(base, overlay, vec3(1.0) - step(vec3(overlay.a), 2.0 * overlay.rgb)), 1.0);\n" +
+            "}\n" +
+            "vec4 blendSoftLight(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return base * (overlay.a * (base / base.a) + (2.0 * overlay * (1.0 - (base / base.a)))) + overlay * (1.0 - base.a) + base * (1.0 - overlay.a);\n" +
+            "}\n" +
+            "vec4 blendColorDodge(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    vec3 baseOverlayAlphaProduct = vec3(overlay.a * base.a);\n" +
+            "    vec3 rightHandProduct = overlay.rgb * (1.0 - base.a) + base.rgb * (1.0 - overlay.a);\n" +
+            "    vec3 firstBlendColor = baseOverlayAlphaProduct + rightHandProduct;\n" +
+            "    vec3 overlayRGB = clamp((overlay.rgb / clamp(overlay.a, 0.01, 1.0)) * step(0.0, overlay.a), 0.0, 0.99);\n" +
+            "    vec3 secondBlendColor = (base.rgb * overlay.a) / (1.0 - overlayRGB) + rightHandProduct;\n" +
+            "    vec3 colorChoice = step((overlay.rgb * base.a + base.rgb * overlay.a), baseOverlayAlphaProduct);\n" +
+            "    return vec4(mix(firstBlendColor, secondBlendColor, colorChoice), 1.0);\n" +
+            "}\n";
+
+    /**
+     * vec4 blendX(vec4 base, vec4 overlay) for the non separable modes of the component variant.
+     */
+    static final String COMPONENT_BLEND_FUNCTIONS = "" +
+            "float lum(vec3 c)\n" +
+            "{\n" +
+            "    return dot(c, vec3(0.3, 0.59, 0.11));\n" +
+            "}\n" +
+            "vec3 clipcolor(vec3 c)\n" +
+            "{\n" +
+            "    float l = lum(c);\n" +
+            "    float n = min(min(c.r, c.g), c.b);\n" +
+            "    float x = max(max(c.r, c.g), c.b);\n" +
+            "    if (n < 0.0) {\n" +
+            "        c = l + ((c - l) * l) / (l - n);\n" +
+            "    }\n" +
+            "    if (x > 1.0) {\n" +
+            "        c = l + ((c - l) * (1.0 - l)) / (x - l);\n" +
+            "    }\n" +
+            "    return c;\n" +
+            "}\n" +
+            "vec3 setlum(vec3 c, float l)\n" +
+            "{\n" +
+            "    return clipcolor(c + vec3(l - lum(c)));\n" +
+            "}\n" +
+            "float sat(vec3 c)\n" +
+            "{\n" +
+            "    return max(max(c.r, c.g), c.b) - min(min(c.r, c.g), c.b);\n" +
+            "}\n" +
+            "float mid(float cmin, float cmid, float cmax, float s)\n" +
+            "{\n" +
+            "    return ((cmid - cmin) * s) / (cmax - cmin);\n" +
+            "}\n" +
+            "vec3 setsat(vec3 c, float s)\n" +
+            "{\n" +
+            "    // Same case analysis as GPUImageHueBlendFilter so the results match\n" +
+            "    if (c.r > c.g) {\n" +
+            "        if (c.r > c.b) {\n" +
+            "            if (c.g > c.b) {\n" +
+            "                c.g = mid(c.b, c.g, c.r, s);\n" +
+            "                c.b = 0.0;\n" +
+            "            } else {\n" +
+            "                c.b = mid(c.g, c.b, c.r, s);\n" +
+            "                c.g = 0.0;\n" +
+            "            }\n" +
+            "            c.r = s;\n" +
+            "        } else {\n" +
+            "            c.r = mid(c.g, c.r, c.b, s);\n" +
+            "            c.b = s;\n" +
+            "            c.r = 0.0;\n" +
+            "        }\n" +
+            "    } else if (c.r > c.b) {\n" +
+            "        c.r = mid(c.b, c.r, c.g, s);\n" +
+            "        c.g = s;\n" +
+            "        c.b = 0.0;\n" +
+            "    } else if (c.g > c.b) {\n" +
+            "        c.b = mid(c.r, c.b, c.g, s);\n" +
+            "        c.g = s;\n" +
+            "        c.r = 0.0;\n" +
+            "    } else if (c.b > c.g) {\n" +
+            "        c.g = mid(c.r, c.g, c.b, s);\n" +
+            "        c.b = s;\n" +
+            "        c.r = 0.0;\n" +
+            "    } else {\n" +
+            "        c = vec3(0.0);\n" +
+            "    }\n" +
+            "    return c;\n" +
+            "}\n" +
+            "vec4 blendHue(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(base.rgb * (1.0 - overlay.a) + setlum(setsat(overlay.rgb, sat(base.rgb)), lum(base.rgb)) * overlay.a, base.a);\n" +
+            "}\n" +
+            "vec4 blendSaturation(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(base.rgb * (1.0 - overlay.a) + setlum(setsat(base.rgb, sat(overlay.rgb)), lum(base.rgb)) * overlay.a, base.a);\n" +
+            "}\n" +
+            "vec4 blendColor(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(base.rgb * (1.0 - overlay.a) + setlum(overlay.rgb, lum(base.rgb)) * overlay.a, base.a);\n" +
+            "}\n" +
+            "vec4 blendLuminosity(vec4 base, vec4 overlay)\n" +
+            "{\n" +
+            "    return vec4(base.rgb * (1.0 - overlay.a) + setlum(base.rgb, lum(overlay.rgb)) * overlay.a, base.a);\n" +
+            "}\n";
+
+    private final int[] mPrograms = new int[VARIANT_COUNT];
+    private final int[][] mAttributes = new int[VARIANT_COUNT][3];
+    private final int[][] mUniforms = new int[VARIANT_COUNT][4];
+
+    private final int mInitialVariant;
+    private Mode mMode;
+    private float mOpacity;
+
+    public GPUImageBlendFilter() {
+        this(Mode.NORMAL);
+    }
+
+    public GPUImageBlendFilter(final Mode mode) {
+        this(mode, 1.0f);
+    }
+
+    public GPUImageBlendFilter(final Mode mode, final float opacity) {
+        super(createFragmentShader(mode.variant));
+        mInitialVariant = mode.variant;
+        mMode = mode;
+        mOpacity = opacity;
+    }
+
+    /**
+     * Creates the fragment shader of a variant, which picks the blend function with the
+     * blendMode uniform (the position of the mode within the variant).
+     */
+    static String createFragmentShader(final int variant) {
+        StringBuilder shader = new StringBuilder();
+        shader.append(variant == VARIANT_COMPONENT ? "precision highp float;\n" : "precision mediump float;\n")
+                .append("varying highp vec2 textureCoordinate;\n")
+                .append("varying highp vec2 textureCoordinate2;\n")
+                .append("\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("uniform sampler2D inputImageTexture2;\n")
+                .append("uniform float blendMode;\n")
+                .append("uniform float opacity;\n")
+                .append("\n")
+                .append(getBlendFunctions(variant))
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    vec4 base = texture2D(inputImageTexture, textureCoordinate);\n")
+                .append("    vec4 overlay = texture2D(inputImageTexture2, textureCoordinate2);\n")
+                .append("    vec4 result;\n")
+                .append("    ");
+        int index = 0;
+        for (Mode mode : Mode.values()) {
+            if (mode.variant != variant) {
+                continue;
+            }
+            shader.append("if (blendMode < ").append(index).append(".5) {\n")
+                    .append("        result = ").append(mode.function).append("(base, overlay);\n")
+                    .append("    } else ");
+            index++;
+        }
+        shader.append("{\n")
+                .append("        result = base;\n")
+                .append("    }\n")
+                .append("    gl_FragColor = mix(base, result, opacity);\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    static String getBlendFunctions(final int variant) {
+        switch (variant) {
+            case VARIANT_CONTRAST:
+                return CONTRAST_BLEND_FUNCTIONS;
+            case VARIANT_COMPONENT:
+                return COMPONENT_BLEND_FUNCTIONS;
+            default:
+                return SIMPLE_BLEND_FUNCTIONS;
+        }
+    }
+
+    /**
+     * Creates vec4 blend(vec4 base, vec4 overlay, float mode) for all modes, with the ordinal of
+     * the mode as the mode argument. Loses accuracy in the component modes below highp float
+     * precision.
+     */
+    static String createBlendFunction() {
+        StringBuilder function = new StringBuilder();
+        function.append(SIMPLE_BLEND_FUNCTIONS)
+                .append(CONTRAST_BLEND_FUNCTIONS)
+                .append(COMPONENT_BLEND_FUNCTIONS)
+                .append("vec4 blend(vec4 base, vec4 overlay, float mode)\n")
+                .append("{\n");
+        for (Mode mode : Mode.values()) {
+            function.append("    if (mode < ").append(mode.ordinal()).append(".5) {\n")
+                    .append("        return ").append(mode.function).append("(base, overlay);\n")
+                    .append("    }\n");
+        }
+        function.append("    return base;\n")
+                .append("}\n");
+        return function.toString();
+    }
+
+    /**
+     * @return the position of the mode within its variant, the value of the blendMode uniform
+     */
+    static int getVariantIndex(final Mode mode) {
+        int index = 0;
+        for (Mode other : Mode.values()) {
+            if (other == mode) {
+                return index;
+            }
+            if (other.variant == mode.variant) {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (int variant = 0; variant < VARIANT_COUNT; variant++) {
+            int program = variant == mInitialVariant
+                    ? getProgram()
+                    : OpenGlUtils.loadProgram(VERTEX_SHADER, createFragmentShader(variant));
+            mPrograms[variant] = program;
+            mAttributes[variant][0] = GLES20.glGetAttribLocation(program, "position");
+            mAttributes[variant][1] = GLES20.glGetAttribLocation(program, "inputTextureCoordinate");
+            mAttributes[variant][2] = GLES20.glGetAttribLocation(program, "inputTextureCoordinate2");
+            mUniforms[variant][0] = GLES20.glGetUniformLocation(program, "inputImageTexture");
+            mUniforms[variant][1] = GLES20.glGetUniformLocation(program, "inputImageTexture2");
+            mUniforms[variant][2] = GLES20.glGetUniformLocation(program, "blendMode");
+            mUniforms[variant][3] = GLES20.glGetUniformLocation(program, "opacity");
+        }
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setMode(mMode);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // The current program is deleted by destroy()
+        for (int variant = 0; variant < VARIANT_COUNT; variant++) {
+            if (mPrograms[variant] != 0 && mPrograms[variant] != getProgram()) {
+                GLState.deleteProgram(mPrograms[variant]);
+            }
+            mPrograms[variant] = 0;
+        }
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public void setMode(final Mode mode) {
+        mMode = mode;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                useVariant(mode.variant);
+                GLES20.glUniform1f(mUniforms[mode.variant][2], getVariantIndex(mode));
+                GLES20.glUniform1f(mUniforms[mode.variant][3], mOpacity);
+            }
+        });
+    }
+
+    /**
+     * @param opacity ranges from 0.0 (only image 1) to 1.0 (full blend), with 1.0 as the default
+     */
+    public void setOpacity(final float opacity) {
+        mOpacity = opacity;
+        // The program of the mode set before, a later setMode may change mMode before this runs
+        final int variant = mMode.variant;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                GLES20.glUniform1f(mUniforms[variant][3], opacity);
+            }
+        });
+    }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.valueOf(mMode.name()).createKernel(mOpacity);
+    }
+
+    private void useVariant(final int variant) {
+        if (mGLProgId == mPrograms[variant]) {
+            return;
+        }
+        mGLProgId = mPrograms[variant];
+        mGLAttribPosition = mAttributes[variant][0];
+        mGLAttribTextureCoordinate = mAttributes[variant][1];
+        mFilterSecondTextureCoordinateAttribute = mAttributes[variant][2];
+        mGLUniformTexture = mUniforms[variant][0];
+        mFilterInputTextureUniform2 = mUniforms[variant][1];
+        GLState.useProgram(mGLProgId);
+    }
+}
@@ -18,10 +18,13 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.cpu.BrightnessKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuKernel;
+
 /**
  * brightness value ranges from -1.0 to 1.0, with 0.0 as the normal level
  */
-public class GPUImageBrightnessFilter extends GPUImageFilter {
+public class GPUImageBrightnessFilter extends GPUImageFilter implements GPUImageCpuFilter {
     public static final String BRIGHTNESS_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -63,4 +66,9 @@ public class GPUImageBrightnessFilter extends GPUImageFilter {
         mBrightness = brightness;
         setFloat(mBrightnessLocation, mBrightness);
     }
+
+    @Override
+    public CpuKernel getCpuKernel() {
+        return new BrightnessKernel(mBrightness);
+    }
 }
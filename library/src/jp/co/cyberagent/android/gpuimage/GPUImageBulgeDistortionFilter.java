@@ -19,7 +19,11 @@ package jp.co.cyberagent.android.gpuimage;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 
-public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
+/**
+ * Pushes the image out of (positive scale) or into (negative scale) a circle. The distortion
+ * is evaluated on the vertices of a mesh, see {@link GPUImageMeshWarpFilter}.
+ */
+public class GPUImageBulgeDistortionFilter extends GPUImageMeshWarpFilter {
     public static final String BULGE_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -49,6 +53,27 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
             "gl_FragColor = texture2D(inputImageTexture, textureCoordinateToUse );    \n" +
             "}\n";
 
+    public static final String BULGE_WARP_FUNCTION = "" +
+            "uniform highp float aspectRatio;\n" +
+            "uniform highp vec2 center;\n" +
+            "uniform highp float radius;\n" +
+            "uniform highp float scale;\n" +
+            "\n" +
+            "vec2 warp(vec2 coordinate)\n" +
+            "{\n" +
+            "    highp vec2 aspectCoordinate = vec2(coordinate.x, (coordinate.y * aspectRatio + 0.5 - 0.5 * aspectRatio));\n" +
+            "    highp float dist = distance(center, aspectCoordinate);\n" +
+            "    if (dist < radius)\n" +
+            "    {\n" +
+            "        coordinate -= center;\n" +
+            "        highp float percent = 1.0 - ((radius - dist) / radius) * scale;\n" +
+            "        percent = percent * percent;\n" +
+            "        coordinate = coordinate * percent;\n" +
+            "        coordinate += center;\n" +
+            "    }\n" +
+            "    return coordinate;\n" +
+            "}\n";
+
     private float mScale;
     private int mScaleLocation;
     private float mRadius;
@@ -63,7 +88,7 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
     }
 
     public GPUImageBulgeDistortionFilter(float radius, float scale, PointF center) {
-        super(NO_FILTER_VERTEX_SHADER, BULGE_FRAGMENT_SHADER);
+        super(BULGE_WARP_FUNCTION);
         mRadius = radius;
         mScale = scale;
         mCenter = center;
@@ -106,6 +131,7 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
     public void setRadius(float radius) {
         mRadius = radius;
         setFloat(mRadiusLocation, radius);
+        invalidateMesh();
     }
 
     /**
@@ -116,6 +142,7 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
     public void setScale(float scale) {
         mScale = scale;
         setFloat(mScaleLocation, scale);
+        invalidateMesh();
     }
 
     /**
@@ -126,5 +153,26 @@ public class GPUImageBulgeDistortionFilter extends GPUImageFilter {
     public void setCenter(PointF center) {
         mCenter = center;
         setPoint(mCenterLocation, center);
+        invalidateMesh();
+    }
+
+    @Override
+    protected void getWarpBounds(final float[] bounds) {
+        // The circle is round in aspect corrected space, undo that for the y range
+        float aspectRatio = mAspectRatio > 0 ? mAspectRatio : 1.0f;
+        bounds[0] = mCenter.x - mRadius;
+        bounds[1] = (mCenter.y - mRadius - 0.5f + 0.5f * aspectRatio) / aspectRatio;
+        bounds[2] = mCenter.x + mRadius;
+        bounds[3] = (mCenter.y + mRadius - 0.5f + 0.5f * aspectRatio) / aspectRatio;
+    }
+
+    @Override
+    protected float getWarpCurvature() {
+        if (mRadius <= 0) {
+            return 0;
+        }
+        float scale = Math.abs(mScale);
+        float aspectRatio = Math.max(1.0f, mAspectRatio);
+        return 6.0f * scale * (1.0f + scale) / mRadius * aspectRatio * aspectRatio;
     }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Base for filters that give every cell of a regular grid one color. The input is first
+ * sampled once per cell into a framebuffer the size of the grid, then the fragment shader of
+ * the subclass draws the full image from it. That shader gets
+ * uniform vec2 cellSize: size of a cell in texture coordinates
+ * uniform vec2 gridSize: size of the grid in cells
+ * and reads the value of the cell at floor(textureCoordinate / cellSize) from
+ * inputImageTexture at (cell + 0.5) / gridSize. Cells of a pixel or less skip the grid pass
+ * and read the input directly.
+ */
+public abstract class GPUImageCellFilter extends GPUImageFilter {
+    private final boolean mSampleAtCenter;
+
+    private int mCellSizeLocation;
+    private int mGridSizeLocation;
+    private int mCellProgram;
+    private int mCellPosition;
+    private int mCellTextureCoordinate;
+    private int mCellTexture;
+
+    private float mCellWidth;
+    private float mCellHeight;
+    private int mGridWidth;
+    private int mGridHeight;
+    private boolean mBypass;
+    private boolean mGridDirty = true;
+
+    private final FloatBuffer mCubeBuffer;
+    private final FloatBuffer mCellTextureBuffer;
+    private final FrameBufferPool mPool = new FrameBufferPool(this);
+
+    /**
+     * @param sampleAtCenter whether a cell takes the input color at its center or at its
+     *                       corner with the smallest texture coordinates
+     */
+    protected GPUImageCellFilter(final String fragmentShader, final boolean sampleAtCenter) {
+        super(NO_FILTER_VERTEX_SHADER, fragmentShader);
+        mSampleAtCenter = sampleAtCenter;
+        mCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(CUBE).position(0);
+        mCellTextureBuffer = ByteBuffer.allocateDirect(8 * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mCellSizeLocation = GLES20.glGetUniformLocation(getProgram(), "cellSize");
+        mGridSizeLocation = GLES20.glGetUniformLocation(getProgram(), "gridSize");
+        mCellProgram = OpenGlUtils.loadProgram(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
+        mCellPosition = GLES20.glGetAttribLocation(mCellProgram, "position");
+        mCellTextureCoordinate = GLES20.glGetAttribLocation(mCellProgram, "inputTextureCoordinate");
+        mCellTexture = GLES20.glGetUniformLocation(mCellProgram, "inputImageTexture");
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        GLState.deleteProgram(mCellProgram);
+        mPool.clear();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mGridDirty = true;
+    }
+
+    /**
+     * @param width  width of a cell in texture coordinates
+     * @param height height of a cell in texture coordinates
+     */
+    protected void setCellSize(final float width, final float height) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mCellWidth = width;
+                mCellHeight = height;
+                mGridDirty = true;
+            }
+        });
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        // A new cell size must reach the grid before it is laid out
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized() || textureId == OpenGlUtils.NO_TEXTURE
+                || getOutputWidth() == 0 || getOutputHeight() == 0) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        if (mGridDirty) {
+            updateGrid();
+            mGridDirty = false;
+        }
+        if (mBypass) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        FrameBufferPool.FrameBuffer cells = mPool.obtain(mGridWidth, mGridHeight);
+        drawCells(textureId, cells);
+        super.onDraw(cells.texture, cubeBuffer, textureBuffer);
+        mPool.release(cells);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLES20.glUniform2f(mCellSizeLocation, mCellWidth, mCellHeight);
+        if (mBypass) {
+            GLES20.glUniform2f(mGridSizeLocation, 1.0f / mCellWidth, 1.0f / mCellHeight);
+        } else {
+            GLES20.glUniform2f(mGridSizeLocation, mGridWidth, mGridHeight);
+        }
+    }
+
+    private void updateGrid() {
+        mPool.clear();
+        mBypass = mCellWidth * getOutputWidth() <= 1.0f || mCellHeight * getOutputHeight() <= 1.0f;
+        if (mBypass) {
+            return;
+        }
+        mGridWidth = (int) Math.ceil(1.0f / mCellWidth);
+        mGridHeight = (int) Math.ceil(1.0f / mCellHeight);
+
+        // Pixel i of the grid reads the input at the center or the corner of cell i
+        float x = mSampleAtCenter ? 0.0f : -0.5f * mCellWidth;
+        float y = mSampleAtCenter ? 0.0f : -0.5f * mCellHeight;
+        float u = x + mGridWidth * mCellWidth;
+        float v = y + mGridHeight * mCellHeight;
+        mCellTextureBuffer.put(new float[] {x, y, u, y, x, v, u, v}).position(0);
+    }
+
+    private void drawCells(final int textureId, final FrameBufferPool.FrameBuffer cells) {
+        int[] previousFrameBuffer = new int[1];
+        int[] previousViewport = new int[4];
+        previousFrameBuffer[0] = GLState.getFrameBuffer();
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, previousViewport, 0);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, cells.frameBuffer);
+        GLES20.glViewport(0, 0, cells.width, cells.height);
+        GLState.useProgram(mCellProgram);
+        mCubeBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(mCellPosition, mCubeBuffer);
+        GLState.enableVertexAttribArray(mCellPosition);
+        mCellTextureBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(mCellTextureCoordinate, mCellTextureBuffer);
+        GLState.enableVertexAttribArray(mCellTextureCoordinate);
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(mCellTexture, 0);
+        GLState.disableUnusedVertexAttribArrays();
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer[0]);
+        GLES20.glViewport(previousViewport[0], previousViewport[1], previousViewport[2], previousViewport[3]);
+    }
+}
@@ -18,10 +18,13 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.ChromaKeyKernel;
+
 /**
  * Selectively replaces a color in the first image with the second image
  */
-public class GPUImageChromaKeyBlendFilter extends GPUImageTwoInputFilter {
+public class GPUImageChromaKeyBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String CHROMA_KEY_BLEND_FRAGMENT_SHADER = " precision highp float;\n" +
             " \n" +
             " varying highp vec2 textureCoordinate;\n" +
@@ -107,4 +110,9 @@ public class GPUImageChromaKeyBlendFilter extends GPUImageTwoInputFilter {
         mColorToReplace = new float[]{redComponent, greenComponent, blueComponent};
         setFloatVec3(mColorToReplaceLocation, mColorToReplace);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return new ChromaKeyKernel(mThresholdSensitivity, mSmoothing, mColorToReplace);
+    }
 }
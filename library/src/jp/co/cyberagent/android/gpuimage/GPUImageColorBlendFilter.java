@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageColorBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageColorBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String COLOR_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             " \n" +
@@ -63,4 +66,9 @@ public class GPUImageColorBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageColorBlendFilter() {
         super(COLOR_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.COLOR.createKernel();
+    }
 }
@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageColorDodgeBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageColorDodgeBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String COLOR_DODGE_BLEND_FRAGMENT_SHADER = "precision mediump float;\n" +
             " \n" +
             " varying highp vec2 textureCoordinate;\n" +
@@ -46,4 +49,9 @@ public class GPUImageColorDodgeBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageColorDodgeBlendFilter() {
         super(COLOR_DODGE_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.COLOR_DODGE.createKernel();
+    }
 }
@@ -18,10 +18,13 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.cpu.ColorMatrixKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuKernel;
+
 /**
  * Applies a ColorMatrix to the image.
  */
-public class GPUImageColorMatrixFilter extends GPUImageFilter {
+public class GPUImageColorMatrixFilter extends GPUImageFilter implements GPUImageCpuFilter {
     public static final String COLOR_MATRIX_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -81,4 +84,9 @@ public class GPUImageColorMatrixFilter extends GPUImageFilter {
         mColorMatrix = colorMatrix;
         setUniformMatrix4f(mColorMatrixLocation, colorMatrix);
     }
+
+    @Override
+    public CpuKernel getCpuKernel() {
+        return new ColorMatrixKernel(mIntensity, mColorMatrix);
+    }
 }
@@ -18,12 +18,15 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.cpu.ContrastKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuKernel;
+
 /**
  * Changes the contrast of the image.<br>
  * <br>
  * contrast value ranges from 0.0 to 4.0, with 1.0 as the normal level
  */
-public class GPUImageContrastFilter extends GPUImageFilter {
+public class GPUImageContrastFilter extends GPUImageFilter implements GPUImageCpuFilter {
     public static final String CONTRAST_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" + 
             " \n" + 
@@ -65,4 +68,9 @@ public class GPUImageContrastFilter extends GPUImageFilter {
         mContrast = contrast;
         setFloat(mContrastLocation, mContrast);
     }
+
+    @Override
+    public CpuKernel getCpuKernel() {
+        return new ContrastKernel(mContrast);
+    }
 }
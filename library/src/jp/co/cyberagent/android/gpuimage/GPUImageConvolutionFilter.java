@@ -0,0 +1,437 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import jp.co.cyberagent.android.gpuimage.util.KernelDecomposition;
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Runs a square convolution kernel of any odd size against the image, like
+ * {@link GPUImage3x3ConvolutionFilter} but for 5x5, 7x7, ... 15x15 kernels.
+ * <br>
+ * The kernel is split into separable terms with {@link KernelDecomposition}. Separable and
+ * low rank kernels (e.g. gaussians and their differences, unsharp masks) run as one horizontal
+ * pass per term followed by a single vertical pass, full rank kernels as one NxN pass.
+ * <br>
+ * The kernel weights are compiled into the shaders, so changing the kernel rebuilds the passes.
+ * Intermediate results are stored in 8 bit textures scaled to the range each term can produce,
+ * kernels with large positive and negative weights lose some precision on the separable path.
+ */
+public class GPUImageConvolutionFilter extends GPUImageFilter {
+    /**
+     * Most terms run as separate passes, limited by the texture units of the vertical pass.
+     */
+    public static final int MAX_SEPARABLE_TERMS = 4;
+
+    private float[] mKernel;
+    private final float mTolerance;
+    private final boolean mSeparableAllowed;
+    private volatile KernelDecomposition mDecomposition;
+
+    private GPUImageFilter[] mHorizontalPasses;
+    private CombinePass mVerticalPass;
+    private GPUImageFilter mFullPass;
+
+    private int[] mFrameBuffers;
+    private int[] mFrameBufferTextures;
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+
+    /**
+     * Instantiates the filter with a 3x3 kernel that will look like the original image.
+     */
+    public GPUImageConvolutionFilter() {
+        this(new float[]{
+                0.0f, 0.0f, 0.0f,
+                0.0f, 1.0f, 0.0f,
+                0.0f, 0.0f, 0.0f
+        });
+    }
+
+    /**
+     * @param kernel square kernel of odd size, row by row from the top left
+     */
+    public GPUImageConvolutionFilter(final float[] kernel) {
+        this(kernel, KernelDecomposition.DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param kernel square kernel of odd size, row by row from the top left
+     * @param tolerance relative error allowed when dropping small separable terms
+     */
+    public GPUImageConvolutionFilter(final float[] kernel, final float tolerance) {
+        this(kernel, tolerance, true);
+    }
+
+    /**
+     * @param kernel square kernel of odd size, row by row from the top left
+     * @param tolerance relative error allowed when dropping small separable terms
+     * @param separableAllowed false to always run one NxN pass, which keeps full precision
+     */
+    public GPUImageConvolutionFilter(final float[] kernel, final float tolerance,
+                                     final boolean separableAllowed) {
+        super();
+        mTolerance = tolerance;
+        mSeparableAllowed = separableAllowed;
+        mKernel = kernel;
+        mDecomposition = KernelDecomposition.decompose(kernel, tolerance);
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        buildPasses(mKernel, mDecomposition);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        destroyPasses();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        if (isInitialized()) {
+            runOnDraw(new Runnable() {
+                @Override
+                public void run() {
+                    updatePassSizes();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sets the kernel. The decomposition runs right away on the calling thread, the passes are
+     * rebuilt before the next draw.
+     *
+     * @param kernel square kernel of odd size, row by row from the top left
+     */
+    public void setConvolutionKernel(final float[] kernel) {
+        final KernelDecomposition decomposition = KernelDecomposition.decompose(kernel, mTolerance);
+        mKernel = kernel;
+        mDecomposition = decomposition;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                buildPasses(kernel, decomposition);
+            }
+        });
+    }
+
+    public float[] getConvolutionKernel() {
+        return mKernel;
+    }
+
+    public KernelDecomposition getDecomposition() {
+        return mDecomposition;
+    }
+
+    /**
+     * @return true if the kernel runs as pairs of 1D passes
+     */
+    public boolean isSeparable() {
+        return isSeparable(mDecomposition);
+    }
+
+    private boolean isSeparable(final KernelDecomposition decomposition) {
+        return mSeparableAllowed && decomposition.isCheaperThanFullPass()
+                && decomposition.getRank() <= MAX_SEPARABLE_TERMS;
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+        if (mFullPass != null) {
+            mFullPass.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+        if (mFrameBuffers == null) {
+            return;
+        }
+
+        int previousFrameBuffer = GLState.getFrameBuffer();
+        for (int i = 0; i < mHorizontalPasses.length; i++) {
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+            GLES20.glClearColor(0, 0, 0, 0);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            mHorizontalPasses[i].onDraw(textureId, cubeBuffer, textureBuffer);
+        }
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer);
+        mVerticalPass.onDraw(mFrameBufferTextures[0], mGLCubeBuffer, mGLTextureBuffer);
+    }
+
+    private void buildPasses(final float[] kernel, final KernelDecomposition decomposition) {
+        destroyPasses();
+        int rank = decomposition.getRank();
+        if (isSeparable(decomposition)) {
+            float[] offsets = new float[rank];
+            float[] ranges = new float[rank];
+            mHorizontalPasses = new GPUImageFilter[rank];
+            for (int i = 0; i < rank; i++) {
+                float[] weights = decomposition.getHorizontal(i);
+                float low = 0;
+                float high = 0;
+                for (float weight : weights) {
+                    low += Math.min(weight, 0);
+                    high += Math.max(weight, 0);
+                }
+                offsets[i] = low;
+                ranges[i] = high > low ? high - low : 1.0f;
+                mHorizontalPasses[i] = new GPUImageFilter(NO_FILTER_VERTEX_SHADER,
+                        createHorizontalShader(weights, offsets[i], ranges[i]));
+                mHorizontalPasses[i].init();
+            }
+            mVerticalPass = new CombinePass(createVerticalShader(decomposition, offsets, ranges), rank);
+            mVerticalPass.init();
+        } else {
+            mFullPass = new GPUImageFilter(NO_FILTER_VERTEX_SHADER, createFullShader(kernel));
+            mFullPass.init();
+        }
+        updatePassSizes();
+    }
+
+    private void updatePassSizes() {
+        if (mOutputWidth == 0 || mOutputHeight == 0) {
+            return;
+        }
+        float texelWidth = 1.0f / mOutputWidth;
+        float texelHeight = 1.0f / mOutputHeight;
+        if (mFullPass != null) {
+            mFullPass.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+            setTexelOffsets(mFullPass, texelWidth, texelHeight);
+            return;
+        }
+        for (GPUImageFilter pass : mHorizontalPasses) {
+            pass.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+            setTexelOffsets(pass, texelWidth, 0);
+        }
+        mVerticalPass.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+        // The terms are read through the vertically flipped mGLTextureBuffer, so the rows
+        // below in the image are at lower texture coordinates
+        setTexelOffsets(mVerticalPass, 0, -texelHeight);
+
+        destroyFrameBuffers();
+        mFrameBuffers = new int[mHorizontalPasses.length];
+        mFrameBufferTextures = new int[mHorizontalPasses.length];
+        for (int i = 0; i < mFrameBuffers.length; i++) {
+            OpenGlUtils.createFrameBuffer(mFrameBuffers, mFrameBufferTextures, i, mOutputWidth, mOutputHeight);
+        }
+        mVerticalPass.setTermTextures(mFrameBufferTextures);
+    }
+
+    private static void setTexelOffsets(final GPUImageFilter pass, final float width, final float height) {
+        pass.setFloat(GLES20.glGetUniformLocation(pass.getProgram(), "texelWidthOffset"), width);
+        pass.setFloat(GLES20.glGetUniformLocation(pass.getProgram(), "texelHeightOffset"), height);
+    }
+
+    private void destroyPasses() {
+        if (mHorizontalPasses != null) {
+            for (GPUImageFilter pass : mHorizontalPasses) {
+                pass.destroy();
+            }
+            mHorizontalPasses = null;
+        }
+        if (mVerticalPass != null) {
+            mVerticalPass.destroy();
+            mVerticalPass = null;
+        }
+        if (mFullPass != null) {
+            mFullPass.destroy();
+            mFullPass = null;
+        }
+        destroyFrameBuffers();
+    }
+
+    private void destroyFrameBuffers() {
+        if (mFrameBufferTextures != null) {
+            GPUImageResourceRegistry.deleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
+            mFrameBufferTextures = null;
+        }
+        if (mFrameBuffers != null) {
+            GPUImageResourceRegistry.deleteFrameBuffers(mFrameBuffers.length, mFrameBuffers, 0);
+            mFrameBuffers = null;
+        }
+    }
+
+    /**
+     * Convolves along x and stores (sum - offset) / range so negative weights survive the
+     * 8 bit target.
+     */
+    static String createHorizontalShader(final float[] weights, final float offset, final float range) {
+        int radius = weights.length / 2;
+        StringBuilder shader = new StringBuilder();
+        shader.append("precision highp float;\n")
+                .append("varying vec2 textureCoordinate;\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("uniform float texelWidthOffset;\n")
+                .append("uniform float texelHeightOffset;\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    vec2 texelStep = vec2(texelWidthOffset, texelHeightOffset);\n")
+                .append("    vec4 sum = vec4(0.0);\n");
+        appendTaps(shader, "inputImageTexture", weights, radius);
+        shader.append("    gl_FragColor = (sum - ").append(offset).append(") * ").append(1.0f / range).append(";\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    /**
+     * Convolves every term along y and adds the terms up.
+     */
+    static String createVerticalShader(final KernelDecomposition decomposition, final float[] offsets,
+                                       final float[] ranges) {
+        int rank = decomposition.getRank();
+        int radius = decomposition.getSize() / 2;
+        StringBuilder shader = new StringBuilder();
+        shader.append("precision highp float;\n")
+                .append("varying vec2 textureCoordinate;\n")
+                .append("uniform sampler2D inputImageTexture;\n");
+        for (int i = 1; i < rank; i++) {
+            shader.append("uniform sampler2D termTexture").append(i).append(";\n");
+        }
+        shader.append("uniform float texelWidthOffset;\n")
+                .append("uniform float texelHeightOffset;\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    vec2 texelStep = vec2(texelWidthOffset, texelHeightOffset);\n")
+                .append("    vec4 result = vec4(0.0);\n")
+                .append("    vec4 sum;\n");
+        for (int i = 0; i < rank; i++) {
+            float[] weights = decomposition.getVertical(i);
+            float weightSum = 0;
+            for (float weight : weights) {
+                weightSum += weight;
+            }
+            shader.append("    sum = vec4(0.0);\n");
+            appendTaps(shader, i == 0 ? "inputImageTexture" : "termTexture" + i, weights, radius);
+            // sum over w * (stored * range + offset)
+            shader.append("    result += sum * ").append(ranges[i]).append(" + ")
+                    .append(offsets[i] * weightSum).append(";\n");
+        }
+        shader.append("    gl_FragColor = result;\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    static String createFullShader(final float[] kernel) {
+        int size = (int) Math.round(Math.sqrt(kernel.length));
+        int radius = size / 2;
+        StringBuilder shader = new StringBuilder();
+        shader.append("precision highp float;\n")
+                .append("varying vec2 textureCoordinate;\n")
+                .append("uniform sampler2D inputImageTexture;\n")
+                .append("uniform float texelWidthOffset;\n")
+                .append("uniform float texelHeightOffset;\n")
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    vec4 sum = vec4(0.0);\n");
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float weight = kernel[y * size + x];
+                if (weight == 0) {
+                    continue;
+                }
+                shader.append("    sum += texture2D(inputImageTexture, textureCoordinate + vec2(")
+                        .append((float) (x - radius)).append(" * texelWidthOffset, ")
+                        .append((float) (y - radius)).append(" * texelHeightOffset)) * ")
+                        .append(weight).append(";\n");
+            }
+        }
+        shader.append("    gl_FragColor = sum;\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    private static void appendTaps(final StringBuilder shader, final String texture, final float[] weights,
+                                   final int radius) {
+        for (int i = 0; i < weights.length; i++) {
+            if (weights[i] == 0) {
+                continue;
+            }
+            shader.append("    sum += texture2D(").append(texture).append(", textureCoordinate + texelStep * ")
+                    .append((float) (i - radius)).append(") * ").append(weights[i]).append(";\n");
+        }
+    }
+
+    /**
+     * The vertical pass, reads the first term like any filter and the others from the
+     * following texture units.
+     */
+    private static class CombinePass extends GPUImageFilter {
+        private final int[] mTermTextureLocations;
+        private int[] mTermTextures;
+
+        CombinePass(final String fragmentShader, final int terms) {
+            super(NO_FILTER_VERTEX_SHADER, fragmentShader);
+            mTermTextureLocations = new int[terms];
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            for (int i = 1; i < mTermTextureLocations.length; i++) {
+                mTermTextureLocations[i] = GLES20.glGetUniformLocation(getProgram(), "termTexture" + i);
+            }
+        }
+
+        void setTermTextures(final int[] textures) {
+            mTermTextures = textures;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            for (int i = 1; i < mTermTextureLocations.length; i++) {
+                GLState.activeTexture(GLES20.GL_TEXTURE0 + i);
+                GLState.bindTexture(GLES20.GL_TEXTURE_2D, mTermTextures[i]);
+                GLES20.glUniform1i(mTermTextureLocations[i], i);
+            }
+            GLState.activeTexture(GLES20.GL_TEXTURE0);
+        }
+    }
+}
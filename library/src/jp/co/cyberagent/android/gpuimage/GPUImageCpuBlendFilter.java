@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage;
+
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+
+/**
+ * A blend filter that can also run without OpenGL, e.g. through
+ * GPUImage.getBitmapWithBlendAppliedOnCpu. Servers without Android can use the BlendMode and
+ * ChromaKeyKernel of the cpu package directly.
+ */
+public interface GPUImageCpuBlendFilter {
+    /**
+     * @return a kernel with the current parameters of the filter, which later changes of the
+     * filter do not affect
+     */
+    BlendKernel getCpuBlendKernel();
+}
@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageDifferenceBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageDifferenceBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String DIFFERENCE_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -33,4 +36,9 @@ public class GPUImageDifferenceBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageDifferenceBlendFilter() {
         super(DIFFERENCE_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.DIFFERENCE.createKernel();
+    }
 }
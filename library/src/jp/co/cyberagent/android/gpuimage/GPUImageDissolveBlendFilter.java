@@ -18,10 +18,13 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
 /**
  * Mix ranges from 0.0 (only image 1) to 1.0 (only image 2), with 0.5 (half of either) as the normal level
  */
-public class GPUImageDissolveBlendFilter extends GPUImageMixBlendFilter{
+public class GPUImageDissolveBlendFilter extends GPUImageMixBlendFilter implements GPUImageCpuBlendFilter {
     public static final String DISSOLVE_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -44,4 +47,9 @@ public class GPUImageDissolveBlendFilter extends GPUImageMixBlendFilter{
     public GPUImageDissolveBlendFilter(float mix) {
         super(DISSOLVE_BLEND_FRAGMENT_SHADER, mix);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.DISSOLVE.createKernel(getMix());
+    }
 }
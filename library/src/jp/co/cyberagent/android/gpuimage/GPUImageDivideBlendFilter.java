@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageDivideBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageDivideBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String DIVIDE_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -56,4 +59,9 @@ public class GPUImageDivideBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageDivideBlendFilter() {
         super(DIVIDE_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.DIVIDE.createKernel();
+    }
 }
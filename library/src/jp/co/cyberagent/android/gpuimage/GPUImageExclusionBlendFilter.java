@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageExclusionBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageExclusionBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String EXCLUSION_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -36,4 +39,9 @@ public class GPUImageExclusionBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageExclusionBlendFilter() {
         super(EXCLUSION_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.EXCLUSION.createKernel();
+    }
 }
@@ -21,9 +21,10 @@ import android.content.res.AssetManager;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.util.TaskQueue;
+
 import java.io.InputStream;
 import java.nio.FloatBuffer;
-import java.util.LinkedList;
 
 public class GPUImageFilter {
     public static final String NO_FILTER_VERTEX_SHADER = "" +
@@ -47,7 +48,7 @@ public class GPUImageFilter {
             "     gl_FragColor = texture2D(inputImageTexture, textureCoordinate);\n" +
             "}";
 
-    private final LinkedList<Runnable> mRunOnDraw;
+    private final TaskQueue mRunOnDraw;
     private final String mVertexShader;
     private final String mFragmentShader;
     protected int mGLProgId;
@@ -57,21 +58,38 @@ public class GPUImageFilter {
     protected int mOutputWidth;
     protected int mOutputHeight;
     private boolean mIsInitialized;
+    // Subclasses from outside the library may change GL state without going through GLState
+    private static final String LIBRARY_PACKAGE =
+            GPUImageFilter.class.getName().substring(0, GPUImageFilter.class.getName().lastIndexOf('.') + 1);
+    private final boolean mExternalClass = !getClass().getName().startsWith(LIBRARY_PACKAGE);
 
     public GPUImageFilter() {
         this(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
     }
 
     public GPUImageFilter(final String vertexShader, final String fragmentShader) {
-        mRunOnDraw = new LinkedList<Runnable>();
+        mRunOnDraw = new TaskQueue();
         mVertexShader = vertexShader;
         mFragmentShader = fragmentShader;
     }
 
     public final void init() {
+        Object previousOwner = GPUImageResourceRegistry.setOwner(this);
         onInit();
         mIsInitialized = true;
         onInitialized();
+        GPUImageResourceRegistry.setOwner(previousOwner);
+        invalidateGLStateIfExternal();
+    }
+
+    /**
+     * Forgets the cached GL state after code of a subclass from outside the library ran, which
+     * may have called GLES20 directly.
+     */
+    final void invalidateGLStateIfExternal() {
+        if (mExternalClass) {
+            GLState.invalidate();
+        }
     }
 
     public void onInit() {
@@ -88,8 +106,9 @@ public class GPUImageFilter {
 
     public final void destroy() {
         mIsInitialized = false;
-        GLES20.glDeleteProgram(mGLProgId);
+        GLState.deleteProgram(mGLProgId);
         onDestroy();
+        GPUImageResourceRegistry.checkReleased(this);
     }
 
     public void onDestroy() {
@@ -102,37 +121,32 @@ public class GPUImageFilter {
 
     public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
                        final FloatBuffer textureBuffer) {
-        GLES20.glUseProgram(mGLProgId);
+        GLState.useProgram(mGLProgId);
         runPendingOnDrawTasks();
         if (!mIsInitialized) {
             return;
         }
 
         cubeBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribPosition, 2, GLES20.GL_FLOAT, false, 0, cubeBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribPosition);
         textureBuffer.position(0);
-        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0,
-                textureBuffer);
-        GLES20.glEnableVertexAttribArray(mGLAttribTextureCoordinate);
+        QuadBufferCache.vertexAttribPointers(mGLAttribPosition, cubeBuffer,
+                mGLAttribTextureCoordinate, textureBuffer);
+        GLState.enableVertexAttribArray(mGLAttribPosition);
+        GLState.enableVertexAttribArray(mGLAttribTextureCoordinate);
         if (textureId != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLState.activeTexture(GLES20.GL_TEXTURE0);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
             GLES20.glUniform1i(mGLUniformTexture, 0);
         }
         onDrawArraysPre();
+        GLState.disableUnusedVertexAttribArrays();
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
-        GLES20.glDisableVertexAttribArray(mGLAttribPosition);
-        GLES20.glDisableVertexAttribArray(mGLAttribTextureCoordinate);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
     }
 
     protected void onDrawArraysPre() {}
 
     protected void runPendingOnDrawTasks() {
-        while (!mRunOnDraw.isEmpty()) {
-            mRunOnDraw.removeFirst().run();
-        }
+        mRunOnDraw.runAll();
     }
 
     public boolean isInitialized() {
@@ -250,10 +264,25 @@ public class GPUImageFilter {
         });
     }
 
+    /**
+     * Appends the parameters kept in textures other than inputImageTexture, so
+     * GPUImageBakedLookupFilter can tell baked chains apart.
+     *
+     * @return false if they can not be described, which keeps the chain out of the cache
+     */
+    protected boolean appendTextureParameters(final StringBuilder key) {
+        return false;
+    }
+
+    /**
+     * @return true if there are parameter changes which have not reached the program yet
+     */
+    protected boolean hasPendingOnDrawTasks() {
+        return !mRunOnDraw.isEmpty();
+    }
+
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.addLast(runnable);
-        }
+        mRunOnDraw.add(runnable);
     }
 
     public static String loadShader(String file, Context context) {
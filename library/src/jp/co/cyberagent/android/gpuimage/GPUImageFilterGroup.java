@@ -24,6 +24,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
@@ -31,7 +32,8 @@ import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE
 
 /**
  * Resembles a filter that consists of multiple filters applied after each
- * other.
+ * other. Filters implementing GPUImagePyramidConsumer share one GPUImagePyramid per input
+ * texture and frame.
  */
 public class GPUImageFilterGroup extends GPUImageFilter {
 
@@ -44,6 +46,15 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     private final FloatBuffer mGLTextureBuffer;
     private final FloatBuffer mGLTextureFlipBuffer;
 
+    private final FrameBufferPool mPyramidPool = new FrameBufferPool(this);
+    private final List<GPUImagePyramid> mIdlePyramids = new ArrayList<GPUImagePyramid>();
+    // Indexed by pyramid source: 0 is the group input, i the output of merged filter i - 1
+    private GPUImagePyramid[] mActivePyramids;
+    private int[] mPyramidLastConsumers;
+    private int[] mPyramidDepths;
+    // Pyramid source read by each merged filter, -1 for none
+    private int[] mPyramidSources;
+
     /**
      * Instantiates a new GPUImageFilterGroup with no filters.
      */
@@ -108,6 +119,7 @@ public class GPUImageFilterGroup extends GPUImageFilter {
     @Override
     public void onDestroy() {
         destroyFramebuffers();
+        destroyPyramids();
         for (GPUImageFilter filter : mFilters) {
             filter.destroy();
         }
@@ -116,15 +128,31 @@ public class GPUImageFilterGroup extends GPUImageFilter {
 
     private void destroyFramebuffers() {
         if (mFrameBufferTextures != null) {
-            GLES20.glDeleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
+            GPUImageResourceRegistry.deleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
             mFrameBufferTextures = null;
         }
         if (mFrameBuffers != null) {
-            GLES20.glDeleteFramebuffers(mFrameBuffers.length, mFrameBuffers, 0);
+            GPUImageResourceRegistry.deleteFrameBuffers(mFrameBuffers.length, mFrameBuffers, 0);
             mFrameBuffers = null;
         }
     }
 
+    private void destroyPyramids() {
+        if (mActivePyramids != null) {
+            for (int i = 0; i < mActivePyramids.length; i++) {
+                if (mActivePyramids[i] != null) {
+                    mIdlePyramids.add(mActivePyramids[i]);
+                    mActivePyramids[i] = null;
+                }
+            }
+        }
+        for (GPUImagePyramid pyramid : mIdlePyramids) {
+            pyramid.destroy();
+        }
+        mIdlePyramids.clear();
+        mPyramidPool.clear();
+    }
+
     /*
      * (non-Javadoc)
      * @see
@@ -137,10 +165,16 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         if (mFrameBuffers != null) {
             destroyFramebuffers();
         }
+        // Levels of the old size would never be handed out again
+        mPyramidPool.clear();
 
         int size = mFilters.size();
         for (int i = 0; i < size; i++) {
-            mFilters.get(i).onOutputSizeChanged(width, height);
+            GPUImageFilter filter = mFilters.get(i);
+            Object previousOwner = GPUImageResourceRegistry.setOwner(filter);
+            filter.onOutputSizeChanged(width, height);
+            filter.invalidateGLStateIfExternal();
+            GPUImageResourceRegistry.setOwner(previousOwner);
         }
 
         if (mMergedFilters != null && mMergedFilters.size() > 0) {
@@ -151,9 +185,11 @@ public class GPUImageFilterGroup extends GPUImageFilter {
             for (int i = 0; i < size - 1; i++) {
                 GLES20.glGenFramebuffers(1, mFrameBuffers, i);
                 GLES20.glGenTextures(1, mFrameBufferTextures, i);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
+                GLState.bindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
                 GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
                         GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+                GPUImageResourceRegistry.textureAllocated(mFrameBufferTextures[i], width, height, GLES20.GL_RGBA);
+                GPUImageResourceRegistry.frameBufferAllocated(mFrameBuffers[i], width, height);
                 GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                         GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
                 GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -163,12 +199,12 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                 GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                         GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
                 GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
                         GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i], 0);
 
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
-                GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                GLState.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+                GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
             }
         }
     }
@@ -188,15 +224,23 @@ public class GPUImageFilterGroup extends GPUImageFilter {
         }
         if (mMergedFilters != null) {
             int size = mMergedFilters.size();
+            planPyramids(size);
+            GPUImageFilterTimer timer = GPUImageFilterTimer.current();
             int previousTexture = textureId;
             for (int i = 0; i < size; i++) {
                 GPUImageFilter filter = mMergedFilters.get(i);
                 boolean isNotLast = i < size - 1;
+                GPUImageTracer.begin(filter.getClass());
+                if (timer != null) {
+                    timer.begin(filter);
+                }
+                attachPyramid(i, filter, textureId);
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
+                    GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[i]);
                     GLES20.glClearColor(0, 0, 0, 0);
                 }
 
+                Object previousOwner = GPUImageResourceRegistry.setOwner(filter);
                 if (i == 0) {
                     filter.onDraw(previousTexture, cubeBuffer, textureBuffer);
                 } else if (i == size - 1) {
@@ -204,15 +248,88 @@ public class GPUImageFilterGroup extends GPUImageFilter {
                 } else {
                     filter.onDraw(previousTexture, mGLCubeBuffer, mGLTextureBuffer);
                 }
+                filter.invalidateGLStateIfExternal();
+                GPUImageResourceRegistry.setOwner(previousOwner);
+                detachPyramid(i, filter);
+                if (timer != null) {
+                    timer.end(filter);
+                }
+                GPUImageTracer.end(filter.getClass());
 
                 if (isNotLast) {
-                    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+                    GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
                     previousTexture = mFrameBufferTextures[i];
                 }
             }
         }
      }
 
+    /**
+     * Finds which pyramid every merged filter reads, how deep each pyramid has to go and after
+     * which filter it can be released.
+     */
+    private void planPyramids(final int size) {
+        if (mPyramidSources == null || mPyramidSources.length < size) {
+            mPyramidSources = new int[size];
+            mPyramidLastConsumers = new int[size];
+            mPyramidDepths = new int[size];
+            mActivePyramids = new GPUImagePyramid[size];
+        }
+        Arrays.fill(mPyramidLastConsumers, -1);
+        Arrays.fill(mPyramidDepths, 0);
+        for (int i = 0; i < size; i++) {
+            mPyramidSources[i] = -1;
+            GPUImageFilter filter = mMergedFilters.get(i);
+            if (!(filter instanceof GPUImagePyramidConsumer)) {
+                continue;
+            }
+            GPUImagePyramidConsumer consumer = (GPUImagePyramidConsumer) filter;
+            int levels = consumer.getPyramidLevels();
+            if (levels <= 0) {
+                continue;
+            }
+            int source = consumer.getPyramidSource() == GPUImagePyramidConsumer.SOURCE_GROUP_INPUT ? 0 : i;
+            mPyramidSources[i] = source;
+            mPyramidLastConsumers[source] = i;
+            mPyramidDepths[source] = Math.max(mPyramidDepths[source], levels);
+        }
+    }
+
+    private void attachPyramid(final int index, final GPUImageFilter filter, final int textureId) {
+        int source = mPyramidSources[index];
+        if (source < 0) {
+            return;
+        }
+        GPUImagePyramid pyramid = mActivePyramids[source];
+        if (pyramid == null) {
+            if (mIdlePyramids.isEmpty()) {
+                pyramid = new GPUImagePyramid(mPyramidPool);
+                pyramid.init();
+            } else {
+                pyramid = mIdlePyramids.remove(mIdlePyramids.size() - 1);
+            }
+            pyramid.setSource(source == 0 ? textureId : mFrameBufferTextures[source - 1],
+                    getOutputWidth(), getOutputHeight());
+            pyramid.build(mPyramidDepths[source]);
+            mActivePyramids[source] = pyramid;
+        }
+        ((GPUImagePyramidConsumer) filter).setPyramid(pyramid);
+    }
+
+    private void detachPyramid(final int index, final GPUImageFilter filter) {
+        int source = mPyramidSources[index];
+        if (source < 0) {
+            return;
+        }
+        ((GPUImagePyramidConsumer) filter).setPyramid(null);
+        if (mPyramidLastConsumers[source] == index) {
+            GPUImagePyramid pyramid = mActivePyramids[source];
+            pyramid.release();
+            mIdlePyramids.add(pyramid);
+            mActivePyramids[source] = null;
+        }
+    }
+
     /**
      * Gets the filters.
      *
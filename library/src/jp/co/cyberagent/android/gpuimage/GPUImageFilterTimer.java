@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long every filter pass takes, see
+ * GPUImageRenderer.setOnFilterTimingListener. With GLES 3 and EXT_disjoint_timer_query the
+ * GPU time of a pass is recorded by a timer query, which is read frames later once the result
+ * is available, so the pipeline is never stalled. Otherwise every pass is bracketed by
+ * glFinish and timed on the CPU, which serializes CPU and GPU and makes the frame slower.
+ * Must only be used on the GL thread.
+ */
+public class GPUImageFilterTimer {
+    public interface OnFilterTimingListener {
+        /**
+         * Called on the GL thread with the statistics of every pass seen in the window, in
+         * drawing order.
+         */
+        void onFilterTiming(List<Stats> stats);
+    }
+
+    /**
+     * Timing of one filter over the last frames, in milliseconds.
+     */
+    public static class Stats {
+        public final GPUImageFilter filter;
+        public final String name;
+        public final int samples;
+        public final float p50;
+        public final float p95;
+        public final float max;
+        /**
+         * Whether the values are GPU times from timer queries rather than glFinish timing.
+         */
+        public final boolean gpuTime;
+
+        Stats(final GPUImageFilter filter, final String name, final int samples, final float p50,
+              final float p95, final float max, final boolean gpuTime) {
+            this.filter = filter;
+            this.name = name;
+            this.samples = samples;
+            this.p50 = p50;
+            this.p95 = p95;
+            this.max = max;
+            this.gpuTime = gpuTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s p50 %.3f ms, p95 %.3f ms, max %.3f ms (%d)", name, p50, p95, max, samples);
+        }
+    }
+
+    public static final int DEFAULT_WINDOW = 120;
+    public static final int DEFAULT_PUBLISH_INTERVAL = 60;
+
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int MAX_PENDING = 64;
+
+    private static final ThreadLocal<GPUImageFilterTimer> sCurrent = new ThreadLocal<GPUImageFilterTimer>();
+
+    private final OnFilterTimingListener mListener;
+    private final int mWindow;
+    private final int mPublishInterval;
+    private boolean mGpuTime;
+
+    private final int[] mQueries = new int[MAX_PENDING];
+    private final GPUImageFilter[] mPendingFilters = new GPUImageFilter[MAX_PENDING];
+    private int mPendingStart;
+    private int mPendingCount;
+    private final int[] mResult = new int[1];
+
+    private GPUImageFilter mActiveFilter;
+    private int mActiveSlot;
+    private long mActiveStart;
+
+    private final Map<GPUImageFilter, Samples> mSamples = new LinkedHashMap<GPUImageFilter, Samples>();
+    private int mFrame;
+
+    GPUImageFilterTimer(final OnFilterTimingListener listener) {
+        this(listener, DEFAULT_WINDOW, DEFAULT_PUBLISH_INTERVAL);
+    }
+
+    GPUImageFilterTimer(final OnFilterTimingListener listener, final int window, final int publishInterval) {
+        mListener = listener;
+        mWindow = window;
+        mPublishInterval = publishInterval;
+    }
+
+    /**
+     * @return the timer of the frame being drawn on this thread, or null if timing is off
+     */
+    static GPUImageFilterTimer current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Sets up the timing for the current context. Queries of a previous context are dropped.
+     */
+    void init() {
+        Arrays.fill(mPendingFilters, null);
+        mPendingStart = 0;
+        mPendingCount = 0;
+        mActiveFilter = null;
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        mGpuTime = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && OpenGlUtils.getGLESMajorVersion() >= 3
+                && extensions != null && extensions.contains("GL_EXT_disjoint_timer_query");
+        if (mGpuTime) {
+            generateQueries();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void generateQueries() {
+        GLES30.glGenQueries(MAX_PENDING, mQueries, 0);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    void destroy() {
+        if (mGpuTime) {
+            GLES30.glDeleteQueries(MAX_PENDING, mQueries, 0);
+        }
+        Arrays.fill(mPendingFilters, null);
+        mPendingCount = 0;
+        mSamples.clear();
+    }
+
+    public boolean isGpuTime() {
+        return mGpuTime;
+    }
+
+    void beginFrame() {
+        sCurrent.set(this);
+        if (mGpuTime) {
+            collectQueries();
+        }
+    }
+
+    void endFrame() {
+        sCurrent.set(null);
+        mFrame++;
+        if (mFrame % mPublishInterval == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Starts timing a pass. Passes do not nest, a begin while another pass is timed is ignored.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    void begin(final GPUImageFilter filter) {
+        if (mActiveFilter != null) {
+            return;
+        }
+        mActiveFilter = filter;
+        if (mGpuTime) {
+            // With all queries still in flight the pass goes untimed
+            mActiveSlot = mPendingCount < MAX_PENDING ? (mPendingStart + mPendingCount) % MAX_PENDING : -1;
+            if (mActiveSlot >= 0) {
+                GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mActiveSlot]);
+            }
+        } else {
+            GLES20.glFinish();
+            mActiveStart = System.nanoTime();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    void end(final GPUImageFilter filter) {
+        if (filter != mActiveFilter) {
+            return;
+        }
+        mActiveFilter = null;
+        if (mGpuTime) {
+            if (mActiveSlot >= 0) {
+                GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+                mPendingFilters[mActiveSlot] = filter;
+                mPendingCount++;
+            }
+        } else {
+            GLES20.glFinish();
+            record(filter, (System.nanoTime() - mActiveStart) / 1000000.0f);
+        }
+    }
+
+    /**
+     * Reads the queries that have finished, oldest first, without waiting for the others.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void collectQueries() {
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, mResult, 0);
+        // A disjoint event such as a frequency change makes the results in flight meaningless
+        boolean disjoint = mResult[0] != 0;
+        while (mPendingCount > 0) {
+            int query = mQueries[mPendingStart];
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, mResult, 0);
+            if (mResult[0] == 0) {
+                break;
+            }
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, mResult, 0);
+            if (!disjoint) {
+                record(mPendingFilters[mPendingStart], (mResult[0] & 0xffffffffL) / 1000000.0f);
+            }
+            mPendingFilters[mPendingStart] = null;
+            mPendingStart = (mPendingStart + 1) % MAX_PENDING;
+            mPendingCount--;
+        }
+    }
+
+    private void record(final GPUImageFilter filter, final float milliseconds) {
+        Samples samples = mSamples.get(filter);
+        if (samples == null) {
+            samples = new Samples(mWindow);
+            mSamples.put(filter, samples);
+        }
+        samples.add(milliseconds, mFrame);
+    }
+
+    private void publish() {
+        List<Stats> stats = new ArrayList<Stats>(mSamples.size());
+        float[] sorted = new float[mWindow];
+        Iterator<Map.Entry<GPUImageFilter, Samples>> iterator = mSamples.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<GPUImageFilter, Samples> entry = iterator.next();
+            Samples samples = entry.getValue();
+            // Filters that have not been drawn for a whole window are gone from the chain
+            if (mFrame - samples.lastFrame > mWindow + MAX_PENDING) {
+                iterator.remove();
+                continue;
+            }
+            int count = samples.count;
+            System.arraycopy(samples.values, 0, sorted, 0, count);
+            Arrays.sort(sorted, 0, count);
+            stats.add(new Stats(entry.getKey(), entry.getKey().getClass().getSimpleName(), count,
+                    sorted[(count - 1) / 2], sorted[Math.max((int) Math.ceil(count * 0.95) - 1, 0)],
+                    sorted[count - 1], mGpuTime));
+        }
+        mListener.onFilterTiming(Collections.unmodifiableList(stats));
+    }
+
+    private static final class Samples {
+        final float[] values;
+        int count;
+        int next;
+        int lastFrame;
+
+        Samples(final int window) {
+            values = new float[window];
+        }
+
+        void add(final float value, final int frame) {
+            values[next] = value;
+            next = (next + 1) % values.length;
+            count = Math.min(count + 1, values.length);
+            lastFrame = frame;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts the camera preview frames of a GPUImageRenderer and how long they take from arriving
+ * in onPreviewFrame until the end of the onDrawFrame that shows them. Frames are dropped when
+ * the GL thread has not taken the previous frame or another task yet. All counters are
+ * updated without locks and can be read from any thread through snapshot().
+ */
+public class GPUImageFrameStats {
+
+    /**
+     * Counters and latency at the time of GPUImageFrameStats.snapshot().
+     */
+    public static class Snapshot {
+        public final long received;
+        public final long converted;
+        public final long rendered;
+        public final long dropped;
+        /**
+         * Latencies in milliseconds, 0 when no frame has been rendered yet. Percentiles are
+         * accurate to about 6%.
+         */
+        public final float meanLatency;
+        public final float p50Latency;
+        public final float p95Latency;
+        public final float p99Latency;
+        public final float maxLatency;
+
+        Snapshot(final long received, final long converted, final long rendered, final long dropped,
+                 final float meanLatency, final float p50Latency, final float p95Latency,
+                 final float p99Latency, final float maxLatency) {
+            this.received = received;
+            this.converted = converted;
+            this.rendered = rendered;
+            this.dropped = dropped;
+            this.meanLatency = meanLatency;
+            this.p50Latency = p50Latency;
+            this.p95Latency = p95Latency;
+            this.p99Latency = p99Latency;
+            this.maxLatency = maxLatency;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("received %d, converted %d, rendered %d, dropped %d, "
+                    + "latency mean %.2f ms, p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms",
+                    received, converted, rendered, dropped,
+                    meanLatency, p50Latency, p95Latency, p99Latency, maxLatency);
+        }
+    }
+
+    // Latencies in microseconds: 8 linear buckets per power of two, exact below 8
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 26;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mConverted = new AtomicLong();
+    private final AtomicLong mRendered = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLongArray mLatencyBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mLatencySum = new AtomicLong();
+    private final AtomicLong mLatencyMax = new AtomicLong();
+
+    void onReceived() {
+        mReceived.incrementAndGet();
+    }
+
+    void onDropped() {
+        mDropped.incrementAndGet();
+    }
+
+    void onConverted() {
+        mConverted.incrementAndGet();
+    }
+
+    /**
+     * @param receivedNanos System.nanoTime() when the frame arrived
+     */
+    void onRendered(final long receivedNanos) {
+        mRendered.incrementAndGet();
+        long micros = Math.max((System.nanoTime() - receivedNanos) / 1000, 0);
+        mLatencyBuckets.incrementAndGet(getBucket(micros));
+        mLatencySum.addAndGet(micros);
+        long max = mLatencyMax.get();
+        while (micros > max && !mLatencyMax.compareAndSet(max, micros)) {
+            max = mLatencyMax.get();
+        }
+    }
+
+    /**
+     * Reads all counters. Frames counted while reading may show up in some of them only.
+     */
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = mLatencyBuckets.get(i);
+            count += buckets[i];
+        }
+        float mean = count == 0 ? 0.0f : mLatencySum.get() / 1000.0f / count;
+        float max = mLatencyMax.get() / 1000.0f;
+        return new Snapshot(mReceived.get(), mConverted.get(), mRendered.get(), mDropped.get(), mean,
+                Math.min(getPercentile(buckets, count, 0.50), max),
+                Math.min(getPercentile(buckets, count, 0.95), max),
+                Math.min(getPercentile(buckets, count, 0.99), max), max);
+    }
+
+    /**
+     * Sets all counters back to 0, e.g. after sending a snapshot.
+     */
+    public void reset() {
+        mReceived.set(0);
+        mConverted.set(0);
+        mRendered.set(0);
+        mDropped.set(0);
+        for (int i = 0; i < BUCKETS; i++) {
+            mLatencyBuckets.set(i, 0);
+        }
+        mLatencySum.set(0);
+        mLatencyMax.set(0);
+    }
+
+    private static int getBucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) Math.min(micros >>> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the middle of the bucket holding the given fraction of the latencies, in ms
+     */
+    private static float getPercentile(final long[] buckets, final long count, final double fraction) {
+        if (count == 0) {
+            return 0.0f;
+        }
+        long rank = Math.max((long) Math.ceil(count * fraction), 1);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                if (i < SUB_BUCKETS) {
+                    return i / 1000.0f;
+                }
+                int shift = i / SUB_BUCKETS - 1;
+                long lower = (long) (SUB_BUCKETS + i % SUB_BUCKETS) << shift;
+                return (lower + (1L << shift) / 2.0f) / 1000.0f;
+            }
+        }
+        return 0.0f;
+    }
+}
@@ -0,0 +1,691 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.SuppressLint;
+import android.opengl.GLES20;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Edge-preserving smoothing filter (He et al., "Guided Image Filtering").
+ * <br>
+ * Without a second image the filter is self-guided and each channel guides itself, which
+ * smooths the image while keeping its edges. When a guide image is set with
+ * {@link #setBitmap(android.graphics.Bitmap)} its luminance guides the filtering of the input,
+ * which can be used to refine a matte along the edges of the guide.
+ * <br>
+ * The box filters are separable and read every texel of their window. The means and the
+ * coefficients are stored with 16 bits per value, two values per RGBA texture, since the
+ * variance E[I * I] - E[I]^2 is far below 8 bit precision next to a small epsilon.
+ * With a subsampling factor above 1 the coefficients are computed at a reduced resolution
+ * ("fast guided filter") with a radius reduced by the same factor, and upsampled for the
+ * final pass. Radii above MAX_BOX_RADIUS raise the subsampling until the window spans at most
+ * 2 * MAX_BOX_RADIUS + 1 texels, so the cost does not grow with the radius.
+ * <br>
+ * radius: in pixels, from 0 to MAX_RADIUS, default 4<br>
+ * epsilon: regularization, bigger means smoother, above 0.0, default 0.01<br>
+ * subsampling: 1 (off) or more, default 1
+ */
+public class GPUImageGuidedFilter extends GPUImageTwoInputFilter {
+    public static final int MAX_RADIUS = 32;
+    /**
+     * Largest radius of the box filters at the subsampled resolution.
+     */
+    public static final int MAX_BOX_RADIUS = 4;
+
+    public static final String GUIDED_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "attribute vec4 inputTextureCoordinate2;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 textureCoordinate2;\n" +
+            "varying vec2 coefficientCoordinate;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "    textureCoordinate2 = inputTextureCoordinate2.xy;\n" +
+            "    coefficientCoordinate = position.xy * 0.5 + 0.5;\n" +
+            "}";
+
+    /**
+     * Stores a value from 0.0 to 1.0 in two 8 bit channels. Both are linear in the value, so
+     * packed textures can be averaged and filtered like plain ones.
+     */
+    private static final String PACKING = "" +
+            "vec2 pack(float value)\n" +
+            "{\n" +
+            "    float scaled = clamp(value, 0.0, 1.0) * 255.0;\n" +
+            "    float high = floor(scaled);\n" +
+            "    return vec2(high / 255.0, scaled - high);\n" +
+            "}\n" +
+            "\n" +
+            "float unpack(vec2 packed)\n" +
+            "{\n" +
+            "    return packed.x + packed.y / 255.0;\n" +
+            "}\n" +
+            "\n" +
+            "vec4 pack(vec2 values)\n" +
+            "{\n" +
+            "    return vec4(pack(values.x), pack(values.y));\n" +
+            "}\n" +
+            "\n" +
+            "vec2 unpack(vec4 packed)\n" +
+            "{\n" +
+            "    return vec2(unpack(packed.xy), unpack(packed.zw));\n" +
+            "}\n";
+
+    /**
+     * Ranges of the coefficients a and b as (a min, a max, b min, b max). Self-guided they are
+     * within [0, 1]. Cross-guided |cov(I, p)| <= sqrt(var(I)) / 2 for p within [0, 1], so
+     * |a| <= sqrt(var(I)) / 2 / (var(I) + epsilon) <= 0.25 / sqrt(epsilon).
+     */
+    private static final String COEFFICIENT_RANGES = "" +
+            "vec4 coefficientRanges()\n" +
+            "{\n" +
+            "    float bound = 0.25 / sqrt(epsilon);\n" +
+            "    return mix(vec4(-bound, bound, -bound, 1.0 + bound), vec4(0.0, 1.0, 0.0, 1.0), selfGuided);\n" +
+            "}\n";
+
+    /**
+     * Horizontal box filter of the statistics of input p and guide I, packed two per output:
+     * 0: p.r, p.g  1: p.b, I  2: (I * p).rg  3: (I * p).b, I * I. If self-guided, I is p per
+     * channel and only outputs 0 and 2 and the first value of 1 and 3 are used.
+     */
+    public static final String STATISTICS_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 textureCoordinate2;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D inputImageTexture2;\n" +
+            "uniform vec2 texelStep;\n" +
+            "uniform float radius;\n" +
+            "uniform float selfGuided;\n" +
+            "uniform float outputIndex;\n" +
+            "\n" +
+            "const int MAX_TAPS = " + (2 * MAX_BOX_RADIUS + 1) + ";\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "\n" +
+            PACKING +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec2 guideCoordinate = mix(textureCoordinate2, textureCoordinate, selfGuided);\n" +
+            "    vec2 sum = vec2(0.0);\n" +
+            "    for (int i = 0; i < MAX_TAPS; i++) {\n" +
+            "        float offset = float(i) - radius;\n" +
+            "        if (offset > radius) {\n" +
+            "            break;\n" +
+            "        }\n" +
+            "        vec3 p = texture2D(inputImageTexture, textureCoordinate + offset * texelStep).rgb;\n" +
+            "        float I = dot(texture2D(inputImageTexture2, guideCoordinate + offset * texelStep).rgb, W);\n" +
+            "        vec3 guideTimesInput = mix(vec3(I), p, selfGuided) * p;\n" +
+            "        if (outputIndex < 0.5) {\n" +
+            "            sum += p.rg;\n" +
+            "        } else if (outputIndex < 1.5) {\n" +
+            "            sum += vec2(p.b, I);\n" +
+            "        } else if (outputIndex < 2.5) {\n" +
+            "            sum += guideTimesInput.rg;\n" +
+            "        } else {\n" +
+            "            sum += vec2(guideTimesInput.b, I * I);\n" +
+            "        }\n" +
+            "    }\n" +
+            "    gl_FragColor = pack(sum / (2.0 * radius + 1.0));\n" +
+            "}";
+
+    public static final String BOX_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform vec2 texelStep;\n" +
+            "uniform float radius;\n" +
+            "\n" +
+            "const int MAX_TAPS = " + (2 * MAX_BOX_RADIUS + 1) + ";\n" +
+            "\n" +
+            PACKING +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec2 sum = vec2(0.0);\n" +
+            "    for (int i = 0; i < MAX_TAPS; i++) {\n" +
+            "        float offset = float(i) - radius;\n" +
+            "        if (offset > radius) {\n" +
+            "            break;\n" +
+            "        }\n" +
+            "        sum += unpack(texture2D(inputImageTexture, textureCoordinate + offset * texelStep));\n" +
+            "    }\n" +
+            "    gl_FragColor = pack(sum / (2.0 * radius + 1.0));\n" +
+            "}";
+
+    /**
+     * Solves the linear coefficients a and b from the box filtered statistics, maps them from
+     * their ranges to [0, 1] and packs them two per output: 0: a.r, a.g  1: a.b, b.r
+     * 2: b.g, b.b
+     */
+    public static final String COEFFICIENT_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D statisticsTexture1;\n" +
+            "uniform sampler2D statisticsTexture2;\n" +
+            "uniform sampler2D statisticsTexture3;\n" +
+            "uniform float epsilon;\n" +
+            "uniform float selfGuided;\n" +
+            "uniform float outputIndex;\n" +
+            "\n" +
+            PACKING +
+            "\n" +
+            COEFFICIENT_RANGES +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec2 statistics0 = unpack(texture2D(inputImageTexture, textureCoordinate));\n" +
+            "    vec2 statistics1 = unpack(texture2D(statisticsTexture1, textureCoordinate));\n" +
+            "    vec2 statistics2 = unpack(texture2D(statisticsTexture2, textureCoordinate));\n" +
+            "    vec2 statistics3 = unpack(texture2D(statisticsTexture3, textureCoordinate));\n" +
+            "    vec3 mean = vec3(statistics0, statistics1.x);\n" +
+            "    float meanI = statistics1.y;\n" +
+            "    vec3 correlation = vec3(statistics2, statistics3.x);\n" +
+            "    float meanII = statistics3.y;\n" +
+            "\n" +
+            "    vec3 meanGuide = mix(vec3(meanI), mean, selfGuided);\n" +
+            "    vec3 variance = mix(vec3(meanII - meanI * meanI), correlation - mean * mean, selfGuided);\n" +
+            "    vec3 covariance = correlation - mean * meanGuide;\n" +
+            "\n" +
+            "    vec3 a = covariance / (max(variance, 0.0) + epsilon);\n" +
+            "    vec3 b = mean - a * meanGuide;\n" +
+            "    vec4 ranges = coefficientRanges();\n" +
+            "    a = (a - ranges.x) / (ranges.y - ranges.x);\n" +
+            "    b = (b - ranges.z) / (ranges.w - ranges.z);\n" +
+            "    vec2 values = outputIndex < 0.5 ? a.rg : (outputIndex < 1.5 ? vec2(a.b, b.r) : b.gb);\n" +
+            "    gl_FragColor = pack(values);\n" +
+            "}";
+
+    public static final String GUIDED_FRAGMENT_SHADER = "" +
+            "precision highp float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 textureCoordinate2;\n" +
+            "varying vec2 coefficientCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D inputImageTexture2;\n" +
+            "uniform sampler2D coefficientTexture0;\n" +
+            "uniform sampler2D coefficientTexture1;\n" +
+            "uniform sampler2D coefficientTexture2;\n" +
+            "uniform float epsilon;\n" +
+            "uniform float selfGuided;\n" +
+            "\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "\n" +
+            PACKING +
+            "\n" +
+            COEFFICIENT_RANGES +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    vec2 guideCoordinate = mix(textureCoordinate2, textureCoordinate, selfGuided);\n" +
+            "    float I = dot(texture2D(inputImageTexture2, guideCoordinate).rgb, W);\n" +
+            "    vec3 guide = mix(vec3(I), textureColor.rgb, selfGuided);\n" +
+            "\n" +
+            "    vec2 coefficients0 = unpack(texture2D(coefficientTexture0, coefficientCoordinate));\n" +
+            "    vec2 coefficients1 = unpack(texture2D(coefficientTexture1, coefficientCoordinate));\n" +
+            "    vec2 coefficients2 = unpack(texture2D(coefficientTexture2, coefficientCoordinate));\n" +
+            "    vec4 ranges = coefficientRanges();\n" +
+            "    vec3 a = vec3(coefficients0, coefficients1.x) * (ranges.y - ranges.x) + ranges.x;\n" +
+            "    vec3 b = vec3(coefficients1.y, coefficients2) * (ranges.w - ranges.z) + ranges.z;\n" +
+            "    gl_FragColor = vec4(a * guide + b, textureColor.a);\n" +
+            "}";
+
+    private static final int STATISTICS = 4;
+    private static final int COEFFICIENTS = 3;
+    // Units of the coefficient textures in the final pass and of the extra textures of the
+    // inner passes, after the guide on unit 3
+    private static final int FIRST_EXTRA_UNIT = 4;
+
+    private final StatisticsPass mStatisticsPass;
+    private final Pass mHorizontalBoxPass;
+    private final Pass mVerticalBoxPass;
+    private final Pass mCoefficientPass;
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+
+    // STATISTICS framebuffers written by horizontal passes, then as many by vertical passes
+    private int[] mFrameBuffers;
+    private int[] mFrameBufferTextures;
+    private int mSubsampledWidth;
+    private int mSubsampledHeight;
+
+    private int mRadius;
+    private float mEpsilon;
+    private int mSubsampling;
+    private Boolean mSelfGuided;
+    private int mInputTexture = OpenGlUtils.NO_TEXTURE;
+
+    private final int[] mCoefficientTextureLocations = new int[COEFFICIENTS];
+    private int mSelfGuidedLocation;
+    private int mEpsilonLocation;
+    private int mStatisticsSelfGuidedLocation;
+    private int mStatisticsTexelStepLocation;
+    private int mStatisticsRadiusLocation;
+    private int mHorizontalTexelStepLocation;
+    private int mHorizontalRadiusLocation;
+    private int mVerticalTexelStepLocation;
+    private int mVerticalRadiusLocation;
+    private int mCoefficientSelfGuidedLocation;
+    private int mCoefficientEpsilonLocation;
+
+    public GPUImageGuidedFilter() {
+        this(4, 0.01f, 1);
+    }
+
+    public GPUImageGuidedFilter(final int radius, final float epsilon, final int subsampling) {
+        super(GUIDED_VERTEX_SHADER, GUIDED_FRAGMENT_SHADER);
+        checkRadius(radius);
+        checkEpsilon(epsilon);
+        mRadius = radius;
+        mEpsilon = epsilon;
+        mSubsampling = Math.max(subsampling, 1);
+
+        mStatisticsPass = new StatisticsPass();
+        mHorizontalBoxPass = new Pass(NO_FILTER_VERTEX_SHADER, BOX_FRAGMENT_SHADER);
+        mVerticalBoxPass = new Pass(NO_FILTER_VERTEX_SHADER, BOX_FRAGMENT_SHADER);
+        mCoefficientPass = new Pass(NO_FILTER_VERTEX_SHADER, COEFFICIENT_FRAGMENT_SHADER,
+                "statisticsTexture1", "statisticsTexture2", "statisticsTexture3");
+
+        mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLCubeBuffer.put(CUBE).position(0);
+
+        // Intermediate textures are addressed like the output, so those passes must not flip
+        float[] texture = TextureRotationUtil.getRotation(Rotation.NORMAL, false, true);
+        mGLTextureBuffer = ByteBuffer.allocateDirect(texture.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mGLTextureBuffer.put(texture).position(0);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        for (int i = 0; i < COEFFICIENTS; i++) {
+            mCoefficientTextureLocations[i] = GLES20.glGetUniformLocation(getProgram(), "coefficientTexture" + i);
+        }
+        mSelfGuidedLocation = GLES20.glGetUniformLocation(getProgram(), "selfGuided");
+        mEpsilonLocation = GLES20.glGetUniformLocation(getProgram(), "epsilon");
+
+        mStatisticsPass.init();
+        mHorizontalBoxPass.init();
+        mVerticalBoxPass.init();
+        mCoefficientPass.init();
+        int program = mStatisticsPass.getProgram();
+        mStatisticsSelfGuidedLocation = GLES20.glGetUniformLocation(program, "selfGuided");
+        mStatisticsTexelStepLocation = GLES20.glGetUniformLocation(program, "texelStep");
+        mStatisticsRadiusLocation = GLES20.glGetUniformLocation(program, "radius");
+        program = mHorizontalBoxPass.getProgram();
+        mHorizontalTexelStepLocation = GLES20.glGetUniformLocation(program, "texelStep");
+        mHorizontalRadiusLocation = GLES20.glGetUniformLocation(program, "radius");
+        program = mVerticalBoxPass.getProgram();
+        mVerticalTexelStepLocation = GLES20.glGetUniformLocation(program, "texelStep");
+        mVerticalRadiusLocation = GLES20.glGetUniformLocation(program, "radius");
+        program = mCoefficientPass.getProgram();
+        mCoefficientSelfGuidedLocation = GLES20.glGetUniformLocation(program, "selfGuided");
+        mCoefficientEpsilonLocation = GLES20.glGetUniformLocation(program, "epsilon");
+        mSelfGuided = null;
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setEpsilon(mEpsilon);
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyFramebuffers();
+        mStatisticsPass.destroy();
+        mHorizontalBoxPass.destroy();
+        mVerticalBoxPass.destroy();
+        mCoefficientPass.destroy();
+        super.onDestroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mStatisticsPass.onOutputSizeChanged(width, height);
+        mHorizontalBoxPass.onOutputSizeChanged(width, height);
+        mVerticalBoxPass.onOutputSizeChanged(width, height);
+        mCoefficientPass.onOutputSizeChanged(width, height);
+        updateFramebuffers();
+    }
+
+    @Override
+    public void setRotation(final Rotation rotation, final boolean flipHorizontal, final boolean flipVertical) {
+        super.setRotation(rotation, flipHorizontal, flipVertical);
+        // The guide is sampled by the statistics pass as well
+        if (mStatisticsPass != null) {
+            mStatisticsPass.setGuideRotation(rotation, flipHorizontal, flipVertical);
+        }
+    }
+
+    /**
+     * @param radius of the box filters in pixels, from 0 to MAX_RADIUS, default 4
+     */
+    public void setRadius(final int radius) {
+        checkRadius(radius);
+        mRadius = radius;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                updateFramebuffers();
+            }
+        });
+    }
+
+    public int getRadius() {
+        return mRadius;
+    }
+
+    /**
+     * @param epsilon regularization above 0.0, bigger values smooth stronger edges, default 0.01
+     */
+    public void setEpsilon(final float epsilon) {
+        checkEpsilon(epsilon);
+        mEpsilon = epsilon;
+        mCoefficientPass.setFloat(mCoefficientEpsilonLocation, epsilon);
+        setFloat(mEpsilonLocation, epsilon);
+    }
+
+    public float getEpsilon() {
+        return mEpsilon;
+    }
+
+    /**
+     * Computes the coefficients at 1 / subsampling of the output size. 2 makes the filter
+     * about 4 times faster with hardly visible difference. Radii above MAX_BOX_RADIUS
+     * subsample by radius / MAX_BOX_RADIUS at least.
+     *
+     * @param subsampling 1 (off) or more, default 1
+     */
+    public void setSubsampling(final int subsampling) {
+        mSubsampling = Math.max(subsampling, 1);
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                updateFramebuffers();
+            }
+        });
+    }
+
+    public int getSubsampling() {
+        return mSubsampling;
+    }
+
+    private static void checkRadius(final int radius) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("radius must be from 0 to " + MAX_RADIUS + ", got " + radius);
+        }
+    }
+
+    private static void checkEpsilon(final float epsilon) {
+        if (!(epsilon > 0.0f)) {
+            throw new IllegalArgumentException("epsilon must be above 0.0, got " + epsilon);
+        }
+    }
+
+    /**
+     * @return the user's subsampling, raised so the box radius stays within MAX_BOX_RADIUS
+     */
+    private int getEffectiveSubsampling() {
+        return Math.max(mSubsampling, (mRadius + MAX_BOX_RADIUS - 1) / MAX_BOX_RADIUS);
+    }
+
+    private void updateFramebuffers() {
+        if (mOutputWidth == 0 || mOutputHeight == 0) {
+            return;
+        }
+        int subsampling = getEffectiveSubsampling();
+        int width = Math.max(mOutputWidth / subsampling, 1);
+        int height = Math.max(mOutputHeight / subsampling, 1);
+        if (mFrameBuffers == null || width != mSubsampledWidth || height != mSubsampledHeight) {
+            mSubsampledWidth = width;
+            mSubsampledHeight = height;
+            destroyFramebuffers();
+            mFrameBuffers = new int[2 * STATISTICS];
+            mFrameBufferTextures = new int[2 * STATISTICS];
+            for (int i = 0; i < mFrameBuffers.length; i++) {
+                OpenGlUtils.createFrameBuffer(mFrameBuffers, mFrameBufferTextures, i, width, height);
+            }
+        }
+        updateTexelSteps();
+    }
+
+    private void updateTexelSteps() {
+        if (mSubsampledWidth == 0 || mSubsampledHeight == 0) {
+            return;
+        }
+        // All box filters run at the subsampled resolution, one tap per subsampled texel
+        float radius = Math.min(Math.round((float) mRadius / getEffectiveSubsampling()), MAX_BOX_RADIUS);
+        float[] horizontalStep = new float[]{1.0f / mSubsampledWidth, 0.0f};
+        mStatisticsPass.setFloatVec2(mStatisticsTexelStepLocation, horizontalStep);
+        mStatisticsPass.setFloat(mStatisticsRadiusLocation, radius);
+        mHorizontalBoxPass.setFloatVec2(mHorizontalTexelStepLocation, horizontalStep);
+        mHorizontalBoxPass.setFloat(mHorizontalRadiusLocation, radius);
+        mVerticalBoxPass.setFloatVec2(mVerticalTexelStepLocation, new float[]{0.0f, 1.0f / mSubsampledHeight});
+        mVerticalBoxPass.setFloat(mVerticalRadiusLocation, radius);
+    }
+
+    private void destroyFramebuffers() {
+        if (mFrameBufferTextures != null) {
+            GPUImageResourceRegistry.deleteTextures(mFrameBufferTextures.length, mFrameBufferTextures, 0);
+            mFrameBufferTextures = null;
+        }
+        if (mFrameBuffers != null) {
+            GPUImageResourceRegistry.deleteFrameBuffers(mFrameBuffers.length, mFrameBuffers, 0);
+            mFrameBuffers = null;
+        }
+    }
+
+    private void updateSelfGuided(final boolean selfGuided) {
+        if (mSelfGuided != null && mSelfGuided == selfGuided) {
+            return;
+        }
+        mSelfGuided = selfGuided;
+        float value = selfGuided ? 1.0f : 0.0f;
+        mStatisticsPass.setFloat(mStatisticsSelfGuidedLocation, value);
+        mCoefficientPass.setFloat(mCoefficientSelfGuidedLocation, value);
+        setFloat(mSelfGuidedLocation, value);
+    }
+
+    @SuppressLint("WrongCall")
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized() || mFrameBuffers == null || textureId == OpenGlUtils.NO_TEXTURE) {
+            return;
+        }
+        boolean selfGuided = mFilterSourceTexture2 == OpenGlUtils.NO_TEXTURE;
+        updateSelfGuided(selfGuided);
+        mInputTexture = textureId;
+        mStatisticsPass.setTexture(0, selfGuided ? textureId : mFilterSourceTexture2);
+
+        int boundFramebuffer = GLState.getFrameBuffer();
+        GLES20.glViewport(0, 0, mSubsampledWidth, mSubsampledHeight);
+
+        // Statistics, horizontal pass straight from the input
+        for (int i = 0; i < STATISTICS; i++) {
+            mStatisticsPass.setOutputIndex(i);
+            drawPass(mStatisticsPass, textureId, i, cubeBuffer, textureBuffer);
+        }
+        for (int i = 0; i < STATISTICS; i++) {
+            drawPass(mVerticalBoxPass, mFrameBufferTextures[i], STATISTICS + i, mGLCubeBuffer, mGLTextureBuffer);
+        }
+
+        // Coefficients a and b, then their box filtered means
+        for (int i = 1; i < STATISTICS; i++) {
+            mCoefficientPass.setTexture(i - 1, mFrameBufferTextures[STATISTICS + i]);
+        }
+        for (int i = 0; i < COEFFICIENTS; i++) {
+            mCoefficientPass.setOutputIndex(i);
+            drawPass(mCoefficientPass, mFrameBufferTextures[STATISTICS], i, mGLCubeBuffer, mGLTextureBuffer);
+        }
+        for (int i = 0; i < COEFFICIENTS; i++) {
+            drawPass(mHorizontalBoxPass, mFrameBufferTextures[i], STATISTICS + i, mGLCubeBuffer, mGLTextureBuffer);
+        }
+        for (int i = 0; i < COEFFICIENTS; i++) {
+            drawPass(mVerticalBoxPass, mFrameBufferTextures[STATISTICS + i], i, mGLCubeBuffer, mGLTextureBuffer);
+        }
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, boundFramebuffer);
+        GLES20.glViewport(0, 0, mOutputWidth, mOutputHeight);
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    @SuppressLint("WrongCall")
+    private void drawPass(final GPUImageFilter filter, final int textureId, final int frameBufferIndex,
+                          final FloatBuffer cubeBuffer, final FloatBuffer textureBuffer) {
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[frameBufferIndex]);
+        filter.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        int guideTexture = mFilterSourceTexture2;
+        if (guideTexture == OpenGlUtils.NO_TEXTURE) {
+            guideTexture = mInputTexture;
+        }
+        // Bind the guide without touching the field, NO_TEXTURE marks the self-guided mode
+        int sourceTexture2 = mFilterSourceTexture2;
+        mFilterSourceTexture2 = guideTexture;
+        super.onDrawArraysPre();
+        mFilterSourceTexture2 = sourceTexture2;
+
+        for (int i = 0; i < COEFFICIENTS; i++) {
+            GLState.activeTexture(GLES20.GL_TEXTURE0 + FIRST_EXTRA_UNIT + i);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, mFrameBufferTextures[i]);
+            GLES20.glUniform1i(mCoefficientTextureLocations[i], FIRST_EXTRA_UNIT + i);
+        }
+    }
+
+    /**
+     * An inner pass, reads the first texture like any filter and the others, which belong to
+     * the outer filter, from the units after the guide. outputIndex selects which of the
+     * packed results of the shader it writes.
+     */
+    private static class Pass extends GPUImageFilter {
+        private final String[] mTextureNames;
+        private final int[] mTextureLocations;
+        private final int[] mTextures;
+        private int mOutputIndexLocation;
+        private int mOutputIndex;
+
+        Pass(final String vertexShader, final String fragmentShader, final String... textureNames) {
+            super(vertexShader, fragmentShader);
+            mTextureNames = textureNames;
+            mTextureLocations = new int[textureNames.length];
+            mTextures = new int[textureNames.length];
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            for (int i = 0; i < mTextureNames.length; i++) {
+                mTextureLocations[i] = GLES20.glGetUniformLocation(getProgram(), mTextureNames[i]);
+            }
+            mOutputIndexLocation = GLES20.glGetUniformLocation(getProgram(), "outputIndex");
+        }
+
+        void setTexture(final int index, final int texture) {
+            mTextures[index] = texture;
+        }
+
+        void setOutputIndex(final int outputIndex) {
+            mOutputIndex = outputIndex;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            for (int i = 0; i < mTextures.length; i++) {
+                GLState.activeTexture(GLES20.GL_TEXTURE0 + FIRST_EXTRA_UNIT + i);
+                GLState.bindTexture(GLES20.GL_TEXTURE_2D, mTextures[i]);
+                GLES20.glUniform1i(mTextureLocations[i], FIRST_EXTRA_UNIT + i);
+            }
+            GLState.activeTexture(GLES20.GL_TEXTURE0);
+            if (mOutputIndexLocation != -1) {
+                GLES20.glUniform1f(mOutputIndexLocation, mOutputIndex);
+            }
+        }
+    }
+
+    /**
+     * The horizontal statistics pass, reads the guide with texture coordinates of its own like a
+     * GPUImageTwoInputFilter.
+     */
+    private static class StatisticsPass extends Pass {
+        private FloatBuffer mGuideCoordinates;
+        private int mGuideCoordinateAttribute;
+
+        StatisticsPass() {
+            super(GPUImageTwoInputFilter.VERTEX_SHADER, STATISTICS_FRAGMENT_SHADER, "inputImageTexture2");
+            setGuideRotation(Rotation.NORMAL, false, false);
+        }
+
+        @Override
+        public void onInit() {
+            super.onInit();
+            mGuideCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(), "inputTextureCoordinate2");
+        }
+
+        void setGuideRotation(final Rotation rotation, final boolean flipHorizontal, final boolean flipVertical) {
+            float[] coordinates = TextureRotationUtil.getRotation(rotation, flipHorizontal, flipVertical);
+            FloatBuffer buffer = ByteBuffer.allocateDirect(coordinates.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            buffer.put(coordinates).position(0);
+            mGuideCoordinates = buffer;
+        }
+
+        @Override
+        protected void onDrawArraysPre() {
+            super.onDrawArraysPre();
+            GLState.enableVertexAttribArray(mGuideCoordinateAttribute);
+            mGuideCoordinates.position(0);
+            QuadBufferCache.vertexAttribPointer(mGuideCoordinateAttribute, mGuideCoordinates);
+        }
+    }
+}
@@ -2,12 +2,18 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
-public class GPUImageHalftoneFilter extends GPUImageFilter {
+/**
+ * Turns the image into black dots on white, one per cell, sized by the darkness of the cell.
+ * fractionalWidthOfAPixel: width of a cell relative to the image width, default 0.01
+ */
+public class GPUImageHalftoneFilter extends GPUImageCellFilter {
     public static final String HALFTONE_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
 
             "uniform sampler2D inputImageTexture;\n" +
 
+            "uniform highp vec2 cellSize;\n" +
+            "uniform highp vec2 gridSize;\n" +
             "uniform highp float fractionalWidthOfPixel;\n" +
             "uniform highp float aspectRatio;\n" +
 
@@ -15,12 +21,12 @@ public class GPUImageHalftoneFilter extends GPUImageFilter {
 
             "void main()\n" +
             "{\n" +
-            "  highp vec2 sampleDivisor = vec2(fractionalWidthOfPixel, fractionalWidthOfPixel / aspectRatio);\n" +
-            "  highp vec2 samplePos = textureCoordinate - mod(textureCoordinate, sampleDivisor) + 0.5 * sampleDivisor;\n" +
+            "  highp vec2 cell = floor(textureCoordinate / cellSize);\n" +
+            "  highp vec2 samplePos = (cell + 0.5) * cellSize;\n" +
             "  highp vec2 textureCoordinateToUse = vec2(textureCoordinate.x, (textureCoordinate.y * aspectRatio + 0.5 - 0.5 * aspectRatio));\n" +
             "  highp vec2 adjustedSamplePos = vec2(samplePos.x, (samplePos.y * aspectRatio + 0.5 - 0.5 * aspectRatio));\n" +
             "  highp float distanceFromSamplePoint = distance(adjustedSamplePos, textureCoordinateToUse);\n" +
-            "  lowp vec3 sampledColor = texture2D(inputImageTexture, samplePos).rgb;\n" +
+            "  lowp vec3 sampledColor = texture2D(inputImageTexture, (cell + 0.5) / gridSize).rgb;\n" +
             "  highp float dotScaling = 1.0 - dot(sampledColor, W);\n" +
             "  lowp float checkForPresenceWithinDot = 1.0 - step(distanceFromSamplePoint, (fractionalWidthOfPixel * 0.5) * dotScaling);\n" +
             "  gl_FragColor = vec4(vec3(checkForPresenceWithinDot), 1.0);\n" +
@@ -37,7 +43,7 @@ public class GPUImageHalftoneFilter extends GPUImageFilter {
     }
 
     public GPUImageHalftoneFilter(float fractionalWidthOfAPixel) {
-        super(NO_FILTER_VERTEX_SHADER, HALFTONE_FRAGMENT_SHADER);
+        super(HALFTONE_FRAGMENT_SHADER, true);
         mFractionalWidthOfAPixel = fractionalWidthOfAPixel;
     }
 
@@ -58,10 +64,18 @@ public class GPUImageHalftoneFilter extends GPUImageFilter {
     public void setFractionalWidthOfAPixel(final float fractionalWidthOfAPixel) {
         mFractionalWidthOfAPixel = fractionalWidthOfAPixel;
         setFloat(mFractionalWidthOfPixelLocation, mFractionalWidthOfAPixel);
+        updateCellSize();
     }
 
     public void setAspectRatio(final float aspectRatio) {
         mAspectRatio = aspectRatio;
         setFloat(mAspectRatioLocation, mAspectRatio);
+        updateCellSize();
+    }
+
+    private void updateCellSize() {
+        if (mAspectRatio > 0.0f) {
+            setCellSize(mFractionalWidthOfAPixel, mFractionalWidthOfAPixel / mAspectRatio);
+        }
     }
 }
@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageHardLightBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageHardLightBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String HARD_LIGHT_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -57,4 +60,9 @@ public class GPUImageHardLightBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageHardLightBlendFilter() {
         super(HARD_LIGHT_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.HARD_LIGHT.createKernel();
+    }
 }
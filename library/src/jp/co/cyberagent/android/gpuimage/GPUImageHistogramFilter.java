@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.PointF;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Passes the image through unchanged and measures its histogram on the way. Every stride-th
+ * pixel in both directions is drawn as a point into the bin of its value with additive
+ * blending, so only the small histogram target is read back. Each row of that target takes
+ * at most 255 points, which keeps the 8 bit counts exact. Devices without vertex texture
+ * fetch read back the downsampled image instead and bin it on the CPU.
+ * <p>
+ * The histogram can be smoothed over frames, handed to a listener and used to stretch the
+ * levels of a GPUImageLevelsFilter or GPUImageToneCurveFilter further down the chain. Results
+ * lag the image by one frame when the readback is asynchronous.
+ * mode: MODE_LUMINANCE, MODE_RGB or MODE_ALL
+ * stride: distance between sampled pixels, default 4
+ * smoothing: weight of the previous histogram, 0.0 (none) - 1.0 (frozen)
+ */
+public class GPUImageHistogramFilter extends GPUImageFilter {
+    public static final int MODE_LUMINANCE = 0;
+    public static final int MODE_RGB = 1;
+    public static final int MODE_ALL = 2;
+
+    public static final int RED = 0;
+    public static final int GREEN = 1;
+    public static final int BLUE = 2;
+    public static final int LUMINANCE = 3;
+
+    public static final int BINS = 256;
+
+    public static final String HISTOGRAM_VERTEX_SHADER = "" +
+            "attribute vec4 position;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform vec4 channelWeights;\n" +
+            "uniform float histogramRows;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 color = texture2DLod(inputImageTexture, position.xy, 0.0);\n" +
+            "    float bin = floor(dot(color, channelWeights) * 255.0 + 0.5);\n" +
+            "    gl_Position = vec4((bin + 0.5) / 128.0 - 1.0, (position.z + 0.5) / histogramRows * 2.0 - 1.0, 0.0, 1.0);\n" +
+            "    gl_PointSize = 1.0;\n" +
+            "}";
+
+    public static final String HISTOGRAM_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = vec4(1.0 / 255.0);\n" +
+            "}";
+
+    private static final int POINTS_PER_ROW = 255;
+    private static final int MAX_ROWS = 64;
+    private static final float[][] CHANNEL_WEIGHTS = {
+            {1.0f, 0.0f, 0.0f, 0.0f},
+            {0.0f, 1.0f, 0.0f, 0.0f},
+            {0.0f, 0.0f, 1.0f, 0.0f},
+            {0.2125f, 0.7154f, 0.0721f, 0.0f}
+    };
+
+    public interface OnHistogramListener {
+        /**
+         * Called on the GL thread.
+         *
+         * @param histogram RED, GREEN, BLUE and LUMINANCE bins as fractions of the sampled
+         *                  pixels, null for channels outside of the mode. Reused for the next
+         *                  frame.
+         */
+        void onHistogram(float[][] histogram);
+    }
+
+    private int mMode;
+    private int mStride;
+    private float mSmoothing;
+    private OnHistogramListener mListener;
+    private GPUImageLevelsFilter mLevelsTarget;
+    private GPUImageToneCurveFilter mToneCurveTarget;
+    private float mClip = 0.005f;
+    private float mToneCurveLow;
+    private float mToneCurveHigh;
+
+    private int mHistogramProgram;
+    private int mHistogramPosition;
+    private int mHistogramTexture;
+    private int mChannelWeightsLocation;
+    private int mHistogramRowsLocation;
+    private boolean mVertexTextureFetch;
+    private AsyncPixelReader mReader;
+
+    private final int[] mFrameBuffer = new int[1];
+    private final int[] mFrameBufferTexture = new int[1];
+    private final int[] mSampleBuffer = new int[1];
+    private int mFrameBufferWidth;
+    private int mFrameBufferHeight;
+    private int mSampleColumns;
+    private int mSampleRows;
+    private int mSampleStride;
+    private boolean mSamplesDirty = true;
+
+    private final float[][] mHistogram = new float[4][];
+    private final int[][] mCounts = new int[4][BINS];
+    private boolean mHasHistogram;
+
+    public GPUImageHistogramFilter() {
+        this(MODE_LUMINANCE);
+    }
+
+    public GPUImageHistogramFilter(final int mode) {
+        super(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
+        mStride = 4;
+        setMode(mode);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        int[] units = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_VERTEX_TEXTURE_IMAGE_UNITS, units, 0);
+        mVertexTextureFetch = units[0] > 0;
+        if (mVertexTextureFetch) {
+            mHistogramProgram = OpenGlUtils.loadProgram(HISTOGRAM_VERTEX_SHADER, HISTOGRAM_FRAGMENT_SHADER);
+            mHistogramPosition = GLES20.glGetAttribLocation(mHistogramProgram, "position");
+            mHistogramTexture = GLES20.glGetUniformLocation(mHistogramProgram, "inputImageTexture");
+            mChannelWeightsLocation = GLES20.glGetUniformLocation(mHistogramProgram, "channelWeights");
+            mHistogramRowsLocation = GLES20.glGetUniformLocation(mHistogramProgram, "histogramRows");
+            GLES20.glGenBuffers(1, mSampleBuffer, 0);
+        }
+        mReader = new AsyncPixelReader();
+        mSamplesDirty = true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        destroyFrameBuffer();
+        if (mVertexTextureFetch) {
+            GLState.deleteProgram(mHistogramProgram);
+            GPUImageResourceRegistry.deleteBuffers(1, mSampleBuffer, 0);
+            mSampleBuffer[0] = 0;
+        }
+        mReader.destroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mSamplesDirty = true;
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+        if (textureId != OpenGlUtils.NO_TEXTURE && getOutputWidth() > 0 && getOutputHeight() > 0) {
+            if (mSamplesDirty) {
+                updateSamples();
+                mSamplesDirty = false;
+            }
+            int[] previousFrameBuffer = new int[1];
+            int[] previousViewport = new int[4];
+            previousFrameBuffer[0] = GLState.getFrameBuffer();
+            GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, previousViewport, 0);
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffer[0]);
+            GLES20.glViewport(0, 0, mFrameBufferWidth, mFrameBufferHeight);
+
+            ByteBuffer pixels;
+            if (mVertexTextureFetch) {
+                drawHistogram(textureId);
+                pixels = mReader.read(mFrameBufferWidth, mFrameBufferHeight);
+                if (pixels != null) {
+                    countHistogram(pixels);
+                }
+            } else {
+                super.onDraw(textureId, cubeBuffer, textureBuffer);
+                pixels = mReader.read(mFrameBufferWidth, mFrameBufferHeight);
+                if (pixels != null) {
+                    countPixels(pixels);
+                }
+            }
+
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer[0]);
+            GLES20.glViewport(previousViewport[0], previousViewport[1], previousViewport[2], previousViewport[3]);
+            if (pixels != null) {
+                publishHistogram();
+            }
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    private void drawHistogram(final int textureId) {
+        GLState.useProgram(mHistogramProgram);
+        GLES20.glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glEnable(GLES20.GL_BLEND);
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(mHistogramTexture, 0);
+        GLES20.glUniform1f(mHistogramRowsLocation, mFrameBufferHeight);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mSampleBuffer[0]);
+        GLES20.glVertexAttribPointer(mHistogramPosition, 3, GLES20.GL_FLOAT, false, 0, 0);
+        GLState.enableVertexAttribArray(mHistogramPosition);
+
+        // Each channel counts into its own color component of the same bins
+        for (int channel = RED; channel <= LUMINANCE; channel++) {
+            if (mHistogram[channel] == null) {
+                continue;
+            }
+            GLES20.glColorMask(channel == RED, channel == GREEN, channel == BLUE, channel == LUMINANCE);
+            GLES20.glUniform4fv(mChannelWeightsLocation, 1, CHANNEL_WEIGHTS[channel], 0);
+            GLState.disableUnusedVertexAttribArrays();
+            GLES20.glDrawArrays(GLES20.GL_POINTS, 0, mSampleColumns * mSampleRows);
+        }
+
+        GLES20.glColorMask(true, true, true, true);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glDisable(GLES20.GL_BLEND);
+        GLState.useProgram(getProgram());
+    }
+
+    private void updateSamples() {
+        int width = getOutputWidth();
+        int height = getOutputHeight();
+        int stride = Math.max(1, mStride);
+        int capacity = mVertexTextureFetch ? POINTS_PER_ROW * MAX_ROWS : Integer.MAX_VALUE;
+        while (((width + stride - 1) / stride) * ((height + stride - 1) / stride) > capacity) {
+            stride++;
+        }
+        mSampleStride = stride;
+        mSampleColumns = (width + stride - 1) / stride;
+        mSampleRows = (height + stride - 1) / stride;
+
+        int frameBufferWidth;
+        int frameBufferHeight;
+        if (mVertexTextureFetch) {
+            int count = mSampleColumns * mSampleRows;
+            frameBufferWidth = BINS;
+            frameBufferHeight = (count + POINTS_PER_ROW - 1) / POINTS_PER_ROW;
+
+            FloatBuffer samples = ByteBuffer.allocateDirect(count * 3 * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            for (int i = 0; i < count; i++) {
+                int x = i % mSampleColumns;
+                int y = i / mSampleColumns;
+                samples.put(Math.min(x * stride + 0.5f, width - 0.5f) / width);
+                samples.put(Math.min(y * stride + 0.5f, height - 0.5f) / height);
+                samples.put(i / POINTS_PER_ROW);
+            }
+            samples.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mSampleBuffer[0]);
+            GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, count * 3 * 4, samples, GLES20.GL_STATIC_DRAW);
+            GPUImageResourceRegistry.bufferAllocated(mSampleBuffer[0], count * 3 * 4);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        } else {
+            frameBufferWidth = mSampleColumns;
+            frameBufferHeight = mSampleRows;
+        }
+
+        if (frameBufferWidth != mFrameBufferWidth || frameBufferHeight != mFrameBufferHeight) {
+            destroyFrameBuffer();
+            OpenGlUtils.createFrameBuffer(mFrameBuffer, mFrameBufferTexture, 0,
+                    frameBufferWidth, frameBufferHeight);
+            mFrameBufferWidth = frameBufferWidth;
+            mFrameBufferHeight = frameBufferHeight;
+        }
+        mHasHistogram = false;
+    }
+
+    private void destroyFrameBuffer() {
+        if (mFrameBuffer[0] != 0) {
+            GPUImageResourceRegistry.deleteTextures(1, mFrameBufferTexture, 0);
+            GPUImageResourceRegistry.deleteFrameBuffers(1, mFrameBuffer, 0);
+            mFrameBuffer[0] = 0;
+            mFrameBufferTexture[0] = 0;
+        }
+        mFrameBufferWidth = 0;
+        mFrameBufferHeight = 0;
+    }
+
+    private void countHistogram(final ByteBuffer pixels) {
+        for (int channel = RED; channel <= LUMINANCE; channel++) {
+            int[] counts = mCounts[channel];
+            for (int bin = 0; bin < BINS; bin++) {
+                counts[bin] = 0;
+            }
+            if (mHistogram[channel] == null) {
+                continue;
+            }
+            for (int row = 0; row < mFrameBufferHeight; row++) {
+                int offset = row * BINS * 4 + channel;
+                for (int bin = 0; bin < BINS; bin++) {
+                    counts[bin] += pixels.get(offset + bin * 4) & 0xff;
+                }
+            }
+        }
+    }
+
+    private void countPixels(final ByteBuffer pixels) {
+        for (int[] counts : mCounts) {
+            for (int bin = 0; bin < BINS; bin++) {
+                counts[bin] = 0;
+            }
+        }
+        int count = mFrameBufferWidth * mFrameBufferHeight;
+        for (int i = 0; i < count; i++) {
+            int red = pixels.get(i * 4) & 0xff;
+            int green = pixels.get(i * 4 + 1) & 0xff;
+            int blue = pixels.get(i * 4 + 2) & 0xff;
+            mCounts[RED][red]++;
+            mCounts[GREEN][green]++;
+            mCounts[BLUE][blue]++;
+            mCounts[LUMINANCE][Math.round(0.2125f * red + 0.7154f * green + 0.0721f * blue)]++;
+        }
+    }
+
+    private void publishHistogram() {
+        float total = mSampleColumns * mSampleRows;
+        float weight = mHasHistogram ? 1.0f - mSmoothing : 1.0f;
+        for (int channel = RED; channel <= LUMINANCE; channel++) {
+            float[] histogram = mHistogram[channel];
+            if (histogram == null) {
+                continue;
+            }
+            int[] counts = mCounts[channel];
+            for (int bin = 0; bin < BINS; bin++) {
+                histogram[bin] += (counts[bin] / total - histogram[bin]) * weight;
+            }
+        }
+        mHasHistogram = true;
+
+        if (mListener != null) {
+            mListener.onHistogram(mHistogram);
+        }
+        if (mLevelsTarget != null) {
+            applyLevels(mLevelsTarget);
+        }
+        if (mToneCurveTarget != null && mHistogram[LUMINANCE] != null) {
+            float low = findLevel(mHistogram[LUMINANCE], mClip);
+            float high = findLevel(mHistogram[LUMINANCE], 1.0f - mClip);
+            if (high > low && (low != mToneCurveLow || high != mToneCurveHigh)) {
+                mToneCurveLow = low;
+                mToneCurveHigh = high;
+                mToneCurveTarget.setRgbCompositeControlPoints(new PointF[] {
+                        new PointF(low, 0.0f), new PointF(high, 1.0f)});
+            }
+        }
+    }
+
+    private void applyLevels(final GPUImageLevelsFilter levels) {
+        if (mHistogram[RED] != null) {
+            float[] low = new float[3];
+            float[] high = new float[3];
+            for (int channel = RED; channel <= BLUE; channel++) {
+                low[channel] = findLevel(mHistogram[channel], mClip);
+                high[channel] = findLevel(mHistogram[channel], 1.0f - mClip);
+                if (high[channel] <= low[channel]) {
+                    return;
+                }
+            }
+            levels.setRedMin(low[RED], 1.0f, high[RED]);
+            levels.setGreenMin(low[GREEN], 1.0f, high[GREEN]);
+            levels.setBlueMin(low[BLUE], 1.0f, high[BLUE]);
+        } else {
+            float low = findLevel(mHistogram[LUMINANCE], mClip);
+            float high = findLevel(mHistogram[LUMINANCE], 1.0f - mClip);
+            if (high > low) {
+                levels.setMin(low, 1.0f, high);
+            }
+        }
+    }
+
+    /**
+     * @return the level, 0.0 - 1.0, below which the given fraction of the pixels lies
+     */
+    public static float findLevel(final float[] histogram, final float fraction) {
+        float sum = 0;
+        for (int bin = 0; bin < histogram.length; bin++) {
+            sum += histogram[bin];
+            if (sum > fraction) {
+                return bin / 255.0f;
+            }
+        }
+        return 1.0f;
+    }
+
+    /**
+     * @param mode MODE_LUMINANCE, MODE_RGB or MODE_ALL
+     */
+    public void setMode(final int mode) {
+        if (mode < MODE_LUMINANCE || mode > MODE_ALL) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        mMode = mode;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                boolean rgb = mode != MODE_LUMINANCE;
+                boolean luminance = mode != MODE_RGB;
+                mHistogram[RED] = rgb ? new float[BINS] : null;
+                mHistogram[GREEN] = rgb ? new float[BINS] : null;
+                mHistogram[BLUE] = rgb ? new float[BINS] : null;
+                mHistogram[LUMINANCE] = luminance ? new float[BINS] : null;
+                mHasHistogram = false;
+            }
+        });
+    }
+
+    public int getMode() {
+        return mMode;
+    }
+
+    /**
+     * @param stride distance between sampled pixels, default 4. Raised when the image has more
+     *               samples than the histogram target can count.
+     */
+    public void setStride(final int stride) {
+        mStride = stride;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mSamplesDirty = true;
+            }
+        });
+    }
+
+    /**
+     * @return the stride actually used for the current image size
+     */
+    public int getEffectiveStride() {
+        return mSampleStride;
+    }
+
+    /**
+     * @param smoothing weight of the previous histogram, 0.0 (default) follows every frame
+     */
+    public void setSmoothing(final float smoothing) {
+        mSmoothing = Math.min(Math.max(smoothing, 0.0f), 1.0f);
+    }
+
+    public void setOnHistogramListener(final OnHistogramListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Stretches the input levels of the given filter to the measured range. MODE_LUMINANCE sets
+     * all channels alike, the other modes each channel on its own.
+     */
+    public void setLevelsTarget(final GPUImageLevelsFilter levels) {
+        mLevelsTarget = levels;
+    }
+
+    /**
+     * Stretches the composite curve of the given filter to the measured luminance range.
+     * Needs MODE_LUMINANCE or MODE_ALL.
+     */
+    public void setToneCurveTarget(final GPUImageToneCurveFilter toneCurve) {
+        mToneCurveTarget = toneCurve;
+    }
+
+    /**
+     * @param clip fraction of the darkest and of the brightest pixels ignored when stretching,
+     *             default 0.005
+     */
+    public void setClip(final float clip) {
+        mClip = clip;
+    }
+}
@@ -0,0 +1,447 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Composites several overlay layers over the image, each with its own blend mode, opacity and
+ * transform. All layers that fit into the available texture units are blended in a single
+ * draw; with more layers the minimum number of passes is used. One program, built on init,
+ * blends any number of layers up to the layers per pass.
+ * <br>
+ * Layer coordinates are those of the second image of {@link GPUImageTwoInputFilter}: 0,0 is
+ * the top left and 1,1 the bottom right corner of the image. A layer's transform maps its
+ * coordinates to image coordinates, outside of the transformed layer the image is unchanged.
+ */
+public class GPUImageLayerCompositorFilter extends GPUImageFilter {
+    /**
+     * Upper bound of layers per pass, keeps the varyings (two layers per vec4) and uniforms
+     * within the OpenGL ES 2 minimums.
+     */
+    public static final int MAX_LAYERS_PER_PASS = 8;
+
+    public static class Layer {
+        private final Bitmap mBitmap;
+        private volatile GPUImageBlendFilter.Mode mMode;
+        private volatile float mOpacity;
+        private final float[] mInverseTransform = new float[]{1, 0, 0, 0, 1, 0, 0, 0, 1};
+        private int mTexture = OpenGlUtils.NO_TEXTURE;
+
+        public Layer(final Bitmap bitmap, final GPUImageBlendFilter.Mode mode) {
+            this(bitmap, mode, 1.0f, null);
+        }
+
+        /**
+         * @param bitmap the layer, must stay valid until it is uploaded on the first draw
+         * @param mode the blend mode
+         * @param opacity 0.0 (invisible) to 1.0
+         * @param transform maps layer coordinates to image coordinates, null for identity
+         */
+        public Layer(final Bitmap bitmap, final GPUImageBlendFilter.Mode mode, final float opacity,
+                     final Matrix transform) {
+            mBitmap = bitmap;
+            mMode = mode;
+            mOpacity = opacity;
+            setTransform(transform);
+        }
+
+        public void setMode(final GPUImageBlendFilter.Mode mode) {
+            mMode = mode;
+        }
+
+        public GPUImageBlendFilter.Mode getMode() {
+            return mMode;
+        }
+
+        public void setOpacity(final float opacity) {
+            mOpacity = opacity;
+        }
+
+        public float getOpacity() {
+            return mOpacity;
+        }
+
+        /**
+         * @param transform maps layer coordinates to image coordinates, null for identity
+         */
+        public void setTransform(final Matrix transform) {
+            Matrix inverse = new Matrix();
+            if (transform != null && !transform.invert(inverse)) {
+                // Degenerate, e.g. scaled to 0: move the layer out of the image
+                inverse.setValues(new float[]{0, 0, -1, 0, 0, -1, 0, 0, 1});
+            }
+            synchronized (mInverseTransform) {
+                inverse.getValues(mInverseTransform);
+            }
+        }
+
+        void getInverseTransform(final float[] x, final float[] y, final int index) {
+            synchronized (mInverseTransform) {
+                System.arraycopy(mInverseTransform, 0, x, index * 3, 3);
+                System.arraycopy(mInverseTransform, 3, y, index * 3, 3);
+            }
+        }
+    }
+
+    private final List<Layer> mLayers = new ArrayList<Layer>();
+    private final List<Layer> mDrawLayers = new ArrayList<Layer>();
+
+    private final FloatBuffer mGLCubeBuffer;
+    private final FloatBuffer mGLTextureBuffer;
+    private final FloatBuffer mGLLayerCoordinateBuffer;
+
+    private int mLayersPerPass;
+    private LayerProgram mLayerProgram;
+    private int[] mFrameBuffers;
+    private int[] mFrameBufferTextures;
+    private int mFrameBufferWidth;
+    private int mFrameBufferHeight;
+
+    private float[] mTransformX = new float[MAX_LAYERS_PER_PASS * 3];
+    private float[] mTransformY = new float[MAX_LAYERS_PER_PASS * 3];
+    private float[] mParameters = new float[MAX_LAYERS_PER_PASS * 2];
+
+    public GPUImageLayerCompositorFilter() {
+        super();
+        mGLCubeBuffer = createBuffer(CUBE);
+        mGLTextureBuffer = createBuffer(TextureRotationUtil.getRotation(Rotation.NORMAL, false, true));
+        mGLLayerCoordinateBuffer = createBuffer(TextureRotationUtil.TEXTURE_NO_ROTATION);
+    }
+
+    private static FloatBuffer createBuffer(final float[] values) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        buffer.put(values).position(0);
+        return buffer;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        int[] units = new int[1];
+        GLES20.glGetIntegerv(GLES20.GL_MAX_TEXTURE_IMAGE_UNITS, units, 0);
+        // One unit is taken by the image itself
+        mLayersPerPass = Math.max(1, Math.min(MAX_LAYERS_PER_PASS, units[0] - 1));
+        mLayerProgram = new LayerProgram(mLayersPerPass);
+        synchronized (mLayers) {
+            for (Layer layer : mLayers) {
+                layer.mTexture = OpenGlUtils.NO_TEXTURE;
+            }
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (mLayerProgram != null) {
+            GLState.deleteProgram(mLayerProgram.program);
+            mLayerProgram = null;
+        }
+        synchronized (mLayers) {
+            for (Layer layer : mLayers) {
+                deleteTexture(layer);
+            }
+        }
+        destroyFrameBuffers();
+    }
+
+    /**
+     * @return the number of layers blended in one draw, only known after init
+     */
+    public int getLayersPerPass() {
+        return mLayersPerPass;
+    }
+
+    public void addLayer(final Layer layer) {
+        synchronized (mLayers) {
+            mLayers.add(layer);
+        }
+    }
+
+    public void removeLayer(final Layer layer) {
+        synchronized (mLayers) {
+            mLayers.remove(layer);
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                deleteTexture(layer);
+            }
+        });
+    }
+
+    public List<Layer> getLayers() {
+        synchronized (mLayers) {
+            return new ArrayList<Layer>(mLayers);
+        }
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+        List<Layer> layers = mDrawLayers;
+        layers.clear();
+        synchronized (mLayers) {
+            layers.addAll(mLayers);
+        }
+        for (Layer layer : layers) {
+            if (layer.mTexture == OpenGlUtils.NO_TEXTURE && layer.mBitmap != null && !layer.mBitmap.isRecycled()) {
+                layer.mTexture = OpenGlUtils.loadTexture(layer.mBitmap, OpenGlUtils.NO_TEXTURE, false);
+            }
+        }
+        if (layers.isEmpty()) {
+            super.onDraw(textureId, cubeBuffer, textureBuffer);
+            return;
+        }
+
+        int passes = (layers.size() + mLayersPerPass - 1) / mLayersPerPass;
+        if (passes == 1) {
+            drawLayers(textureId, cubeBuffer, textureBuffer, layers, 0, layers.size());
+            return;
+        }
+
+        // The first pass applies the texture coordinates, the last one the vertices, so the
+        // passes in between and the layer coordinates all see the image the same way.
+        createFrameBuffers();
+        int previousFrameBuffer = GLState.getFrameBuffer();
+        int previousTexture = textureId;
+        for (int pass = 0; pass < passes; pass++) {
+            int start = pass * mLayersPerPass;
+            int end = Math.min(start + mLayersPerPass, layers.size());
+            boolean isLast = pass == passes - 1;
+            if (isLast) {
+                GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer);
+            } else {
+                GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBuffers[pass % 2]);
+                GLES20.glClearColor(0, 0, 0, 0);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            }
+            drawLayers(previousTexture,
+                    isLast ? cubeBuffer : mGLCubeBuffer,
+                    pass == 0 ? textureBuffer : mGLTextureBuffer,
+                    layers, start, end);
+            if (!isLast) {
+                previousTexture = mFrameBufferTextures[pass % 2];
+            }
+        }
+    }
+
+    private void drawLayers(final int textureId, final FloatBuffer cubeBuffer, final FloatBuffer textureBuffer,
+                            final List<Layer> layers, final int start, final int end) {
+        int count = end - start;
+        LayerProgram program = mLayerProgram;
+        GLState.useProgram(program.program);
+
+        for (int i = 0; i < count; i++) {
+            Layer layer = layers.get(start + i);
+            layer.getInverseTransform(mTransformX, mTransformY, i);
+            mParameters[i * 2] = layer.mMode.ordinal();
+            mParameters[i * 2 + 1] = layer.mTexture == OpenGlUtils.NO_TEXTURE ? 0.0f : layer.mOpacity;
+            GLState.activeTexture(GLES20.GL_TEXTURE1 + i);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, layer.mTexture == OpenGlUtils.NO_TEXTURE ? 0 : layer.mTexture);
+            GLES20.glUniform1i(program.layerTextures[i], i + 1);
+        }
+        GLES20.glUniform3fv(program.transformX, count, mTransformX, 0);
+        GLES20.glUniform3fv(program.transformY, count, mTransformY, 0);
+        GLES20.glUniform2fv(program.parameters, count, mParameters, 0);
+        GLES20.glUniform1f(program.layerCount, count);
+
+        cubeBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(program.position, cubeBuffer);
+        GLState.enableVertexAttribArray(program.position);
+        textureBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(program.textureCoordinate, textureBuffer);
+        GLState.enableVertexAttribArray(program.textureCoordinate);
+        mGLLayerCoordinateBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(program.layerCoordinate, mGLLayerCoordinateBuffer);
+        GLState.enableVertexAttribArray(program.layerCoordinate);
+
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(program.inputTexture, 0);
+
+        GLState.disableUnusedVertexAttribArrays();
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    }
+
+    private void createFrameBuffers() {
+        if (mFrameBuffers != null && mFrameBufferWidth == mOutputWidth && mFrameBufferHeight == mOutputHeight) {
+            return;
+        }
+        destroyFrameBuffers();
+        mFrameBuffers = new int[2];
+        mFrameBufferTextures = new int[2];
+        for (int i = 0; i < 2; i++) {
+            OpenGlUtils.createFrameBuffer(mFrameBuffers, mFrameBufferTextures, i, mOutputWidth, mOutputHeight);
+        }
+        mFrameBufferWidth = mOutputWidth;
+        mFrameBufferHeight = mOutputHeight;
+    }
+
+    private void destroyFrameBuffers() {
+        if (mFrameBufferTextures != null) {
+            GPUImageResourceRegistry.deleteTextures(2, mFrameBufferTextures, 0);
+            mFrameBufferTextures = null;
+        }
+        if (mFrameBuffers != null) {
+            GPUImageResourceRegistry.deleteFrameBuffers(2, mFrameBuffers, 0);
+            mFrameBuffers = null;
+        }
+    }
+
+    private static void deleteTexture(final Layer layer) {
+        if (layer.mTexture != OpenGlUtils.NO_TEXTURE) {
+            GPUImageResourceRegistry.deleteTextures(1, new int[]{layer.mTexture}, 0);
+            layer.mTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    static String createVertexShader(final int count) {
+        StringBuilder shader = new StringBuilder();
+        shader.append("attribute vec4 position;\n")
+                .append("attribute vec4 inputTextureCoordinate;\n")
+                .append("attribute vec4 inputLayerCoordinate;\n")
+                .append("\n")
+                .append("uniform vec3 layerTransformX[").append(count).append("];\n")
+                .append("uniform vec3 layerTransformY[").append(count).append("];\n")
+                .append("\n")
+                .append("varying vec2 textureCoordinate;\n");
+        for (int i = 0; i < count; i += 2) {
+            shader.append("varying vec4 layerCoordinate").append(i / 2).append(";\n");
+        }
+        shader.append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    gl_Position = position;\n")
+                .append("    textureCoordinate = inputTextureCoordinate.xy;\n")
+                .append("    vec3 coordinate = vec3(inputLayerCoordinate.xy, 1.0);\n");
+        for (int i = 0; i < count; i++) {
+            shader.append("    layerCoordinate").append(i / 2).append(i % 2 == 0 ? ".xy" : ".zw")
+                    .append(" = vec2(dot(layerTransformX[").append(i).append("], coordinate), dot(layerTransformY[")
+                    .append(i).append("], coordinate));\n");
+        }
+        if (count % 2 == 1) {
+            shader.append("    layerCoordinate").append(count / 2).append(".zw = vec2(0.0);\n");
+        }
+        shader.append("}");
+        return shader.toString();
+    }
+
+    /**
+     * Blends up to count layers, as many as the layerCount uniform says. The layers are sampled
+     * first, then blended in a loop, so the blend function has a single call site whatever
+     * the number of layers. The blend function runs in highp where the GPU supports it in
+     * fragment shaders and in mediump otherwise.
+     */
+    static String createFragmentShader(final int count) {
+        StringBuilder shader = new StringBuilder();
+        shader.append("#ifdef GL_FRAGMENT_PRECISION_HIGH\n")
+                .append("precision highp float;\n")
+                .append("#else\n")
+                .append("precision mediump float;\n")
+                .append("#endif\n")
+                .append("varying vec2 textureCoordinate;\n");
+        for (int i = 0; i < count; i += 2) {
+            shader.append("varying vec4 layerCoordinate").append(i / 2).append(";\n");
+        }
+        shader.append("\n")
+                .append("uniform sampler2D inputImageTexture;\n");
+        for (int i = 0; i < count; i++) {
+            shader.append("uniform sampler2D layerTexture").append(i).append(";\n");
+        }
+        // Blend mode and opacity per layer, packed to stay within 16 uniform vectors
+        shader.append("uniform vec2 layerParameters[").append(count).append("];\n")
+                .append("uniform float layerCount;\n")
+                .append("\n")
+                .append(GPUImageBlendFilter.createBlendFunction())
+                .append("\n")
+                .append("void main()\n")
+                .append("{\n")
+                .append("    vec4 color = texture2D(inputImageTexture, textureCoordinate);\n")
+                .append("    vec2 coordinates[").append(count).append("];\n")
+                .append("    vec4 overlays[").append(count).append("];\n");
+        for (int i = 0; i < count; i++) {
+            shader.append("    coordinates[").append(i).append("] = layerCoordinate").append(i / 2)
+                    .append(i % 2 == 0 ? ".xy" : ".zw").append(";\n")
+                    .append("    if (layerCount > ").append(i).append(".5) {\n")
+                    .append("        overlays[").append(i).append("] = texture2D(layerTexture").append(i)
+                    .append(", coordinates[").append(i).append("]);\n")
+                    .append("    }\n");
+        }
+        shader.append("    for (int i = 0; i < ").append(count).append("; i++) {\n")
+                .append("        if (float(i) >= layerCount) {\n")
+                .append("            break;\n")
+                .append("        }\n")
+                .append("        vec2 inside = step(vec2(0.0), coordinates[i]) * step(coordinates[i], vec2(1.0));\n")
+                .append("        float weight = layerParameters[i].y * inside.x * inside.y;\n")
+                .append("        if (weight > 0.0) {\n")
+                .append("            color = mix(color, blend(color, overlays[i], layerParameters[i].x), weight);\n")
+                .append("        }\n")
+                .append("    }\n")
+                .append("    gl_FragColor = color;\n")
+                .append("}");
+        return shader.toString();
+    }
+
+    private static class LayerProgram {
+        final int program;
+        final int position;
+        final int textureCoordinate;
+        final int layerCoordinate;
+        final int inputTexture;
+        final int[] layerTextures;
+        final int transformX;
+        final int transformY;
+        final int parameters;
+        final int layerCount;
+
+        LayerProgram(final int count) {
+            program = OpenGlUtils.loadProgram(createVertexShader(count), createFragmentShader(count));
+            position = GLES20.glGetAttribLocation(program, "position");
+            textureCoordinate = GLES20.glGetAttribLocation(program, "inputTextureCoordinate");
+            layerCoordinate = GLES20.glGetAttribLocation(program, "inputLayerCoordinate");
+            inputTexture = GLES20.glGetUniformLocation(program, "inputImageTexture");
+            layerTextures = new int[count];
+            for (int i = 0; i < count; i++) {
+                layerTextures[i] = GLES20.glGetUniformLocation(program, "layerTexture" + i);
+            }
+            transformX = GLES20.glGetUniformLocation(program, "layerTransformX");
+            transformY = GLES20.glGetUniformLocation(program, "layerTransformY");
+            parameters = GLES20.glGetUniformLocation(program, "layerParameters");
+            layerCount = GLES20.glGetUniformLocation(program, "layerCount");
+        }
+    }
+}
@@ -3,10 +3,13 @@ package jp.co.cyberagent.android.gpuimage;
 import android.opengl.GLES20;
 import android.util.Log;
 
+import jp.co.cyberagent.android.gpuimage.cpu.CpuKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.LevelsKernel;
+
 /**
  * Created by vashisthg 30/05/14.
  */
-public class GPUImageLevelsFilter extends GPUImageFilter{
+public class GPUImageLevelsFilter extends GPUImageFilter implements GPUImageCpuFilter {
 
     private static final String LOGTAG = GPUImageLevelsFilter.class.getSimpleName();
 
@@ -127,4 +130,9 @@ public class GPUImageLevelsFilter extends GPUImageFilter{
     public void setBlueMin(float min, float mid , float max ){
         setBlueMin(min, mid, max, 0, 1);
     }
+
+    @Override
+    public CpuKernel getCpuKernel() {
+        return new LevelsKernel(mMin, mMid, mMax, mMinOutput, mMaxOutput);
+    }
 }
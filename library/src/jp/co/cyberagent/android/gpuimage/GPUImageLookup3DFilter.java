@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+import jp.co.cyberagent.android.gpuimage.util.LookupTable3D;
+
+/**
+ * Applies a 3D color lookup table of any size up to 65, e.g. loaded from a .cube file or a
+ * Hald CLUT image with {@link LookupTable3D}.
+ * <br>
+ * On OpenGL ES 3 the table is uploaded as a 3D texture, on OpenGL ES 2 it is packed into a
+ * 2D atlas of slices.
+ * <br>
+ * interpolation: {@link #INTERPOLATION_TRILINEAR} (default) or {@link #INTERPOLATION_TETRAHEDRAL},
+ * which needs four samples but keeps neutral colors neutral
+ * intensity: 0.0 to 1.0, with 1.0 as the default
+ */
+public class GPUImageLookup3DFilter extends GPUImageFilter {
+    public static final int INTERPOLATION_TRILINEAR = 0;
+    public static final int INTERPOLATION_TETRAHEDRAL = 1;
+
+    /**
+     * Expects the lutSize uniform and a lookup(vec3 index) function returning the entry at a
+     * whole index, declares tetrahedral(base, fraction).
+     */
+    private static final String TETRAHEDRAL_FUNCTION = "" +
+            "highp vec3 tetrahedral(highp vec3 base, highp vec3 f)\n" +
+            "{\n" +
+            "    // Order the fractions, ties are broken consistently so exactly one axis is first and one is last\n" +
+            "    highp float xy = step(f.y, f.x);\n" +
+            "    highp float yz = step(f.z, f.y);\n" +
+            "    highp float xz = step(f.z, f.x);\n" +
+            "    highp vec3 first = vec3(xy * xz, (1.0 - xy) * yz, (1.0 - xz) * (1.0 - yz));\n" +
+            "    highp vec3 last = vec3((1.0 - xy) * (1.0 - xz), xy * (1.0 - yz), yz * xz);\n" +
+            "    highp vec3 second = vec3(1.0) - first - last;\n" +
+            "    highp float f1 = dot(f, first);\n" +
+            "    highp float f2 = dot(f, second);\n" +
+            "    highp float f3 = dot(f, last);\n" +
+            "    highp vec3 top = vec3(lutSize - 1.0);\n" +
+            "    return (1.0 - f1) * lookup(base)\n" +
+            "            + (f1 - f2) * lookup(min(base + first, top))\n" +
+            "            + (f2 - f3) * lookup(min(base + first + second, top))\n" +
+            "            + f3 * lookup(min(base + 1.0, top));\n" +
+            "}\n";
+
+    public static final String LOOKUP_ATLAS_FRAGMENT_SHADER = "" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D lookupTexture;\n" +
+            "\n" +
+            "uniform highp float lutSize;\n" +
+            "uniform highp float atlasColumns;\n" +
+            "uniform highp vec2 atlasSize;\n" +
+            "uniform lowp float tetrahedralInterpolation;\n" +
+            "uniform lowp float intensity;\n" +
+            "\n" +
+            "// index.rg may be fractional, index.b must be a whole slice\n" +
+            "highp vec3 lookup(highp vec3 index)\n" +
+            "{\n" +
+            "    highp float row = floor((index.b + 0.5) / atlasColumns);\n" +
+            "    highp float column = index.b - row * atlasColumns;\n" +
+            "    highp vec2 coordinate = (vec2(column, row) * lutSize + index.rg + 0.5) / atlasSize;\n" +
+            "    return texture2D(lookupTexture, coordinate).rgb;\n" +
+            "}\n" +
+            "\n" +
+            TETRAHEDRAL_FUNCTION +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    highp vec4 textureColor = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    highp vec3 position = clamp(textureColor.rgb, 0.0, 1.0) * (lutSize - 1.0);\n" +
+            "    highp vec3 base = floor(position);\n" +
+            "    highp vec3 f = position - base;\n" +
+            "    highp vec3 newColor;\n" +
+            "    if (tetrahedralInterpolation > 0.5) {\n" +
+            "        newColor = tetrahedral(base, f);\n" +
+            "    } else {\n" +
+            "        highp vec3 lower = lookup(vec3(position.rg, base.b));\n" +
+            "        highp vec3 upper = lookup(vec3(position.rg, min(base.b + 1.0, lutSize - 1.0)));\n" +
+            "        newColor = mix(lower, upper, f.b);\n" +
+            "    }\n" +
+            "    gl_FragColor = mix(textureColor, vec4(newColor, textureColor.w), intensity);\n" +
+            "}";
+
+    public static final String LOOKUP_3D_VERTEX_SHADER = "" +
+            "#version 300 es\n" +
+            "in vec4 position;\n" +
+            "in vec4 inputTextureCoordinate;\n" +
+            " \n" +
+            "out vec2 textureCoordinate;\n" +
+            " \n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = position;\n" +
+            "    textureCoordinate = inputTextureCoordinate.xy;\n" +
+            "}";
+
+    public static final String LOOKUP_3D_FRAGMENT_SHADER = "" +
+            "#version 300 es\n" +
+            "precision highp float;\n" +
+            "precision highp sampler3D;\n" +
+            "\n" +
+            "in vec2 textureCoordinate;\n" +
+            "out vec4 fragColor;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler3D lookupTexture;\n" +
+            "\n" +
+            "uniform float lutSize;\n" +
+            "uniform float tetrahedralInterpolation;\n" +
+            "uniform float intensity;\n" +
+            "\n" +
+            "vec3 lookup(vec3 index)\n" +
+            "{\n" +
+            "    return texture(lookupTexture, (index + 0.5) / lutSize).rgb;\n" +
+            "}\n" +
+            "\n" +
+            TETRAHEDRAL_FUNCTION +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 textureColor = texture(inputImageTexture, textureCoordinate);\n" +
+            "    vec3 position = clamp(textureColor.rgb, 0.0, 1.0) * (lutSize - 1.0);\n" +
+            "    vec3 newColor;\n" +
+            "    if (tetrahedralInterpolation > 0.5) {\n" +
+            "        vec3 base = floor(position);\n" +
+            "        newColor = tetrahedral(base, position - base);\n" +
+            "    } else {\n" +
+            "        newColor = lookup(position);\n" +
+            "    }\n" +
+            "    fragColor = mix(textureColor, vec4(newColor, textureColor.w), intensity);\n" +
+            "}";
+
+    private int mLookupTextureLocation;
+    private int mLutSizeLocation;
+    private int mAtlasColumnsLocation;
+    private int mAtlasSizeLocation;
+    private int mInterpolationLocation;
+    private int mIntensityLocation;
+
+    private boolean mUse3DTexture;
+    private int mLookupTexture = OpenGlUtils.NO_TEXTURE;
+    private LookupTable3D mLookupTable;
+    private int mInterpolation;
+    private float mIntensity;
+
+    public GPUImageLookup3DFilter() {
+        this(null);
+    }
+
+    public GPUImageLookup3DFilter(final LookupTable3D lookupTable) {
+        this(lookupTable, INTERPOLATION_TRILINEAR, 1.0f);
+    }
+
+    public GPUImageLookup3DFilter(final LookupTable3D lookupTable, final int interpolation, final float intensity) {
+        super(NO_FILTER_VERTEX_SHADER, LOOKUP_ATLAS_FRAGMENT_SHADER);
+        mLookupTable = lookupTable;
+        mInterpolation = interpolation;
+        mIntensity = intensity;
+    }
+
+    @Override
+    public void onInit() {
+        mUse3DTexture = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && OpenGlUtils.getGLESMajorVersion() >= 3;
+        if (mUse3DTexture) {
+            mGLProgId = OpenGlUtils.loadProgram(LOOKUP_3D_VERTEX_SHADER, LOOKUP_3D_FRAGMENT_SHADER);
+            mGLAttribPosition = GLES20.glGetAttribLocation(mGLProgId, "position");
+            mGLUniformTexture = GLES20.glGetUniformLocation(mGLProgId, "inputImageTexture");
+            mGLAttribTextureCoordinate = GLES20.glGetAttribLocation(mGLProgId, "inputTextureCoordinate");
+        } else {
+            super.onInit();
+        }
+        mLookupTextureLocation = GLES20.glGetUniformLocation(getProgram(), "lookupTexture");
+        mLutSizeLocation = GLES20.glGetUniformLocation(getProgram(), "lutSize");
+        mAtlasColumnsLocation = GLES20.glGetUniformLocation(getProgram(), "atlasColumns");
+        mAtlasSizeLocation = GLES20.glGetUniformLocation(getProgram(), "atlasSize");
+        mInterpolationLocation = GLES20.glGetUniformLocation(getProgram(), "tetrahedralInterpolation");
+        mIntensityLocation = GLES20.glGetUniformLocation(getProgram(), "intensity");
+        mLookupTexture = OpenGlUtils.NO_TEXTURE;
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setLookupTable(mLookupTable);
+        setInterpolation(mInterpolation);
+        setIntensity(mIntensity);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        deleteLookupTexture();
+    }
+
+    /**
+     * @return true if the table is sampled from a 3D texture, only known after init
+     */
+    public boolean isUsing3DTexture() {
+        return mUse3DTexture;
+    }
+
+    public void setLookupTable(final LookupTable3D lookupTable) {
+        mLookupTable = lookupTable;
+        if (lookupTable == null) {
+            return;
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (lookupTable != mLookupTable) {
+                    // Replaced again before it was uploaded
+                    return;
+                }
+                uploadLookupTable(lookupTable);
+            }
+        });
+    }
+
+    /**
+     * Loads the table from a Hald CLUT image, e.g. one of level 8 (512 x 512, table size 64).
+     */
+    public void setHaldImage(final Bitmap haldImage) {
+        int width = haldImage.getWidth();
+        int[] pixels = new int[width * haldImage.getHeight()];
+        haldImage.getPixels(pixels, 0, width, 0, 0, width, haldImage.getHeight());
+        setLookupTable(LookupTable3D.fromHaldPixels(pixels, width));
+    }
+
+    public LookupTable3D getLookupTable() {
+        return mLookupTable;
+    }
+
+    public void setInterpolation(final int interpolation) {
+        mInterpolation = interpolation;
+        setFloat(mInterpolationLocation, interpolation == INTERPOLATION_TETRAHEDRAL ? 1.0f : 0.0f);
+    }
+
+    public void setIntensity(final float intensity) {
+        mIntensity = intensity;
+        setFloat(mIntensityLocation, mIntensity);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        if (mLookupTexture == OpenGlUtils.NO_TEXTURE) {
+            return;
+        }
+        GLState.activeTexture(GLES20.GL_TEXTURE3);
+        if (mUse3DTexture) {
+            GLState.bindTexture(GLES30.GL_TEXTURE_3D, mLookupTexture);
+        } else {
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, mLookupTexture);
+        }
+        GLES20.glUniform1i(mLookupTextureLocation, 3);
+    }
+
+    private void uploadLookupTable(final LookupTable3D lookupTable) {
+        deleteLookupTexture();
+        int size = lookupTable.getSize();
+        int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        mLookupTexture = textures[0];
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        if (mUse3DTexture) {
+            upload3DTexture(lookupTable);
+        } else {
+            int columns = (int) Math.ceil(Math.sqrt(size));
+            int rows = (size + columns - 1) / columns;
+            int width = columns * size;
+            int height = rows * size;
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, mLookupTexture);
+            setTextureParameters(GLES20.GL_TEXTURE_2D);
+            GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, width, height, 0,
+                    GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, createAtlas(lookupTable, columns, width, height));
+            GPUImageResourceRegistry.textureAllocated(mLookupTexture, width, height, GLES20.GL_RGB);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+            GLES20.glUniform1f(mAtlasColumnsLocation, columns);
+            GLES20.glUniform2f(mAtlasSizeLocation, width, height);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLES20.glUniform1f(mLutSizeLocation, size);
+    }
+
+    @TargetApi(18)
+    private void upload3DTexture(final LookupTable3D lookupTable) {
+        int size = lookupTable.getSize();
+        GLState.bindTexture(GLES30.GL_TEXTURE_3D, mLookupTexture);
+        setTextureParameters(GLES30.GL_TEXTURE_3D);
+        GLES20.glTexParameteri(GLES30.GL_TEXTURE_3D, GLES30.GL_TEXTURE_WRAP_R, GLES20.GL_CLAMP_TO_EDGE);
+        GLES30.glTexImage3D(GLES30.GL_TEXTURE_3D, 0, GLES30.GL_RGB8, size, size, size, 0,
+                GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(lookupTable.getData()));
+        // Accounted as the size x size^2 image holding the same texels
+        GPUImageResourceRegistry.textureAllocated(mLookupTexture, size, size * size, GLES20.GL_RGB);
+        GLState.bindTexture(GLES30.GL_TEXTURE_3D, 0);
+    }
+
+    /**
+     * Lays the blue slices out left to right, top to bottom, in a grid that stays close to square
+     * so a 65 table fits into 585 x 520 instead of 4225 x 65.
+     */
+    private static ByteBuffer createAtlas(final LookupTable3D lookupTable, final int columns,
+                                          final int width, final int height) {
+        int size = lookupTable.getSize();
+        byte[] data = lookupTable.getData();
+        byte[] atlas = new byte[width * height * 3];
+        int rowBytes = size * 3;
+        for (int b = 0; b < size; b++) {
+            int x = (b % columns) * size;
+            int y = (b / columns) * size;
+            for (int g = 0; g < size; g++) {
+                System.arraycopy(data, (b * size + g) * rowBytes, atlas, ((y + g) * width + x) * 3, rowBytes);
+            }
+        }
+        return ByteBuffer.wrap(atlas);
+    }
+
+    private static void setTextureParameters(final int target) {
+        // Linear filtering serves both modes, tetrahedral interpolation samples exact texel centers
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(target, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+    }
+
+    private void deleteLookupTexture() {
+        if (mLookupTexture != OpenGlUtils.NO_TEXTURE) {
+            GPUImageResourceRegistry.deleteTextures(1, new int[]{mLookupTexture}, 0);
+            mLookupTexture = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+/**
+ * Sobel edge detection that converts each of the sampled pixels to luminance itself, so no
+ * separate grayscale pass and intermediate texture are needed.
+ * output: OUTPUT_MAGNITUDE, OUTPUT_THRESHOLD or OUTPUT_DIRECTION (magnitude in red, the
+ * rounded gradient direction in green and blue)
+ * inverted: draws dark edges on white, applied before the threshold
+ * threshold: cut off for OUTPUT_THRESHOLD, 0.0 - 1.0
+ */
+public class GPUImageLuminanceEdgeFilter extends GPUImage3x3TextureSamplingFilter {
+    public static final int OUTPUT_MAGNITUDE = 0;
+    public static final int OUTPUT_THRESHOLD = 1;
+    public static final int OUTPUT_DIRECTION = 2;
+
+    public static final String LUMINANCE_EDGE_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "varying vec2 leftTextureCoordinate;\n" +
+            "varying vec2 rightTextureCoordinate;\n" +
+            "\n" +
+            "varying vec2 topTextureCoordinate;\n" +
+            "varying vec2 topLeftTextureCoordinate;\n" +
+            "varying vec2 topRightTextureCoordinate;\n" +
+            "\n" +
+            "varying vec2 bottomTextureCoordinate;\n" +
+            "varying vec2 bottomLeftTextureCoordinate;\n" +
+            "varying vec2 bottomRightTextureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform float outputMode;\n" +
+            "uniform float inverted;\n" +
+            "uniform float threshold;\n" +
+            "\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    float bottomLeftIntensity = dot(texture2D(inputImageTexture, bottomLeftTextureCoordinate).rgb, W);\n" +
+            "    float topRightIntensity = dot(texture2D(inputImageTexture, topRightTextureCoordinate).rgb, W);\n" +
+            "    float topLeftIntensity = dot(texture2D(inputImageTexture, topLeftTextureCoordinate).rgb, W);\n" +
+            "    float bottomRightIntensity = dot(texture2D(inputImageTexture, bottomRightTextureCoordinate).rgb, W);\n" +
+            "    float leftIntensity = dot(texture2D(inputImageTexture, leftTextureCoordinate).rgb, W);\n" +
+            "    float rightIntensity = dot(texture2D(inputImageTexture, rightTextureCoordinate).rgb, W);\n" +
+            "    float bottomIntensity = dot(texture2D(inputImageTexture, bottomTextureCoordinate).rgb, W);\n" +
+            "    float topIntensity = dot(texture2D(inputImageTexture, topTextureCoordinate).rgb, W);\n" +
+            "\n" +
+            "    vec2 gradientDirection;\n" +
+            "    gradientDirection.x = -bottomLeftIntensity - 2.0 * leftIntensity - topLeftIntensity + bottomRightIntensity + 2.0 * rightIntensity + topRightIntensity;\n" +
+            "    gradientDirection.y = -topLeftIntensity - 2.0 * topIntensity - topRightIntensity + bottomLeftIntensity + 2.0 * bottomIntensity + bottomRightIntensity;\n" +
+            "\n" +
+            "    float mag = length(gradientDirection);\n" +
+            "    mag = mix(mag, 1.0 - mag, inverted);\n" +
+            "\n" +
+            "    if (outputMode < 0.5) {\n" +
+            "        gl_FragColor = vec4(vec3(mag), 1.0);\n" +
+            "    } else if (outputMode < 1.5) {\n" +
+            "        gl_FragColor = vec4(vec3(step(threshold, mag)), 1.0);\n" +
+            "    } else {\n" +
+            "        vec2 normalizedDirection = normalize(gradientDirection);\n" +
+            "        normalizedDirection = sign(normalizedDirection) * floor(abs(normalizedDirection) + 0.617316);\n" +
+            "        normalizedDirection = (normalizedDirection + 1.0) * 0.5;\n" +
+            "        gl_FragColor = vec4(mag, normalizedDirection.x, normalizedDirection.y, 1.0);\n" +
+            "    }\n" +
+            "}";
+
+    private int mOutputModeLocation;
+    private int mInvertedLocation;
+    private int mThresholdLocation;
+    private int mOutput;
+    private boolean mInverted;
+    private float mThreshold;
+
+    public GPUImageLuminanceEdgeFilter() {
+        this(OUTPUT_MAGNITUDE, false, 0.5f);
+    }
+
+    public GPUImageLuminanceEdgeFilter(final int output, final boolean inverted, final float threshold) {
+        super(LUMINANCE_EDGE_FRAGMENT_SHADER);
+        mOutput = output;
+        mInverted = inverted;
+        mThreshold = threshold;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mOutputModeLocation = GLES20.glGetUniformLocation(getProgram(), "outputMode");
+        mInvertedLocation = GLES20.glGetUniformLocation(getProgram(), "inverted");
+        mThresholdLocation = GLES20.glGetUniformLocation(getProgram(), "threshold");
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        setOutput(mOutput);
+        setInverted(mInverted);
+        setThreshold(mThreshold);
+    }
+
+    /**
+     * @param output OUTPUT_MAGNITUDE, OUTPUT_THRESHOLD or OUTPUT_DIRECTION
+     */
+    public void setOutput(final int output) {
+        if (output < OUTPUT_MAGNITUDE || output > OUTPUT_DIRECTION) {
+            throw new IllegalArgumentException("Unknown output " + output);
+        }
+        mOutput = output;
+        setFloat(mOutputModeLocation, output);
+    }
+
+    public int getOutput() {
+        return mOutput;
+    }
+
+    public void setInverted(final boolean inverted) {
+        mInverted = inverted;
+        setFloat(mInvertedLocation, inverted ? 1.0f : 0.0f);
+    }
+
+    public void setThreshold(final float threshold) {
+        mThreshold = threshold;
+        setFloat(mThresholdLocation, threshold);
+    }
+}
@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageLuminosityBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageLuminosityBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String LUMINOSITY_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             " \n" +
@@ -63,4 +66,9 @@ public class GPUImageLuminosityBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageLuminosityBlendFilter() {
         super(LUMINOSITY_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.LUMINOSITY.createKernel();
+    }
 }
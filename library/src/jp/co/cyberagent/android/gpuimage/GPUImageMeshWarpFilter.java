@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Base for geometric distortions that are evaluated per vertex of a grid instead of per
+ * fragment. The grid is kept in a vertex buffer and the warped texture coordinate is
+ * interpolated by the rasterizer, so the fragment shader does a single non-dependent read.
+ * <p>
+ * Subclasses supply a GLSL function {@code vec2 warp(vec2 coordinate)} together with the
+ * uniforms it uses, the texture space bounds outside of which the warp is the identity and an
+ * estimate of its curvature. Grid lines are only added inside those bounds, spaced so that the
+ * interpolation error stays below about half a pixel.
+ */
+public abstract class GPUImageMeshWarpFilter extends GPUImageFilter {
+    public static final int MAX_SEGMENTS = 128;
+
+    private static final String MESH_VERTEX_SHADER_HEADER = "" +
+            "attribute vec4 inputTextureCoordinate;\n" +
+            "\n" +
+            "uniform mat3 textureToPosition;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n";
+
+    private static final String MESH_VERTEX_SHADER_MAIN = "" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_Position = vec4((textureToPosition * vec3(inputTextureCoordinate.xy, 1.0)).xy, 0.0, 1.0);\n" +
+            "    textureCoordinate = warp(inputTextureCoordinate.xy);\n" +
+            "}";
+
+    private static final float TOLERANCE_PIXELS = 0.5f;
+
+    private int mTextureToPositionLocation;
+    private final int[] mBuffers = new int[2];
+    private int mIndexCount;
+    private boolean mMeshDirty = true;
+
+    private final float[] mCube = new float[8];
+    private final float[] mTexture = new float[8];
+    private final float[] mTextureToPosition = new float[9];
+    private final float[] mTextureBounds = new float[4];
+    private final float[] mWarpBounds = new float[4];
+
+    public GPUImageMeshWarpFilter(final String warpFunction) {
+        this(warpFunction, NO_FILTER_FRAGMENT_SHADER);
+    }
+
+    /**
+     * @param warpFunction uniforms and the {@code vec2 warp(vec2 coordinate)} function
+     * @param fragmentShader reads inputImageTexture at textureCoordinate
+     */
+    public GPUImageMeshWarpFilter(final String warpFunction, final String fragmentShader) {
+        super(MESH_VERTEX_SHADER_HEADER + warpFunction + MESH_VERTEX_SHADER_MAIN, fragmentShader);
+    }
+
+    /**
+     * Fills left, top, right and bottom of the texture space area that the warp moves.
+     * An empty area leaves the image untouched.
+     */
+    protected abstract void getWarpBounds(float[] bounds);
+
+    /**
+     * @return an upper bound of the second derivative of the warp in texture units, 0 only if
+     * the warp is the identity, which is then drawn as a single quad
+     */
+    protected abstract float getWarpCurvature();
+
+    /**
+     * Rebuilds the grid before the next draw, to be called whenever the warp bounds or
+     * curvature change.
+     */
+    protected void invalidateMesh() {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mMeshDirty = true;
+            }
+        });
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mTextureToPositionLocation = GLES20.glGetUniformLocation(getProgram(), "textureToPosition");
+        GLES20.glGenBuffers(2, mBuffers, 0);
+        mMeshDirty = true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        GPUImageResourceRegistry.deleteBuffers(2, mBuffers, 0);
+        mBuffers[0] = 0;
+        mBuffers[1] = 0;
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        invalidateMesh();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+
+        cubeBuffer.position(0);
+        cubeBuffer.get(mCube);
+        cubeBuffer.position(0);
+        textureBuffer.position(0);
+        textureBuffer.get(mTexture);
+        textureBuffer.position(0);
+        if (!updateTextureToPosition()) {
+            return;
+        }
+        if (updateTextureBounds() || mMeshDirty) {
+            buildMesh();
+            mMeshDirty = false;
+        }
+        GLES20.glUniformMatrix3fv(mTextureToPositionLocation, 1, false, mTextureToPosition, 0);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        GLES20.glVertexAttribPointer(mGLAttribTextureCoordinate, 2, GLES20.GL_FLOAT, false, 0, 0);
+        GLState.enableVertexAttribArray(mGLAttribTextureCoordinate);
+        if (textureId != OpenGlUtils.NO_TEXTURE) {
+            GLState.activeTexture(GLES20.GL_TEXTURE0);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, textureId);
+            GLES20.glUniform1i(mGLUniformTexture, 0);
+        }
+        onDrawArraysPre();
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBuffers[1]);
+        GLState.disableUnusedVertexAttribArrays();
+        GLES20.glDrawElements(GLES20.GL_TRIANGLES, mIndexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * The quad corners are a parallelogram in both buffers, so position is an affine function of
+     * the texture coordinate. Corners come in strip order, the first three span the quad.
+     */
+    private boolean updateTextureToPosition() {
+        float ax = mTexture[2] - mTexture[0];
+        float ay = mTexture[3] - mTexture[1];
+        float bx = mTexture[4] - mTexture[0];
+        float by = mTexture[5] - mTexture[1];
+        float determinant = ax * by - bx * ay;
+        if (determinant == 0) {
+            return false;
+        }
+        // Inverse of the texture axes, maps texture offsets to quad parameters
+        float i00 = by / determinant;
+        float i01 = -bx / determinant;
+        float i10 = -ay / determinant;
+        float i11 = ax / determinant;
+
+        float cx = mCube[2] - mCube[0];
+        float cy = mCube[3] - mCube[1];
+        float dx = mCube[4] - mCube[0];
+        float dy = mCube[5] - mCube[1];
+        float m00 = cx * i00 + dx * i10;
+        float m01 = cx * i01 + dx * i11;
+        float m10 = cy * i00 + dy * i10;
+        float m11 = cy * i01 + dy * i11;
+
+        mTextureToPosition[0] = m00;
+        mTextureToPosition[1] = m10;
+        mTextureToPosition[2] = 0.0f;
+        mTextureToPosition[3] = m01;
+        mTextureToPosition[4] = m11;
+        mTextureToPosition[5] = 0.0f;
+        mTextureToPosition[6] = mCube[0] - m00 * mTexture[0] - m01 * mTexture[1];
+        mTextureToPosition[7] = mCube[1] - m10 * mTexture[0] - m11 * mTexture[1];
+        mTextureToPosition[8] = 1.0f;
+        return true;
+    }
+
+    private boolean updateTextureBounds() {
+        float left = Float.MAX_VALUE;
+        float top = Float.MAX_VALUE;
+        float right = -Float.MAX_VALUE;
+        float bottom = -Float.MAX_VALUE;
+        for (int i = 0; i < 8; i += 2) {
+            left = Math.min(left, mTexture[i]);
+            right = Math.max(right, mTexture[i]);
+            top = Math.min(top, mTexture[i + 1]);
+            bottom = Math.max(bottom, mTexture[i + 1]);
+        }
+        boolean changed = left != mTextureBounds[0] || top != mTextureBounds[1]
+                || right != mTextureBounds[2] || bottom != mTextureBounds[3];
+        mTextureBounds[0] = left;
+        mTextureBounds[1] = top;
+        mTextureBounds[2] = right;
+        mTextureBounds[3] = bottom;
+        return changed;
+    }
+
+    private void buildMesh() {
+        getWarpBounds(mWarpBounds);
+        float curvature = Math.abs(getWarpCurvature());
+        float tolerance = TOLERANCE_PIXELS / Math.max(1, Math.max(getOutputWidth(), getOutputHeight()));
+        // Linear interpolation over a cell of size h is off by at most curvature * h^2 / 8
+        float cellSize = curvature > 0 ? (float) Math.sqrt(8.0f * tolerance / curvature) : Float.MAX_VALUE;
+
+        float[] columns;
+        float[] rows;
+        if (curvature > 0) {
+            columns = gridLines(mTextureBounds[0], mTextureBounds[2],
+                    mWarpBounds[0], mWarpBounds[2], cellSize);
+            rows = gridLines(mTextureBounds[1], mTextureBounds[3],
+                    mWarpBounds[1], mWarpBounds[3], cellSize);
+        } else {
+            columns = new float[] {mTextureBounds[0], mTextureBounds[2]};
+            rows = new float[] {mTextureBounds[1], mTextureBounds[3]};
+        }
+
+        FloatBuffer vertices = ByteBuffer.allocateDirect(columns.length * rows.length * 2 * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        for (float row : rows) {
+            for (float column : columns) {
+                vertices.put(column).put(row);
+            }
+        }
+        vertices.position(0);
+
+        mIndexCount = (columns.length - 1) * (rows.length - 1) * 6;
+        ShortBuffer indices = ByteBuffer.allocateDirect(mIndexCount * 2)
+                .order(ByteOrder.nativeOrder())
+                .asShortBuffer();
+        for (int row = 0; row < rows.length - 1; row++) {
+            for (int column = 0; column < columns.length - 1; column++) {
+                short topLeft = (short) (row * columns.length + column);
+                short bottomLeft = (short) (topLeft + columns.length);
+                indices.put(topLeft).put(bottomLeft).put((short) (topLeft + 1));
+                indices.put((short) (topLeft + 1)).put(bottomLeft).put((short) (bottomLeft + 1));
+            }
+        }
+        indices.position(0);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.capacity() * 4, vertices,
+                GLES20.GL_STATIC_DRAW);
+        GPUImageResourceRegistry.bufferAllocated(mBuffers[0], vertices.capacity() * 4);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mBuffers[1]);
+        GLES20.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexCount * 2, indices,
+                GLES20.GL_STATIC_DRAW);
+        GPUImageResourceRegistry.bufferAllocated(mBuffers[1], mIndexCount * 2);
+        GLES20.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Lines at both ends of [min, max] plus evenly spaced ones across the part of
+     * [low, high] that lies inside it.
+     */
+    private static float[] gridLines(final float min, final float max, final float low,
+                                     final float high, final float cellSize) {
+        float start = Math.max(min, low);
+        float end = Math.min(max, high);
+        if (end <= start) {
+            return new float[] {min, max};
+        }
+        int segments = (int) Math.min(MAX_SEGMENTS, Math.max(1, Math.ceil((end - start) / cellSize)));
+        boolean lead = start > min;
+        boolean trail = end < max;
+        float[] lines = new float[segments + 1 + (lead ? 1 : 0) + (trail ? 1 : 0)];
+        int index = 0;
+        if (lead) {
+            lines[index++] = min;
+        }
+        for (int i = 0; i <= segments; i++) {
+            lines[index++] = start + (end - start) * i / segments;
+        }
+        if (trail) {
+            lines[index] = max;
+        }
+        return lines;
+    }
+}
@@ -44,6 +44,10 @@ public class GPUImageMixBlendFilter extends GPUImageTwoInputFilter {
         setMix(mMix);
     }
 
+    public float getMix() {
+        return mMix;
+    }
+
     /**
      * @param mix ranges from 0.0 (only image 1) to 1.0 (only image 2), with 0.5 (half of either) as the normal level
      */
@@ -16,6 +16,9 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
 /**
  * This equation is a simplification of the general blending equation. It assumes the destination color is opaque, and therefore drops the destination color's alpha term.
  *
@@ -30,7 +33,7 @@ package jp.co.cyberagent.android.gpuimage;
  * For some reason Photoshop behaves
  * D = C1 + C2 * C2a * (1 - C1a)
  */
-public class GPUImageNormalBlendFilter extends GPUImageTwoInputFilter {
+public class GPUImageNormalBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String NORMAL_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             " \n" +
@@ -58,4 +61,9 @@ public class GPUImageNormalBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageNormalBlendFilter() {
         super(NORMAL_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.NORMAL.createKernel();
+    }
 }
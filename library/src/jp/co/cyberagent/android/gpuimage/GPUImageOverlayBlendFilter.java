@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageOverlayBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageOverlayBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String OVERLAY_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             "\n" +
@@ -55,4 +58,9 @@ public class GPUImageOverlayBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageOverlayBlendFilter() {
         super(OVERLAY_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.OVERLAY.createKernel();
+    }
 }
@@ -16,59 +16,44 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-import android.opengl.GLES20;
 /**
- * Applies a grayscale effect to the image.
+ * Shows the image as blocks of one color.
+ * pixel: size of a block in pixels, default 1.0
  */
-public class GPUImagePixelationFilter extends GPUImageFilter {
+public class GPUImagePixelationFilter extends GPUImageCellFilter {
     public static final String PIXELATION_FRAGMENT_SHADER = "" +
             "precision highp float;\n" +
 
             "varying vec2 textureCoordinate;\n" +
 
-            "uniform float imageWidthFactor;\n" +
-            "uniform float imageHeightFactor;\n" +
             "uniform sampler2D inputImageTexture;\n" +
-            "uniform float pixel;\n" +
+            "uniform vec2 cellSize;\n" +
+            "uniform vec2 gridSize;\n" +
 
             "void main()\n" +
             "{\n" +
-            "  vec2 uv  = textureCoordinate.xy;\n" +
-            "  float dx = pixel * imageWidthFactor;\n" +
-            "  float dy = pixel * imageHeightFactor;\n" +
-            "  vec2 coord = vec2(dx * floor(uv.x / dx), dy * floor(uv.y / dy));\n" +
-            "  vec3 tc = texture2D(inputImageTexture, coord).xyz;\n" +
+            "  vec2 cell = floor(textureCoordinate / cellSize);\n" +
+            "  vec3 tc = texture2D(inputImageTexture, (cell + 0.5) / gridSize).xyz;\n" +
             "  gl_FragColor = vec4(tc, 1.0);\n" +
             "}";
 
-    private int mImageWidthFactorLocation;
-    private int mImageHeightFactorLocation;
     private float mPixel;
-    private int mPixelLocation;
-    
+
     public GPUImagePixelationFilter() {
-        super(NO_FILTER_VERTEX_SHADER, PIXELATION_FRAGMENT_SHADER);
+        super(PIXELATION_FRAGMENT_SHADER, false);
         mPixel = 1.0f;
     }
 
-    @Override
-    public void onInit() {
-        super.onInit();
-        mImageWidthFactorLocation = GLES20.glGetUniformLocation(getProgram(), "imageWidthFactor");
-        mImageHeightFactorLocation = GLES20.glGetUniformLocation(getProgram(), "imageHeightFactor");
-        mPixelLocation = GLES20.glGetUniformLocation(getProgram(), "pixel");
-        setPixel(mPixel);
-    }
-
     @Override
     public void onOutputSizeChanged(final int width, final int height) {
         super.onOutputSizeChanged(width, height);
-        setFloat(mImageWidthFactorLocation, 1.0f / width);
-        setFloat(mImageHeightFactorLocation, 1.0f / height);
+        setPixel(mPixel);
     }
 
     public void setPixel(final float pixel) {
-      mPixel = pixel;
-      setFloat(mPixelLocation, mPixel);
+        mPixel = pixel;
+        if (getOutputWidth() > 0 && getOutputHeight() > 0) {
+            setCellSize(mPixel / getOutputWidth(), mPixel / getOutputHeight());
+        }
     }
 }
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Downscaled copies of one texture, each level half the size of the one before and filtered
+ * with a 4x4 box, which together approximate a Gaussian pyramid. Levels are rendered on first
+ * request into framebuffers from a pool and stay valid until release(), so every reader of the
+ * same texture within a frame shares them. Level 0 is the texture itself. Must only be used on
+ * the GL thread.
+ */
+public class GPUImagePyramid {
+    public static final int MAX_LEVELS = 8;
+
+    public static final String DOWNSAMPLE_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform highp vec2 texelSize;\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    gl_FragColor = 0.25 * (texture2D(inputImageTexture, textureCoordinate - texelSize)\n" +
+            "            + texture2D(inputImageTexture, textureCoordinate + vec2(texelSize.x, -texelSize.y))\n" +
+            "            + texture2D(inputImageTexture, textureCoordinate + vec2(-texelSize.x, texelSize.y))\n" +
+            "            + texture2D(inputImageTexture, textureCoordinate + texelSize));\n" +
+            "}";
+
+    private final FrameBufferPool mPool;
+    private final FloatBuffer mCubeBuffer;
+
+    private int mProgram;
+    private int mPosition;
+    private int mTextureCoordinate;
+    private int mTexture;
+    private int mTexelSize;
+
+    private int mSourceTexture = OpenGlUtils.NO_TEXTURE;
+    private int mWidth;
+    private int mHeight;
+    private int mLevelCount;
+    private int mBuiltLevels;
+    private final int[] mLevelWidths = new int[MAX_LEVELS + 1];
+    private final int[] mLevelHeights = new int[MAX_LEVELS + 1];
+    private final FloatBuffer[] mLevelTextureCoordinates = new FloatBuffer[MAX_LEVELS + 1];
+    private final float[][] mLevelTexelSizes = new float[MAX_LEVELS + 1][2];
+    private final FrameBufferPool.FrameBuffer[] mLevels = new FrameBufferPool.FrameBuffer[MAX_LEVELS + 1];
+
+    GPUImagePyramid(final FrameBufferPool pool) {
+        mPool = pool;
+        mCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(CUBE).position(0);
+    }
+
+    void init() {
+        mProgram = OpenGlUtils.loadProgram(GPUImageFilter.NO_FILTER_VERTEX_SHADER, DOWNSAMPLE_FRAGMENT_SHADER);
+        mPosition = GLES20.glGetAttribLocation(mProgram, "position");
+        mTextureCoordinate = GLES20.glGetAttribLocation(mProgram, "inputTextureCoordinate");
+        mTexture = GLES20.glGetUniformLocation(mProgram, "inputImageTexture");
+        mTexelSize = GLES20.glGetUniformLocation(mProgram, "texelSize");
+    }
+
+    boolean isInitialized() {
+        return mProgram != 0;
+    }
+
+    void destroy() {
+        release();
+        if (mProgram != 0) {
+            GLState.deleteProgram(mProgram);
+            mProgram = 0;
+        }
+    }
+
+    /**
+     * Starts a pyramid for the given texture, releasing the levels of the previous one.
+     */
+    void setSource(final int texture, final int width, final int height) {
+        release();
+        mSourceTexture = texture;
+        if (width != mWidth || height != mHeight) {
+            layoutLevels(width, height);
+        }
+    }
+
+    /**
+     * Hands the rendered levels back to the pool. They must not be read afterwards.
+     */
+    void release() {
+        for (int level = 1; level <= mBuiltLevels; level++) {
+            mPool.release(mLevels[level]);
+            mLevels[level] = null;
+        }
+        mBuiltLevels = 0;
+    }
+
+    private void layoutLevels(final int width, final int height) {
+        mWidth = width;
+        mHeight = height;
+        mLevelWidths[0] = width;
+        mLevelHeights[0] = height;
+        mLevelCount = 0;
+        int sourceWidth = width;
+        int sourceHeight = height;
+        while (mLevelCount < MAX_LEVELS && (sourceWidth > 1 || sourceHeight > 1)) {
+            int level = mLevelCount + 1;
+            int levelWidth = (sourceWidth + 1) / 2;
+            int levelHeight = (sourceHeight + 1) / 2;
+            mLevelWidths[level] = levelWidth;
+            mLevelHeights[level] = levelHeight;
+
+            // Output pixel i covers source pixels 2i - 1 to 2i + 2
+            float u = 2.0f * levelWidth / sourceWidth;
+            float v = 2.0f * levelHeight / sourceHeight;
+            mLevelTextureCoordinates[level] = ByteBuffer.allocateDirect(8 * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            mLevelTextureCoordinates[level].put(new float[] {0.0f, 0.0f, u, 0.0f, 0.0f, v, u, v}).position(0);
+            mLevelTexelSizes[level][0] = 1.0f / sourceWidth;
+            mLevelTexelSizes[level][1] = 1.0f / sourceHeight;
+
+            sourceWidth = levelWidth;
+            sourceHeight = levelHeight;
+            mLevelCount++;
+        }
+    }
+
+    /**
+     * @return the number of levels below the source, at most MAX_LEVELS
+     */
+    public int getLevelCount() {
+        return mLevelCount;
+    }
+
+    public int getLevelWidth(final int level) {
+        return mLevelWidths[level];
+    }
+
+    public int getLevelHeight(final int level) {
+        return mLevelHeights[level];
+    }
+
+    /**
+     * Returns the texture of the given level, rendering it and the levels above it if this
+     * frame has not needed them yet. Rounding up odd sizes leaves a level slightly larger than
+     * the source, so source texture coordinates are multiplied by getLevelScaleX and
+     * getLevelScaleY to read the same spot.
+     */
+    public int getLevelTexture(final int level) {
+        if (level <= 0) {
+            return mSourceTexture;
+        }
+        build(level);
+        return mLevels[Math.min(level, mBuiltLevels)].texture;
+    }
+
+    public float getLevelScaleX(final int level) {
+        return (float) mWidth / (mLevelWidths[level] << level);
+    }
+
+    public float getLevelScaleY(final int level) {
+        return (float) mHeight / (mLevelHeights[level] << level);
+    }
+
+    int getLevelFrameBuffer(final int level) {
+        build(level);
+        return mLevels[Math.min(level, mBuiltLevels)].frameBuffer;
+    }
+
+    /**
+     * Renders the missing levels down to the given one, each reading the previous level.
+     */
+    void build(final int level) {
+        int target = Math.min(level, mLevelCount);
+        if (target <= mBuiltLevels || mSourceTexture == OpenGlUtils.NO_TEXTURE) {
+            return;
+        }
+        int[] previousFrameBuffer = new int[1];
+        int[] previousViewport = new int[4];
+        int[] previousProgram = new int[1];
+        previousFrameBuffer[0] = GLState.getFrameBuffer();
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, previousViewport, 0);
+        previousProgram[0] = GLState.getProgram();
+
+        GLState.useProgram(mProgram);
+        mCubeBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(mPosition, mCubeBuffer);
+        GLState.enableVertexAttribArray(mPosition);
+        GLState.enableVertexAttribArray(mTextureCoordinate);
+        GLES20.glUniform1i(mTexture, 0);
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+
+        for (int current = mBuiltLevels + 1; current <= target; current++) {
+            FrameBufferPool.FrameBuffer frameBuffer = mPool.obtain(mLevelWidths[current], mLevelHeights[current]);
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffer.frameBuffer);
+            GLES20.glViewport(0, 0, frameBuffer.width, frameBuffer.height);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D,
+                    current == 1 ? mSourceTexture : mLevels[current - 1].texture);
+            GLES20.glUniform2fv(mTexelSize, 1, mLevelTexelSizes[current], 0);
+            QuadBufferCache.vertexAttribPointer(mTextureCoordinate, mLevelTextureCoordinates[current]);
+            GLState.disableUnusedVertexAttribArrays();
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            mLevels[current] = frameBuffer;
+            mBuiltLevels = current;
+        }
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer[0]);
+        GLES20.glViewport(previousViewport[0], previousViewport[1], previousViewport[2], previousViewport[3]);
+        GLState.useProgram(previousProgram[0]);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+/**
+ * A filter that reads downscaled copies of an image. Inside a GPUImageFilterGroup all
+ * consumers of the same texture share one GPUImagePyramid per frame, which the group builds
+ * down to the deepest level any of them declared and releases after the last one has drawn.
+ * Filters used on their own have to build their levels themselves.
+ */
+public interface GPUImagePyramidConsumer {
+    /**
+     * The pyramid of the texture passed to this filter.
+     */
+    int SOURCE_INPUT = 0;
+    /**
+     * The pyramid of the texture passed to the outermost group, so filters further down the
+     * chain can share it.
+     */
+    int SOURCE_GROUP_INPUT = 1;
+
+    /**
+     * @return the deepest level read in the next draw, 0 if none is needed
+     */
+    int getPyramidLevels();
+
+    /**
+     * @return SOURCE_INPUT or SOURCE_GROUP_INPUT
+     */
+    int getPyramidSource();
+
+    /**
+     * Called by the group right before onDraw with the shared pyramid and with null after it.
+     */
+    void setPyramid(GPUImagePyramid pyramid);
+}
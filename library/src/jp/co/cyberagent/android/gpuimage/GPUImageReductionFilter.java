@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.RectF;
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jp.co.cyberagent.android.gpuimage.GPUImageRenderer.CUBE;
+
+/**
+ * Passes the image through unchanged and reduces it to a single color on the way, by halving
+ * it with 2x2 boxes into pooled framebuffers down to 1x1. Only those 4 bytes are read back,
+ * asynchronously on GLES 3, so results lag the image by one frame there.
+ * <p>
+ * The result goes to a listener and can drive a GPUImageWhiteBalanceFilter (gray world) and a
+ * GPUImageExposureFilter further down the chain.
+ * reduction: REDUCTION_AVERAGE, REDUCTION_MINIMUM or REDUCTION_MAXIMUM per channel
+ * luminance: reduces the luminance instead of the color
+ * regionOfInterest: part of the input to reduce, in texture coordinates
+ * smoothing: weight of the previous result, 0.0 (none) - 1.0 (frozen)
+ */
+public class GPUImageReductionFilter extends GPUImageFilter {
+    public static final int REDUCTION_AVERAGE = 0;
+    public static final int REDUCTION_MINIMUM = 1;
+    public static final int REDUCTION_MAXIMUM = 2;
+
+    public static final String REDUCTION_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform highp vec2 texelSize;\n" +
+            "uniform highp vec4 sampleBounds;\n" +
+            "uniform float reduction;\n" +
+            "uniform float luminance;\n" +
+            "\n" +
+            "const vec3 W = vec3(0.2125, 0.7154, 0.0721);\n" +
+            "\n" +
+            "vec4 fetch(highp vec2 offset)\n" +
+            "{\n" +
+            "    vec4 color = texture2D(inputImageTexture, clamp(textureCoordinate + offset, sampleBounds.xy, sampleBounds.zw));\n" +
+            "    return mix(color, vec4(vec3(dot(color.rgb, W)), color.a), luminance);\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    highp vec2 offset = texelSize * 0.5;\n" +
+            "    vec4 bottomLeft = fetch(-offset);\n" +
+            "    vec4 bottomRight = fetch(vec2(offset.x, -offset.y));\n" +
+            "    vec4 topLeft = fetch(vec2(-offset.x, offset.y));\n" +
+            "    vec4 topRight = fetch(offset);\n" +
+            "\n" +
+            "    if (reduction < 0.5) {\n" +
+            "        gl_FragColor = (bottomLeft + bottomRight + topLeft + topRight) * 0.25;\n" +
+            "    } else if (reduction < 1.5) {\n" +
+            "        gl_FragColor = min(min(bottomLeft, bottomRight), min(topLeft, topRight));\n" +
+            "    } else {\n" +
+            "        gl_FragColor = max(max(bottomLeft, bottomRight), max(topLeft, topRight));\n" +
+            "    }\n" +
+            "}";
+
+    public interface OnReductionListener {
+        /**
+         * Called on the GL thread.
+         *
+         * @param color red, green, blue and alpha from 0.0 to 1.0, reused for the next frame
+         */
+        void onReduction(float[] color);
+    }
+
+    private static final class Level {
+        final FrameBufferPool.FrameBuffer frameBuffer;
+        final FloatBuffer textureCoordinates;
+        final float[] texelSize;
+        final float[] sampleBounds;
+
+        Level(final FrameBufferPool.FrameBuffer frameBuffer, final float[] textureCoordinates,
+              final float[] texelSize, final float[] sampleBounds) {
+            this.frameBuffer = frameBuffer;
+            this.textureCoordinates = ByteBuffer.allocateDirect(textureCoordinates.length * 4)
+                    .order(ByteOrder.nativeOrder())
+                    .asFloatBuffer();
+            this.textureCoordinates.put(textureCoordinates).position(0);
+            this.texelSize = texelSize;
+            this.sampleBounds = sampleBounds;
+        }
+    }
+
+    private int mReduction;
+    private boolean mLuminance;
+    private final RectF mRegionOfInterest = new RectF(0.0f, 0.0f, 1.0f, 1.0f);
+    private float mSmoothing;
+    private OnReductionListener mListener;
+    private GPUImageWhiteBalanceFilter mWhiteBalanceTarget;
+    private GPUImageExposureFilter mExposureTarget;
+    private float mTargetLuminance = 0.46f;
+
+    private int mReductionProgram;
+    private int mReductionPosition;
+    private int mReductionTextureCoordinate;
+    private int mReductionTexture;
+    private int mTexelSizeLocation;
+    private int mSampleBoundsLocation;
+    private int mReductionLocation;
+    private int mLuminanceLocation;
+
+    private final FloatBuffer mCubeBuffer;
+    private final FrameBufferPool mPool = new FrameBufferPool(this);
+    private final List<Level> mLevels = new ArrayList<Level>();
+    private boolean mLevelsDirty = true;
+    private AsyncPixelReader mReader;
+
+    private final float[] mColor = new float[4];
+    private boolean mHasColor;
+
+    public GPUImageReductionFilter() {
+        this(REDUCTION_AVERAGE);
+    }
+
+    public GPUImageReductionFilter(final int reduction) {
+        super(NO_FILTER_VERTEX_SHADER, NO_FILTER_FRAGMENT_SHADER);
+        mCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        mCubeBuffer.put(CUBE).position(0);
+        setReduction(reduction);
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mReductionProgram = OpenGlUtils.loadProgram(NO_FILTER_VERTEX_SHADER, REDUCTION_FRAGMENT_SHADER);
+        mReductionPosition = GLES20.glGetAttribLocation(mReductionProgram, "position");
+        mReductionTextureCoordinate = GLES20.glGetAttribLocation(mReductionProgram, "inputTextureCoordinate");
+        mReductionTexture = GLES20.glGetUniformLocation(mReductionProgram, "inputImageTexture");
+        mTexelSizeLocation = GLES20.glGetUniformLocation(mReductionProgram, "texelSize");
+        mSampleBoundsLocation = GLES20.glGetUniformLocation(mReductionProgram, "sampleBounds");
+        mReductionLocation = GLES20.glGetUniformLocation(mReductionProgram, "reduction");
+        mLuminanceLocation = GLES20.glGetUniformLocation(mReductionProgram, "luminance");
+        mReader = new AsyncPixelReader();
+        mLevelsDirty = true;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        releaseLevels();
+        mPool.clear();
+        GLState.deleteProgram(mReductionProgram);
+        mReader.destroy();
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mLevelsDirty = true;
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        GLState.useProgram(getProgram());
+        runPendingOnDrawTasks();
+        if (!isInitialized()) {
+            return;
+        }
+        if (textureId != OpenGlUtils.NO_TEXTURE && getOutputWidth() > 0 && getOutputHeight() > 0) {
+            if (mLevelsDirty) {
+                createLevels();
+                mLevelsDirty = false;
+            }
+            reduce(textureId);
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    private void reduce(final int textureId) {
+        int[] previousFrameBuffer = new int[1];
+        int[] previousViewport = new int[4];
+        previousFrameBuffer[0] = GLState.getFrameBuffer();
+        GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, previousViewport, 0);
+
+        GLState.useProgram(mReductionProgram);
+        GLES20.glUniform1f(mReductionLocation, mReduction);
+        mCubeBuffer.position(0);
+        QuadBufferCache.vertexAttribPointer(mReductionPosition, mCubeBuffer);
+        GLState.enableVertexAttribArray(mReductionPosition);
+        GLState.enableVertexAttribArray(mReductionTextureCoordinate);
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+        GLES20.glUniform1i(mReductionTexture, 0);
+
+        int source = textureId;
+        for (int i = 0; i < mLevels.size(); i++) {
+            Level level = mLevels.get(i);
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, level.frameBuffer.frameBuffer);
+            GLES20.glViewport(0, 0, level.frameBuffer.width, level.frameBuffer.height);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, source);
+            // Luminance is taken once, later levels reduce it like any color
+            GLES20.glUniform1f(mLuminanceLocation, i == 0 && mLuminance ? 1.0f : 0.0f);
+            GLES20.glUniform2fv(mTexelSizeLocation, 1, level.texelSize, 0);
+            GLES20.glUniform4fv(mSampleBoundsLocation, 1, level.sampleBounds, 0);
+            level.textureCoordinates.position(0);
+            QuadBufferCache.vertexAttribPointer(mReductionTextureCoordinate, level.textureCoordinates);
+            GLState.disableUnusedVertexAttribArrays();
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+            source = level.frameBuffer.texture;
+        }
+        ByteBuffer pixel = mReader.read(1, 1);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer[0]);
+        GLES20.glViewport(previousViewport[0], previousViewport[1], previousViewport[2], previousViewport[3]);
+        GLState.useProgram(getProgram());
+
+        if (pixel != null) {
+            publishColor(pixel);
+        }
+    }
+
+    /**
+     * Halves the region of interest until a single pixel is left. Every output pixel samples
+     * the centers of the 2x2 source pixels below it, clamped to the source area so odd sizes
+     * repeat their last row or column.
+     */
+    private void createLevels() {
+        releaseLevels();
+        int inputWidth = getOutputWidth();
+        int inputHeight = getOutputHeight();
+        int left = Math.max(0, Math.min(inputWidth - 1, (int) Math.floor(mRegionOfInterest.left * inputWidth)));
+        int top = Math.max(0, Math.min(inputHeight - 1, (int) Math.floor(mRegionOfInterest.top * inputHeight)));
+        int right = Math.max(left + 1, Math.min(inputWidth, (int) Math.ceil(mRegionOfInterest.right * inputWidth)));
+        int bottom = Math.max(top + 1, Math.min(inputHeight, (int) Math.ceil(mRegionOfInterest.bottom * inputHeight)));
+
+        float sourceWidth = inputWidth;
+        float sourceHeight = inputHeight;
+        float u = left / sourceWidth;
+        float v = top / sourceHeight;
+        float[] bounds = {
+                (left + 0.5f) / sourceWidth, (top + 0.5f) / sourceHeight,
+                (right - 0.5f) / sourceWidth, (bottom - 0.5f) / sourceHeight
+        };
+        int width = right - left;
+        int height = bottom - top;
+        do {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            float uEnd = u + 2 * width / sourceWidth;
+            float vEnd = v + 2 * height / sourceHeight;
+            mLevels.add(new Level(mPool.obtain(width, height),
+                    new float[] {u, v, uEnd, v, u, vEnd, uEnd, vEnd},
+                    new float[] {1.0f / sourceWidth, 1.0f / sourceHeight},
+                    bounds));
+
+            sourceWidth = width;
+            sourceHeight = height;
+            u = 0.0f;
+            v = 0.0f;
+            bounds = new float[] {
+                    0.5f / sourceWidth, 0.5f / sourceHeight,
+                    1.0f - 0.5f / sourceWidth, 1.0f - 0.5f / sourceHeight
+            };
+        } while (width > 1 || height > 1);
+        mHasColor = false;
+    }
+
+    private void releaseLevels() {
+        for (Level level : mLevels) {
+            mPool.release(level.frameBuffer);
+        }
+        mLevels.clear();
+    }
+
+    private void publishColor(final ByteBuffer pixel) {
+        float weight = mHasColor ? 1.0f - mSmoothing : 1.0f;
+        for (int i = 0; i < 4; i++) {
+            mColor[i] += ((pixel.get(i) & 0xff) / 255.0f - mColor[i]) * weight;
+        }
+        mHasColor = true;
+
+        if (mListener != null) {
+            mListener.onReduction(mColor);
+        }
+        if (mWhiteBalanceTarget != null) {
+            applyWhiteBalance(mWhiteBalanceTarget);
+        }
+        if (mExposureTarget != null) {
+            float luminance = 0.2125f * mColor[0] + 0.7154f * mColor[1] + 0.0721f * mColor[2];
+            float exposure = (float) (Math.log(mTargetLuminance / Math.max(luminance, 1.0f / 255.0f)) / Math.log(2));
+            mExposureTarget.setExposure(Math.min(Math.max(exposure, -4.0f), 4.0f));
+        }
+    }
+
+    /**
+     * Gray world: chooses tint and temperature that move the measured color towards gray,
+     * inverting the linear response of GPUImageWhiteBalanceFilter around mid gray.
+     */
+    private void applyWhiteBalance(final GPUImageWhiteBalanceFilter whiteBalance) {
+        float red = mColor[0];
+        float green = mColor[1];
+        float blue = mColor[2];
+        float gray = (red + green + blue) / 3.0f;
+        if (gray <= 0.0f) {
+            return;
+        }
+        // The filter adds tint / 100 * 0.05226 to the Q component of YIQ
+        float q = 0.212f * red - 0.523f * green + 0.311f * blue;
+        float tint = -q / 0.05226f * 100.0f;
+        // Full temperature strength widens red - blue by about 1.86 * gray
+        float strength = -(red - blue) / (1.86f * gray);
+        float temperature = strength < 0 ? 5000.0f + strength / 0.0004f : 5000.0f + strength / 0.00006f;
+        whiteBalance.setTint(Math.min(Math.max(tint, -100.0f), 100.0f));
+        whiteBalance.setTemperature(Math.min(Math.max(temperature, 2000.0f), 8000.0f));
+    }
+
+    /**
+     * @param reduction REDUCTION_AVERAGE, REDUCTION_MINIMUM or REDUCTION_MAXIMUM
+     */
+    public void setReduction(final int reduction) {
+        if (reduction < REDUCTION_AVERAGE || reduction > REDUCTION_MAXIMUM) {
+            throw new IllegalArgumentException("Unknown reduction " + reduction);
+        }
+        mReduction = reduction;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mHasColor = false;
+            }
+        });
+    }
+
+    public void setLuminance(final boolean luminance) {
+        mLuminance = luminance;
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mHasColor = false;
+            }
+        });
+    }
+
+    /**
+     * @param region part of the input to reduce in texture coordinates, default (0, 0, 1, 1)
+     */
+    public void setRegionOfInterest(final RectF region) {
+        final RectF copy = new RectF(region);
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                mRegionOfInterest.set(copy);
+                mLevelsDirty = true;
+            }
+        });
+    }
+
+    /**
+     * @param smoothing weight of the previous result, 0.0 (default) follows every frame
+     */
+    public void setSmoothing(final float smoothing) {
+        mSmoothing = Math.min(Math.max(smoothing, 0.0f), 1.0f);
+    }
+
+    public void setOnReductionListener(final OnReductionListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Sets temperature and tint of the given filter so that the average color becomes gray.
+     * Needs REDUCTION_AVERAGE without luminance.
+     */
+    public void setWhiteBalanceTarget(final GPUImageWhiteBalanceFilter whiteBalance) {
+        mWhiteBalanceTarget = whiteBalance;
+    }
+
+    /**
+     * Sets the exposure of the given filter so that the average luminance reaches the target.
+     *
+     * @param targetLuminance default 0.46, middle gray
+     */
+    public void setExposureTarget(final GPUImageExposureFilter exposure, final float targetLuminance) {
+        mExposureTarget = exposure;
+        mTargetLuminance = targetLuminance;
+    }
+}
@@ -26,31 +26,32 @@ import android.hardware.Camera.Size;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView.Renderer;
 
+import jp.co.cyberagent.android.gpuimage.util.TaskQueue;
 import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
 
 import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
 import javax.microedition.khronos.opengles.GL10;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
-import java.util.LinkedList;
-import java.util.Queue;
 
 import static jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil.TEXTURE_NO_ROTATION;
 
 @TargetApi(11)
 public class GPUImageRenderer implements Renderer, PreviewCallback {
     public static final int NO_IMAGE = -1;
-    static final float CUBE[] = {
-            -1.0f, -1.0f,
-            1.0f, -1.0f,
-            -1.0f, 1.0f,
-            1.0f, 1.0f,
-    };
+    static final float CUBE[] = TextureRotationUtil.CUBE;
 
     private GPUImageFilter mFilter;
+    private GPUImageFilterTimer mFilterTimer;
+    private final GPUImageFrameStats mFrameStats = new GPUImageFrameStats();
+    // When the preview frame in mGLTextureId arrived, 0 once it has been drawn
+    private long mPendingFrameNanos;
+    // The context of the last onSurfaceCreated, gone once another one is created
+    private EGLContext mEGLContext;
 
     public final Object mSurfaceChangedWaiter = new Object();
 
@@ -58,6 +59,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     private SurfaceTexture mSurfaceTexture = null;
     private final FloatBuffer mGLCubeBuffer;
     private final FloatBuffer mGLTextureBuffer;
+    private final float[] mScaledCube = new float[8];
+    private final float[] mScaledTextureCoordinates = new float[8];
     private IntBuffer mGLRgbBuffer;
 
     private int mOutputWidth;
@@ -66,8 +69,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     private int mImageHeight;
     private int mAddedPadding;
 
-    private final Queue<Runnable> mRunOnDraw;
-    private final Queue<Runnable> mRunOnDrawEnd;
+    private final TaskQueue mRunOnDraw;
+    private final TaskQueue mRunOnDrawEnd;
     private Rotation mRotation;
     private boolean mFlipHorizontal;
     private boolean mFlipVertical;
@@ -79,8 +82,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
     public GPUImageRenderer(final GPUImageFilter filter) {
         mFilter = filter;
-        mRunOnDraw = new LinkedList<Runnable>();
-        mRunOnDrawEnd = new LinkedList<Runnable>();
+        mRunOnDraw = new TaskQueue();
+        mRunOnDrawEnd = new TaskQueue();
 
         mGLCubeBuffer = ByteBuffer.allocateDirect(CUBE.length * 4)
                 .order(ByteOrder.nativeOrder())
@@ -97,7 +100,17 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     public void onSurfaceCreated(final GL10 unused, final EGLConfig config) {
         GLES20.glClearColor(mBackgroundRed, mBackgroundGreen, mBackgroundBlue, 1);
         GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+        EGLContext context = GPUImageResourceRegistry.getCurrentContext();
+        if (mEGLContext != null && !mEGLContext.equals(context)) {
+            GPUImageResourceRegistry.contextDestroyed(mEGLContext);
+        }
+        mEGLContext = context;
+        GLState.invalidate();
+        QuadBufferCache.reset();
         mFilter.init();
+        if (mFilterTimer != null) {
+            mFilterTimer.init();
+        }
     }
 
     @Override
@@ -105,8 +118,11 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mOutputWidth = width;
         mOutputHeight = height;
         GLES20.glViewport(0, 0, width, height);
-        GLES20.glUseProgram(mFilter.getProgram());
+        GLState.useProgram(mFilter.getProgram());
+        Object previousOwner = GPUImageResourceRegistry.setOwner(mFilter);
         mFilter.onOutputSizeChanged(width, height);
+        mFilter.invalidateGLStateIfExternal();
+        GPUImageResourceRegistry.setOwner(previousOwner);
         adjustImageScaling();
         synchronized (mSurfaceChangedWaiter) {
             mSurfaceChangedWaiter.notifyAll();
@@ -115,13 +131,74 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
     @Override
     public void onDrawFrame(final GL10 gl) {
+        GPUImageTracer.begin("onDrawFrame");
         GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
-        runAll(mRunOnDraw);
-        mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
-        runAll(mRunOnDrawEnd);
+        Object previousOwner = GPUImageResourceRegistry.setOwner(this);
+        mRunOnDraw.runAll();
+        // Tasks and the SurfaceTexture update of the last frame can change GL state directly
+        GLState.invalidate();
+        GPUImageFilter filter = mFilter;
+        GPUImageResourceRegistry.setOwner(filter);
+        GPUImageTracer.begin(filter.getClass());
+        if (mFilterTimer == null) {
+            filter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
+        } else {
+            drawTimed();
+        }
+        filter.invalidateGLStateIfExternal();
+        GPUImageTracer.end(filter.getClass());
+        GPUImageResourceRegistry.setOwner(this);
+        mRunOnDrawEnd.runAll();
+        GPUImageResourceRegistry.setOwner(previousOwner);
         if (mSurfaceTexture != null) {
             mSurfaceTexture.updateTexImage();
         }
+        if (mPendingFrameNanos != 0) {
+            mFrameStats.onRendered(mPendingFrameNanos);
+            mPendingFrameNanos = 0;
+        }
+        GPUImageTracer.end("onDrawFrame");
+    }
+
+    /**
+     * @return the camera frame counters and latencies of this renderer
+     */
+    public GPUImageFrameStats getFrameStats() {
+        return mFrameStats;
+    }
+
+    private void drawTimed() {
+        mFilterTimer.beginFrame();
+        // Groups time each of their passes themselves
+        boolean single = !(mFilter instanceof GPUImageFilterGroup);
+        if (single) {
+            mFilterTimer.begin(mFilter);
+        }
+        mFilter.onDraw(mGLTextureId, mGLCubeBuffer, mGLTextureBuffer);
+        if (single) {
+            mFilterTimer.end(mFilter);
+        }
+        mFilterTimer.endFrame();
+    }
+
+    /**
+     * Reports how long every filter pass takes to the listener about once a second, see
+     * GPUImageFilterTimer. Passing null stops the timing.
+     */
+    public void setOnFilterTimingListener(final GPUImageFilterTimer.OnFilterTimingListener listener) {
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterTimer != null) {
+                    mFilterTimer.destroy();
+                    mFilterTimer = null;
+                }
+                if (listener != null) {
+                    mFilterTimer = new GPUImageFilterTimer(listener);
+                    mFilterTimer.init();
+                }
+            }
+        });
     }
 
     /**
@@ -137,16 +214,10 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
         mBackgroundBlue = blue;
     }
 
-    private void runAll(Queue<Runnable> queue) {
-        synchronized (queue) {
-            while (!queue.isEmpty()) {
-                queue.poll().run();
-            }
-        }
-    }
-
     @Override
     public void onPreviewFrame(final byte[] data, final Camera camera) {
+        final long receivedNanos = System.nanoTime();
+        mFrameStats.onReceived();
         final Size previewSize = camera.getParameters().getPreviewSize();
         if (mGLRgbBuffer == null) {
             mGLRgbBuffer = IntBuffer.allocate(previewSize.width * previewSize.height);
@@ -159,6 +230,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                             mGLRgbBuffer.array());
                     mGLTextureId = OpenGlUtils.loadTexture(mGLRgbBuffer, previewSize, mGLTextureId);
                     camera.addCallbackBuffer(data);
+                    mFrameStats.onConverted();
+                    mPendingFrameNanos = receivedNanos;
 
                     if (mImageWidth != previewSize.width) {
                         mImageWidth = previewSize.width;
@@ -167,6 +240,8 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                     }
                 }
             });
+        } else {
+            mFrameStats.onDropped();
         }
     }
 
@@ -199,8 +274,11 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
                     oldFilter.destroy();
                 }
                 mFilter.init();
-                GLES20.glUseProgram(mFilter.getProgram());
+                GLState.useProgram(mFilter.getProgram());
+                Object previousOwner = GPUImageResourceRegistry.setOwner(mFilter);
                 mFilter.onOutputSizeChanged(mOutputWidth, mOutputHeight);
+                mFilter.invalidateGLStateIfExternal();
+                GPUImageResourceRegistry.setOwner(previousOwner);
             }
         });
     }
@@ -210,7 +288,7 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
 
             @Override
             public void run() {
-                GLES20.glDeleteTextures(1, new int[]{
+                GPUImageResourceRegistry.deleteTextures(1, new int[]{
                         mGLTextureId
                 }, 0);
                 mGLTextureId = NO_IMAGE;
@@ -268,50 +346,14 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     }
 
     private void adjustImageScaling() {
-        float outputWidth = mOutputWidth;
-        float outputHeight = mOutputHeight;
-        if (mRotation == Rotation.ROTATION_270 || mRotation == Rotation.ROTATION_90) {
-            outputWidth = mOutputHeight;
-            outputHeight = mOutputWidth;
-        }
-
-        float ratio1 = outputWidth / mImageWidth;
-        float ratio2 = outputHeight / mImageHeight;
-        float ratioMax = Math.max(ratio1, ratio2);
-        int imageWidthNew = Math.round(mImageWidth * ratioMax);
-        int imageHeightNew = Math.round(mImageHeight * ratioMax);
-
-        float ratioWidth = imageWidthNew / outputWidth;
-        float ratioHeight = imageHeightNew / outputHeight;
-
-        float[] cube = CUBE;
-        float[] textureCords = TextureRotationUtil.getRotation(mRotation, mFlipHorizontal, mFlipVertical);
-        if (mScaleType == GPUImage.ScaleType.CENTER_CROP) {
-            float distHorizontal = (1 - 1 / ratioWidth) / 2;
-            float distVertical = (1 - 1 / ratioHeight) / 2;
-            textureCords = new float[]{
-                    addDistance(textureCords[0], distHorizontal), addDistance(textureCords[1], distVertical),
-                    addDistance(textureCords[2], distHorizontal), addDistance(textureCords[3], distVertical),
-                    addDistance(textureCords[4], distHorizontal), addDistance(textureCords[5], distVertical),
-                    addDistance(textureCords[6], distHorizontal), addDistance(textureCords[7], distVertical),
-            };
-        } else {
-            cube = new float[]{
-                    CUBE[0] / ratioHeight, CUBE[1] / ratioWidth,
-                    CUBE[2] / ratioHeight, CUBE[3] / ratioWidth,
-                    CUBE[4] / ratioHeight, CUBE[5] / ratioWidth,
-                    CUBE[6] / ratioHeight, CUBE[7] / ratioWidth,
-            };
-        }
+        TextureRotationUtil.getScaling(mRotation, mFlipHorizontal, mFlipVertical,
+                mScaleType == GPUImage.ScaleType.CENTER_CROP, mImageWidth, mImageHeight,
+                mOutputWidth, mOutputHeight, mScaledCube, mScaledTextureCoordinates);
 
         mGLCubeBuffer.clear();
-        mGLCubeBuffer.put(cube).position(0);
+        mGLCubeBuffer.put(mScaledCube).position(0);
         mGLTextureBuffer.clear();
-        mGLTextureBuffer.put(textureCords).position(0);
-    }
-
-    private float addDistance(float coordinate, float distance) {
-        return coordinate == 0.0f ? distance : 1 - distance;
+        mGLTextureBuffer.put(mScaledTextureCoordinates).position(0);
     }
 
     public void setRotationCamera(final Rotation rotation, final boolean flipHorizontal,
@@ -344,14 +386,10 @@ public class GPUImageRenderer implements Renderer, PreviewCallback {
     }
 
     protected void runOnDraw(final Runnable runnable) {
-        synchronized (mRunOnDraw) {
-            mRunOnDraw.add(runnable);
-        }
+        mRunOnDraw.add(runnable);
     }
 
     protected void runOnDrawEnd(final Runnable runnable) {
-        synchronized (mRunOnDrawEnd) {
-            mRunOnDrawEnd.add(runnable);
-        }
+        mRunOnDrawEnd.add(runnable);
     }
 }
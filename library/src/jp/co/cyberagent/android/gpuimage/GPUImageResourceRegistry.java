@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLContext;
+
+/**
+ * Accounts the textures, framebuffers and buffers created by the library with their size,
+ * format and owner, which is the filter being initialized or drawn when they were created.
+ * <br>
+ * Objects a filter still owns after destroy() are reported to the OnLeakListener, or logged.
+ * With a budget set, every allocation that brings the live bytes over it asks the registered
+ * Evictables of the current context, such as the idle framebuffers of the filters, to free
+ * memory.
+ * <br>
+ * Objects have to be created and deleted on the GL thread of their context, the gauges can be
+ * read from any thread. The objects and Evictables of a destroyed context are dropped by
+ * contextDestroyed(), which GPUImageRenderer and PixelBuffer call for theirs.
+ */
+public final class GPUImageResourceRegistry {
+    public static final int TYPE_TEXTURE = 0;
+    public static final int TYPE_FRAMEBUFFER = 1;
+    public static final int TYPE_BUFFER = 2;
+
+    private static final String TAG = "GPUImageResources";
+    private static final String[] TYPE_NAMES = {"texture", "framebuffer", "buffer"};
+
+    public interface OnLeakListener {
+        /**
+         * Called on the GL thread when a filter is destroyed with objects it created still
+         * alive.
+         */
+        void onLeak(Object owner, List<Resource> resources);
+    }
+
+    /**
+     * A cache that can give GL memory back, e.g. by deleting idle framebuffers.
+     */
+    public interface Evictable {
+        /**
+         * Called on the GL thread of the context the Evictable was registered for.
+         *
+         * @param bytes how much the live bytes exceed the budget
+         * @return the bytes freed
+         */
+        long evict(long bytes);
+    }
+
+    /**
+     * A live GL object.
+     */
+    public static final class Resource {
+        public final int type;
+        public final int name;
+        public final int width;
+        public final int height;
+        /**
+         * Internal format of a texture, 0 for other objects.
+         */
+        public final int format;
+        public final long bytes;
+        public final String ownerName;
+        final WeakReference<Object> owner;
+        final EGLContext context;
+
+        Resource(final int type, final int name, final int width, final int height, final int format,
+                 final long bytes, final Object owner, final EGLContext context) {
+            this.type = type;
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.bytes = bytes;
+            this.ownerName = owner != null ? owner.getClass().getSimpleName() : "unknown";
+            this.owner = new WeakReference<Object>(owner);
+            this.context = context;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %d %dx%d format 0x%x, %d bytes, owner %s",
+                    TYPE_NAMES[type], name, width, height, format, bytes, ownerName);
+        }
+    }
+
+    private static final class Key {
+        final EGLContext context;
+        final int type;
+        final int name;
+
+        Key(final EGLContext context, final int type, final int name) {
+            this.context = context;
+            this.type = type;
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return key.type == type && key.name == name && sameContext(key.context, context);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((context != null ? context.hashCode() : 0) * 31 + type) * 31 + name;
+        }
+    }
+
+    private static final class EvictableEntry {
+        final WeakReference<Evictable> evictable;
+        final EGLContext context;
+
+        EvictableEntry(final Evictable evictable, final EGLContext context) {
+            this.evictable = new WeakReference<Evictable>(evictable);
+            this.context = context;
+        }
+    }
+
+    private static final Object sLock = new Object();
+    private static final Map<Key, Resource> sLive = new HashMap<Key, Resource>();
+    private static final long[] sLiveBytes = new long[TYPE_NAMES.length];
+    private static final List<EvictableEntry> sEvictables = new ArrayList<EvictableEntry>();
+    private static final ThreadLocal<Object> sOwner = new ThreadLocal<Object>();
+    private static volatile long sBudget;
+    private static volatile OnLeakListener sLeakListener;
+
+    private GPUImageResourceRegistry() {
+    }
+
+    /**
+     * @param bytes the live bytes above which caches are evicted, 0 for no limit. Checked on
+     *              the next allocation.
+     */
+    public static void setBudget(final long bytes) {
+        sBudget = bytes;
+    }
+
+    public static long getBudget() {
+        return sBudget;
+    }
+
+    /**
+     * @param listener notified about objects alive after destroy(), null to log them
+     */
+    public static void setOnLeakListener(final OnLeakListener listener) {
+        sLeakListener = listener;
+    }
+
+    public static long getLiveBytes() {
+        synchronized (sLock) {
+            long bytes = 0;
+            for (long typeBytes : sLiveBytes) {
+                bytes += typeBytes;
+            }
+            return bytes;
+        }
+    }
+
+    public static long getLiveBytes(final int type) {
+        synchronized (sLock) {
+            return sLiveBytes[type];
+        }
+    }
+
+    public static int getLiveCount() {
+        synchronized (sLock) {
+            return sLive.size();
+        }
+    }
+
+    public static List<Resource> getLiveResources() {
+        synchronized (sLock) {
+            return new ArrayList<Resource>(sLive.values());
+        }
+    }
+
+    /**
+     * Records a texture created or respecified by glTexImage2D with an unsigned byte type.
+     */
+    public static void textureAllocated(final int texture, final int width, final int height, final int format) {
+        allocated(TYPE_TEXTURE, texture, width, height, format, (long) width * height * getBytesPerPixel(format));
+    }
+
+    /**
+     * Records a framebuffer. Its memory is accounted with the attached texture.
+     */
+    public static void frameBufferAllocated(final int frameBuffer, final int width, final int height) {
+        allocated(TYPE_FRAMEBUFFER, frameBuffer, width, height, 0, 0);
+    }
+
+    /**
+     * Records a buffer given its storage by glBufferData.
+     */
+    public static void bufferAllocated(final int buffer, final long bytes) {
+        allocated(TYPE_BUFFER, buffer, 0, 0, 0, bytes);
+    }
+
+    public static void deleteTextures(final int n, final int[] textures, final int offset) {
+        GLES20.glDeleteTextures(n, textures, offset);
+        GLState.onTexturesDeleted(n, textures, offset);
+        deleted(TYPE_TEXTURE, n, textures, offset);
+    }
+
+    public static void deleteFrameBuffers(final int n, final int[] frameBuffers, final int offset) {
+        GLES20.glDeleteFramebuffers(n, frameBuffers, offset);
+        GLState.onFrameBuffersDeleted(n, frameBuffers, offset);
+        deleted(TYPE_FRAMEBUFFER, n, frameBuffers, offset);
+    }
+
+    public static void deleteBuffers(final int n, final int[] buffers, final int offset) {
+        GLES20.glDeleteBuffers(n, buffers, offset);
+        deleted(TYPE_BUFFER, n, buffers, offset);
+    }
+
+    /**
+     * Makes the objects created on this thread belong to the given owner until the next call.
+     *
+     * @return the previous owner, to be restored afterwards
+     */
+    static Object setOwner(final Object owner) {
+        Object previous = sOwner.get();
+        sOwner.set(owner);
+        return previous;
+    }
+
+    /**
+     * Asks the given cache to free memory when the budget is exceeded in the current context.
+     * It is held weakly, adding it again for the same context has no effect.
+     */
+    public static void addEvictable(final Evictable evictable) {
+        EGLContext context = getCurrentContext();
+        synchronized (sLock) {
+            for (EvictableEntry entry : sEvictables) {
+                if (entry.evictable.get() == evictable && sameContext(entry.context, context)) {
+                    return;
+                }
+            }
+            sEvictables.add(new EvictableEntry(evictable, context));
+        }
+    }
+
+    public static void removeEvictable(final Evictable evictable) {
+        synchronized (sLock) {
+            Iterator<EvictableEntry> iterator = sEvictables.iterator();
+            while (iterator.hasNext()) {
+                Evictable registered = iterator.next().evictable.get();
+                if (registered == null || registered == evictable) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the objects and Evictables of a context that has been destroyed, or is about to
+     * be, along with the objects in it. Can be called from any thread.
+     */
+    public static void contextDestroyed(final EGLContext context) {
+        synchronized (sLock) {
+            Iterator<Resource> resources = sLive.values().iterator();
+            while (resources.hasNext()) {
+                Resource resource = resources.next();
+                if (sameContext(resource.context, context)) {
+                    sLiveBytes[resource.type] -= resource.bytes;
+                    resources.remove();
+                }
+            }
+            Iterator<EvictableEntry> evictables = sEvictables.iterator();
+            while (evictables.hasNext()) {
+                EvictableEntry entry = evictables.next();
+                if (entry.evictable.get() == null || sameContext(entry.context, context)) {
+                    evictables.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets objects of the given context that went away without being deleted, e.g. with a
+     * context that has been replaced.
+     */
+    static void forget(final EGLContext context, final int type, final int n, final int[] names,
+                       final int offset) {
+        synchronized (sLock) {
+            for (int i = offset; i < offset + n; i++) {
+                Resource resource = sLive.remove(new Key(context, type, names[i]));
+                if (resource != null) {
+                    sLiveBytes[type] -= resource.bytes;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports the objects of the current context that the owner has not deleted.
+     */
+    static void checkReleased(final Object owner) {
+        EGLContext context = getCurrentContext();
+        List<Resource> leaked = null;
+        synchronized (sLock) {
+            for (Resource resource : sLive.values()) {
+                if (sameContext(resource.context, context) && resource.owner.get() == owner) {
+                    if (leaked == null) {
+                        leaked = new ArrayList<Resource>();
+                    }
+                    leaked.add(resource);
+                }
+            }
+        }
+        if (leaked == null) {
+            return;
+        }
+        OnLeakListener listener = sLeakListener;
+        if (listener != null) {
+            listener.onLeak(owner, leaked);
+        } else {
+            for (Resource resource : leaked) {
+                Log.w(TAG, "Alive after destroy: " + resource);
+            }
+        }
+    }
+
+    private static void allocated(final int type, final int name, final int width, final int height,
+                                  final int format, final long bytes) {
+        EGLContext context = getCurrentContext();
+        Resource resource = new Resource(type, name, width, height, format, bytes, sOwner.get(), context);
+        long liveBytes;
+        synchronized (sLock) {
+            Resource previous = sLive.put(new Key(context, type, name), resource);
+            if (previous != null) {
+                sLiveBytes[type] -= previous.bytes;
+            }
+            sLiveBytes[type] += bytes;
+            liveBytes = 0;
+            for (long typeBytes : sLiveBytes) {
+                liveBytes += typeBytes;
+            }
+        }
+        long budget = sBudget;
+        if (budget > 0 && liveBytes > budget) {
+            evict(context, liveBytes - budget);
+        }
+    }
+
+    private static void deleted(final int type, final int n, final int[] names, final int offset) {
+        forget(getCurrentContext(), type, n, names, offset);
+    }
+
+    private static void evict(final EGLContext context, final long excess) {
+        List<Evictable> evictables = new ArrayList<Evictable>();
+        synchronized (sLock) {
+            Iterator<EvictableEntry> iterator = sEvictables.iterator();
+            while (iterator.hasNext()) {
+                EvictableEntry entry = iterator.next();
+                Evictable evictable = entry.evictable.get();
+                if (evictable == null) {
+                    iterator.remove();
+                } else if (sameContext(entry.context, context)) {
+                    evictables.add(evictable);
+                }
+            }
+        }
+        // Called without the lock, evicting deletes objects
+        long remaining = excess;
+        for (int i = 0; i < evictables.size() && remaining > 0; i++) {
+            remaining -= evictables.get(i).evict(remaining);
+        }
+        if (remaining > 0) {
+            Log.w(TAG, "Over budget by " + remaining + " bytes after evicting caches");
+        }
+    }
+
+    private static int getBytesPerPixel(final int format) {
+        switch (format) {
+            case GLES20.GL_ALPHA:
+            case GLES20.GL_LUMINANCE:
+                return 1;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            case GLES20.GL_RGB:
+                return 3;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * EGL returns a new wrapper of the same context on every call, they are equal.
+     */
+    private static boolean sameContext(final EGLContext a, final EGLContext b) {
+        return a == b || a != null && a.equals(b);
+    }
+
+    static EGLContext getCurrentContext() {
+        return ((EGL10) EGLContext.getEGL()).eglGetCurrentContext();
+    }
+}
@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageSaturationBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageSaturationBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String SATURATION_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             " \n" +
@@ -113,4 +116,9 @@ public class GPUImageSaturationBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageSaturationBlendFilter() {
         super(SATURATION_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.SATURATION.createKernel();
+    }
 }
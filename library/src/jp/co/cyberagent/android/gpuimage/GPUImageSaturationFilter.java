@@ -18,10 +18,13 @@ package jp.co.cyberagent.android.gpuimage;
 
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.cpu.CpuKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.SaturationKernel;
+
 /**
  * saturation: The degree of saturation or desaturation to apply to the image (0.0 - 2.0, with 1.0 as the default)
  */
-public class GPUImageSaturationFilter extends GPUImageFilter {
+public class GPUImageSaturationFilter extends GPUImageFilter implements GPUImageCpuFilter {
     public static final String SATURATION_FRAGMENT_SHADER = "" +
             " varying highp vec2 textureCoordinate;\n" +
             " \n" +
@@ -69,4 +72,9 @@ public class GPUImageSaturationFilter extends GPUImageFilter {
         mSaturation = saturation;
         setFloat(mSaturationLocation, mSaturation);
     }
+
+    @Override
+    public CpuKernel getCpuKernel() {
+        return new SaturationKernel(mSaturation);
+    }
 }
@@ -61,7 +61,6 @@ public class GPUImageSketchFilter extends GPUImageFilterGroup {
 
     public GPUImageSketchFilter() {
         super();
-        addFilter(new GPUImageGrayscaleFilter());
-        addFilter(new GPUImage3x3TextureSamplingFilter(SKETCH_FRAGMENT_SHADER));
+        addFilter(new GPUImageLuminanceEdgeFilter(GPUImageLuminanceEdgeFilter.OUTPUT_MAGNITUDE, true, 0.5f));
     }
 }
@@ -20,7 +20,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Applies sobel edge detection on the image.
+ * Applies sobel edge detection on the image. Luminance is computed while sampling, see
+ * {@link GPUImageLuminanceEdgeFilter}; SOBEL_EDGE_DETECTION expects an already grayscale input.
  */
 public class GPUImageSobelEdgeDetection extends GPUImageFilterGroup {
     public static final String SOBEL_EDGE_DETECTION = "" +
@@ -60,11 +61,10 @@ public class GPUImageSobelEdgeDetection extends GPUImageFilterGroup {
 
     public GPUImageSobelEdgeDetection() {
         super();
-        addFilter(new GPUImageGrayscaleFilter());
-        addFilter(new GPUImage3x3TextureSamplingFilter(SOBEL_EDGE_DETECTION));
+        addFilter(new GPUImageLuminanceEdgeFilter());
     }
 
     public void setLineSize(final float size) {
-        ((GPUImage3x3TextureSamplingFilter) getFilters().get(1)).setLineSize(size);
+        ((GPUImage3x3TextureSamplingFilter) getFilters().get(0)).setLineSize(size);
     }
 }
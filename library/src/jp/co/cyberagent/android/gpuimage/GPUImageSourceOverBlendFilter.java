@@ -16,7 +16,10 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-public class GPUImageSourceOverBlendFilter extends GPUImageTwoInputFilter {
+import jp.co.cyberagent.android.gpuimage.cpu.BlendKernel;
+import jp.co.cyberagent.android.gpuimage.cpu.BlendMode;
+
+public class GPUImageSourceOverBlendFilter extends GPUImageTwoInputFilter implements GPUImageCpuBlendFilter {
     public static final String SOURCE_OVER_BLEND_FRAGMENT_SHADER = "varying highp vec2 textureCoordinate;\n" +
             " varying highp vec2 textureCoordinate2;\n" +
             " \n" +
@@ -34,4 +37,9 @@ public class GPUImageSourceOverBlendFilter extends GPUImageTwoInputFilter {
     public GPUImageSourceOverBlendFilter() {
         super(SOURCE_OVER_BLEND_FRAGMENT_SHADER);
     }
+
+    @Override
+    public BlendKernel getCpuBlendKernel() {
+        return BlendMode.SOURCE_OVER.createKernel();
+    }
 }
@@ -20,9 +20,10 @@ import android.graphics.PointF;
 import android.opengl.GLES20;
 
 /**
- * Creates a swirl distortion on the image.
+ * Creates a swirl distortion on the image. The swirl is evaluated on the vertices of a mesh,
+ * see {@link GPUImageMeshWarpFilter}.
  */
-public class GPUImageSwirlFilter extends GPUImageFilter {
+public class GPUImageSwirlFilter extends GPUImageMeshWarpFilter {
     public static final String SWIRL_FRAGMENT_SHADER = "" +
             "varying highp vec2 textureCoordinate;\n" +
             "\n" +
@@ -51,6 +52,27 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
             "\n" +
             "}\n";
 
+    public static final String SWIRL_WARP_FUNCTION = "" +
+            "uniform highp vec2 center;\n" +
+            "uniform highp float radius;\n" +
+            "uniform highp float angle;\n" +
+            "\n" +
+            "vec2 warp(vec2 coordinate)\n" +
+            "{\n" +
+            "    highp float dist = distance(center, coordinate);\n" +
+            "    if (dist < radius)\n" +
+            "    {\n" +
+            "        coordinate -= center;\n" +
+            "        highp float percent = (radius - dist) / radius;\n" +
+            "        highp float theta = percent * percent * angle * 8.0;\n" +
+            "        highp float s = sin(theta);\n" +
+            "        highp float c = cos(theta);\n" +
+            "        coordinate = vec2(dot(coordinate, vec2(c, -s)), dot(coordinate, vec2(s, c)));\n" +
+            "        coordinate += center;\n" +
+            "    }\n" +
+            "    return coordinate;\n" +
+            "}\n";
+
     private float mAngle;
     private int mAngleLocation;
     private float mRadius;
@@ -63,7 +85,7 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
     }
 
     public GPUImageSwirlFilter(float radius, float angle, PointF center) {
-        super(NO_FILTER_VERTEX_SHADER, SWIRL_FRAGMENT_SHADER);
+        super(SWIRL_WARP_FUNCTION);
         mRadius = radius;
         mAngle = angle;
         mCenter = center;
@@ -93,6 +115,7 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
     public void setRadius(float radius) {
         mRadius = radius;
         setFloat(mRadiusLocation, radius);
+        invalidateMesh();
     }
 
     /**
@@ -103,6 +126,7 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
     public void setAngle(float angle) {
         mAngle = angle;
         setFloat(mAngleLocation, angle);
+        invalidateMesh();
     }
 
     /**
@@ -113,5 +137,24 @@ public class GPUImageSwirlFilter extends GPUImageFilter {
     public void setCenter(PointF center) {
         mCenter = center;
         setPoint(mCenterLocation, center);
+        invalidateMesh();
+    }
+
+    @Override
+    protected void getWarpBounds(final float[] bounds) {
+        bounds[0] = mCenter.x - mRadius;
+        bounds[1] = mCenter.y - mRadius;
+        bounds[2] = mCenter.x + mRadius;
+        bounds[3] = mCenter.y + mRadius;
+    }
+
+    @Override
+    protected float getWarpCurvature() {
+        if (mRadius <= 0) {
+            return 0;
+        }
+        // theta peaks at 8 * angle with slope 16 * angle / radius
+        float angle = Math.abs(mAngle);
+        return (48.0f * angle + 256.0f * angle * angle) / mRadius;
     }
 }
@@ -6,15 +6,14 @@ package jp.co.cyberagent.android.gpuimage;
 public class GPUImageThresholdEdgeDetection extends GPUImageFilterGroup {
     public GPUImageThresholdEdgeDetection() {
         super();
-        addFilter(new GPUImageGrayscaleFilter());
-        addFilter(new GPUImageSobelThresholdFilter());
+        addFilter(new GPUImageLuminanceEdgeFilter(GPUImageLuminanceEdgeFilter.OUTPUT_THRESHOLD, true, 0.9f));
     }
 
     public void setLineSize(final float size) {
-        ((GPUImage3x3TextureSamplingFilter) getFilters().get(1)).setLineSize(size);
+        ((GPUImage3x3TextureSamplingFilter) getFilters().get(0)).setLineSize(size);
     }
 
     public void setThreshold(final float threshold) {
-        ((GPUImageSobelThresholdFilter) getFilters().get(1)).setThreshold(threshold);
+        ((GPUImageLuminanceEdgeFilter) getFilters().get(0)).setThreshold(threshold);
     }
 }
@@ -16,15 +16,15 @@
 
 package jp.co.cyberagent.android.gpuimage;
 
-import android.graphics.Point;
 import android.graphics.PointF;
 import android.opengl.GLES20;
 
+import jp.co.cyberagent.android.gpuimage.util.SplineCurve;
+
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GPUImageToneCurveFilter extends GPUImageFilter {
     public static final String TONE_CURVE_FRAGMENT_SHADER = "" +
@@ -50,11 +50,15 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
     private PointF[] mGreenControlPoints;
     private PointF[] mBlueControlPoints;
 
-    private ArrayList<Float> mRgbCompositeCurve;
-    private ArrayList<Float> mRedCurve;
-    private ArrayList<Float> mGreenCurve;
-    private ArrayList<Float> mBlueCurve;
+    private float[] mRgbCompositeCurve;
+    private float[] mRedCurve;
+    private float[] mGreenCurve;
+    private float[] mBlueCurve;
 
+    private final ByteBuffer mToneCurveBuffer = ByteBuffer.allocateDirect(SplineCurve.LEVELS * 4)
+            .order(ByteOrder.nativeOrder());
+    private final AtomicBoolean mToneCurveUpdatePending = new AtomicBoolean();
+    private boolean mToneCurveTextureAllocated;
 
     public GPUImageToneCurveFilter() {
         super(NO_FILTER_VERTEX_SHADER, TONE_CURVE_FRAGMENT_SHADER);
@@ -70,73 +74,95 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
     public void onInit() {
         super.onInit();
         mToneCurveTextureUniformLocation = GLES20.glGetUniformLocation(getProgram(), "toneCurveTexture");
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+        GLState.activeTexture(GLES20.GL_TEXTURE3);
         GLES20.glGenTextures(1, mToneCurveTexture, 0);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
         GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        mToneCurveTextureAllocated = false;
     }
 
     @Override
     public void onInitialized() {
         super.onInitialized();
-        setRgbCompositeControlPoints(mRgbCompositeControlPoints);
-        setRedControlPoints(mRedControlPoints);
-        setGreenControlPoints(mGreenControlPoints);
-        setBlueControlPoints(mBlueControlPoints);
+        setAllControlPoints(mRgbCompositeControlPoints, mRedControlPoints,
+                mGreenControlPoints, mBlueControlPoints);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        GPUImageResourceRegistry.deleteTextures(1, mToneCurveTexture, 0);
+        mToneCurveTexture[0] = OpenGlUtils.NO_TEXTURE;
     }
 
     @Override
     protected void onDrawArraysPre() {
         if (mToneCurveTexture[0] != OpenGlUtils.NO_TEXTURE) {
-            GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
+            GLState.activeTexture(GLES20.GL_TEXTURE3);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
             GLES20.glUniform1i(mToneCurveTextureUniformLocation, 3);
         }
     }
 
     public void setFromCurveFileInputStream(InputStream input) {
         try {
-            int version = readShort(input);
-            int totalCurves = readShort(input);
+            ByteBuffer data = ByteBuffer.wrap(readFully(input));
+            input.close();
 
-            ArrayList<PointF[]> curves = new ArrayList<PointF[]>(totalCurves);
+            // Big endian shorts: version, number of curves, then per curve the number of
+            // points (2...19) followed by (output, input) pairs in the range 0 to 255.
+            data.getShort();
+            int totalCurves = data.getShort();
+
+            PointF[][] curves = new PointF[totalCurves][];
             float pointRate = 1.0f / 255;
 
             for (int i = 0; i < totalCurves; i++) {
-                // 2 bytes, Count of points in the curve (short integer from 2...19)
-                short pointCount = readShort(input);
-
+                short pointCount = data.getShort();
                 PointF[] points = new PointF[pointCount];
-
-                // point count * 4
-                // Curve points. Each curve point is a pair of short integers where
-                // the first number is the output value (vertical coordinate on the
-                // Curves dialog graph) and the second is the input value. All coordinates have range 0 to 255.
                 for (int j = 0; j < pointCount; j++) {
-                    short y = readShort(input);
-                    short x = readShort(input);
-
+                    short y = data.getShort();
+                    short x = data.getShort();
                     points[j] = new PointF(x * pointRate, y * pointRate);
                 }
-
-                curves.add(points);
+                curves[i] = points;
             }
-            input.close();
 
-            mRgbCompositeControlPoints = curves.get(0);
-            mRedControlPoints = curves.get(1);
-            mGreenControlPoints = curves.get(2);
-            mBlueControlPoints = curves.get(3);
+            setAllControlPoints(curves[0], curves[1], curves[2], curves[3]);
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (RuntimeException e) {
+            // Truncated or otherwise malformed file
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(512);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
         }
+        return output.toByteArray();
     }
 
-    private short readShort(InputStream input) throws IOException {
-        return (short) (input.read() << 8 | input.read());
+    /**
+     * Sets the control points of all curves at once, which updates the curve texture only once.
+     */
+    public void setAllControlPoints(PointF[] rgbComposite, PointF[] red, PointF[] green, PointF[] blue) {
+        mRgbCompositeControlPoints = rgbComposite;
+        mRgbCompositeCurve = createSplineCurve(rgbComposite);
+        mRedControlPoints = red;
+        mRedCurve = createSplineCurve(red);
+        mGreenControlPoints = green;
+        mGreenCurve = createSplineCurve(green);
+        mBlueControlPoints = blue;
+        mBlueCurve = createSplineCurve(blue);
+        updateToneCurveTexture();
     }
 
     public void setRgbCompositeControlPoints(PointF[] points) {
@@ -163,202 +189,81 @@ public class GPUImageToneCurveFilter extends GPUImageFilter {
         updateToneCurveTexture();
     }
 
+    /**
+     * Schedules a texture upload unless one is pending already, so several setters called
+     * between two frames result in a single upload of the latest curves.
+     */
     private void updateToneCurveTexture() {
+        if (!mToneCurveUpdatePending.compareAndSet(false, true)) {
+            return;
+        }
         runOnDraw(new Runnable() {
             @Override
             public void run() {
-                GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
-
-                if ((mRedCurve.size() >= 256) && (mGreenCurve.size() >= 256) && (mBlueCurve.size() >= 256) && (mRgbCompositeCurve.size() >= 256)) {
-                    byte[] toneCurveByteArray = new byte[256 * 4];
-                    for (int currentCurveIndex = 0; currentCurveIndex < 256; currentCurveIndex++) {
-                        // BGRA for upload to texture
-                        toneCurveByteArray[currentCurveIndex * 4 + 2] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mBlueCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 1] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mGreenCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4] = (byte) ((int) Math.min(Math.max(currentCurveIndex + mRedCurve.get(currentCurveIndex) + mRgbCompositeCurve.get(currentCurveIndex), 0), 255) & 0xff);
-                        toneCurveByteArray[currentCurveIndex * 4 + 3] = (byte) (255 & 0xff);
-                    }
-
-                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, 256 /*width*/, 1 /*height*/, 0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, ByteBuffer.wrap(toneCurveByteArray));
+                mToneCurveUpdatePending.set(false);
+                float[] rgbCompositeCurve = mRgbCompositeCurve;
+                float[] redCurve = mRedCurve;
+                float[] greenCurve = mGreenCurve;
+                float[] blueCurve = mBlueCurve;
+                if (rgbCompositeCurve == null || redCurve == null || greenCurve == null || blueCurve == null) {
+                    return;
                 }
-//        Buffer pixels!
-//        GLES20.glTexImage2D(int target,
-//            int level,
-//            int internalformat,
-//            int width,
-//            int height,
-//            int border,
-//            int format,
-//            int type,
-//            java.nio.Buffer pixels);
-            }
-        });
-    }
 
-    private ArrayList<Float> createSplineCurve(PointF[] points) {
-        if (points == null || points.length <= 0) {
-            return null;
-        }
+                mToneCurveBuffer.position(0);
+                for (int i = 0; i < SplineCurve.LEVELS; i++) {
+                    float composite = i + rgbCompositeCurve[i];
+                    mToneCurveBuffer.put(clampToByte(composite + redCurve[i]));
+                    mToneCurveBuffer.put(clampToByte(composite + greenCurve[i]));
+                    mToneCurveBuffer.put(clampToByte(composite + blueCurve[i]));
+                    mToneCurveBuffer.put((byte) 0xff);
+                }
+                mToneCurveBuffer.position(0);
 
-        // Sort the array
-        PointF[] pointsSorted = points.clone();
-        Arrays.sort(pointsSorted, new Comparator<PointF>() {
-            @Override
-            public int compare(PointF point1, PointF point2) {
-                if (point1.x < point2.x) {
-                    return -1;
-                } else if (point1.x > point2.x) {
-                    return 1;
+                GLState.activeTexture(GLES20.GL_TEXTURE3);
+                GLState.bindTexture(GLES20.GL_TEXTURE_2D, mToneCurveTexture[0]);
+                if (mToneCurveTextureAllocated) {
+                    GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, SplineCurve.LEVELS /*width*/, 1 /*height*/,
+                            GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mToneCurveBuffer);
                 } else {
-                    return 0;
+                    GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, SplineCurve.LEVELS /*width*/, 1 /*height*/,
+                            0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mToneCurveBuffer);
+                    GPUImageResourceRegistry.textureAllocated(mToneCurveTexture[0], SplineCurve.LEVELS, 1, GLES20.GL_RGBA);
+                    mToneCurveTextureAllocated = true;
                 }
             }
         });
-
-        // Convert from (0, 1) to (0, 255).
-        Point[] convertedPoints = new Point[pointsSorted.length];
-        for (int i = 0; i < points.length; i++) {
-            PointF point = pointsSorted[i];
-            convertedPoints[i] = new Point((int) (point.x * 255), (int) (point.y * 255));
-        }
-
-        ArrayList<Point> splinePoints = createSplineCurve2(convertedPoints);
-
-        // If we have a first point like (0.3, 0) we'll be missing some points at the beginning
-        // that should be 0.
-        Point firstSplinePoint = splinePoints.get(0);
-        if (firstSplinePoint.x > 0) {
-            for (int i = firstSplinePoint.x; i >= 0; i--) {
-                splinePoints.add(0, new Point(i, 0));
-            }
-        }
-
-        // Insert points similarly at the end, if necessary.
-        Point lastSplinePoint = splinePoints.get(splinePoints.size() - 1);
-        if (lastSplinePoint.x < 255) {
-            for (int i = lastSplinePoint.x + 1; i <= 255; i++) {
-                splinePoints.add(new Point(i, 255));
-            }
-        }
-
-        // Prepare the spline points.
-        ArrayList<Float> preparedSplinePoints = new ArrayList<Float>(splinePoints.size());
-        for (Point newPoint : splinePoints) {
-            Point origPoint = new Point(newPoint.x, newPoint.x);
-
-            float distance = (float) Math.sqrt(Math.pow((origPoint.x - newPoint.x), 2.0) + Math.pow((origPoint.y - newPoint.y), 2.0));
-
-            if (origPoint.y > newPoint.y) {
-                distance = -distance;
-            }
-
-            preparedSplinePoints.add(distance);
-        }
-
-        return preparedSplinePoints;
     }
 
-    private ArrayList<Point> createSplineCurve2(Point[] points) {
-        ArrayList<Double> sdA = createSecondDerivative(points);
-
-        // Is [points count] equal to [sdA count]?
-//    int n = [points count];
-        int n = sdA.size();
-        if (n < 1) {
-            return null;
-        }
-        double sd[] = new double[n];
-
-        // From NSMutableArray to sd[n];
-        for (int i = 0; i < n; i++) {
-            sd[i] = sdA.get(i);
-        }
-
-
-        ArrayList<Point> output = new ArrayList<Point>(n + 1);
-
-        for (int i = 0; i < n - 1; i++) {
-            Point cur = points[i];
-            Point next = points[i + 1];
-
-            for (int x = cur.x; x < next.x; x++) {
-                double t = (double) (x - cur.x) / (next.x - cur.x);
-
-                double a = 1 - t;
-                double b = t;
-                double h = next.x - cur.x;
-
-                double y = a * cur.y + b * next.y + (h * h / 6) * ((a * a * a - a) * sd[i] + (b * b * b - b) * sd[i + 1]);
-
-                if (y > 255.0) {
-                    y = 255.0;
-                } else if (y < 0.0) {
-                    y = 0.0;
-                }
+    @Override
+    protected boolean appendTextureParameters(final StringBuilder key) {
+        appendControlPoints(key, mRgbCompositeControlPoints);
+        appendControlPoints(key, mRedControlPoints);
+        appendControlPoints(key, mGreenControlPoints);
+        appendControlPoints(key, mBlueControlPoints);
+        return true;
+    }
 
-                output.add(new Point(x, (int) Math.round(y)));
-            }
+    private static void appendControlPoints(final StringBuilder key, final PointF[] points) {
+        key.append(" curve=");
+        for (PointF point : points) {
+            key.append(point.x).append(',').append(point.y).append(';');
         }
+    }
 
-        // If the last point is (255, 255) it doesn't get added.
-        if (output.size() == 255) {
-            output.add(points[points.length - 1]);
-        }
-        return output;
+    private static byte clampToByte(float value) {
+        return (byte) ((int) Math.min(Math.max(value, 0), 255) & 0xff);
     }
 
-    private ArrayList<Double> createSecondDerivative(Point[] points) {
-        int n = points.length;
-        if (n <= 1) {
+    private float[] createSplineCurve(PointF[] points) {
+        if (points == null || points.length <= 0) {
             return null;
         }
-
-        double matrix[][] = new double[n][3];
-        double result[] = new double[n];
-        matrix[0][1] = 1;
-        // What about matrix[0][1] and matrix[0][0]? Assuming 0 for now (Brad L.)
-        matrix[0][0] = 0;
-        matrix[0][2] = 0;
-
-        for (int i = 1; i < n - 1; i++) {
-            Point P1 = points[i - 1];
-            Point P2 = points[i];
-            Point P3 = points[i + 1];
-
-            matrix[i][0] = (double) (P2.x - P1.x) / 6;
-            matrix[i][1] = (double) (P3.x - P1.x) / 3;
-            matrix[i][2] = (double) (P3.x - P2.x) / 6;
-            result[i] = (double) (P3.y - P2.y) / (P3.x - P2.x) - (double) (P2.y - P1.y) / (P2.x - P1.x);
-        }
-
-        // What about result[0] and result[n-1]? Assuming 0 for now (Brad L.)
-        result[0] = 0;
-        result[n - 1] = 0;
-
-        matrix[n - 1][1] = 1;
-        // What about matrix[n-1][0] and matrix[n-1][2]? For now, assuming they are 0 (Brad L.)
-        matrix[n - 1][0] = 0;
-        matrix[n - 1][2] = 0;
-
-        // solving pass1 (up->down)
-        for (int i = 1; i < n; i++) {
-            double k = matrix[i][0] / matrix[i - 1][1];
-            matrix[i][1] -= k * matrix[i - 1][2];
-            matrix[i][0] = 0;
-            result[i] -= k * result[i - 1];
-        }
-        // solving pass2 (down->up)
-        for (int i = n - 2; i >= 0; i--) {
-            double k = matrix[i][2] / matrix[i + 1][1];
-            matrix[i][1] -= k * matrix[i + 1][0];
-            matrix[i][2] = 0;
-            result[i] -= k * result[i + 1];
+        float[] xs = new float[points.length];
+        float[] ys = new float[points.length];
+        for (int i = 0; i < points.length; i++) {
+            xs[i] = points[i].x;
+            ys[i] = points[i].y;
         }
-
-        ArrayList<Double> output = new ArrayList<Double>(n);
-        for (int i = 0; i < n; i++) output.add(result[i] / matrix[i][1]);
-
-        return output;
+        return SplineCurve.getCurve(xs, ys);
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records spans of the render thread, such as frames, filter passes, texture uploads,
+ * readbacks, shader compiles and runOnDraw tasks, into a preallocated ring buffer and writes
+ * them as Chrome trace-event JSON, which chrome://tracing and Perfetto open. Recording does
+ * not allocate, and while stopped every span costs a single branch.
+ * <br>
+ * GPUImageTracer.start();
+ * ... reproduce the jank ...
+ * GPUImageTracer.stop();
+ * GPUImageTracer.writeJson(new FileWriter(file));
+ */
+public final class GPUImageTracer {
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static volatile boolean sEnabled;
+    private static volatile Buffer sBuffer = new Buffer(1);
+
+    private static final class Buffer {
+        final int mask;
+        // A name is a String or the Class of a filter or task, resolved when writing
+        final Object[] names;
+        final char[] phases;
+        final long[] times;
+        final Thread[] threads;
+        final AtomicLong next = new AtomicLong();
+
+        Buffer(final int capacity) {
+            mask = capacity - 1;
+            names = new Object[capacity];
+            phases = new char[capacity];
+            times = new long[capacity];
+            threads = new Thread[capacity];
+        }
+    }
+
+    private GPUImageTracer() {
+    }
+
+    public static void start() {
+        start(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Drops the recorded events and starts recording.
+     *
+     * @param capacity number of events kept, rounded up to a power of two. Older events are
+     *                 overwritten.
+     */
+    public static synchronized void start(final int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        sBuffer = new Buffer(size);
+        sEnabled = true;
+    }
+
+    /**
+     * Stops recording and keeps the events for writeJson.
+     */
+    public static void stop() {
+        sEnabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Opens a span on the current thread.
+     *
+     * @param name a String or a Class, whose simple name is used
+     */
+    public static void begin(final Object name) {
+        if (sEnabled) {
+            record('B', name);
+        }
+    }
+
+    /**
+     * Closes the innermost open span of the current thread.
+     */
+    public static void end(final Object name) {
+        if (sEnabled) {
+            record('E', name);
+        }
+    }
+
+    private static void record(final char phase, final Object name) {
+        Buffer buffer = sBuffer;
+        int slot = (int) (buffer.next.getAndIncrement() & buffer.mask);
+        buffer.names[slot] = name;
+        buffer.phases[slot] = phase;
+        buffer.threads[slot] = Thread.currentThread();
+        buffer.times[slot] = System.nanoTime();
+    }
+
+    /**
+     * Writes the recorded events as a trace-event JSON object. Call it after stop(), events
+     * recorded while writing may come out incomplete.
+     */
+    public static synchronized void writeJson(final Writer writer) throws IOException {
+        Buffer buffer = sBuffer;
+        long next = buffer.next.get();
+        int count = (int) Math.min(next, buffer.mask + 1);
+        long first = next - count;
+        long origin = count > 0 ? buffer.times[(int) (first & buffer.mask)] : 0;
+        Map<Long, String> threadNames = new LinkedHashMap<Long, String>();
+
+        writer.write("{\"traceEvents\":[");
+        boolean separator = false;
+        for (long i = first; i < next; i++) {
+            int slot = (int) (i & buffer.mask);
+            Thread thread = buffer.threads[slot];
+            if (thread == null) {
+                continue;
+            }
+            if (!threadNames.containsKey(thread.getId())) {
+                threadNames.put(thread.getId(), thread.getName());
+            }
+            if (separator) {
+                writer.write(",\n");
+            }
+            separator = true;
+            writer.write("{\"name\":\"");
+            writeEscaped(writer, getName(buffer.names[slot]));
+            writer.write(String.format(Locale.US, "\",\"cat\":\"gpuimage\",\"ph\":\"%c\",\"ts\":%.3f,\"pid\":1,\"tid\":%d}",
+                    buffer.phases[slot], (buffer.times[slot] - origin) / 1000.0, thread.getId()));
+        }
+        for (Map.Entry<Long, String> thread : threadNames.entrySet()) {
+            if (separator) {
+                writer.write(",\n");
+            }
+            separator = true;
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+                    + ",\"args\":{\"name\":\"");
+            writeEscaped(writer, thread.getValue());
+            writer.write("\"}}");
+        }
+        writer.write("],\"displayTimeUnit\":\"ms\"}\n");
+        writer.flush();
+    }
+
+    private static String getName(final Object name) {
+        if (name instanceof Class) {
+            Class<?> type = (Class<?>) name;
+            String simpleName = type.getSimpleName();
+            if (simpleName.length() > 0) {
+                return simpleName;
+            }
+            // Anonymous classes such as the runOnDraw tasks of filters
+            return type.getName().substring(type.getName().lastIndexOf('.') + 1);
+        }
+        return String.valueOf(name);
+    }
+
+    private static void writeEscaped(final Writer writer, final String value) throws IOException {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+    }
+}
@@ -29,6 +29,11 @@ public class GPUImageTransformFilter extends GPUImageFilter {
 
     private float[] transform3D;
 
+    private final float[] adjustedVertices = new float[8];
+    private final FloatBuffer adjustedCubeBuffer = ByteBuffer.allocateDirect(8 * 4)
+            .order(ByteOrder.nativeOrder())
+            .asFloatBuffer();
+
     // This applies the transform to the raw frame data if set to YES, the default of NO takes the aspect ratio of the image input into account when rotating
     private boolean ignoreAspectRatio;
 
@@ -77,9 +82,6 @@ public class GPUImageTransformFilter extends GPUImageFilter {
         FloatBuffer vertBuffer = cubeBuffer;
 
         if (!ignoreAspectRatio) {
-
-            float[] adjustedVertices = new float[8];
-
             cubeBuffer.position(0);
             cubeBuffer.get(adjustedVertices);
 
@@ -89,11 +91,8 @@ public class GPUImageTransformFilter extends GPUImageFilter {
             adjustedVertices[5] *= normalizedHeight;
             adjustedVertices[7] *= normalizedHeight;
 
-            vertBuffer = ByteBuffer.allocateDirect(adjustedVertices.length * 4)
-                    .order(ByteOrder.nativeOrder())
-                    .asFloatBuffer();
-
-            vertBuffer.put(adjustedVertices).position(0);
+            adjustedCubeBuffer.put(adjustedVertices).position(0);
+            vertBuffer = adjustedCubeBuffer;
         }
 
         super.onDraw(textureId, vertBuffer, textureBuffer);
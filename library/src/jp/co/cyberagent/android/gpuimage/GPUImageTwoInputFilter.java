@@ -25,7 +25,7 @@ import android.graphics.Bitmap;
 import android.opengl.GLES20;
 
 public class GPUImageTwoInputFilter extends GPUImageFilter {
-    private static final String VERTEX_SHADER = "attribute vec4 position;\n" +
+    static final String VERTEX_SHADER = "attribute vec4 position;\n" +
             "attribute vec4 inputTextureCoordinate;\n" +
             "attribute vec4 inputTextureCoordinate2;\n" +
             " \n" +
@@ -42,7 +42,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
     public int mFilterSecondTextureCoordinateAttribute;
     public int mFilterInputTextureUniform2;
     public int mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
-    private ByteBuffer mTexture2CoordinatesBuffer;
+    private FloatBuffer mTexture2CoordinatesBuffer;
     private Bitmap mBitmap;
 
     public GPUImageTwoInputFilter(String fragmentShader) {
@@ -60,7 +60,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
         mFilterSecondTextureCoordinateAttribute = GLES20.glGetAttribLocation(getProgram(), "inputTextureCoordinate2");
         mFilterInputTextureUniform2 = GLES20.glGetUniformLocation(getProgram(), "inputImageTexture2"); // This does assume a name of "inputImageTexture2" for second input texture in the fragment shader
-        GLES20.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
+        GLState.enableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
 
         if (mBitmap != null&&!mBitmap.isRecycled()) {
             setBitmap(mBitmap);
@@ -81,7 +81,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
                     if (bitmap == null || bitmap.isRecycled()) {
                         return;
                     }
-                    GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
+                    GLState.activeTexture(GLES20.GL_TEXTURE3);
                     mFilterSourceTexture2 = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
                 }
             }
@@ -101,7 +101,7 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
     public void onDestroy() {
         super.onDestroy();
-        GLES20.glDeleteTextures(1, new int[]{
+        GPUImageResourceRegistry.deleteTextures(1, new int[]{
                 mFilterSourceTexture2
         }, 0);
         mFilterSourceTexture2 = OpenGlUtils.NO_TEXTURE;
@@ -109,13 +109,13 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
 
     @Override
     protected void onDrawArraysPre() {
-        GLES20.glEnableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE3);
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mFilterSourceTexture2);
+        GLState.enableVertexAttribArray(mFilterSecondTextureCoordinateAttribute);
+        GLState.activeTexture(GLES20.GL_TEXTURE3);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, mFilterSourceTexture2);
         GLES20.glUniform1i(mFilterInputTextureUniform2, 3);
 
         mTexture2CoordinatesBuffer.position(0);
-        GLES20.glVertexAttribPointer(mFilterSecondTextureCoordinateAttribute, 2, GLES20.GL_FLOAT, false, 0, mTexture2CoordinatesBuffer);
+        QuadBufferCache.vertexAttribPointer(mFilterSecondTextureCoordinateAttribute, mTexture2CoordinatesBuffer);
     }
 
     public void setRotation(final Rotation rotation, final boolean flipHorizontal, final boolean flipVertical) {
@@ -126,6 +126,6 @@ public class GPUImageTwoInputFilter extends GPUImageFilter {
         fBuffer.put(buffer);
         fBuffer.flip();
 
-        mTexture2CoordinatesBuffer = bBuffer;
+        mTexture2CoordinatesBuffer = fBuffer;
     }
 }
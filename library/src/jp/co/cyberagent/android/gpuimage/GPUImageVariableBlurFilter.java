@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Blurs every pixel by its own amount, e.g. for tilt-shift or a blurred vignette. The levels of
+ * a GPUImagePyramid of the input, shared with other consumers when inside a group, are packed
+ * into one atlas texture. Each pixel then blends the two levels around its blur level, so the
+ * cost does not grow with the radius.
+ * mask: MASK_LINEAR (a sharp band through center at the given angle), MASK_RADIAL (a sharp
+ * circle around center) or MASK_TEXTURE (blur level from the red channel of a bitmap,
+ * maxBlurLevel everywhere until one is set)
+ * focusRadius: half width of the sharp band or radius of the sharp circle, default 0.2
+ * falloff: distance over which the blur ramps up to the maximum, default 0.2
+ * maxBlurLevel: blur at the strongest, in halvings (the radius doubles per level), default 4.0
+ */
+public class GPUImageVariableBlurFilter extends GPUImageFilter implements GPUImagePyramidConsumer {
+    public static final int MASK_LINEAR = 0;
+    public static final int MASK_RADIAL = 1;
+    public static final int MASK_TEXTURE = 2;
+
+    public static final int MAX_LEVELS = GPUImagePyramid.MAX_LEVELS;
+
+    public static final String VARIABLE_BLUR_FRAGMENT_SHADER = "" +
+            "precision mediump float;\n" +
+            "\n" +
+            "varying highp vec2 textureCoordinate;\n" +
+            "\n" +
+            "uniform sampler2D inputImageTexture;\n" +
+            "uniform sampler2D levelAtlas;\n" +
+            "uniform sampler2D blurMask;\n" +
+            "\n" +
+            "uniform highp vec4 levelBounds[" + MAX_LEVELS + "];\n" +
+            "// From texture coordinates to atlas coordinates, two levels per vector\n" +
+            "uniform highp vec4 levelScales[" + MAX_LEVELS / 2 + "];\n" +
+            "uniform highp vec2 atlasTexel;\n" +
+            "uniform highp vec4 maskParameters;\n" +
+            "uniform highp vec4 maskDirection;\n" +
+            "uniform vec2 blurLevels;\n" +
+            "uniform float hasMaskTexture;\n" +
+            "\n" +
+            "float blurLevel()\n" +
+            "{\n" +
+            "    if (maskDirection.z > 1.5) {\n" +
+            "        // Uniform blur until a mask bitmap is set\n" +
+            "        return hasMaskTexture > 0.5 ? texture2D(blurMask, textureCoordinate).r * blurLevels.x : blurLevels.x;\n" +
+            "    }\n" +
+            "    highp float aspectRatio = maskDirection.w;\n" +
+            "    highp vec2 point = vec2(textureCoordinate.x, textureCoordinate.y * aspectRatio + 0.5 - 0.5 * aspectRatio);\n" +
+            "    highp vec2 offset = point - maskParameters.xy;\n" +
+            "    highp float dist = maskDirection.z > 0.5 ? length(offset) : abs(dot(offset, maskDirection.xy));\n" +
+            "    return smoothstep(maskParameters.z, maskParameters.z + maskParameters.w, dist) * blurLevels.x;\n" +
+            "}\n" +
+            "\n" +
+            "vec4 sampleLevel(highp vec4 bounds, highp vec2 scale)\n" +
+            "{\n" +
+            "    highp vec2 coordinate = bounds.xy - 0.5 * atlasTexel + textureCoordinate * scale;\n" +
+            "    highp vec2 offset = 0.5 * atlasTexel;\n" +
+            "    return 0.25 * (texture2D(levelAtlas, clamp(coordinate - offset, bounds.xy, bounds.zw))\n" +
+            "            + texture2D(levelAtlas, clamp(coordinate + vec2(offset.x, -offset.y), bounds.xy, bounds.zw))\n" +
+            "            + texture2D(levelAtlas, clamp(coordinate + vec2(-offset.x, offset.y), bounds.xy, bounds.zw))\n" +
+            "            + texture2D(levelAtlas, clamp(coordinate + offset, bounds.xy, bounds.zw)));\n" +
+            "}\n" +
+            "\n" +
+            "void main()\n" +
+            "{\n" +
+            "    vec4 sharp = texture2D(inputImageTexture, textureCoordinate);\n" +
+            "    float level = clamp(blurLevel(), 0.0, blurLevels.y);\n" +
+            "    if (level <= 0.0) {\n" +
+            "        gl_FragColor = sharp;\n" +
+            "        return;\n" +
+            "    }\n" +
+            "    float lower = floor(level);\n" +
+            "    float upper = min(lower + 1.0, blurLevels.y);\n" +
+            "    highp vec4 lowerBounds = levelBounds[0];\n" +
+            "    highp vec4 upperBounds = levelBounds[0];\n" +
+            "    highp vec2 lowerScale = levelScales[0].xy;\n" +
+            "    highp vec2 upperScale = levelScales[0].xy;\n" +
+            "    for (int i = 0; i < " + MAX_LEVELS + "; i++) {\n" +
+            "        float current = float(i + 1);\n" +
+            "        highp vec4 scales = levelScales[i / 2];\n" +
+            "        highp vec2 scale = i - i / 2 * 2 == 0 ? scales.xy : scales.zw;\n" +
+            "        if (current == lower) {\n" +
+            "            lowerBounds = levelBounds[i];\n" +
+            "            lowerScale = scale;\n" +
+            "        }\n" +
+            "        if (current == upper) {\n" +
+            "            upperBounds = levelBounds[i];\n" +
+            "            upperScale = scale;\n" +
+            "        }\n" +
+            "    }\n" +
+            "    vec4 lowerColor = lower < 0.5 ? sharp : sampleLevel(lowerBounds, lowerScale);\n" +
+            "    gl_FragColor = mix(lowerColor, sampleLevel(upperBounds, upperScale), level - lower);\n" +
+            "}";
+
+    private int mMask;
+    private PointF mCenter;
+    private float mAngle;
+    private float mFocusRadius;
+    private float mFalloff;
+    private float mMaxBlurLevel;
+    private float mAspectRatio = 1.0f;
+    private Bitmap mMaskBitmap;
+
+    private int mMaskParametersLocation;
+    private int mMaskDirectionLocation;
+    private int mBlurLevelsLocation;
+    private int mLevelBoundsLocation;
+    private int mLevelScalesLocation;
+    private int mAtlasTexelLocation;
+    private int mHasMaskTextureLocation;
+    private int mLevelAtlasLocation;
+    private int mBlurMaskLocation;
+
+    private final FrameBufferPool mPool = new FrameBufferPool(this);
+    private final GPUImagePyramid mOwnPyramid = new GPUImagePyramid(mPool);
+    private GPUImagePyramid mSharedPyramid;
+    private final int[] mAtlasTexture = new int[] {OpenGlUtils.NO_TEXTURE};
+    private final int[] mMaskTexture = new int[] {OpenGlUtils.NO_TEXTURE};
+    private boolean mLayoutDirty = true;
+
+    private int mLevelCount;
+    private int mUsedLevels;
+    private final int[] mLevelX = new int[MAX_LEVELS];
+    private final int[] mLevelY = new int[MAX_LEVELS];
+    private final float[] mLevelBounds = new float[MAX_LEVELS * 4];
+    private final float[] mLevelScales = new float[MAX_LEVELS * 2];
+    private final float[] mAtlasTexel = new float[2];
+
+    public GPUImageVariableBlurFilter() {
+        this(MASK_LINEAR);
+    }
+
+    public GPUImageVariableBlurFilter(final int mask) {
+        super(NO_FILTER_VERTEX_SHADER, VARIABLE_BLUR_FRAGMENT_SHADER);
+        mMask = mask;
+        mCenter = new PointF(0.5f, 0.5f);
+        mFocusRadius = 0.2f;
+        mFalloff = 0.2f;
+        mMaxBlurLevel = 4.0f;
+    }
+
+    @Override
+    public void onInit() {
+        super.onInit();
+        mMaskParametersLocation = GLES20.glGetUniformLocation(getProgram(), "maskParameters");
+        mMaskDirectionLocation = GLES20.glGetUniformLocation(getProgram(), "maskDirection");
+        mBlurLevelsLocation = GLES20.glGetUniformLocation(getProgram(), "blurLevels");
+        mLevelBoundsLocation = GLES20.glGetUniformLocation(getProgram(), "levelBounds");
+        mLevelScalesLocation = GLES20.glGetUniformLocation(getProgram(), "levelScales");
+        mAtlasTexelLocation = GLES20.glGetUniformLocation(getProgram(), "atlasTexel");
+        mHasMaskTextureLocation = GLES20.glGetUniformLocation(getProgram(), "hasMaskTexture");
+        mLevelAtlasLocation = GLES20.glGetUniformLocation(getProgram(), "levelAtlas");
+        mBlurMaskLocation = GLES20.glGetUniformLocation(getProgram(), "blurMask");
+        mOwnPyramid.init();
+        mLayoutDirty = true;
+    }
+
+    @Override
+    public void onInitialized() {
+        super.onInitialized();
+        updateMaskUniforms();
+        if (mMaskBitmap != null && !mMaskBitmap.isRecycled()) {
+            setMaskBitmap(mMaskBitmap);
+        }
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        mOwnPyramid.destroy();
+        deleteAtlas();
+        mPool.clear();
+        if (mMaskTexture[0] != OpenGlUtils.NO_TEXTURE) {
+            GPUImageResourceRegistry.deleteTextures(1, mMaskTexture, 0);
+            mMaskTexture[0] = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    @Override
+    public void onOutputSizeChanged(final int width, final int height) {
+        super.onOutputSizeChanged(width, height);
+        mAspectRatio = (float) height / width;
+        mLayoutDirty = true;
+        updateMaskUniforms();
+    }
+
+    @Override
+    public void onDraw(final int textureId, final FloatBuffer cubeBuffer,
+                       final FloatBuffer textureBuffer) {
+        if (isInitialized() && textureId != OpenGlUtils.NO_TEXTURE
+                && getOutputWidth() > 0 && getOutputHeight() > 0) {
+            GPUImagePyramid pyramid = mSharedPyramid;
+            if (pyramid == null) {
+                mOwnPyramid.setSource(textureId, getOutputWidth(), getOutputHeight());
+                pyramid = mOwnPyramid;
+            }
+            if (mLayoutDirty) {
+                layoutAtlas(pyramid);
+                mLayoutDirty = false;
+            }
+            copyLevels(pyramid);
+            mOwnPyramid.release();
+        }
+        super.onDraw(textureId, cubeBuffer, textureBuffer);
+    }
+
+    @Override
+    protected void onDrawArraysPre() {
+        GLState.activeTexture(GLES20.GL_TEXTURE1);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, mAtlasTexture[0]);
+        GLES20.glUniform1i(mLevelAtlasLocation, 1);
+        boolean hasMaskTexture = mMaskTexture[0] != OpenGlUtils.NO_TEXTURE;
+        if (hasMaskTexture) {
+            GLState.activeTexture(GLES20.GL_TEXTURE3);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, mMaskTexture[0]);
+            GLES20.glUniform1i(mBlurMaskLocation, 3);
+        }
+        GLES20.glUniform1f(mHasMaskTextureLocation, hasMaskTexture ? 1.0f : 0.0f);
+        GLES20.glUniform4fv(mLevelBoundsLocation, MAX_LEVELS, mLevelBounds, 0);
+        GLES20.glUniform4fv(mLevelScalesLocation, MAX_LEVELS / 2, mLevelScales, 0);
+        GLES20.glUniform2fv(mAtlasTexelLocation, 1, mAtlasTexel, 0);
+        GLES20.glUniform2f(mBlurLevelsLocation, Math.min(mMaxBlurLevel, mUsedLevels), mUsedLevels);
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+    }
+
+    /**
+     * Level 1 sits at the top left of the atlas, the smaller ones are stacked to its right,
+     * one pixel apart so bilinear reads never pick up a neighbour.
+     */
+    private void layoutAtlas(final GPUImagePyramid pyramid) {
+        deleteAtlas();
+        mLevelCount = pyramid.getLevelCount();
+        if (mLevelCount == 0) {
+            return;
+        }
+        int atlasWidth = pyramid.getLevelWidth(1);
+        int atlasHeight = pyramid.getLevelHeight(1);
+        int stackY = 0;
+        for (int level = 1; level < mLevelCount; level++) {
+            mLevelX[level] = pyramid.getLevelWidth(1) + 1;
+            mLevelY[level] = stackY;
+            stackY += pyramid.getLevelHeight(level + 1) + 1;
+            atlasWidth = Math.max(atlasWidth, mLevelX[level] + pyramid.getLevelWidth(level + 1));
+            atlasHeight = Math.max(atlasHeight, stackY);
+        }
+
+        for (int level = 0; level < MAX_LEVELS; level++) {
+            int index = Math.min(level, mLevelCount - 1);
+            mLevelBounds[level * 4] = (mLevelX[index] + 0.5f) / atlasWidth;
+            mLevelBounds[level * 4 + 1] = (mLevelY[index] + 0.5f) / atlasHeight;
+            mLevelBounds[level * 4 + 2] = (mLevelX[index] + pyramid.getLevelWidth(index + 1) - 0.5f) / atlasWidth;
+            mLevelBounds[level * 4 + 3] = (mLevelY[index] + pyramid.getLevelHeight(index + 1) - 0.5f) / atlasHeight;
+            // Levels of odd sizes are rounded up and cover more than the source
+            mLevelScales[level * 2] = pyramid.getLevelScaleX(index + 1)
+                    * pyramid.getLevelWidth(index + 1) / atlasWidth;
+            mLevelScales[level * 2 + 1] = pyramid.getLevelScaleY(index + 1)
+                    * pyramid.getLevelHeight(index + 1) / atlasHeight;
+        }
+        mAtlasTexel[0] = 1.0f / atlasWidth;
+        mAtlasTexel[1] = 1.0f / atlasHeight;
+
+        GLES20.glGenTextures(1, mAtlasTexture, 0);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, mAtlasTexture[0]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, atlasWidth, atlasHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GPUImageResourceRegistry.textureAllocated(mAtlasTexture[0], atlasWidth, atlasHeight, GLES20.GL_RGBA);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    private void deleteAtlas() {
+        if (mAtlasTexture[0] != OpenGlUtils.NO_TEXTURE) {
+            GPUImageResourceRegistry.deleteTextures(1, mAtlasTexture, 0);
+            mAtlasTexture[0] = OpenGlUtils.NO_TEXTURE;
+        }
+    }
+
+    /**
+     * Copies the levels up to the strongest blur into their places in the atlas.
+     */
+    private void copyLevels(final GPUImagePyramid pyramid) {
+        mUsedLevels = Math.min(mLevelCount, getPyramidLevels());
+        if (mUsedLevels == 0) {
+            return;
+        }
+        pyramid.build(mUsedLevels);
+        int[] previousFrameBuffer = new int[1];
+        previousFrameBuffer[0] = GLState.getFrameBuffer();
+        GLState.activeTexture(GLES20.GL_TEXTURE0);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, mAtlasTexture[0]);
+        for (int level = 0; level < mUsedLevels; level++) {
+            GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, pyramid.getLevelFrameBuffer(level + 1));
+            GLES20.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, mLevelX[level], mLevelY[level], 0, 0,
+                    pyramid.getLevelWidth(level + 1), pyramid.getLevelHeight(level + 1));
+        }
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, previousFrameBuffer[0]);
+    }
+
+    private void updateMaskUniforms() {
+        setFloatVec4(mMaskParametersLocation, new float[] {mCenter.x, mCenter.y, mFocusRadius, mFalloff});
+        setFloatVec4(mMaskDirectionLocation, new float[] {
+                (float) -Math.sin(mAngle), (float) Math.cos(mAngle), mMask, mAspectRatio});
+    }
+
+    /**
+     * @param mask MASK_LINEAR, MASK_RADIAL or MASK_TEXTURE
+     */
+    public void setMask(final int mask) {
+        if (mask < MASK_LINEAR || mask > MASK_TEXTURE) {
+            throw new IllegalArgumentException("Unknown mask " + mask);
+        }
+        mMask = mask;
+        updateMaskUniforms();
+    }
+
+    /**
+     * The center of the sharp band or circle, with a default of (0.5, 0.5)
+     */
+    public void setCenter(final PointF center) {
+        mCenter = center;
+        updateMaskUniforms();
+    }
+
+    /**
+     * The direction of the sharp band of MASK_LINEAR in radians, 0 is horizontal
+     */
+    public void setAngle(final float angle) {
+        mAngle = angle;
+        updateMaskUniforms();
+    }
+
+    public void setFocusRadius(final float focusRadius) {
+        mFocusRadius = focusRadius;
+        updateMaskUniforms();
+    }
+
+    public void setFalloff(final float falloff) {
+        mFalloff = falloff;
+        updateMaskUniforms();
+    }
+
+    /**
+     * @param maxBlurLevel from 0.0 to MAX_LEVELS, default 4.0
+     */
+    public void setMaxBlurLevel(final float maxBlurLevel) {
+        mMaxBlurLevel = Math.min(Math.max(maxBlurLevel, 0.0f), MAX_LEVELS);
+    }
+
+    @Override
+    public int getPyramidLevels() {
+        return (int) Math.ceil(mMaxBlurLevel);
+    }
+
+    @Override
+    public int getPyramidSource() {
+        return SOURCE_INPUT;
+    }
+
+    @Override
+    public void setPyramid(final GPUImagePyramid pyramid) {
+        mSharedPyramid = pyramid;
+    }
+
+    /**
+     * Sets the bitmap for MASK_TEXTURE, black is sharp and white is maxBlurLevel.
+     */
+    public void setMaskBitmap(final Bitmap bitmap) {
+        if (bitmap != null && bitmap.isRecycled()) {
+            return;
+        }
+        mMaskBitmap = bitmap;
+        if (bitmap == null) {
+            return;
+        }
+        runOnDraw(new Runnable() {
+            @Override
+            public void run() {
+                if (bitmap.isRecycled()) {
+                    return;
+                }
+                // The size may differ from the previous mask, so upload into a new texture
+                if (mMaskTexture[0] != OpenGlUtils.NO_TEXTURE) {
+                    GPUImageResourceRegistry.deleteTextures(1, mMaskTexture, 0);
+                }
+                GLState.activeTexture(GLES20.GL_TEXTURE3);
+                mMaskTexture[0] = OpenGlUtils.loadTexture(bitmap, OpenGlUtils.NO_TEXTURE, false);
+                GLState.activeTexture(GLES20.GL_TEXTURE0);
+            }
+        });
+    }
+}
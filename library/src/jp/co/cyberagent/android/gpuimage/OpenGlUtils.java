@@ -33,10 +33,11 @@ public class OpenGlUtils {
     }
 
     public static int loadTexture(final Bitmap img, final int usedTexId, final boolean recycle) {
+        GPUImageTracer.begin("uploadTexture");
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -47,22 +48,25 @@ public class OpenGlUtils {
                     GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
 
             GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, img, 0);
+            GPUImageResourceRegistry.textureAllocated(textures[0], img.getWidth(), img.getHeight(), GLES20.GL_RGBA);
         } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
             GLUtils.texSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, img);
             textures[0] = usedTexId;
         }
         if (recycle) {
             img.recycle();
         }
+        GPUImageTracer.end("uploadTexture");
         return textures[0];
     }
 
     public static int loadTexture(final IntBuffer data, final Size size, final int usedTexId) {
+        GPUImageTracer.begin("uploadTexture");
         int textures[] = new int[1];
         if (usedTexId == NO_TEXTURE) {
             GLES20.glGenTextures(1, textures, 0);
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, textures[0]);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
                     GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
             GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
@@ -73,12 +77,14 @@ public class OpenGlUtils {
                     GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
             GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, size.width, size.height,
                     0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
+            GPUImageResourceRegistry.textureAllocated(textures[0], size.width, size.height, GLES20.GL_RGBA);
         } else {
-            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
+            GLState.bindTexture(GLES20.GL_TEXTURE_2D, usedTexId);
             GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, size.width,
                     size.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, data);
             textures[0] = usedTexId;
         }
+        GPUImageTracer.end("uploadTexture");
         return textures[0];
     }
 
@@ -88,6 +94,36 @@ public class OpenGlUtils {
         return loadTexture(bitmap, usedTexId);
     }
 
+    /**
+     * Creates a framebuffer with an attached RGBA texture and stores both names at the given
+     * index. The default framebuffer is bound afterwards.
+     */
+    public static void createFrameBuffer(final int[] frameBuffers, final int[] frameBufferTextures,
+                                         final int index, final int width, final int height) {
+        GLES20.glGenFramebuffers(1, frameBuffers, index);
+        GLES20.glGenTextures(1, frameBufferTextures, index);
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, frameBufferTextures[index]);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GPUImageResourceRegistry.textureAllocated(frameBufferTextures[index], width, height, GLES20.GL_RGBA);
+        GPUImageResourceRegistry.frameBufferAllocated(frameBuffers[index], width, height);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_S, GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D,
+                GLES20.GL_TEXTURE_WRAP_T, GLES20.GL_CLAMP_TO_EDGE);
+
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, frameBuffers[index]);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, frameBufferTextures[index], 0);
+
+        GLState.bindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLState.bindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
     public static int loadShader(final String strSource, final int iType) {
         int[] compiled = new int[1];
         int iShader = GLES20.glCreateShader(iType);
@@ -102,6 +138,13 @@ public class OpenGlUtils {
     }
 
     public static int loadProgram(final String strVSource, final String strFSource) {
+        GPUImageTracer.begin("compileProgram");
+        int program = compileProgram(strVSource, strFSource);
+        GPUImageTracer.end("compileProgram");
+        return program;
+    }
+
+    private static int compileProgram(final String strVSource, final String strFSource) {
         int iVShader;
         int iFShader;
         int iProgId;
@@ -134,6 +177,21 @@ public class OpenGlUtils {
         return iProgId;
     }
 
+    /**
+     * Returns the major version of the current context, e.g. 3 for "OpenGL ES 3.1". Needs a
+     * current context. Android usually hands out the newest version the device supports even
+     * if only 2.0 was requested.
+     */
+    public static int getGLESMajorVersion() {
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        String prefix = "OpenGL ES ";
+        if (version == null || !version.startsWith(prefix) || version.length() <= prefix.length()) {
+            return 2;
+        }
+        char major = version.charAt(prefix.length());
+        return major >= '0' && major <= '9' ? major - '0' : 2;
+    }
+
     public static float rnd(final float min, final float max) {
         float fRandNum = (float) Math.random();
         return min + (max - min) * fRandNum;
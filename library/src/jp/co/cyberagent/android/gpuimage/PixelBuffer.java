@@ -32,9 +32,12 @@ import javax.microedition.khronos.egl.EGLSurface;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.graphics.Bitmap;
+import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.util.Log;
 
+import jp.co.cyberagent.android.gpuimage.util.PixelUtil;
+
 public class PixelBuffer {
     final static String TAG = "PixelBuffer";
     final static boolean LIST_CONFIGS = false;
@@ -124,6 +127,18 @@ public class PixelBuffer {
         return mBitmap;
     }
 
+    /**
+     * Draws one frame and waits until the GPU has finished it, e.g. to time the renderer.
+     */
+    public void drawFrame() {
+        if (mRenderer == null || !Thread.currentThread().getName().equals(mThreadOwner)) {
+            Log.e(TAG, "drawFrame: Renderer was not set or this thread does not own the OpenGL context.");
+            return;
+        }
+        mRenderer.onDrawFrame(mGL);
+        GLES20.glFinish();
+    }
+
     public void destroy() {
         mRenderer.onDrawFrame(mGL);
         mRenderer.onDrawFrame(mGL);
@@ -133,6 +148,7 @@ public class PixelBuffer {
         mEGL.eglDestroySurface(mEGLDisplay, mEGLSurface);
         mEGL.eglDestroyContext(mEGLDisplay, mEGLContext);
         mEGL.eglTerminate(mEGLDisplay);
+        GPUImageResourceRegistry.contextDestroyed(mEGLContext);
     }
 
     private EGLConfig chooseConfig() {
@@ -191,18 +207,15 @@ public class PixelBuffer {
     private void convertToBitmap() {
         int[] iat = new int[mWidth * mHeight];
         IntBuffer ib = IntBuffer.allocate(mWidth * mHeight);
+        GPUImageTracer.begin("readPixels");
         mGL.glReadPixels(0, 0, mWidth, mHeight, GL_RGBA, GL_UNSIGNED_BYTE, ib);
+        GPUImageTracer.end("readPixels");
         int[] ia = ib.array();
 
         //Stupid !
         // Convert upside down mirror-reversed image to right-side up normal
         // image.
-        for (int i = 0; i < mHeight; i++) {
-            for (int j = 0; j < mWidth; j++) {
-                iat[(mHeight - i - 1) * mWidth + j] = ia[i * mWidth + j];
-            }
-        }
-        
+        PixelUtil.flipVertically(ia, iat, mWidth, mHeight);
 
         mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
         mBitmap.copyPixelsFromBuffer(IntBuffer.wrap(iat));
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage;
+
+import android.opengl.GLES20;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.microedition.khronos.egl.EGLContext;
+
+import jp.co.cyberagent.android.gpuimage.util.TextureRotationUtil;
+
+/**
+ * Serves the coordinates of full-screen quads from vertex buffer objects instead of client
+ * memory, which the driver would copy on every draw. The cube and the texture coordinates of
+ * every rotation and flip share one buffer created on first use, other quads such as the
+ * scale type adjusted ones get a buffer each, of which the least recently used are deleted.
+ * Quads are looked up by their content, so changing a FloatBuffer is always picked up.
+ * <br>
+ * GL_ARRAY_BUFFER is left unbound, client side pointers keep working. One cache per GL
+ * thread, GPUImageRenderer resets it for every new context.
+ */
+final class QuadBufferCache {
+    private static final int FLOATS = 8;
+    private static final int MAX_DYNAMIC = 32;
+
+    private static final ThreadLocal<QuadBufferCache> sCache = new ThreadLocal<QuadBufferCache>() {
+        @Override
+        protected QuadBufferCache initialValue() {
+            return new QuadBufferCache();
+        }
+    };
+
+    private static final class Key {
+        final int[] bits = new int[FLOATS];
+        int hash;
+
+        void set(final FloatBuffer buffer) {
+            for (int i = 0; i < FLOATS; i++) {
+                bits[i] = Float.floatToIntBits(buffer.get(i));
+            }
+            hash = Arrays.hashCode(bits);
+        }
+
+        Key copy() {
+            Key key = new Key();
+            System.arraycopy(bits, 0, key.bits, 0, FLOATS);
+            key.hash = hash;
+            return key;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key && Arrays.equals(bits, ((Key) o).bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final int buffer;
+        final int offset;
+
+        Entry(final int buffer, final int offset) {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+    }
+
+    private final Key mProbe = new Key();
+    private final Map<Key, Entry> mStatic = new HashMap<Key, Entry>();
+    private final Map<Key, Entry> mDynamic = new LinkedHashMap<Key, Entry>(MAX_DYNAMIC, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Entry> eldest) {
+            if (size() > MAX_DYNAMIC) {
+                GPUImageResourceRegistry.deleteBuffers(1, new int[] {eldest.getValue().buffer}, 0);
+                return true;
+            }
+            return false;
+        }
+    };
+    private boolean mStaticCreated;
+    // The context the buffers were created in, null before the first one
+    private EGLContext mContext;
+
+    private QuadBufferCache() {
+    }
+
+    /**
+     * Drops the buffers of the previous context of this thread, which went away with it, and
+     * removes them from the GPUImageResourceRegistry.
+     */
+    static void reset() {
+        sCache.get().forget();
+        sCache.set(new QuadBufferCache());
+    }
+
+    /**
+     * glVertexAttribPointer for 2 floats per vertex, reading from a buffer object when the
+     * FloatBuffer holds a quad from position 0.
+     */
+    static void vertexAttribPointer(final int index, final FloatBuffer buffer) {
+        QuadBufferCache cache = sCache.get();
+        int bound = cache.pointer(index, buffer, 0);
+        if (bound != 0) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    /**
+     * Both pointers of a pass with a single buffer binding when both quads share a buffer.
+     */
+    static void vertexAttribPointers(final int positionIndex, final FloatBuffer cubeBuffer,
+                                     final int textureIndex, final FloatBuffer textureBuffer) {
+        QuadBufferCache cache = sCache.get();
+        int bound = cache.pointer(positionIndex, cubeBuffer, 0);
+        bound = cache.pointer(textureIndex, textureBuffer, bound);
+        if (bound != 0) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    /**
+     * @param bound the buffer bound to GL_ARRAY_BUFFER
+     * @return the buffer bound afterwards
+     */
+    private int pointer(final int index, final FloatBuffer buffer, final int bound) {
+        Entry entry = lookup(buffer);
+        if (entry == null) {
+            if (bound != 0) {
+                GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            }
+            GLES20.glVertexAttribPointer(index, 2, GLES20.GL_FLOAT, false, 0, buffer);
+            return 0;
+        }
+        if (bound != entry.buffer) {
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, entry.buffer);
+        }
+        GLES20.glVertexAttribPointer(index, 2, GLES20.GL_FLOAT, false, 0, entry.offset);
+        return entry.buffer;
+    }
+
+    private Entry lookup(final FloatBuffer buffer) {
+        if (buffer.capacity() != FLOATS || buffer.position() != 0) {
+            return null;
+        }
+        if (!mStaticCreated) {
+            createStatic();
+            mStaticCreated = true;
+        }
+        mProbe.set(buffer);
+        Entry entry = mStatic.get(mProbe);
+        if (entry == null) {
+            entry = mDynamic.get(mProbe);
+        }
+        if (entry == null) {
+            int name = createBuffer(buffer);
+            entry = new Entry(name, 0);
+            mDynamic.put(mProbe.copy(), entry);
+        }
+        return entry;
+    }
+
+    private void createStatic() {
+        FloatBuffer quads = ByteBuffer.allocateDirect((1 + Rotation.values().length * 4) * FLOATS * 4)
+                .order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+        quads.put(TextureRotationUtil.CUBE);
+        for (Rotation rotation : Rotation.values()) {
+            for (int flip = 0; flip < 4; flip++) {
+                quads.put(TextureRotationUtil.getRotation(rotation, (flip & 1) != 0, (flip & 2) != 0));
+            }
+        }
+        quads.position(0);
+        int name = createBuffer(quads);
+
+        FloatBuffer quad = FloatBuffer.allocate(FLOATS);
+        for (int offset = 0; offset < quads.capacity(); offset += FLOATS) {
+            quads.position(offset);
+            quads.get(quad.array());
+            mProbe.set(quad);
+            // Some rotations flipped both ways are the same as others
+            if (!mStatic.containsKey(mProbe)) {
+                mStatic.put(mProbe.copy(), new Entry(name, offset * 4));
+            }
+        }
+    }
+
+    private void forget() {
+        if (mContext == null) {
+            return;
+        }
+        Set<Integer> names = new HashSet<Integer>();
+        for (Entry entry : mStatic.values()) {
+            names.add(entry.buffer);
+        }
+        for (Entry entry : mDynamic.values()) {
+            names.add(entry.buffer);
+        }
+        int[] buffers = new int[names.size()];
+        int i = 0;
+        for (int name : names) {
+            buffers[i++] = name;
+        }
+        GPUImageResourceRegistry.forget(mContext, GPUImageResourceRegistry.TYPE_BUFFER,
+                buffers.length, buffers, 0);
+    }
+
+    private int createBuffer(final FloatBuffer data) {
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, data.capacity() * 4, data, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        if (mContext == null) {
+            mContext = GPUImageResourceRegistry.getCurrentContext();
+        }
+        Object previousOwner = GPUImageResourceRegistry.setOwner(this);
+        GPUImageResourceRegistry.bufferAllocated(buffers[0], data.capacity() * 4);
+        GPUImageResourceRegistry.setOwner(previousOwner);
+        return buffers[0];
+    }
+}
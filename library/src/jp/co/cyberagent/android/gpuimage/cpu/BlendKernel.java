@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A blend of an overlay image over a base image on packed ARGB pixels, the CPU counterpart of
+ * the GPUImageTwoInputFilter blends, run by CpuProcessor.blend on tiles of both images at once.
+ * Like ChannelKernel, pixels are split into one float array per channel in blocks of
+ * ChannelKernel.BLOCK, which are allocated once per tile. The result is mixed with the base
+ * image by the opacity, as in GPUImageBlendFilter.
+ */
+public abstract class BlendKernel {
+    private final float mOpacity;
+
+    /**
+     * @param opacity 0.0 for only the base image to 1.0 for the full blend
+     */
+    protected BlendKernel(final float opacity) {
+        mOpacity = opacity;
+    }
+
+    public float getOpacity() {
+        return mOpacity;
+    }
+
+    /**
+     * Blends the pixels from index from up to index to. Called concurrently for disjoint
+     * ranges.
+     *
+     * @param base the ARGB pixels of the first input
+     * @param overlay the ARGB pixels of the second input, the same size as base
+     * @param target receives the blended pixels, may be base or overlay
+     */
+    public void apply(final int[] base, final int[] overlay, final int[] target,
+                      final int from, final int to) {
+        final int size = ChannelKernel.BLOCK;
+        float[] r = new float[size];
+        float[] g = new float[size];
+        float[] b = new float[size];
+        float[] a = new float[size];
+        float[] r2 = new float[size];
+        float[] g2 = new float[size];
+        float[] b2 = new float[size];
+        float[] a2 = new float[size];
+        boolean mix = mOpacity != 1.0f;
+        float[][] original = mix ? new float[4][size] : null;
+        for (int start = from; start < to; start += size) {
+            int length = Math.min(size, to - start);
+            ChannelKernel.unpack(base, start, length, r, g, b, a);
+            ChannelKernel.unpack(overlay, start, length, r2, g2, b2, a2);
+            if (mix) {
+                System.arraycopy(r, 0, original[0], 0, length);
+                System.arraycopy(g, 0, original[1], 0, length);
+                System.arraycopy(b, 0, original[2], 0, length);
+                System.arraycopy(a, 0, original[3], 0, length);
+            }
+            blend(r, g, b, a, r2, g2, b2, a2, length);
+            if (mix) {
+                mix(original[0], r, length);
+                mix(original[1], g, length);
+                mix(original[2], b, length);
+                mix(original[3], a, length);
+            }
+            ChannelKernel.pack(r, g, b, a, length, target, start);
+        }
+    }
+
+    /**
+     * Blends the first length entries of the overlay channels r2 to a2 over the base
+     * channels r to a, leaving the result in the base channels.
+     */
+    protected abstract void blend(float[] r, float[] g, float[] b, float[] a,
+                                  float[] r2, float[] g2, float[] b2, float[] a2, int length);
+
+    private void mix(final float[] original, final float[] result, final int length) {
+        float opacity = mOpacity;
+        for (int i = 0; i < length; i++) {
+            result[i] = original[i] * (1.0f - opacity) + result[i] * opacity;
+        }
+    }
+}
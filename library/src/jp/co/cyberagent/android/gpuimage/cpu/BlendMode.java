@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * The blend modes of GPUImageBlendFilter.Mode and of the separate blend filters on the CPU,
+ * following their GLSL including its edge cases. Separable modes blend one channel array at a
+ * time in loops the JIT can vectorize; hue, saturation, color and luminosity work per pixel.
+ * Colors are the same as in the shaders, which treat them as premultiplied.
+ */
+public enum BlendMode {
+    NORMAL(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = o[i] + b[i] * ba[i] * (1.0f - oa[i]);
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                ba[i] = oa[i] + ba[i] * (1.0f - oa[i]);
+            }
+        }
+    },
+    SOURCE_OVER(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = b[i] * (1.0f - oa[i]) + o[i] * oa[i];
+            }
+        }
+    },
+    ALPHA(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            SOURCE_OVER.channel(b, ba, o, oa, length);
+        }
+    },
+    DISSOLVE(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            System.arraycopy(o, 0, b, 0, length);
+        }
+    },
+    MULTIPLY(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = o[i] * b[i] + o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+            }
+        }
+    },
+    SCREEN(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = 1.0f - (1.0f - o[i]) * (1.0f - b[i]);
+            }
+        }
+    },
+    ADD(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                float rest = o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+                float product = oa[i] * ba[i];
+                b[i] = o[i] * ba[i] + b[i] * oa[i] >= product ? product + rest : o[i] + b[i];
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            union(ba, oa, length);
+        }
+    },
+    SUBTRACT(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = b[i] - o[i];
+            }
+        }
+    },
+    DARKEN(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = Math.min(o[i] * ba[i], b[i] * oa[i]) + o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            opaque(ba, length);
+        }
+    },
+    LIGHTEN(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = Math.max(b[i], o[i]);
+            }
+        }
+    },
+    DIFFERENCE(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = Math.abs(o[i] - b[i]);
+            }
+        }
+    },
+    EXCLUSION(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = (o[i] * ba[i] + b[i] * oa[i] - 2.0f * o[i] * b[i])
+                        + o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+            }
+        }
+    },
+    LINEAR_BURN(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = Math.min(Math.max(b[i] + o[i] - 1.0f, 0.0f), 1.0f);
+            }
+        }
+    },
+    COLOR_BURN(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = 1.0f - (1.0f - b[i]) / o[i];
+            }
+        }
+    },
+    DIVIDE(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                float rest = o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+                b[i] = oa[i] == 0.0f || b[i] / o[i] > ba[i] / oa[i]
+                        ? oa[i] * ba[i] + rest
+                        : (b[i] * oa[i] * oa[i]) / o[i] + rest;
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            union(ba, oa, length);
+        }
+    },
+    OVERLAY(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = 2.0f * b[i] < ba[i] ? hardLightDark(b[i], ba[i], o[i], oa[i])
+                        : hardLightLight(b[i], ba[i], o[i], oa[i]);
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            opaque(ba, length);
+        }
+    },
+    HARD_LIGHT(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                b[i] = 2.0f * o[i] < oa[i] ? hardLightDark(b[i], ba[i], o[i], oa[i])
+                        : hardLightLight(b[i], ba[i], o[i], oa[i]);
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            opaque(ba, length);
+        }
+    },
+    SOFT_LIGHT(true) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                float ratio = b[i] / ba[i];
+                b[i] = b[i] * (oa[i] * ratio + (2.0f * o[i] * (1.0f - ratio)))
+                        + o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+            }
+        }
+    },
+    COLOR_DODGE(false) {
+        @Override
+        void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+            for (int i = 0; i < length; i++) {
+                float product = oa[i] * ba[i];
+                float rest = o[i] * (1.0f - ba[i]) + b[i] * (1.0f - oa[i]);
+                if (product >= o[i] * ba[i] + b[i] * oa[i]) {
+                    // step(0.0, overlay.a) is always 1.0
+                    float overlay = Math.min(Math.max(o[i] / Math.min(Math.max(oa[i], 0.01f), 1.0f), 0.0f), 0.99f);
+                    b[i] = (b[i] * oa[i]) / (1.0f - overlay) + rest;
+                } else {
+                    b[i] = product + rest;
+                }
+            }
+        }
+
+        @Override
+        void alpha(final float[] ba, final float[] oa, final int length) {
+            opaque(ba, length);
+        }
+    },
+    HUE(false) {
+        @Override
+        void pixel(final float[] base, final float[] overlay, final float[] color) {
+            color[0] = overlay[0];
+            color[1] = overlay[1];
+            color[2] = overlay[2];
+            setSat(color, sat(base));
+            setLum(color, lum(base));
+        }
+    },
+    SATURATION(false) {
+        @Override
+        void pixel(final float[] base, final float[] overlay, final float[] color) {
+            color[0] = base[0];
+            color[1] = base[1];
+            color[2] = base[2];
+            setSat(color, sat(overlay));
+            setLum(color, lum(base));
+        }
+    },
+    COLOR(false) {
+        @Override
+        void pixel(final float[] base, final float[] overlay, final float[] color) {
+            color[0] = overlay[0];
+            color[1] = overlay[1];
+            color[2] = overlay[2];
+            setLum(color, lum(base));
+        }
+    },
+    LUMINOSITY(false) {
+        @Override
+        void pixel(final float[] base, final float[] overlay, final float[] color) {
+            color[0] = base[0];
+            color[1] = base[1];
+            color[2] = base[2];
+            setLum(color, lum(overlay));
+        }
+    };
+
+    private final boolean mBlendsAlpha;
+
+    /**
+     * @param blendsAlpha whether alpha is blended like the color channels
+     */
+    BlendMode(final boolean blendsAlpha) {
+        mBlendsAlpha = blendsAlpha;
+    }
+
+    /**
+     * @param opacity 0.0 for only the base image to 1.0 for the full blend
+     */
+    public BlendKernel createKernel(final float opacity) {
+        return new ModeKernel(this, opacity);
+    }
+
+    public BlendKernel createKernel() {
+        return createKernel(1.0f);
+    }
+
+    private static final class ModeKernel extends BlendKernel {
+        private final BlendMode mMode;
+
+        ModeKernel(final BlendMode mode, final float opacity) {
+            super(opacity);
+            mMode = mode;
+        }
+
+        @Override
+        protected void blend(final float[] r, final float[] g, final float[] b, final float[] a,
+                             final float[] r2, final float[] g2, final float[] b2, final float[] a2,
+                             final int length) {
+            mMode.blend(r, g, b, a, r2, g2, b2, a2, length);
+        }
+    }
+
+    void blend(final float[] r, final float[] g, final float[] b, final float[] a,
+               final float[] r2, final float[] g2, final float[] b2, final float[] a2,
+               final int length) {
+        if (isSeparable()) {
+            channel(r, a, r2, a2, length);
+            channel(g, a, g2, a2, length);
+            channel(b, a, b2, a2, length);
+            if (mBlendsAlpha) {
+                channel(a, a, a2, a2, length);
+            } else {
+                alpha(a, a2, length);
+            }
+            return;
+        }
+        // result = base * (1.0 - overlay.a) + pixel() * overlay.a, alpha of the base
+        float[] base = new float[3];
+        float[] overlay = new float[3];
+        float[] color = new float[3];
+        for (int i = 0; i < length; i++) {
+            base[0] = r[i];
+            base[1] = g[i];
+            base[2] = b[i];
+            overlay[0] = r2[i];
+            overlay[1] = g2[i];
+            overlay[2] = b2[i];
+            pixel(base, overlay, color);
+            float opacity = a2[i];
+            r[i] = r[i] * (1.0f - opacity) + color[0] * opacity;
+            g[i] = g[i] * (1.0f - opacity) + color[1] * opacity;
+            b[i] = b[i] * (1.0f - opacity) + color[2] * opacity;
+        }
+    }
+
+    private boolean isSeparable() {
+        return ordinal() < HUE.ordinal();
+    }
+
+    /**
+     * Blends one color channel of a separable mode into b, reading the base alpha ba and the
+     * overlay channel o and alpha oa.
+     */
+    void channel(final float[] b, final float[] ba, final float[] o, final float[] oa, final int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * The alpha of a separable mode that does not blend it like the colors, the base alpha by
+     * default.
+     */
+    void alpha(final float[] ba, final float[] oa, final int length) {
+    }
+
+    /**
+     * The blended color of a non separable mode before it is mixed by the overlay alpha.
+     */
+    void pixel(final float[] base, final float[] overlay, final float[] color) {
+        throw new UnsupportedOperationException();
+    }
+
+    static float hardLightDark(final float b, final float ba, final float o, final float oa) {
+        return 2.0f * o * b + o * (1.0f - ba) + b * (1.0f - oa);
+    }
+
+    static float hardLightLight(final float b, final float ba, final float o, final float oa) {
+        return oa * ba - 2.0f * (ba - b) * (oa - o) + o * (1.0f - ba) + b * (1.0f - oa);
+    }
+
+    static void union(final float[] ba, final float[] oa, final int length) {
+        for (int i = 0; i < length; i++) {
+            ba[i] = oa[i] + ba[i] - oa[i] * ba[i];
+        }
+    }
+
+    static void opaque(final float[] ba, final int length) {
+        for (int i = 0; i < length; i++) {
+            ba[i] = 1.0f;
+        }
+    }
+
+    static float lum(final float[] c) {
+        return c[0] * 0.3f + c[1] * 0.59f + c[2] * 0.11f;
+    }
+
+    static float sat(final float[] c) {
+        return Math.max(Math.max(c[0], c[1]), c[2]) - Math.min(Math.min(c[0], c[1]), c[2]);
+    }
+
+    static void setLum(final float[] c, final float l) {
+        float d = l - lum(c);
+        c[0] += d;
+        c[1] += d;
+        c[2] += d;
+        clipColor(c);
+    }
+
+    static void clipColor(final float[] c) {
+        float l = lum(c);
+        float n = Math.min(Math.min(c[0], c[1]), c[2]);
+        float x = Math.max(Math.max(c[0], c[1]), c[2]);
+        if (n < 0.0f) {
+            for (int i = 0; i < 3; i++) {
+                c[i] = l + ((c[i] - l) * l) / (l - n);
+            }
+        }
+        if (x > 1.0f) {
+            for (int i = 0; i < 3; i++) {
+                c[i] = l + ((c[i] - l) * (1.0f - l)) / (x - l);
+            }
+        }
+    }
+
+    private static float mid(final float min, final float mid, final float max, final float s) {
+        return ((mid - min) * s) / (max - min);
+    }
+
+    /**
+     * The case analysis of the shaders, including the case of blue being largest and green
+     * smallest, which zeroes red instead of green.
+     */
+    static void setSat(final float[] c, final float s) {
+        if (c[0] > c[1]) {
+            if (c[0] > c[2]) {
+                if (c[1] > c[2]) {
+                    c[1] = mid(c[2], c[1], c[0], s);
+                    c[2] = 0.0f;
+                } else {
+                    c[2] = mid(c[1], c[2], c[0], s);
+                    c[1] = 0.0f;
+                }
+                c[0] = s;
+            } else {
+                c[0] = mid(c[1], c[0], c[2], s);
+                c[2] = s;
+                c[0] = 0.0f;
+            }
+        } else if (c[0] > c[2]) {
+            c[0] = mid(c[2], c[0], c[1], s);
+            c[1] = s;
+            c[2] = 0.0f;
+        } else if (c[1] > c[2]) {
+            c[2] = mid(c[0], c[2], c[1], s);
+            c[1] = s;
+            c[0] = 0.0f;
+        } else if (c[2] > c[1]) {
+            c[1] = mid(c[0], c[1], c[2], s);
+            c[2] = s;
+            c[0] = 0.0f;
+        } else {
+            c[0] = 0.0f;
+            c[1] = 0.0f;
+            c[2] = 0.0f;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A CpuKernel doing its math in floats from 0.0 to 1.0 like the fragment shaders. Pixels are
+ * split into one array per channel in blocks of BLOCK, so process() is made of plain loops
+ * over arrays of the same index, which the JIT compiles to SIMD instructions. Results are
+ * clamped and rounded to 8 bits like a write to an RGBA8 framebuffer.
+ */
+public abstract class ChannelKernel implements CpuKernel {
+    public static final int BLOCK = 256;
+
+    static final float INV_255 = 1.0f / 255.0f;
+
+    @Override
+    public void apply(final int[] source, final int[] target, final int from, final int to) {
+        float[] r = new float[BLOCK];
+        float[] g = new float[BLOCK];
+        float[] b = new float[BLOCK];
+        float[] a = new float[BLOCK];
+        for (int start = from; start < to; start += BLOCK) {
+            int length = Math.min(BLOCK, to - start);
+            unpack(source, start, length, r, g, b, a);
+            process(r, g, b, a, length);
+            pack(r, g, b, a, length, target, start);
+        }
+    }
+
+    /**
+     * Filters the first length entries of the channel arrays in place.
+     */
+    protected abstract void process(float[] r, float[] g, float[] b, float[] a, int length);
+
+    static void unpack(final int[] pixels, final int offset, final int length,
+                       final float[] r, final float[] g, final float[] b, final float[] a) {
+        for (int i = 0; i < length; i++) {
+            int pixel = pixels[offset + i];
+            a[i] = (pixel >>> 24) * INV_255;
+            r[i] = ((pixel >> 16) & 0xff) * INV_255;
+            g[i] = ((pixel >> 8) & 0xff) * INV_255;
+            b[i] = (pixel & 0xff) * INV_255;
+        }
+    }
+
+    /**
+     * Overwrites the channel arrays with the scaled values.
+     */
+    static void pack(final float[] r, final float[] g, final float[] b, final float[] a,
+                     final int length, final int[] pixels, final int offset) {
+        // Clamping in loops of their own, which unlike the packing loop can be vectorized
+        scale(r, length);
+        scale(g, length);
+        scale(b, length);
+        scale(a, length);
+        for (int i = 0; i < length; i++) {
+            pixels[offset + i] = (int) a[i] << 24 | (int) r[i] << 16 | (int) g[i] << 8 | (int) b[i];
+        }
+    }
+
+    private static void scale(final float[] channel, final int length) {
+        for (int i = 0; i < length; i++) {
+            channel[i] = Math.min(Math.max(channel[i] * 255.0f + 0.5f, 0.0f), 255.0f);
+        }
+    }
+
+    static int toByte(final float value) {
+        return (int) (Math.min(Math.max(value, 0.0f), 1.0f) * 255.0f + 0.5f);
+    }
+}
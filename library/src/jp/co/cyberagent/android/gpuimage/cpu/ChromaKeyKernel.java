@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * GPUImageChromaKeyBlendFilter on the CPU: pixels of the base image close to the color to
+ * replace in chroma are replaced by the overlay.
+ */
+public class ChromaKeyKernel extends BlendKernel {
+    private final float mThresholdSensitivity;
+    private final float mSmoothing;
+    private final float mMaskCr;
+    private final float mMaskCb;
+
+    /**
+     * @param colorToReplace red, green and blue from 0.0 to 1.0
+     */
+    public ChromaKeyKernel(final float thresholdSensitivity, final float smoothing,
+                           final float[] colorToReplace) {
+        super(1.0f);
+        mThresholdSensitivity = thresholdSensitivity;
+        mSmoothing = smoothing;
+        float maskY = 0.2989f * colorToReplace[0] + 0.5866f * colorToReplace[1] + 0.1145f * colorToReplace[2];
+        mMaskCr = 0.7132f * (colorToReplace[0] - maskY);
+        mMaskCb = 0.5647f * (colorToReplace[2] - maskY);
+    }
+
+    @Override
+    protected void blend(final float[] r, final float[] g, final float[] b, final float[] a,
+                         final float[] r2, final float[] g2, final float[] b2, final float[] a2,
+                         final int length) {
+        float low = mThresholdSensitivity;
+        float high = low + mSmoothing;
+        float maskCr = mMaskCr;
+        float maskCb = mMaskCb;
+        for (int i = 0; i < length; i++) {
+            float y = 0.2989f * r[i] + 0.5866f * g[i] + 0.1145f * b[i];
+            float cr = 0.7132f * (r[i] - y) - maskCr;
+            float cb = 0.5647f * (b[i] - y) - maskCb;
+            float distance = (float) Math.sqrt(cr * cr + cb * cb);
+            // 1.0 - smoothstep(low, high, distance)
+            float t = Math.min(Math.max((distance - low) / (high - low), 0.0f), 1.0f);
+            float blend = 1.0f - t * t * (3.0f - 2.0f * t);
+            r[i] = r[i] * (1.0f - blend) + r2[i] * blend;
+            g[i] = g[i] * (1.0f - blend) + g2[i] * blend;
+            b[i] = b[i] * (1.0f - blend) + b2[i] * blend;
+            a[i] = a[i] * (1.0f - blend) + a2[i] * blend;
+        }
+    }
+}
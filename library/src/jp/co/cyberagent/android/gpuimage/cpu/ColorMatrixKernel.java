@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * GPUImageColorMatrixFilter and GPUImageSepiaFilter on the CPU.
+ */
+public class ColorMatrixKernel extends ChannelKernel {
+    private final float[] mMatrix = new float[16];
+
+    /**
+     * @param intensity 1.0 for the full effect, 0.0 for the original image
+     * @param colorMatrix the 4x4 matrix as passed to GPUImageColorMatrixFilter, every group
+     *                    of four gives one output channel from the input RGBA
+     */
+    public ColorMatrixKernel(final float intensity, final float[] colorMatrix) {
+        if (colorMatrix.length != 16) {
+            throw new IllegalArgumentException("colorMatrix must have 16 entries");
+        }
+        // Blended with the original here instead of per pixel
+        for (int i = 0; i < 16; i++) {
+            mMatrix[i] = colorMatrix[i] * intensity + (i % 5 == 0 ? 1.0f - intensity : 0.0f);
+        }
+    }
+
+    @Override
+    protected void process(final float[] r, final float[] g, final float[] b, final float[] a,
+                           final int length) {
+        float[] m = mMatrix;
+        float m0 = m[0], m1 = m[1], m2 = m[2], m3 = m[3];
+        float m4 = m[4], m5 = m[5], m6 = m[6], m7 = m[7];
+        float m8 = m[8], m9 = m[9], m10 = m[10], m11 = m[11];
+        float m12 = m[12], m13 = m[13], m14 = m[14], m15 = m[15];
+        for (int i = 0; i < length; i++) {
+            float red = r[i];
+            float green = g[i];
+            float blue = b[i];
+            float alpha = a[i];
+            r[i] = red * m0 + green * m1 + blue * m2 + alpha * m3;
+            g[i] = red * m4 + green * m5 + blue * m6 + alpha * m7;
+            b[i] = red * m8 + green * m9 + blue * m10 + alpha * m11;
+            a[i] = red * m12 + green * m13 + blue * m14 + alpha * m15;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * GPUImageContrastFilter on the CPU.
+ */
+public class ContrastKernel extends ChannelKernel {
+    private final float mContrast;
+
+    /**
+     * @param contrast from 0.0 to 4.0, with 1.0 as the normal level
+     */
+    public ContrastKernel(final float contrast) {
+        mContrast = contrast;
+    }
+
+    @Override
+    protected void process(final float[] r, final float[] g, final float[] b, final float[] a,
+                           final int length) {
+        float contrast = mContrast;
+        float offset = 0.5f - 0.5f * contrast;
+        for (int i = 0; i < length; i++) {
+            r[i] = r[i] * contrast + offset;
+            g[i] = g[i] * contrast + offset;
+            b[i] = b[i] * contrast + offset;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * A per-pixel filter on packed ARGB pixels, run by a CpuProcessor on several threads at once.
+ * Implementations hold a snapshot of the filter parameters and no other state, so they
+ * have no Android dependencies and can run on any JVM.
+ */
+public interface CpuKernel {
+    /**
+     * Filters the pixels from index from up to index to. Called concurrently for disjoint
+     * ranges of whole rows.
+     *
+     * @param source the ARGB pixels
+     * @param target receives the filtered pixels, may be source
+     */
+    void apply(int[] source, int[] target, int from, int to);
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs CpuKernels on stripes of whole rows and BlendKernels on tiles of both images, which the
+ * calling thread and the threads - 1 workers of the processor take one after the other until
+ * none are left, so a slow thread does not hold up the others. Plain executor threads rather
+ * than a ForkJoinPool, which only exists from API level 21 on.
+ * <br>
+ * Calls from a worker thread, e.g. by a kernel applying another one, run on that thread only.
+ */
+public class CpuProcessor {
+    /**
+     * Pixels per stripe, 64 KB of ARGB, which stays in the L2 cache of a core while it is
+     * read and written.
+     */
+    public static final int STRIPE_PIXELS = 16 * 1024;
+    /**
+     * Pixels per tile of a blend, 32 KB each of base, overlay and target.
+     */
+    public static final int TILE_PIXELS = 8 * 1024;
+
+    private static final ThreadLocal<Boolean> sWorker = new ThreadLocal<Boolean>();
+    private static CpuProcessor sDefault;
+
+    private final int mThreads;
+    private final ExecutorService mExecutor;
+
+    /**
+     * @param threads the number of threads working on an image, including the calling one
+     */
+    public CpuProcessor(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        mThreads = threads;
+        mExecutor = threads > 1 ? Executors.newFixedThreadPool(threads - 1, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        sWorker.set(Boolean.TRUE);
+                        runnable.run();
+                    }
+                }, "GPUImageCpu-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+    }
+
+    /**
+     * @return a processor with one thread per core, shared by the whole process
+     */
+    public static synchronized CpuProcessor getDefault() {
+        if (sDefault == null) {
+            sDefault = new CpuProcessor(Runtime.getRuntime().availableProcessors());
+        }
+        return sDefault;
+    }
+
+    public int getThreads() {
+        return mThreads;
+    }
+
+    /**
+     * Filters an image, returning once all pixels are done.
+     *
+     * @param source width * height ARGB pixels
+     * @param target receives the filtered pixels, may be source
+     */
+    public void apply(final CpuKernel kernel, final int[] source, final int[] target,
+                      final int width, final int height) {
+        final int pixels = width * height;
+        if (source.length < pixels || target.length < pixels) {
+            throw new IllegalArgumentException("Pixel arrays are smaller than " + width + "x" + height);
+        }
+        if (pixels == 0) {
+            return;
+        }
+        final int stripePixels = Math.max(1, STRIPE_PIXELS / width) * width;
+        execute(new Job() {
+            @Override
+            void run(final int stripe) {
+                int from = stripe * stripePixels;
+                kernel.apply(source, target, from, Math.min(from + stripePixels, pixels));
+            }
+        }, (pixels + stripePixels - 1) / stripePixels);
+    }
+
+    /**
+     * Blends two images of the same size, returning once all pixels are done. The tiles are
+     * ranges of pixels regardless of rows, a blend only reads the pixel it writes.
+     *
+     * @param base width * height ARGB pixels of the first input
+     * @param overlay width * height ARGB pixels of the second input
+     * @param target receives the blended pixels, may be base or overlay
+     */
+    public void blend(final BlendKernel kernel, final int[] base, final int[] overlay,
+                      final int[] target, final int width, final int height) {
+        final int pixels = width * height;
+        if (base.length < pixels || overlay.length < pixels || target.length < pixels) {
+            throw new IllegalArgumentException("Pixel arrays are smaller than " + width + "x" + height);
+        }
+        execute(new Job() {
+            @Override
+            void run(final int tile) {
+                int from = tile * TILE_PIXELS;
+                kernel.apply(base, overlay, target, from, Math.min(from + TILE_PIXELS, pixels));
+            }
+        }, (pixels + TILE_PIXELS - 1) / TILE_PIXELS);
+    }
+
+    /**
+     * Stops the worker threads once they are idle. The default processor is never shut down.
+     */
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    abstract static class Job {
+        abstract void run(int part);
+    }
+
+    /**
+     * Runs parts 0 to count - 1 of the job and rethrows the first exception any of them threw.
+     */
+    void execute(final Job job, final int count) {
+        int workers = Math.min(mThreads, count) - 1;
+        if (workers <= 0 || sWorker.get() != null) {
+            for (int i = 0; i < count; i++) {
+                job.run(i);
+            }
+            return;
+        }
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(workers);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runParts(job, count, next, failure);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < workers; i++) {
+            mExecutor.execute(worker);
+        }
+        runParts(job, count, next, failure);
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        Throwable throwable = failure.get();
+        if (throwable instanceof RuntimeException) {
+            throw (RuntimeException) throwable;
+        } else if (throwable instanceof Error) {
+            throw (Error) throwable;
+        } else if (throwable != null) {
+            throw new RuntimeException(throwable);
+        }
+    }
+
+    private static void runParts(final Job job, final int count, final AtomicInteger next,
+                                 final AtomicReference<Throwable> failure) {
+        try {
+            for (int part = next.getAndIncrement(); part < count && failure.get() == null;
+                 part = next.getAndIncrement()) {
+                job.run(part);
+            }
+        } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+    }
+}
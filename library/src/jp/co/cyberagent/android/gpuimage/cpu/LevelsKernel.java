@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * GPUImageLevelsFilter on the CPU. Every output channel only depends on the same input
+ * channel, so the shader math including its pow() is done once for each of the 256 input
+ * values and pixels are filtered with three table lookups.
+ */
+public class LevelsKernel implements CpuKernel {
+    private final int[] mRed = new int[256];
+    private final int[] mGreen = new int[256];
+    private final int[] mBlue = new int[256];
+
+    /**
+     * Each parameter has a red, green and blue entry.
+     *
+     * @param min input level mapped to minOutput
+     * @param mid gamma applied between min and max, 1.0 for linear
+     * @param max input level mapped to maxOutput
+     */
+    public LevelsKernel(final float[] min, final float[] mid, final float[] max,
+                        final float[] minOutput, final float[] maxOutput) {
+        fill(mRed, 16, min[0], mid[0], max[0], minOutput[0], maxOutput[0]);
+        fill(mGreen, 8, min[1], mid[1], max[1], minOutput[1], maxOutput[1]);
+        fill(mBlue, 0, min[2], mid[2], max[2], minOutput[2], maxOutput[2]);
+    }
+
+    private static void fill(final int[] table, final int shift, final float min, final float mid,
+                             final float max, final float minOutput, final float maxOutput) {
+        for (int value = 0; value < 256; value++) {
+            float level = Math.min(Math.max(value * ChannelKernel.INV_255 - min, 0.0f) / (max - min), 1.0f);
+            float curved = (float) Math.pow(level, 1.0 / mid);
+            table[value] = ChannelKernel.toByte(minOutput + (maxOutput - minOutput) * curved) << shift;
+        }
+    }
+
+    @Override
+    public void apply(final int[] source, final int[] target, final int from, final int to) {
+        int[] red = mRed;
+        int[] green = mGreen;
+        int[] blue = mBlue;
+        for (int i = from; i < to; i++) {
+            int pixel = source[i];
+            target[i] = (pixel & 0xff000000) | red[(pixel >> 16) & 0xff]
+                    | green[(pixel >> 8) & 0xff] | blue[pixel & 0xff];
+        }
+    }
+}
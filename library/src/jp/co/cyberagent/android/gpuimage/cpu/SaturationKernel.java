@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package jp.co.cyberagent.android.gpuimage.cpu;
+
+/**
+ * GPUImageSaturationFilter on the CPU.
+ */
+public class SaturationKernel extends ChannelKernel {
+    static final float LUMINANCE_R = 0.2125f;
+    static final float LUMINANCE_G = 0.7154f;
+    static final float LUMINANCE_B = 0.0721f;
+
+    private final float mSaturation;
+
+    /**
+     * @param saturation from 0.0 to 2.0, with 1.0 as the normal level
+     */
+    public SaturationKernel(final float saturation) {
+        mSaturation = saturation;
+    }
+
+    @Override
+    protected void process(final float[] r, final float[] g, final float[] b, final float[] a,
+                           final int length) {
+        float saturation = mSaturation;
+        for (int i = 0; i < length; i++) {
+            float luminance = r[i] * LUMINANCE_R + g[i] * LUMINANCE_G + b[i] * LUMINANCE_B;
+            r[i] = luminance + (r[i] - luminance) * saturation;
+            g[i] = luminance + (g[i] - luminance) * saturation;
+            b[i] = luminance + (b[i] - luminance) * saturation;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+/**
+ * Splits a square convolution kernel into a sum of separable terms, kernel = sum of
+ * vertical[i] * horizontal[i]^T, using a singular value decomposition (one-sided Jacobi).
+ * Terms are ordered by their contribution and only as many are kept as needed to stay within
+ * the tolerance.
+ */
+public class KernelDecomposition {
+    public static final float DEFAULT_TOLERANCE = 1e-3f;
+
+    private static final int MAX_SWEEPS = 60;
+
+    private final int mSize;
+    private final float[][] mVertical;
+    private final float[][] mHorizontal;
+    private final float mError;
+
+    private KernelDecomposition(final int size, final float[][] vertical, final float[][] horizontal,
+                                final float error) {
+        mSize = size;
+        mVertical = vertical;
+        mHorizontal = horizontal;
+        mError = error;
+    }
+
+    /**
+     * @return the width and height of the kernel
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the number of separable terms
+     */
+    public int getRank() {
+        return mVertical.length;
+    }
+
+    /**
+     * @return true if the kernel is a single separable term
+     */
+    public boolean isSeparable() {
+        return mVertical.length == 1;
+    }
+
+    /**
+     * @return the column vector of a term, top to bottom
+     */
+    public float[] getVertical(final int term) {
+        return mVertical[term];
+    }
+
+    /**
+     * @return the row vector of a term, left to right
+     */
+    public float[] getHorizontal(final int term) {
+        return mHorizontal[term];
+    }
+
+    /**
+     * @return the Frobenius norm of the dropped terms relative to the kernel's
+     */
+    public float getError() {
+        return mError;
+    }
+
+    /**
+     * Whether running the terms as pairs of 1D passes takes fewer samples than one full pass.
+     */
+    public boolean isCheaperThanFullPass() {
+        return getRank() > 0 && 2 * getRank() * mSize < mSize * mSize;
+    }
+
+    public static KernelDecomposition decompose(final float[] kernel) {
+        return decompose(kernel, DEFAULT_TOLERANCE);
+    }
+
+    /**
+     * @param kernel square kernel of odd size, row by row from the top left
+     * @param tolerance largest allowed relative error of the dropped terms
+     */
+    public static KernelDecomposition decompose(final float[] kernel, final float tolerance) {
+        int n = (int) Math.round(Math.sqrt(kernel.length));
+        if (n * n != kernel.length || n % 2 == 0) {
+            throw new IllegalArgumentException("Kernel must be square with an odd size, got "
+                    + kernel.length + " values");
+        }
+
+        // Columns of u converge to singular value * left singular vector
+        double[][] u = new double[n][n];
+        double[][] v = new double[n][n];
+        for (int row = 0; row < n; row++) {
+            for (int column = 0; column < n; column++) {
+                u[row][column] = kernel[row * n + column];
+            }
+            v[row][row] = 1.0;
+        }
+
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            boolean rotated = false;
+            for (int p = 0; p < n - 1; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    double alpha = 0;
+                    double beta = 0;
+                    double gamma = 0;
+                    for (int i = 0; i < n; i++) {
+                        alpha += u[i][p] * u[i][p];
+                        beta += u[i][q] * u[i][q];
+                        gamma += u[i][p] * u[i][q];
+                    }
+                    if (Math.abs(gamma) <= 1e-15 * Math.sqrt(alpha * beta) || gamma == 0) {
+                        continue;
+                    }
+                    rotated = true;
+                    double zeta = (beta - alpha) / (2 * gamma);
+                    double t = Math.signum(zeta) / (Math.abs(zeta) + Math.sqrt(1 + zeta * zeta));
+                    if (zeta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(1 + t * t);
+                    double s = c * t;
+                    for (int i = 0; i < n; i++) {
+                        double up = u[i][p];
+                        double uq = u[i][q];
+                        u[i][p] = c * up - s * uq;
+                        u[i][q] = s * up + c * uq;
+                        double vp = v[i][p];
+                        double vq = v[i][q];
+                        v[i][p] = c * vp - s * vq;
+                        v[i][q] = s * vp + c * vq;
+                    }
+                }
+            }
+            if (!rotated) {
+                break;
+            }
+        }
+
+        double[] singular = new double[n];
+        double total = 0;
+        for (int j = 0; j < n; j++) {
+            double norm = 0;
+            for (int i = 0; i < n; i++) {
+                norm += u[i][j] * u[i][j];
+            }
+            singular[j] = Math.sqrt(norm);
+            total += norm;
+        }
+
+        // Order the terms by singular value
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = i - 1;
+            while (j >= 0 && singular[order[j]] < singular[i]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = i;
+        }
+
+        // Keep the fewest terms whose dropped energy stays within the tolerance
+        int rank = total == 0 ? 0 : n;
+        double dropped = 0;
+        while (rank > 0) {
+            double next = singular[order[rank - 1]];
+            if (Math.sqrt((dropped + next * next) / total) > tolerance) {
+                break;
+            }
+            dropped += next * next;
+            rank--;
+        }
+
+        float[][] vertical = new float[rank][n];
+        float[][] horizontal = new float[rank][n];
+        for (int term = 0; term < rank; term++) {
+            int j = order[term];
+            double scale = Math.sqrt(singular[j]);
+            for (int i = 0; i < n; i++) {
+                vertical[term][i] = (float) (u[i][j] / singular[j] * scale);
+                horizontal[term][i] = (float) (v[i][j] * scale);
+            }
+        }
+        return new KernelDecomposition(n, vertical, horizontal,
+                total == 0 ? 0 : (float) Math.sqrt(dropped / total));
+    }
+}
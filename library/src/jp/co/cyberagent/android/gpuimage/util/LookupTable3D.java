@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+
+/**
+ * A 3D color lookup table with 8 bit RGB entries. Entries are ordered with red changing
+ * fastest, then green, then blue, which is the order of .cube files and Hald CLUT images
+ * and the layout expected by glTexImage3D.
+ */
+public class LookupTable3D {
+    public static final int MIN_SIZE = 2;
+    public static final int MAX_SIZE = 65;
+
+    private static final int BINARY_MAGIC = 0x4c555433; // "LUT3"
+    private static final int BINARY_VERSION = 1;
+
+    private final int mSize;
+    private final byte[] mData;
+
+    public LookupTable3D(final int size, final byte[] data) {
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw new IllegalArgumentException("Unsupported lookup table size " + size);
+        }
+        if (data.length != size * size * size * 3) {
+            throw new IllegalArgumentException("Lookup table data does not match size " + size);
+        }
+        mSize = size;
+        mData = data;
+    }
+
+    /**
+     * @return the number of entries along each axis
+     */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return the RGB entries, red changing fastest
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Parses an Adobe / Resolve .cube file with a LUT_3D_SIZE entry.
+     *
+     * @param input the .cube file, which is not closed
+     * @return the parsed lookup table
+     * @throws IOException if reading fails or the file is malformed
+     */
+    public static LookupTable3D readCube(final InputStream input) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, "US-ASCII"), 16 * 1024);
+        int size = 0;
+        byte[] data = null;
+        int index = 0;
+        float[] domainMin = new float[]{0.0f, 0.0f, 0.0f};
+        float[] domainMax = new float[]{1.0f, 1.0f, 1.0f};
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#') {
+                continue;
+            }
+            try {
+                char first = line.charAt(0);
+                if ((first >= '0' && first <= '9') || first == '-' || first == '.') {
+                    if (data == null) {
+                        throw new IOException("Missing LUT_3D_SIZE before the table data");
+                    }
+                    if (index >= data.length) {
+                        throw new IOException("Too many entries for LUT_3D_SIZE " + size);
+                    }
+                    String[] values = line.split("\\s+");
+                    if (values.length < 3) {
+                        throw new IOException("Malformed entry: " + line);
+                    }
+                    for (int c = 0; c < 3; c++) {
+                        float value = (Float.parseFloat(values[c]) - domainMin[c]) / (domainMax[c] - domainMin[c]);
+                        data[index++] = toByte(value);
+                    }
+                } else if (line.startsWith("LUT_3D_SIZE")) {
+                    size = Integer.parseInt(line.substring("LUT_3D_SIZE".length()).trim());
+                    if (size < MIN_SIZE || size > MAX_SIZE) {
+                        throw new IOException("Unsupported LUT_3D_SIZE " + size);
+                    }
+                    data = new byte[size * size * size * 3];
+                } else if (line.startsWith("DOMAIN_MIN")) {
+                    parseTriple(line.substring("DOMAIN_MIN".length()), domainMin);
+                } else if (line.startsWith("DOMAIN_MAX")) {
+                    parseTriple(line.substring("DOMAIN_MAX".length()), domainMax);
+                } else if (line.startsWith("LUT_1D_SIZE")) {
+                    throw new IOException("1D lookup tables are not supported");
+                }
+                // TITLE and unknown keywords are ignored
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed number: " + line, e);
+            }
+        }
+        if (data == null || index != data.length) {
+            throw new IOException("Incomplete lookup table");
+        }
+        return new LookupTable3D(size, data);
+    }
+
+    /**
+     * Creates a lookup table from the pixels of a Hald CLUT image. A Hald CLUT of level L is
+     * a square image of L^3 pixels per side and holds a table of size L^2.
+     *
+     * @param argb the pixels as returned by Bitmap.getPixels
+     * @param width the width of the image, which must equal its height
+     * @return the lookup table
+     */
+    public static LookupTable3D fromHaldPixels(final int[] argb, final int width) {
+        int level = (int) Math.round(Math.cbrt(width));
+        if (level * level * level != width || argb.length != width * width) {
+            throw new IllegalArgumentException("Not a Hald CLUT image, width " + width);
+        }
+        int size = level * level;
+        byte[] data = new byte[size * size * size * 3];
+        for (int i = 0, j = 0; i < argb.length; i++) {
+            int color = argb[i];
+            data[j++] = (byte) (color >> 16);
+            data[j++] = (byte) (color >> 8);
+            data[j++] = (byte) color;
+        }
+        return new LookupTable3D(size, data);
+    }
+
+    /**
+     * Reads a lookup table written by {@link #write(OutputStream)}.
+     */
+    public static LookupTable3D read(final InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 64 * 1024));
+        if (in.readInt() != BINARY_MAGIC || in.readInt() != BINARY_VERSION) {
+            throw new IOException("Not a binary lookup table");
+        }
+        int size = in.readInt();
+        if (size < MIN_SIZE || size > MAX_SIZE) {
+            throw new IOException("Unsupported lookup table size " + size);
+        }
+        byte[] data = new byte[size * size * size * 3];
+        in.readFully(data);
+        return new LookupTable3D(size, data);
+    }
+
+    /**
+     * Writes the table in a compact binary form which loads without any parsing.
+     */
+    public void write(final OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(BINARY_VERSION);
+        out.writeInt(mSize);
+        out.write(mData);
+        out.flush();
+    }
+
+    /**
+     * Loads a .cube file, using a binary copy in the cache directory when it is up to date.
+     *
+     * @param cubeFile the .cube file
+     * @param cacheDir directory for the binary copies, e.g. Context.getCacheDir()
+     * @return the lookup table
+     * @throws IOException if the .cube file can not be read
+     */
+    public static LookupTable3D loadCube(final File cubeFile, final File cacheDir) throws IOException {
+        File cacheFile = new File(cacheDir, cubeFile.getName() + "-"
+                + Long.toHexString(cubeFile.lastModified()) + "-" + Long.toHexString(cubeFile.length()) + ".lut");
+        if (cacheFile.isFile()) {
+            InputStream input = new FileInputStream(cacheFile);
+            try {
+                return read(input);
+            } catch (IOException e) {
+                // Corrupt cache, parse again
+                cacheFile.delete();
+            } finally {
+                input.close();
+            }
+        }
+
+        LookupTable3D table;
+        InputStream input = new FileInputStream(cubeFile);
+        try {
+            table = readCube(input);
+        } finally {
+            input.close();
+        }
+
+        File tempFile = new File(cacheDir, cacheFile.getName() + ".tmp");
+        try {
+            OutputStream output = new FileOutputStream(tempFile);
+            try {
+                table.write(output);
+            } finally {
+                output.close();
+            }
+            if (!tempFile.renameTo(cacheFile)) {
+                tempFile.delete();
+            }
+        } catch (IOException e) {
+            // The cache is optional
+            tempFile.delete();
+        }
+        return table;
+    }
+
+    private static void parseTriple(final String values, final float[] out) throws IOException {
+        String[] parts = values.trim().split("\\s+");
+        if (parts.length < 3) {
+            throw new IOException("Malformed domain: " + values);
+        }
+        for (int i = 0; i < 3; i++) {
+            out[i] = Float.parseFloat(parts[i]);
+        }
+    }
+
+    private static byte toByte(final float value) {
+        return (byte) Math.round(Math.min(Math.max(value, 0.0f), 1.0f) * 255.0f);
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+public class PixelUtil {
+
+    private PixelUtil() {
+    }
+
+    /**
+     * Copies the rows of an image in reverse order, turning the bottom-up rows returned by
+     * glReadPixels into the top-down rows of a Bitmap.
+     *
+     * @param source width * height pixels
+     * @param target receives width * height pixels, must not be source
+     */
+    public static void flipVertically(final int[] source, final int[] target,
+                                      final int width, final int height) {
+        for (int i = 0; i < height; i++) {
+            System.arraycopy(source, i * width, target, (height - i - 1) * width, width);
+        }
+    }
+}
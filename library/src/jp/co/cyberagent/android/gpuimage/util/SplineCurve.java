@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Natural cubic spline through tone curve control points, evaluated at the 256 integer input
+ * levels. The result holds, for every level x, the offset spline(x) - x.
+ * <br>
+ * Curves are cached by their control points, the returned arrays are shared and must not be
+ * modified.
+ */
+public class SplineCurve {
+    public static final int LEVELS = 256;
+
+    private static final int CACHE_SIZE = 64;
+    private static final Map<Key, float[]> sCache =
+            new LinkedHashMap<Key, float[]>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Key, float[]> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+
+    private SplineCurve() {
+    }
+
+    /**
+     * Gets the curve through the given points, which are in the range 0 to 1.
+     *
+     * @param xs input values of the control points, in any order
+     * @param ys output values of the control points
+     * @return the offsets of the 256 levels or null if there are no points
+     */
+    public static float[] getCurve(final float[] xs, final float[] ys) {
+        if (xs == null || xs.length == 0) {
+            return null;
+        }
+        Key key = new Key(xs, ys);
+        synchronized (sCache) {
+            float[] curve = sCache.get(key);
+            if (curve != null) {
+                return curve;
+            }
+        }
+        float[] curve = createCurve(xs, ys);
+        synchronized (sCache) {
+            sCache.put(key, curve);
+        }
+        return curve;
+    }
+
+    /**
+     * Creates the curve without looking at the cache.
+     */
+    public static float[] createCurve(final float[] xs, final float[] ys) {
+        int n = xs.length;
+
+        // Convert from (0, 1) to (0, 255) and sort by x (insertion sort, there are few points).
+        int[] px = new int[n];
+        int[] py = new int[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) (xs[i] * 255);
+            int y = (int) (ys[i] * 255);
+            int j = i - 1;
+            while (j >= 0 && px[j] > x) {
+                px[j + 1] = px[j];
+                py[j + 1] = py[j];
+                j--;
+            }
+            px[j + 1] = x;
+            py[j + 1] = y;
+        }
+
+        float[] sd = createSecondDerivative(px, py);
+        float[] curve = new float[LEVELS];
+
+        // Levels before the first point are 0, after the last point 255.
+        int first = Math.max(px[0], 0);
+        int last = Math.min(px[n - 1], LEVELS - 1);
+        for (int x = 0; x < first && x < LEVELS; x++) {
+            curve[x] = -x;
+        }
+        for (int x = last + 1; x < LEVELS; x++) {
+            curve[x] = 255 - x;
+        }
+
+        for (int i = 0; i < n - 1; i++) {
+            int curX = px[i];
+            int nextX = px[i + 1];
+            if (nextX == curX) {
+                continue;
+            }
+            float h = nextX - curX;
+            for (int x = Math.max(curX, 0); x < nextX && x < LEVELS; x++) {
+                float b = (x - curX) / h;
+                float a = 1 - b;
+                float y = a * py[i] + b * py[i + 1]
+                        + (h * h / 6) * ((a * a * a - a) * sd[i] + (b * b * b - b) * sd[i + 1]);
+                curve[x] = Math.round(Math.min(Math.max(y, 0.0f), 255.0f)) - x;
+            }
+        }
+        if (last >= 0) {
+            curve[last] = Math.min(Math.max(py[n - 1], 0), 255) - last;
+        }
+        return curve;
+    }
+
+    /**
+     * Solves the tridiagonal system for the second derivatives of a natural spline
+     * (second derivative 0 at both ends).
+     */
+    private static float[] createSecondDerivative(final int[] px, final int[] py) {
+        int n = px.length;
+        float[] sd = new float[n];
+        if (n <= 2) {
+            return sd;
+        }
+
+        float[] lower = new float[n];
+        float[] diagonal = new float[n];
+        float[] upper = new float[n];
+        diagonal[0] = 1;
+        diagonal[n - 1] = 1;
+        for (int i = 1; i < n - 1; i++) {
+            float h1 = px[i] - px[i - 1];
+            float h2 = px[i + 1] - px[i];
+            lower[i] = h1 / 6;
+            diagonal[i] = (px[i + 1] - px[i - 1]) / 3.0f;
+            upper[i] = h2 / 6;
+            sd[i] = (h2 == 0 ? 0 : (py[i + 1] - py[i]) / h2) - (h1 == 0 ? 0 : (py[i] - py[i - 1]) / h1);
+        }
+
+        // Thomas algorithm, forward elimination then back substitution.
+        for (int i = 1; i < n; i++) {
+            if (diagonal[i - 1] == 0) {
+                continue;
+            }
+            float k = lower[i] / diagonal[i - 1];
+            diagonal[i] -= k * upper[i - 1];
+            sd[i] -= k * sd[i - 1];
+        }
+        sd[n - 1] = diagonal[n - 1] == 0 ? 0 : sd[n - 1] / diagonal[n - 1];
+        for (int i = n - 2; i >= 0; i--) {
+            sd[i] = diagonal[i] == 0 ? 0 : (sd[i] - upper[i] * sd[i + 1]) / diagonal[i];
+        }
+        return sd;
+    }
+
+    private static final class Key {
+        private final float[] mPoints;
+        private final int mHashCode;
+
+        Key(final float[] xs, final float[] ys) {
+            mPoints = new float[xs.length * 2];
+            for (int i = 0; i < xs.length; i++) {
+                mPoints[i * 2] = xs[i];
+                mPoints[i * 2 + 1] = ys[i];
+            }
+            mHashCode = Arrays.hashCode(mPoints);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof Key && Arrays.equals(mPoints, ((Key) o).mPoints);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.util;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageTracer;
+
+import java.util.LinkedList;
+
+/**
+ * Tasks added from any thread and run in order on the GL thread, e.g. parameter changes
+ * waiting for the next draw.
+ */
+public class TaskQueue {
+    private final Object mLock = new Object();
+    private LinkedList<Runnable> mTasks = new LinkedList<Runnable>();
+    // The drained tasks, only used by runAll()
+    private LinkedList<Runnable> mRunning = new LinkedList<Runnable>();
+
+    public void add(final Runnable task) {
+        synchronized (mLock) {
+            mTasks.addLast(task);
+        }
+    }
+
+    public boolean isEmpty() {
+        synchronized (mLock) {
+            return mTasks.isEmpty();
+        }
+    }
+
+    /**
+     * Runs the queued tasks including the ones they add themselves. The tasks run outside the
+     * lock, so other threads calling add() meanwhile do not wait for them.
+     */
+    public void runAll() {
+        while (true) {
+            LinkedList<Runnable> tasks;
+            synchronized (mLock) {
+                if (mTasks.isEmpty()) {
+                    return;
+                }
+                tasks = mTasks;
+                mTasks = mRunning;
+                mRunning = tasks;
+            }
+            while (!tasks.isEmpty()) {
+                Runnable task = tasks.removeFirst();
+                GPUImageTracer.begin(task.getClass());
+                task.run();
+                GPUImageTracer.end(task.getClass());
+            }
+        }
+    }
+}
@@ -20,6 +20,13 @@ import jp.co.cyberagent.android.gpuimage.Rotation;
 
 public class TextureRotationUtil {
 
+    public static final float CUBE[] = {
+            -1.0f, -1.0f,
+            1.0f, -1.0f,
+            -1.0f, 1.0f,
+            1.0f, 1.0f,
+    };
+
     public static final float TEXTURE_NO_ROTATION[] = {
             0.0f, 1.0f,
             1.0f, 1.0f,
@@ -86,6 +93,58 @@ public class TextureRotationUtil {
         return rotatedTex;
     }
 
+    /**
+     * Fits an image into the output. With centerCrop the image fills the output and the
+     * texture coordinates are cut down to the visible part, otherwise all of the image is
+     * shown and the vertices are pulled in.
+     *
+     * @param cube               receives the 8 vertex coordinates
+     * @param textureCoordinates receives the 8 texture coordinates
+     */
+    public static void getScaling(final Rotation rotation, final boolean flipHorizontal,
+                                  final boolean flipVertical, final boolean centerCrop,
+                                  final int imageWidth, final int imageHeight,
+                                  final int outputWidth, final int outputHeight,
+                                  final float[] cube, final float[] textureCoordinates) {
+        float width = outputWidth;
+        float height = outputHeight;
+        if (rotation == Rotation.ROTATION_270 || rotation == Rotation.ROTATION_90) {
+            width = outputHeight;
+            height = outputWidth;
+        }
+
+        float ratio1 = width / imageWidth;
+        float ratio2 = height / imageHeight;
+        float ratioMax = Math.max(ratio1, ratio2);
+        int imageWidthNew = Math.round(imageWidth * ratioMax);
+        int imageHeightNew = Math.round(imageHeight * ratioMax);
+
+        float ratioWidth = imageWidthNew / width;
+        float ratioHeight = imageHeightNew / height;
+
+        float[] rotatedTex = getRotation(rotation, flipHorizontal, flipVertical);
+        if (centerCrop) {
+            float distHorizontal = (1 - 1 / ratioWidth) / 2;
+            float distVertical = (1 - 1 / ratioHeight) / 2;
+            for (int i = 0; i < 8; i += 2) {
+                textureCoordinates[i] = addDistance(rotatedTex[i], distHorizontal);
+                textureCoordinates[i + 1] = addDistance(rotatedTex[i + 1], distVertical);
+                cube[i] = CUBE[i];
+                cube[i + 1] = CUBE[i + 1];
+            }
+        } else {
+            for (int i = 0; i < 8; i += 2) {
+                textureCoordinates[i] = rotatedTex[i];
+                textureCoordinates[i + 1] = rotatedTex[i + 1];
+                cube[i] = CUBE[i] / ratioHeight;
+                cube[i + 1] = CUBE[i + 1] / ratioWidth;
+            }
+        }
+    }
+
+    private static float addDistance(final float coordinate, final float distance) {
+        return coordinate == 0.0f ? distance : 1 - distance;
+    }
 
     private static float flip(final float i) {
         if (i == 0.0f) {
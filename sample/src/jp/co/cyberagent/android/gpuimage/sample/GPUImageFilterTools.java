@@ -31,6 +31,36 @@ import java.util.List;
 public class GPUImageFilterTools {
     public static void showDialog(final Context context,
             final OnGpuImageFilterChosenListener listener) {
+        final FilterList filters = createFilterList();
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Choose a filter");
+        builder.setItems(filters.names.toArray(new String[filters.names.size()]),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(final DialogInterface dialog, final int item) {
+                        listener.onGpuImageFilterChosenListener(
+                                createFilterForType(context, filters.filters.get(item)));
+                    }
+                });
+        builder.create().show();
+    }
+
+    /**
+     * @return the names of all filters offered by showDialog, in the same order
+     */
+    public static List<String> getFilterNames() {
+        return createFilterList().names;
+    }
+
+    /**
+     * Creates a new instance of the filter with the given name, as chosen in showDialog.
+     */
+    public static GPUImageFilter createFilter(final Context context, final String name) {
+        FilterList filters = createFilterList();
+        return createFilterForType(context, filters.filters.get(filters.names.indexOf(name)));
+    }
+
+    private static FilterList createFilterList() {
         final FilterList filters = new FilterList();
         filters.addFilter("Contrast", FilterType.CONTRAST);
         filters.addFilter("Invert", FilterType.INVERT);
@@ -80,9 +110,11 @@ public class GPUImageFilterTools {
         filters.addFilter("Blend (Subtract)", FilterType.BLEND_SUBTRACT);
         filters.addFilter("Blend (Chroma Key)", FilterType.BLEND_CHROMA_KEY);
         filters.addFilter("Blend (Normal)", FilterType.BLEND_NORMAL);
+        filters.addFilter("Blend (All Modes)", FilterType.BLEND_MODES);
 
         filters.addFilter("Lookup (Amatorka)", FilterType.LOOKUP_AMATORKA);
         filters.addFilter("Gaussian Blur", FilterType.GAUSSIAN_BLUR);
+        filters.addFilter("Tilt Shift (Variable Blur)", FilterType.VARIABLE_BLUR);
         filters.addFilter("Crosshatch", FilterType.CROSSHATCH);
 
         filters.addFilter("Box Blur", FilterType.BOX_BLUR);
@@ -110,21 +142,12 @@ public class GPUImageFilterTools {
         filters.addFilter("Levels Min (Mid Adjust)", FilterType.LEVELS_FILTER_MIN);
 
         filters. addFilter("Bilateral Blur", FilterType.BILATERAL_BLUR);
+        filters.addFilter("Bilateral Grid", FilterType.BILATERAL_GRID);
+        filters.addFilter("Guided Filter", FilterType.GUIDED);
 
         filters.addFilter("Transform (2-D)", FilterType.TRANSFORM2D);
 
-
-        AlertDialog.Builder builder = new AlertDialog.Builder(context);
-        builder.setTitle("Choose a filter");
-        builder.setItems(filters.names.toArray(new String[filters.names.size()]),
-                new DialogInterface.OnClickListener() {
-                    @Override
-                    public void onClick(final DialogInterface dialog, final int item) {
-                        listener.onGpuImageFilterChosenListener(
-                                createFilterForType(context, filters.filters.get(item)));
-                    }
-                });
-        builder.create().show();
+        return filters;
     }
 
     private static GPUImageFilter createFilterForType(final Context context, final FilterType type) {
@@ -243,6 +266,8 @@ public class GPUImageFilterTools {
                 return createBlendFilter(context, GPUImageChromaKeyBlendFilter.class);
             case BLEND_NORMAL:
                 return createBlendFilter(context, GPUImageNormalBlendFilter.class);
+            case BLEND_MODES:
+                return createBlendFilter(context, GPUImageBlendFilter.class);
 
             case LOOKUP_AMATORKA:
                 GPUImageLookupFilter amatorka = new GPUImageLookupFilter();
@@ -250,6 +275,8 @@ public class GPUImageFilterTools {
                 return amatorka;
             case GAUSSIAN_BLUR:
                 return new GPUImageGaussianBlurFilter();
+            case VARIABLE_BLUR:
+                return new GPUImageVariableBlurFilter();
             case CROSSHATCH:
                 return new GPUImageCrosshatchFilter();
 
@@ -299,6 +326,10 @@ public class GPUImageFilterTools {
 
             case BILATERAL_BLUR:
                 return new GPUImageBilateralFilter();
+            case BILATERAL_GRID:
+                return new GPUImageBilateralGridFilter();
+            case GUIDED:
+                return new GPUImageGuidedFilter();
 
             case TRANSFORM2D:
                 return new GPUImageTransformFilter();
@@ -328,9 +359,9 @@ public class GPUImageFilterTools {
         CONTRAST, GRAYSCALE, SHARPEN, SEPIA, SOBEL_EDGE_DETECTION, THREE_X_THREE_CONVOLUTION, FILTER_GROUP, EMBOSS, POSTERIZE, GAMMA, BRIGHTNESS, INVERT, HUE, PIXELATION,
         SATURATION, EXPOSURE, HIGHLIGHT_SHADOW, MONOCHROME, OPACITY, RGB, WHITE_BALANCE, VIGNETTE, TONE_CURVE, BLEND_COLOR_BURN, BLEND_COLOR_DODGE, BLEND_DARKEN, BLEND_DIFFERENCE,
         BLEND_DISSOLVE, BLEND_EXCLUSION, BLEND_SOURCE_OVER, BLEND_HARD_LIGHT, BLEND_LIGHTEN, BLEND_ADD, BLEND_DIVIDE, BLEND_MULTIPLY, BLEND_OVERLAY, BLEND_SCREEN, BLEND_ALPHA,
-        BLEND_COLOR, BLEND_HUE, BLEND_SATURATION, BLEND_LUMINOSITY, BLEND_LINEAR_BURN, BLEND_SOFT_LIGHT, BLEND_SUBTRACT, BLEND_CHROMA_KEY, BLEND_NORMAL, LOOKUP_AMATORKA,
+        BLEND_COLOR, BLEND_HUE, BLEND_SATURATION, BLEND_LUMINOSITY, BLEND_LINEAR_BURN, BLEND_SOFT_LIGHT, BLEND_SUBTRACT, BLEND_CHROMA_KEY, BLEND_NORMAL, BLEND_MODES, LOOKUP_AMATORKA,
         GAUSSIAN_BLUR, CROSSHATCH, BOX_BLUR, CGA_COLORSPACE, DILATION, KUWAHARA, RGB_DILATION, SKETCH, TOON, SMOOTH_TOON, BULGE_DISTORTION, GLASS_SPHERE, HAZE, LAPLACIAN, NON_MAXIMUM_SUPPRESSION,
-        SPHERE_REFRACTION, SWIRL, WEAK_PIXEL_INCLUSION, FALSE_COLOR, COLOR_BALANCE, LEVELS_FILTER_MIN, BILATERAL_BLUR, HALFTONE, TRANSFORM2D
+        SPHERE_REFRACTION, SWIRL, WEAK_PIXEL_INCLUSION, FALSE_COLOR, COLOR_BALANCE, LEVELS_FILTER_MIN, BILATERAL_BLUR, BILATERAL_GRID, GUIDED, HALFTONE, TRANSFORM2D, VARIABLE_BLUR
     }
 
     private static class FilterList {
@@ -409,6 +440,12 @@ public class GPUImageFilterTools {
                 adjuster = new BilateralAdjuster().filter(filter);
             } else if (filter instanceof GPUImageTransformFilter) {
                 adjuster = new RotateAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageGuidedFilter) {
+                adjuster = new GuidedAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageBlendFilter) {
+                adjuster = new BlendModeAdjuster().filter(filter);
+            } else if (filter instanceof GPUImageVariableBlurFilter) {
+                adjuster = new VariableBlurAdjuster().filter(filter);
             }
             else {
 
@@ -673,6 +710,28 @@ public class GPUImageFilterTools {
             }
         }
 
+        private class GuidedAdjuster extends Adjuster<GPUImageGuidedFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                getFilter().setEpsilon(range(percentage, 0.0001f, 0.05f));
+            }
+        }
+
+        private class VariableBlurAdjuster extends Adjuster<GPUImageVariableBlurFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                getFilter().setMaxBlurLevel(range(percentage, 0.0f, 6.0f));
+            }
+        }
+
+        private class BlendModeAdjuster extends Adjuster<GPUImageBlendFilter> {
+            @Override
+            public void adjust(final int percentage) {
+                GPUImageBlendFilter.Mode[] modes = GPUImageBlendFilter.Mode.values();
+                getFilter().setMode(modes[range(percentage, 0, modes.length - 1)]);
+            }
+        }
+
         private class RotateAdjuster extends Adjuster<GPUImageTransformFilter> {
             @Override
             public void adjust(final int percentage) {
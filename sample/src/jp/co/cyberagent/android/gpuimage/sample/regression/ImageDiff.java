@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample.regression;
+
+/**
+ * Per-channel difference of two ARGB images of the same size. Software and hardware
+ * rasterizers round differently, so a few pixels off by a few levels are expected.
+ */
+public class ImageDiff {
+    /**
+     * The largest difference of any channel of any pixel, 0 - 255.
+     */
+    public final int maxDelta;
+    /**
+     * Pixels with a channel differing by more than the tolerance.
+     */
+    public final int mismatched;
+    public final int total;
+
+    private ImageDiff(final int maxDelta, final int mismatched, final int total) {
+        this.maxDelta = maxDelta;
+        this.mismatched = mismatched;
+        this.total = total;
+    }
+
+    public static ImageDiff compare(final int[] expected, final int[] actual, final int tolerance) {
+        if (expected.length != actual.length) {
+            throw new IllegalArgumentException("Images differ in size");
+        }
+        int maxDelta = 0;
+        int mismatched = 0;
+        for (int i = 0; i < expected.length; i++) {
+            int a = expected[i];
+            int b = actual[i];
+            if (a == b) {
+                continue;
+            }
+            int delta = 0;
+            for (int shift = 0; shift < 32; shift += 8) {
+                delta = Math.max(delta, Math.abs(((a >>> shift) & 0xff) - ((b >>> shift) & 0xff)));
+            }
+            maxDelta = Math.max(maxDelta, delta);
+            if (delta > tolerance) {
+                mismatched++;
+            }
+        }
+        return new ImageDiff(maxDelta, mismatched, expected.length);
+    }
+
+    public float getMismatchedFraction() {
+        return total == 0 ? 0.0f : (float) mismatched / total;
+    }
+}
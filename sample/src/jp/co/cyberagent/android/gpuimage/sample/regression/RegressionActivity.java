@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample.regression;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+
+/**
+ * Runs the RegressionSuite without any UI and finishes, started by utils/regression.sh:
+ * adb shell am start -n jp.co.cyberagent.android.gpuimage.sample/.regression.RegressionActivity --ez record false
+ * The report and the images that differ are written to the regression directory of the
+ * external files dir, report.txt ends with a RESULT line once the suite is done.
+ */
+public class RegressionActivity extends Activity {
+    private static final String TAG = "GPUImageRegression";
+    public static final String EXTRA_RECORD = "record";
+
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        final boolean record = getIntent().getBooleanExtra(EXTRA_RECORD, false);
+        final File outputDir = new File(getExternalFilesDir(null), "regression");
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deleteRecursively(outputDir);
+                outputDir.mkdirs();
+                File reportFile = new File(outputDir, "report.txt");
+                PrintWriter report = null;
+                try {
+                    report = new PrintWriter(new FileWriter(reportFile));
+                    boolean passed = new RegressionSuite(RegressionActivity.this, outputDir, record).run(report);
+                    Log.i(TAG, passed ? "Passed" : "Failed, see " + reportFile);
+                } catch (Exception e) {
+                    Log.e(TAG, "Regression suite aborted", e);
+                    if (report != null) {
+                        report.println("RESULT ABORTED " + e);
+                    }
+                } finally {
+                    if (report != null) {
+                        report.close();
+                    }
+                }
+                finish();
+            }
+        }, "GPUImageRegression").start();
+    }
+
+    private static void deleteRecursively(final File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2012 CyberAgent
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jp.co.cyberagent.android.gpuimage.sample.regression;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+import jp.co.cyberagent.android.gpuimage.GPUImageConvolutionFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageCpuBlendFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageCpuFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageFilter;
+import jp.co.cyberagent.android.gpuimage.GPUImageRenderer;
+import jp.co.cyberagent.android.gpuimage.GPUImageTwoInputFilter;
+import jp.co.cyberagent.android.gpuimage.PixelBuffer;
+import jp.co.cyberagent.android.gpuimage.cpu.CpuProcessor;
+import jp.co.cyberagent.android.gpuimage.sample.GPUImageFilterTools;
+import jp.co.cyberagent.android.gpuimage.util.KernelDecomposition;
+
+/**
+ * Renders every filter of GPUImageFilterTools offscreen at several resolutions, compares the
+ * output with the golden images in assets/regression and the median frame time with
+ * assets/regression/timings.properties. Filters with a CPU kernel are also checked against
+ * the output of the kernel, blends with an overlay of the same size as the image. In record mode the images and timings are written to
+ * the output directory instead, to be checked in as the new goldens. Otherwise the separable
+ * path of GPUImageConvolutionFilter is also checked against its full path.
+ * <br>
+ * Goldens are only comparable on the renderer they were recorded with, the software GL of
+ * the CI emulator. Must be run on a thread of its own, every case creates a pbuffer context.
+ */
+public class RegressionSuite {
+    public static final int[][] RESOLUTIONS = {{64, 48}, {640, 480}, {1280, 720}};
+    /**
+     * Channel difference a pixel may have before it counts as mismatched.
+     */
+    public static final int TOLERANCE = 3;
+    public static final float MAX_MISMATCHED_FRACTION = 0.001f;
+    public static final int TIMED_FRAMES = 10;
+    /**
+     * A case fails when its median frame takes this much longer than the baseline, and more
+     * than SLACK_MS, which keeps cheap filters from failing on noise.
+     */
+    public static final float MAX_SLOWDOWN = 1.5f;
+    public static final float SLACK_MS = 1.0f;
+    /**
+     * A rank 1 kernel weighing the rows above more than the ones below, which a vertically
+     * flipped pass would turn upside down.
+     */
+    static final float[] ASYMMETRIC_KERNEL = createAsymmetricKernel(
+            new float[] {0.5f, 0.25f, 0.15f, 0.1f, 0.0f}, new float[] {0.1f, 0.2f, 0.4f, 0.2f, 0.1f});
+
+    static final String ASSET_DIR = "regression";
+    static final String TIMINGS = "timings.properties";
+
+    private final Context mContext;
+    private final File mOutputDir;
+    private final boolean mRecord;
+    private final Properties mBaseline = new Properties();
+    private final Properties mTimings = new Properties();
+
+    public RegressionSuite(final Context context, final File outputDir, final boolean record) {
+        mContext = context;
+        mOutputDir = outputDir;
+        mRecord = record;
+    }
+
+    /**
+     * Runs all cases and writes one line per case and a final RESULT line to the report.
+     *
+     * @return whether all cases passed
+     */
+    public boolean run(final PrintWriter report) throws IOException {
+        mOutputDir.mkdirs();
+        if (!mRecord) {
+            loadBaseline();
+        }
+        boolean passed = true;
+        List<String> names = GPUImageFilterTools.getFilterNames();
+        for (int[] resolution : RESOLUTIONS) {
+            Bitmap source = createTestImage(resolution[0], resolution[1]);
+            for (String name : names) {
+                passed &= runCase(name, source, report);
+                report.flush();
+            }
+            source.recycle();
+        }
+        if (!mRecord) {
+            passed &= checkConvolutionParity(report);
+        }
+        if (mRecord) {
+            OutputStream out = new FileOutputStream(new File(mOutputDir, TIMINGS));
+            try {
+                mTimings.store(out, "Median frame times in ms");
+            } finally {
+                out.close();
+            }
+        }
+        report.println(mRecord ? "RESULT RECORDED" : passed ? "RESULT PASSED" : "RESULT FAILED");
+        report.flush();
+        return passed;
+    }
+
+    private boolean runCase(final String name, final Bitmap source, final PrintWriter report)
+            throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        String key = getKey(name, width, height);
+
+        GPUImageFilter filter = GPUImageFilterTools.createFilter(mContext, name);
+        if (filter == null) {
+            report.println("FAIL " + key + ": filter could not be created");
+            return false;
+        }
+        Bitmap overlay = null;
+        if (filter instanceof GPUImageCpuBlendFilter) {
+            overlay = createOverlayImage(width, height);
+            ((GPUImageTwoInputFilter) filter).setBitmap(overlay);
+        }
+        GPUImageRenderer renderer = new GPUImageRenderer(filter);
+        PixelBuffer buffer = new PixelBuffer(width, height);
+        buffer.setRenderer(renderer);
+        renderer.setImageBitmap(source, false);
+        Bitmap result = buffer.getBitmap();
+        float[] times = new float[TIMED_FRAMES];
+        for (int i = 0; i < TIMED_FRAMES; i++) {
+            long start = System.nanoTime();
+            buffer.drawFrame();
+            times[i] = (System.nanoTime() - start) / 1000000.0f;
+        }
+        filter.destroy();
+        renderer.deleteImage();
+        buffer.destroy();
+        Arrays.sort(times);
+        float median = times[TIMED_FRAMES / 2];
+
+        if (mRecord) {
+            writePng(result, new File(mOutputDir, key + ".png"));
+            mTimings.setProperty(key, String.format(Locale.US, "%.3f", median));
+            report.println(String.format(Locale.US, "RECORD %s %.3f ms", key, median));
+            result.recycle();
+            if (overlay != null) {
+                overlay.recycle();
+            }
+            return true;
+        }
+
+        String failure = null;
+        Bitmap golden = readGolden(key);
+        ImageDiff diff = null;
+        if (golden == null) {
+            failure = "no golden image";
+        } else if (golden.getWidth() != width || golden.getHeight() != height) {
+            failure = "golden image is " + golden.getWidth() + "x" + golden.getHeight();
+        } else {
+            diff = ImageDiff.compare(getPixels(golden), getPixels(result), TOLERANCE);
+            if (diff.getMismatchedFraction() > MAX_MISMATCHED_FRACTION) {
+                failure = "image differs";
+                writePng(result, new File(mOutputDir, key + ".png"));
+            }
+        }
+        int[] cpuPixels = failure == null ? getCpuPixels(filter, source, overlay) : null;
+        if (cpuPixels != null) {
+            ImageDiff cpuDiff = ImageDiff.compare(getPixels(result), cpuPixels, TOLERANCE);
+            if (cpuDiff.getMismatchedFraction() > MAX_MISMATCHED_FRACTION) {
+                failure = "CPU kernel differs by up to " + cpuDiff.maxDelta;
+            }
+        }
+        String baseline = mBaseline.getProperty(key);
+        float limit = Float.NaN;
+        if (baseline != null) {
+            float baselineMs = Float.parseFloat(baseline);
+            limit = Math.max(baselineMs * MAX_SLOWDOWN, baselineMs + SLACK_MS);
+            if (median > limit && failure == null) {
+                failure = "slower than baseline " + baseline + " ms";
+            }
+        }
+        report.println(String.format(Locale.US, "%s %s max delta %d, mismatched %.4f%%, %.3f ms (limit %.3f ms)%s",
+                failure == null ? "PASS" : "FAIL", key,
+                diff != null ? diff.maxDelta : -1, diff != null ? diff.getMismatchedFraction() * 100 : 100.0f,
+                median, limit, failure == null ? "" : ": " + failure));
+        if (golden != null) {
+            golden.recycle();
+        }
+        if (overlay != null) {
+            overlay.recycle();
+        }
+        result.recycle();
+        return failure == null;
+    }
+
+    /**
+     * Runs an asymmetric separable kernel as 1D passes and as a single NxN pass, which have to
+     * give the same image.
+     */
+    private boolean checkConvolutionParity(final PrintWriter report) {
+        int[] resolution = RESOLUTIONS[1];
+        String key = "Convolution_separable_parity_" + resolution[0] + "x" + resolution[1];
+        Bitmap source = createTestImage(resolution[0], resolution[1]);
+        GPUImageConvolutionFilter separable = new GPUImageConvolutionFilter(ASYMMETRIC_KERNEL);
+        GPUImageConvolutionFilter full = new GPUImageConvolutionFilter(ASYMMETRIC_KERNEL,
+                KernelDecomposition.DEFAULT_TOLERANCE, false);
+        Bitmap separableResult = render(separable, source);
+        Bitmap fullResult = render(full, source);
+        ImageDiff diff = ImageDiff.compare(getPixels(fullResult), getPixels(separableResult), TOLERANCE);
+        boolean passed = separable.isSeparable() && !full.isSeparable()
+                && diff.getMismatchedFraction() <= MAX_MISMATCHED_FRACTION;
+        report.println(String.format(Locale.US, "%s %s max delta %d, mismatched %.4f%%",
+                passed ? "PASS" : "FAIL", key, diff.maxDelta, diff.getMismatchedFraction() * 100));
+        source.recycle();
+        separableResult.recycle();
+        fullResult.recycle();
+        return passed;
+    }
+
+    private static Bitmap render(final GPUImageFilter filter, final Bitmap source) {
+        GPUImageRenderer renderer = new GPUImageRenderer(filter);
+        PixelBuffer buffer = new PixelBuffer(source.getWidth(), source.getHeight());
+        buffer.setRenderer(renderer);
+        renderer.setImageBitmap(source, false);
+        Bitmap result = buffer.getBitmap();
+        filter.destroy();
+        renderer.deleteImage();
+        buffer.destroy();
+        return result;
+    }
+
+    static float[] createAsymmetricKernel(final float[] vertical, final float[] horizontal) {
+        float[] kernel = new float[vertical.length * horizontal.length];
+        for (int y = 0; y < vertical.length; y++) {
+            for (int x = 0; x < horizontal.length; x++) {
+                kernel[y * horizontal.length + x] = vertical[y] * horizontal[x];
+            }
+        }
+        return kernel;
+    }
+
+    /**
+     * Horizontal hue and vertical brightness gradients with hard edges, so color, blur and
+     * edge filters all change the image.
+     */
+    static Bitmap createTestImage(final int width, final int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, width, 0,
+                new int[] {Color.RED, Color.YELLOW, Color.GREEN, Color.CYAN, Color.BLUE, Color.MAGENTA},
+                null, Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(new LinearGradient(0, 0, 0, height, Color.TRANSPARENT, Color.BLACK,
+                Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(null);
+        paint.setColor(Color.WHITE);
+        canvas.drawCircle(width / 2.0f, height / 2.0f, Math.min(width, height) / 4.0f, paint);
+        paint.setColor(Color.BLACK);
+        canvas.drawRect(width / 8.0f, height / 8.0f, width * 3 / 8.0f, height * 3 / 8.0f, paint);
+        return bitmap;
+    }
+
+    /**
+     * Vertical gradients across the hue gradients of the test image. Opaque like the test image,
+     * the CPU kernels see unpremultiplied pixels where the shaders see premultiplied ones.
+     */
+    static Bitmap createOverlayImage(final int width, final int height) {
+        Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, 0, height,
+                new int[] {Color.CYAN, Color.MAGENTA, Color.YELLOW}, null, Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(new LinearGradient(0, 0, width, 0, Color.WHITE, Color.TRANSPARENT,
+                Shader.TileMode.CLAMP));
+        canvas.drawRect(0, 0, width, height, paint);
+        paint.setShader(null);
+        paint.setColor(Color.GRAY);
+        canvas.drawRect(width * 5 / 8.0f, height * 5 / 8.0f, width * 7 / 8.0f, height * 7 / 8.0f, paint);
+        return bitmap;
+    }
+
+    static String getKey(final String name, final int width, final int height) {
+        return name.replaceAll("[^A-Za-z0-9]+", "_").replaceAll("_$", "") + "_" + width + "x" + height;
+    }
+
+    private void loadBaseline() throws IOException {
+        try {
+            InputStream in = mContext.getAssets().open(ASSET_DIR + "/" + TIMINGS);
+            try {
+                mBaseline.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // No timings recorded yet, performance is not checked
+        }
+    }
+
+    private Bitmap readGolden(final String key) {
+        try {
+            InputStream in = mContext.getAssets().open(ASSET_DIR + "/" + key + ".png");
+            try {
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inScaled = false;
+                return BitmapFactory.decodeStream(in, null, options);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static int[] getPixels(final Bitmap bitmap) {
+        int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
+        bitmap.getPixels(pixels, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        return pixels;
+    }
+
+    /**
+     * @return the output of the CPU kernel of the filter, null if it has none
+     */
+    private static int[] getCpuPixels(final GPUImageFilter filter, final Bitmap source,
+                                      final Bitmap overlay) {
+        int[] pixels = getPixels(source);
+        if (filter instanceof GPUImageCpuFilter) {
+            CpuProcessor.getDefault().apply(((GPUImageCpuFilter) filter).getCpuKernel(),
+                    pixels, pixels, source.getWidth(), source.getHeight());
+        } else if (filter instanceof GPUImageCpuBlendFilter) {
+            CpuProcessor.getDefault().blend(((GPUImageCpuBlendFilter) filter).getCpuBlendKernel(),
+                    pixels, getPixels(overlay), pixels, source.getWidth(), source.getHeight());
+        } else {
+            return null;
+        }
+        return pixels;
+    }
+
+    private static void writePng(final Bitmap bitmap, final File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } finally {
+            out.close();
+        }
+    }
+}
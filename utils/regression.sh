@@ -0,0 +1,76 @@
+#!/bin/sh
+#
+# Runs the golden-image and performance regression suite of the sample app on the connected
+# device or emulator and exits with 1 when a case fails. In CI, use a headless emulator with
+# software GL so the goldens match, e.g.
+#   emulator -avd ci -no-window -no-audio -gpu swiftshader_indirect &
+#
+# utils/regression.sh          compare with sample/assets/regression
+# utils/regression.sh record   render new goldens and timings into sample/assets/regression
+#
+# The Gradle tasks :sample:regression and :sample:recordRegression run the same two commands
+# after installing the app, they set REGRESSION_INSTALLED so the script skips the install.
+# On a checkout without goldens, record and commit them first:
+#   ./gradlew :sample:recordRegression && git add sample/assets/regression
+#
+# The suite fails after REGRESSION_TIMEOUT seconds, 1800 by default, or when the app dies.
+
+set -e
+cd "$(dirname "$0")/.."
+
+PACKAGE=jp.co.cyberagent.android.gpuimage.sample
+REMOTE=/sdcard/Android/data/$PACKAGE/files/regression
+LOCAL=sample/build/regression
+RECORD=false
+if [ "$1" = "record" ]; then
+  RECORD=true
+fi
+TIMEOUT=${REGRESSION_TIMEOUT:-1800}
+
+if [ $RECORD = false ] && [ ! -f sample/assets/regression/timings.properties ]; then
+  echo "No goldens in sample/assets/regression, record them with ./gradlew :sample:recordRegression" >&2
+  exit 1
+fi
+
+if [ -z "$REGRESSION_INSTALLED" ]; then
+  ./gradlew -q :sample:installDebug
+fi
+adb wait-for-device
+adb shell am force-stop $PACKAGE
+adb shell rm -rf $REMOTE
+adb shell am start -W -n $PACKAGE/.regression.RegressionActivity --ez record $RECORD > /dev/null
+
+finished() {
+  adb shell cat $REMOTE/report.txt 2> /dev/null | grep -q '^RESULT'
+}
+
+# Poll the report until the suite has written its RESULT line
+DEADLINE=$(($(date +%s) + TIMEOUT))
+until finished; do
+  if [ -z "$(adb shell pidof $PACKAGE | tr -d '\r')" ]; then
+    # The app may have exited between the two checks
+    finished && break
+    echo "The app died before finishing the suite" >&2
+    adb logcat -d -s AndroidRuntime:E >&2 || true
+    exit 1
+  fi
+  if [ "$(date +%s)" -ge $DEADLINE ]; then
+    echo "The suite did not finish within $TIMEOUT seconds" >&2
+    adb shell am force-stop $PACKAGE
+    exit 1
+  fi
+  sleep 5
+done
+
+rm -rf $LOCAL
+mkdir -p $LOCAL
+adb pull $REMOTE/. $LOCAL > /dev/null
+grep -v '^PASS' $LOCAL/report.txt || true
+
+if [ $RECORD = true ]; then
+  mkdir -p sample/assets/regression
+  cp $LOCAL/*.png $LOCAL/timings.properties sample/assets/regression/
+  echo "Recorded goldens into sample/assets/regression"
+  exit 0
+fi
+grep -q '^RESULT PASSED' $LOCAL/report.txt